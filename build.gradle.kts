@@ -8,12 +8,13 @@
     alias(libs.plugins.librarian)
     alias(libs.plugins.mixin)
     alias(libs.plugins.shadow)
+    alias(libs.plugins.jmh)
     java
 }
 
 tasks
     .withType<JavaCompile>()
-    .matching { it.name == "compileJava" || it.name == "compileTestJava" }
+    .matching { it.name == "compileJava" || it.name == "compileTestJava" || it.name == "compileJmhJava" }
     .configureEach {
         val disabledLint = listOf(
             "processing", "path", "fallthrough", "serial"
@@ -57,6 +58,11 @@
     }
 
     "annotationProcessor"(variantOf(libs.mixin) { classifier("processor") })
+
+    "explicitDependencies"(libs.zstd)
+    "explicitDependencies"(libs.lz4)
+
+    "testImplementation"(libs.junit)
 }
 
 configure<UserDevExtension> {
@@ -99,6 +105,16 @@
     config("totally_safe_backup.mixins.json")
 }
 
+configure<me.champeau.jmh.JmhParameters> {
+    jmhVersion.set(libs.versions.jmh)
+    // Allocation per entry is one of the things we care about
+    profilers.add("gc")
+}
+
+tasks.named<Test>("test") {
+    useJUnitPlatform()
+}
+
 configure<BasePluginExtension> {
     archivesName.set("${project.name}-mc$minecraftVersion")
 }
@@ -0,0 +1,176 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.benchmark;
+
+import net.octyl.totallysafebackup.backup.BackupOptions;
+import net.octyl.totallysafebackup.backup.BackupPipeline;
+import net.octyl.totallysafebackup.backup.BackupProgress;
+import net.octyl.totallysafebackup.backup.BackupThrottle;
+import net.octyl.totallysafebackup.backup.WorldSnapshot;
+import net.octyl.totallysafebackup.backup.region.RegionCompactor;
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.target.BackupTarget;
+import net.octyl.totallysafebackup.backup.target.CompressionPolicy;
+import net.octyl.totallysafebackup.backup.target.DeduplicatingBackupTarget;
+import net.octyl.totallysafebackup.backup.target.ParallelZipBackupTarget;
+import net.octyl.totallysafebackup.backup.target.TarBackupTarget;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import net.octyl.totallysafebackup.backup.target.ZipBackupTarget;
+import org.apache.commons.io.file.PathUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Backs up a synthetic world into each kind of {@link BackupTarget}, through the same {@link BackupPipeline} the
+ * server uses.
+ *
+ * <p>
+ * The {@code entries} and {@code bytes} counters give throughput per file and per byte. Run with {@code -prof gc}
+ * (the default for the {@code jmh} task) and divide {@code gc.alloc.rate.norm} by the number of files in the world
+ * to get the bytes allocated per entry.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackupTargetBenchmark {
+    /**
+     * The kinds of target to benchmark.
+     */
+    public enum TargetKind {
+        ZIP,
+        PARALLEL_ZIP,
+        TAR_ZSTD,
+        TAR_LZ4,
+        TAR_GZIP,
+        DEDUPLICATED,
+    }
+
+    /**
+     * Counts what each backup did, so JMH reports it as a rate.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long entries;
+        public long bytes;
+    }
+
+    @Param
+    public SyntheticWorld.Shape shape;
+    @Param
+    public TargetKind target;
+    @Param("4")
+    public int walkThreads;
+    @Param("64")
+    public int readAheadMegabytes;
+    @Param("OFF")
+    public RegionCompactor.Mode regionCompaction;
+
+    private Path tempDir;
+    private Path worldDir;
+    private Path outputDir;
+    private BackupPipeline pipeline;
+    private int backupCount;
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+        tempDir = Files.createTempDirectory("tsb-benchmark-");
+        worldDir = tempDir.resolve("world");
+        outputDir = tempDir.resolve("output");
+        SyntheticWorld.create(worldDir, shape);
+        pipeline = new BackupPipeline(tempDir.resolve("staging"));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+        PathUtils.deleteDirectory(tempDir);
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutput() throws IOException {
+        // Start from nothing every time, or the deduplicating target would have nothing to do
+        Files.createDirectories(outputDir);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        PathUtils.deleteDirectory(outputDir);
+    }
+
+    @Benchmark
+    public void backup(Counters counters) throws Exception {
+        var name = "backup-" + backupCount++;
+        try (var backupTarget = openTarget(name)) {
+            var options = new BackupOptions(
+                WorldSnapshot.Mode.OFF, null, BackupThrottle.UNLIMITED, walkThreads, readAheadMegabytes * 1024L * 1024L,
+                regionCompaction, Duration.ZERO, Duration.ZERO, Duration.ZERO
+            );
+            var report = pipeline.run(worldDir, backupTarget, options, new BackupProgress(), null, () -> {
+            });
+            counters.entries += report.fileCount();
+            counters.bytes += report.inputBytes();
+        }
+    }
+
+    private BackupTarget openTarget(String name) throws IOException {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        return switch (target) {
+            case ZIP -> new ZipBackupTarget(name, new ZipOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(outputDir.resolve(name + ".zip"))
+            )));
+            case PARALLEL_ZIP -> new ParallelZipBackupTarget(
+                name,
+                FileChannel.open(
+                    outputDir.resolve(name + ".zip"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE
+                ),
+                threads,
+                CompressionPolicy.DEFAULT
+            );
+            case TAR_ZSTD -> openTar(name, TarCodec.ZSTD, threads);
+            case TAR_LZ4 -> openTar(name, TarCodec.LZ4, threads);
+            case TAR_GZIP -> openTar(name, TarCodec.GZIP, threads);
+            case DEDUPLICATED -> new DeduplicatingBackupTarget(new ContentStore(outputDir.resolve("store")), name);
+        };
+    }
+
+    private BackupTarget openTar(String name, TarCodec codec, int threads) throws IOException {
+        return new TarBackupTarget(
+            name, Files.newOutputStream(outputDir.resolve(name + "." + codec.getExtension())), codec, 3, threads
+        );
+    }
+}
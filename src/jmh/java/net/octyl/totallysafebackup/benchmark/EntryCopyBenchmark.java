@@ -0,0 +1,110 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.benchmark;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import org.apache.commons.io.file.PathUtils;
+import org.apache.commons.io.function.IOConsumer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what it costs to move each file's bytes before any target sees them: the
+ * {@code IOConsumer<OutputStream>} copy that {@link net.octyl.totallysafebackup.backup.target.BackupTarget#saveFile}
+ * uses, the same copy with the change index's hashing on top, and a plain channel read as the baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntryCopyBenchmark {
+    @Param
+    public SyntheticWorld.Shape shape;
+
+    private Path tempDir;
+    private List<Path> files;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+    @Setup(Level.Trial)
+    public void createWorld() throws IOException {
+        tempDir = Files.createTempDirectory("tsb-benchmark-");
+        SyntheticWorld.create(tempDir, shape);
+        try (var stream = Files.walk(tempDir)) {
+            files = stream.filter(Files::isRegularFile).toList();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWorld() throws IOException {
+        PathUtils.deleteDirectory(tempDir);
+    }
+
+    private void copyAll(IOConsumer<Path> copy) throws IOException {
+        for (Path file : files) {
+            copy.accept(file);
+        }
+    }
+
+    @Benchmark
+    public void consumerCopy() throws IOException {
+        copyAll(file -> writeTo(ByteStreams.nullOutputStream(), stream -> Files.copy(file, stream)));
+    }
+
+    @Benchmark
+    public void hashingConsumerCopy() throws IOException {
+        copyAll(file -> writeTo(ByteStreams.nullOutputStream(), stream -> {
+            var hashing = new HashingOutputStream(Hashing.sha256(), stream);
+            Files.copy(file, hashing);
+            hashing.hash();
+        }));
+    }
+
+    @Benchmark
+    public void channelRead() throws IOException {
+        copyAll(file -> {
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while (channel.read(readBuffer) != -1) {
+                    readBuffer.clear();
+                }
+            }
+        });
+    }
+
+    private static void writeTo(OutputStream output, IOConsumer<OutputStream> writer) throws IOException {
+        writer.accept(output);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+/**
+ * Generates fake worlds with the same file shapes as real ones. Content is seeded, so every run backs up the same
+ * bytes.
+ */
+public final class SyntheticWorld {
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNK_COUNT = 1024;
+
+    /**
+     * The shape of a world.
+     */
+    public enum Shape {
+        /**
+         * Thousands of small, compressible files, like player data and advancements.
+         */
+        SMALL_FILES,
+        /**
+         * A few full region files, full of already-compressed chunks.
+         */
+        LARGE_REGIONS,
+        /**
+         * A bit of everything, like a typical world.
+         */
+        MIXED,
+    }
+
+    /**
+     * Create a world.
+     *
+     * @param worldDir the directory to create the world in
+     * @param shape the shape of the world
+     * @throws IOException if there is an error writing the world
+     */
+    public static void create(Path worldDir, Shape shape) throws IOException {
+        var random = new Random(shape.ordinal());
+        Files.createDirectories(worldDir);
+        Files.write(worldDir.resolve("level.dat"), compressibleBytes(random, 2048));
+        switch (shape) {
+            case SMALL_FILES -> createSmallFiles(worldDir, random, 5000);
+            case LARGE_REGIONS -> createRegions(worldDir, random, 4, CHUNK_COUNT);
+            case MIXED -> {
+                createSmallFiles(worldDir, random, 200);
+                createRegions(worldDir, random, 16, 256);
+            }
+        }
+    }
+
+    private static void createSmallFiles(Path worldDir, Random random, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            var dir = Files.createDirectories(worldDir.resolve(switch (i % 3) {
+                case 0 -> "playerdata";
+                case 1 -> "advancements";
+                default -> "stats";
+            }));
+            var name = new UUID(random.nextLong(), random.nextLong()) + (i % 3 == 0 ? ".dat" : ".json");
+            Files.write(dir.resolve(name), compressibleBytes(random, 1024 + random.nextInt(7 * 1024)));
+        }
+    }
+
+    private static void createRegions(Path worldDir, Random random, int count, int chunksPerRegion)
+        throws IOException {
+        var regionDir = Files.createDirectories(worldDir.resolve("region"));
+        for (int i = 0; i < count; i++) {
+            Files.write(regionDir.resolve("r." + i + ".0.mca"), regionBytes(random, chunksPerRegion));
+        }
+    }
+
+    /**
+     * Build a region file the way the game lays it out: a header of chunk locations and timestamps, then each
+     * chunk's length, compression type, and zlib data, padded to whole sectors.
+     */
+    private static byte[] regionBytes(Random random, int chunks) {
+        var sectors = new ByteArrayOutputStream();
+        var header = ByteBuffer.allocate(SECTOR_SIZE * 2);
+        int nextSector = 2;
+        var deflater = new Deflater();
+        try {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                deflater.reset();
+                deflater.setInput(compressibleBytes(random, 16 * 1024 + random.nextInt(16 * 1024)));
+                deflater.finish();
+                var compressed = new byte[64 * 1024];
+                int length = deflater.deflate(compressed);
+                var data = ByteBuffer.allocate((length + 5 + SECTOR_SIZE - 1) / SECTOR_SIZE * SECTOR_SIZE);
+                data.putInt(length + 1).put((byte) 2).put(compressed, 0, length);
+                int sectorCount = data.capacity() / SECTOR_SIZE;
+                header.putInt(chunk * 4, nextSector << 8 | sectorCount);
+                header.putInt(SECTOR_SIZE + chunk * 4, 1_600_000_000 + random.nextInt(1_000_000));
+                sectors.writeBytes(data.array());
+                nextSector += sectorCount;
+            }
+        } finally {
+            deflater.end();
+        }
+        var region = new byte[header.capacity() + sectors.size()];
+        System.arraycopy(header.array(), 0, region, 0, header.capacity());
+        System.arraycopy(sectors.toByteArray(), 0, region, header.capacity(), sectors.size());
+        return region;
+    }
+
+    /**
+     * Make text-like bytes from a small vocabulary, which compress about as well as NBT and JSON.
+     */
+    private static byte[] compressibleBytes(Random random, int size) {
+        var words = new String[] {
+            "minecraft:stone", "minecraft:air", "Pos", "Motion", "Inventory", "Count", "id", "Slot", "true",
+            "false", "{", "}", "[", "]", ":", ","
+        };
+        var builder = new StringBuilder(size + 32);
+        while (builder.length() < size) {
+            builder.append(words[random.nextInt(words.length)]).append(random.nextInt(256));
+        }
+        builder.setLength(size);
+        return builder.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private SyntheticWorld() {
+    }
+}
@@ -11,36 +11,72 @@
 
 package net.octyl.totallysafebackup;
 
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import net.minecraft.commands.Commands;
+import net.minecraft.server.MinecraftServer;
 import net.minecraftforge.common.MinecraftForge;
 import net.minecraftforge.event.RegisterCommandsEvent;
 import net.minecraftforge.event.server.ServerStartedEvent;
 import net.minecraftforge.event.server.ServerStoppingEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
+import net.minecraftforge.fml.ModLoadingContext;
 import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.config.ModConfig;
 import net.minecraftforge.fml.event.lifecycle.FMLCommonSetupEvent;
 import net.minecraftforge.fml.javafmlmod.FMLJavaModLoadingContext;
 import net.minecraftforge.fml.loading.FMLPaths;
+import net.octyl.totallysafebackup.backup.BackupDirectory;
+import net.octyl.totallysafebackup.backup.BackupFormat;
+import net.octyl.totallysafebackup.backup.BackupMirrors;
+import net.octyl.totallysafebackup.backup.BackupOptions;
+import net.octyl.totallysafebackup.backup.BackupProgress;
+import net.octyl.totallysafebackup.backup.BackupReport;
+import net.octyl.totallysafebackup.backup.BackupRestorer;
+import net.octyl.totallysafebackup.backup.BackupRetention;
+import net.octyl.totallysafebackup.backup.BackupState;
+import net.octyl.totallysafebackup.backup.BackupTargetFactory;
+import net.octyl.totallysafebackup.backup.BackupVerifier;
 import net.octyl.totallysafebackup.backup.BackupWorker;
-import net.octyl.totallysafebackup.backup.target.ZipBackupTarget;
+import net.octyl.totallysafebackup.backup.history.ChunkExtractor;
+import net.octyl.totallysafebackup.backup.history.ChunkHistory;
+import net.octyl.totallysafebackup.backup.metrics.BackupMetrics;
+import net.octyl.totallysafebackup.backup.metrics.BackupSummary;
+import net.octyl.totallysafebackup.backup.metrics.JmxBackupMetrics;
+import net.octyl.totallysafebackup.backup.metrics.PrometheusTextFileMetrics;
+import net.octyl.totallysafebackup.backup.players.PlayerDataSnapshotter;
+import net.octyl.totallysafebackup.backup.region.DirtyRegionTracker;
+import net.octyl.totallysafebackup.backup.restore.RestoreEngine;
+import net.octyl.totallysafebackup.backup.restore.RestoreSelection;
+import net.octyl.totallysafebackup.backup.s3.S3Uploader;
+import net.octyl.totallysafebackup.backup.schedule.BackupResult;
+import net.octyl.totallysafebackup.backup.schedule.BackupSchedule;
+import net.octyl.totallysafebackup.backup.schedule.BackupScheduler;
+import net.octyl.totallysafebackup.backup.target.ParallelZipBackupTarget;
+import net.octyl.totallysafebackup.backup.target.PartialFile;
+import net.octyl.totallysafebackup.backup.verify.ChecksumManifest;
+import org.apache.commons.io.function.IOSupplier;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import javax.management.JMException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.time.ZoneOffset;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
-import java.util.zip.ZipOutputStream;
 
 /**
  * Primary mod class.
@@ -56,21 +92,61 @@ public class TotallySafeBackup {
      */
     public static final Logger LOGGER = LoggerFactory.getLogger(TotallySafeBackup.class);
 
-    private static final DateTimeFormatter FILE_SAFE_DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH_mm_ss");
+    /**
+     * The game saves every chunk this often, in ticks.
+     */
+    private static final int AUTOSAVE_INTERVAL_TICKS = 6000;
+    /**
+     * Backups due this close to an autosave wait for it instead, in ticks.
+     */
+    private static final int AUTOSAVE_GUARD_TICKS = 600;
+    /**
+     * How long to give an autosave to finish before starting a backup, in ticks.
+     */
+    private static final int AUTOSAVE_SETTLE_TICKS = 100;
+    private static final long MILLIS_PER_TICK = 50;
 
-    private final Path backupDir;
+    private final BackupDirectory backupDirectory;
+    private final BackupRetention retention;
+    private final BackupRestorer restorer;
+    private final TotallySafeBackupCommands commands = new TotallySafeBackupCommands(this);
 
-    private ScheduledExecutorService backupExecutor;
+    @Nullable
+    private volatile BackupScheduler scheduler;
+    @Nullable
+    private ScheduledExecutorService verifyExecutor;
+    @Nullable
+    private ScheduledExecutorService playerSnapshotExecutor;
+    /**
+     * Runs restores one at a time, while the server is running.
+     */
+    @Nullable
+    private volatile ExecutorService restoreExecutor;
+    @Nullable
+    private volatile Path worldDir;
+    /**
+     * Uploads backups to the object store, if one is configured.
+     */
+    @Nullable
+    private volatile S3Uploader uploader;
+    private volatile BackupMetrics metrics = BackupMetrics.NONE;
+    @Nullable
+    private JmxBackupMetrics jmxMetrics;
+    @Nullable
+    private volatile BackupProgress currentProgress;
 
     /**
      * Create a new instance of the mod.
      */
     public TotallySafeBackup() {
-        this.backupDir = FMLPaths.getOrCreateGameRelativePath(
+        this.backupDirectory = new BackupDirectory(FMLPaths.getOrCreateGameRelativePath(
             Path.of("totally-safe-backups"),
             "totally safe backup directory"
-        );
+        ));
+        this.retention = new BackupRetention(backupDirectory);
+        this.restorer = new BackupRestorer(backupDirectory);
 
+        ModLoadingContext.get().registerConfig(ModConfig.Type.SERVER, TotallySafeBackupConfig.SPEC);
         FMLJavaModLoadingContext.get().getModEventBus().addListener(this::setup);
 
         MinecraftForge.EVENT_BUS.register(this);
@@ -82,83 +158,391 @@ private void setup(FMLCommonSetupEvent event) {
 
     @SubscribeEvent
     public void commandRegistration(RegisterCommandsEvent event) {
-        event.getDispatcher().register(
-            Commands.literal("totally-safe-backup")
-                .requires(ctx -> ctx.hasPermission(2))
-                .then(Commands.literal("perform").executes(ctx -> {
-                    backupExecutor.execute(() -> performBackup(new BackupWorker(ctx.getSource().getServer())));
-                    return 1;
-                }))
-        );
+        commands.register(event.getDispatcher());
+    }
+
+    /**
+     * Request a backup, which runs as soon as any running backup is done. Requests made before it starts share it.
+     * Other mods can call this through the instance from {@code ModList}.
+     *
+     * @return a future completed with the result of the backup, or exceptionally if it fails
+     * @throws IllegalStateException if the server isn't running
+     */
+    public CompletableFuture<BackupResult> requestBackup() {
+        var scheduler = this.scheduler;
+        Preconditions.checkState(scheduler != null, "Server is not running");
+        return scheduler.requestBackup();
+    }
+
+    /**
+     * Request a backup, like {@link #requestBackup()}, and tell whether it joined one that was already waiting to
+     * start.
+     *
+     * @return the request
+     * @throws IllegalStateException if the server isn't running
+     */
+    public BackupScheduler.Request submitBackupRequest() {
+        var scheduler = this.scheduler;
+        Preconditions.checkState(scheduler != null, "Server is not running");
+        return scheduler.submitRequest();
+    }
+
+    /**
+     * Restore part of a backup into {@code totally-safe-backups/restores/<name>}, replacing anything restored there
+     * before. Region files that are only partly restored keep their other chunks from an earlier restore there, or
+     * else from the world as it was last saved. The restored files are swapped into the world by hand, while the
+     * server is stopped. Restores run one at a time. Other mods can call this through the instance from
+     * {@code ModList}.
+     *
+     * @param name the name of the backup
+     * @param selection the part of the backup to restore
+     * @return a future completed with a report of the restore, or exceptionally if it fails
+     * @throws IllegalStateException if the server isn't running
+     */
+    public CompletableFuture<RestoreEngine.Report> restoreBackup(String name, RestoreSelection selection) {
+        var worldDir = this.worldDir;
+        Preconditions.checkState(worldDir != null, "Server is not running");
+        return runRestore(() -> restorer.restore(
+            name, selection, worldDir, TotallySafeBackupConfig.CONFIG.resolveRestoreThreads()
+        ));
+    }
+
+    /**
+     * Restore some players' files from a player data snapshot into
+     * {@code totally-safe-backups/restores/players-<snapshot>}, replacing anything restored there before. The game
+     * only reads a player's files when they join, so the restored files can be moved into the world while the
+     * server is running, as long as those players are offline. Other mods can call this through the instance from
+     * {@code ModList}.
+     *
+     * @param snapshot the name of the player data snapshot
+     * @param players the UUIDs of the players to restore
+     * @return a future completed with a report of the restore, or exceptionally if it fails
+     * @throws IllegalStateException if the server isn't running
+     */
+    public CompletableFuture<RestoreEngine.Report> restorePlayers(String snapshot, Collection<UUID> players) {
+        var worldDir = this.worldDir;
+        Preconditions.checkState(worldDir != null, "Server is not running");
+        var playersCopy = List.copyOf(players);
+        return runRestore(() -> restorer.restorePlayers(
+            snapshot, playersCopy, worldDir, TotallySafeBackupConfig.CONFIG.resolveRestoreThreads()
+        ));
+    }
+
+    /**
+     * Extract one chunk as it was at a point in time into {@code totally-safe-backups/restores/chunks}, as
+     * uncompressed NBT. The chunk is read from the newest kept backup made by then, using the {@link ChunkHistory} to
+     * read only its sectors. Other mods can call this through the instance from {@code ModList}.
+     *
+     * @param dimension the dimension's ID
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @param time the point in time
+     * @return a future completed with a report of the extracted chunk, or exceptionally if it fails or the chunk
+     *     didn't exist then
+     * @throws IllegalStateException if the server isn't running
+     */
+    public CompletableFuture<ChunkExtractor.Report> extractChunk(String dimension, int chunkX, int chunkZ, Instant time) {
+        return runRestore(() -> restorer.extractChunk(dimension, chunkX, chunkZ, time));
+    }
+
+    /**
+     * Get the versions of one chunk that are in kept backups. Other mods can call this through the instance from
+     * {@code ModList}.
+     *
+     * @param dimension the dimension's ID
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @return a future completed with the versions, oldest first
+     * @throws IllegalStateException if the server isn't running
+     */
+    public CompletableFuture<List<ChunkHistory.Version>> getChunkHistory(String dimension, int chunkX, int chunkZ) {
+        return runRestore(() -> restorer.chunkHistory(dimension, chunkX, chunkZ));
+    }
+
+    private <T> CompletableFuture<T> runRestore(IOSupplier<T> restore) {
+        var executor = this.restoreExecutor;
+        Preconditions.checkState(executor != null, "Server is not running");
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return restore.get();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * {@return the progress of the running backup, or {@code null} if none is running}
+     */
+    @Nullable
+    BackupProgress getCurrentProgress() {
+        return currentProgress;
+    }
+
+    /**
+     * {@return when the next scheduled backup runs, or empty if none is scheduled}
+     */
+    Optional<ZonedDateTime> getNextBackupTime() {
+        var scheduler = this.scheduler;
+        return scheduler == null ? Optional.empty() : scheduler.getNextRun();
     }
 
     @SubscribeEvent
     public void serverStarted(ServerStartedEvent event) {
+        metrics = openMetrics();
+        // Writes from before this server started weren't seen, so nothing tracked before can be trusted
+        DirtyRegionTracker.get().reset();
         LOGGER.info("Server started, starting backup worker...");
-        var worker = new BackupWorker(event.getServer());
-        backupExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+        var server = event.getServer();
+        var worker = new BackupWorker(server, backupDirectory.getStagingDirectory());
+        worldDir = ((BackupState) server).getStorageAccess().getWorldDir();
+        restoreExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
             .setDaemon(true)
-            .setNameFormat("totally-safe-backup-thread-%d")
+            .setNameFormat("totally-safe-backup-restorer-%d")
             .build());
-        backupExecutor.scheduleAtFixedRate(
-            () -> performBackup(worker), 60, 60, TimeUnit.MINUTES
+        try {
+            uploader = TotallySafeBackupConfig.CONFIG.createUploader(backupDirectory.getUploadJournal());
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid object store settings, backups won't be uploaded", e);
+        }
+        BackupSchedule schedule;
+        try {
+            schedule = TotallySafeBackupConfig.CONFIG.createSchedule();
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid backup schedule, using the interval instead", e);
+            schedule = BackupSchedule.every(
+                Duration.ofMinutes(TotallySafeBackupConfig.CONFIG.scheduleIntervalMinutes.get())
+            );
+        }
+        scheduler = new BackupScheduler(
+            schedule,
+            () -> performBackup(server, worker),
+            () -> !TotallySafeBackupConfig.CONFIG.scheduleSkipUnchanged.get()
+                || server.getPlayerCount() > 0
+                || worker.hasWritesSinceLastBackup(),
+            () -> autosaveDelay(server)
         );
+        scheduler.start();
+        if (TotallySafeBackupConfig.CONFIG.verifyEnabled.get()) {
+            var verifier = new BackupVerifier(backupDirectory, metrics);
+            verifyExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .setNameFormat("totally-safe-backup-verifier-%d")
+                .build());
+            long interval = TotallySafeBackupConfig.CONFIG.verifyIntervalMinutes.get();
+            verifyExecutor.scheduleWithFixedDelay(() -> verifier.verifyNext(
+                Duration.ofDays(TotallySafeBackupConfig.CONFIG.verifyReverifyDays.get()),
+                TotallySafeBackupConfig.CONFIG.createVerifyThrottle()
+            ), interval, interval, TimeUnit.MINUTES);
+        }
+        if (TotallySafeBackupConfig.CONFIG.playersEnabled.get()) {
+            startPlayerSnapshots(server, worldDir);
+        }
     }
 
-    private void performBackup(BackupWorker worker) {
-        var timestamp = ZonedDateTime.now(ZoneOffset.UTC);
-        var targetZipPath = backupDir.resolve(FILE_SAFE_DATE_FORMAT.format(timestamp) + ".zip");
-        try (var targetZip = new ZipOutputStream(Files.newOutputStream(targetZipPath))) {
-            worker.runBackupProcess(new ZipBackupTarget(targetZipPath.toString(), targetZip));
-        } catch (Throwable mainThrowable) {
-            LOGGER.warn("Failed to perform backup", mainThrowable);
+    private void startPlayerSnapshots(MinecraftServer server, Path worldDir) {
+        PlayerDataSnapshotter snapshotter;
+        try {
+            snapshotter = new PlayerDataSnapshotter(
+                server, worldDir, backupDirectory.openPlayerStore(), TotallySafeBackupConfig.CONFIG.playersKeep.get()
+            );
+        } catch (IOException e) {
+            LOGGER.warn("Failed to open the player data store, player data won't be snapshotted", e);
+            return;
+        }
+        playerSnapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-players-%d")
+            .build());
+        long interval = TotallySafeBackupConfig.CONFIG.playersIntervalMinutes.get();
+        playerSnapshotExecutor.scheduleWithFixedDelay(() -> {
             try {
-                Files.deleteIfExists(targetZipPath);
-            } catch (Throwable duringDelete) {
-                LOGGER.warn("Failed to delete backup file after failure", duringDelete);
-            }
-            // Terminate ourselves if we got an Error
-            if (mainThrowable instanceof Error err) {
-                throw err;
+                snapshotter.snapshot(BackupDirectory.nameFor(Instant.now()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                LOGGER.warn("Failed to snapshot player data", e);
             }
-            return;
+        }, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Find how long to wait so a backup doesn't start just before an autosave. The backup's own save would then be
+     * followed by a redundant one, or the autosave would be blocked while the backup lists the world.
+     */
+    private static Duration autosaveDelay(MinecraftServer server) {
+        if (!TotallySafeBackupConfig.CONFIG.scheduleAvoidAutosave.get()) {
+            return Duration.ZERO;
+        }
+        int ticksUntilAutosave = AUTOSAVE_INTERVAL_TICKS - server.getTickCount() % AUTOSAVE_INTERVAL_TICKS;
+        if (ticksUntilAutosave > AUTOSAVE_GUARD_TICKS) {
+            return Duration.ZERO;
         }
+        // Right after an autosave, our own save has the least to do
+        return Duration.ofMillis((ticksUntilAutosave + AUTOSAVE_SETTLE_TICKS) * MILLIS_PER_TICK);
+    }
 
-        LOGGER.info("Backup completed, deleting old backups if needed...");
+    private BackupResult performBackup(MinecraftServer server, BackupWorker worker) throws Exception {
+        var config = TotallySafeBackupConfig.CONFIG;
+        var createdAt = Instant.now();
+        var name = BackupDirectory.nameFor(createdAt);
+        var format = config.format.get();
+        Path backupFile;
         try {
-            while (true) {
-                List<Path> files;
-                try (var fileList = Files.list(backupDir)) {
-                    files = fileList.collect(Collectors.toCollection(ArrayList::new));
+            backupFile = backupDirectory.getBackupFile(format, name);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to prepare backup location", e);
+            metrics.backupFailed(name);
+            throw e;
+        }
+        var uploader = this.uploader;
+        var mirrors = new BackupMirrors(
+            config.resolveMirrorDirectories(), uploader, config.objectStorePrefix.get()
+        );
+        boolean remoteOnly = mirrors.isUploading()
+            && format != BackupFormat.DEDUPLICATED
+            && format != BackupFormat.DELTA
+            && config.objectStoreMode.get() == TotallySafeBackupConfig.ObjectStoreMode.ONLY;
+        // Only an archive written straight to the backup directory is there to resume after a crash
+        boolean resumable = format == BackupFormat.ZIP
+            && mirrors.isEmpty()
+            && config.checkpointSeconds.get() > 0;
+        if (format != BackupFormat.DEDUPLICATED) {
+            backupDirectory.cleanUpPartialFiles(backupFile, resumable);
+        }
+        var targets = new BackupTargetFactory(
+            backupDirectory,
+            config.resolveCompressionThreads(),
+            config.compressionPolicy(),
+            config.zstdLevel.get(),
+            config.deltaKeyframeInterval.get(),
+            config.mirrorQueueMegabytes.get() * 1024L * 1024L
+        );
+        var progress = new BackupProgress();
+        currentProgress = progress;
+        try {
+            BackupReport report;
+            try (var target = targets.open(format, name, backupFile, mirrors, remoteOnly, resumable)) {
+                report = worker.runBackupProcess(target, new BackupOptions(
+                    config.snapshotMode.get(),
+                    backupDirectory.getChangeIndexFile(format),
+                    config.createThrottle(server::getAverageTickTime),
+                    config.resolveWalkThreads(),
+                    config.readAheadMegabytes.get() * 1024L * 1024L,
+                    config.regionCompaction.get(),
+                    config.flushIncremental.get() ? Duration.ofMillis(config.flushSliceMillis.get()) : Duration.ZERO,
+                    Duration.ofSeconds(config.flushMaxSeconds.get()),
+                    Duration.ofSeconds(config.checkpointSeconds.get())
+                ), progress);
+            } catch (Throwable mainThrowable) {
+                LOGGER.warn("Failed to perform backup", mainThrowable);
+                metrics.backupFailed(name);
+                if (resumable && Files.exists(
+                    ParallelZipBackupTarget.checkpointPathFor(PartialFile.pathFor(backupFile))
+                )) {
+                    LOGGER.info("The next backup will resume from where this one was interrupted");
                 }
-                // Save 24 hours worth of backups
-                if (files.size() <= 24) {
-                    LOGGER.info("No old backups to delete, done!");
-                    return;
+                try {
+                    Files.deleteIfExists(backupFile);
+                    Files.deleteIfExists(ChecksumManifest.pathFor(backupFile));
+                } catch (Throwable duringDelete) {
+                    LOGGER.warn("Failed to delete backup file after failure", duringDelete);
                 }
-                // Because all backups are saved with FILE_SAFE_DATE_FORMAT, we can sort them by their timestamp
-                // Then the first one is the oldest one!
-                files.sort(Comparator.comparing(p -> p.getFileName().toString()));
-                var oldestFile = files.get(0);
-                LOGGER.info("Deleting old backup file {}", oldestFile);
-                Files.deleteIfExists(oldestFile);
+                throw mainThrowable;
+            }
+            // A deduplicated backup's size is spread over the store, and a remote-only one isn't on disk
+            long outputBytes = -1;
+            if (format != BackupFormat.DEDUPLICATED && !remoteOnly) {
+                try {
+                    outputBytes = Files.size(backupFile);
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to read the size of {}", backupFile, e);
+                }
+            }
+            LOGGER.info("Backed up {} as {}: {}", name, format, report.describe(outputBytes));
+
+            if (remoteOnly) {
+                // The bucket's lifecycle rules expire these, we have nothing to verify or prune them from
+                LOGGER.info("Backup completed and uploaded to the object store");
+            } else {
+                LOGGER.info("Backup completed, deleting old backups if needed...");
+                progress.enterPhase(BackupProgress.Phase.RETENTION);
+                retention.apply(
+                    backupDirectory.catalogEntry(name, format, createdAt, backupFile, outputBytes),
+                    config.retentionPolicy(),
+                    mirrors
+                );
+                progress.endPhase();
+            }
+            metrics.backupCompleted(new BackupSummary(
+                name, format.name(), Instant.now(), report, outputBytes,
+                progress.getPhaseDurations(), progress.getSaveBlocked()
+            ));
+            return BackupResult.completed(name, report);
+        } finally {
+            currentProgress = null;
+            if (uploader != null) {
+                // Finish any upload that failed part way, from this backup or an earlier one, without holding up
+                // the next backup while the store is unreachable
+                uploader.resumePendingLater();
             }
-        } catch (IOException e) {
-            LOGGER.warn("Failed to clear old backups", e);
         }
     }
 
+    private BackupMetrics openMetrics() {
+        var metricsList = new ArrayList<BackupMetrics>();
+        if (TotallySafeBackupConfig.CONFIG.metricsJmx.get()) {
+            try {
+                jmxMetrics = JmxBackupMetrics.register();
+                metricsList.add(jmxMetrics);
+            } catch (JMException e) {
+                LOGGER.warn("Failed to register JMX metrics", e);
+            }
+        }
+        var prometheusFile = TotallySafeBackupConfig.CONFIG.metricsPrometheusFile.get();
+        if (!prometheusFile.isEmpty()) {
+            metricsList.add(new PrometheusTextFileMetrics(FMLPaths.GAMEDIR.get().resolve(prometheusFile)));
+        }
+        return BackupMetrics.of(metricsList);
+    }
+
     @SubscribeEvent
     public void serverStopping(ServerStoppingEvent event) {
         LOGGER.info("Server stopping, cancelling backup worker...");
-        backupExecutor.shutdownNow();
+        if (verifyExecutor != null) {
+            verifyExecutor.shutdownNow();
+            verifyExecutor = null;
+        }
+        if (playerSnapshotExecutor != null) {
+            playerSnapshotExecutor.shutdownNow();
+            playerSnapshotExecutor = null;
+        }
+        var restoreExecutor = this.restoreExecutor;
+        if (restoreExecutor != null) {
+            restoreExecutor.shutdownNow();
+            this.restoreExecutor = null;
+        }
+        worldDir = null;
+        var uploader = this.uploader;
         try {
-            if (!backupExecutor.awaitTermination(5, TimeUnit.MINUTES)) {
+            if (!scheduler.shutdown(Duration.ofMinutes(5))) {
                 LOGGER.warn("Backup executor did not terminate in time," +
                     " accepting corrupt state in exchange for eventual shutdown");
             }
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
+        } finally {
+            scheduler = null;
+            if (uploader != null) {
+                // Unfinished uploads are journaled, and resumed after the next backup
+                uploader.close();
+                this.uploader = null;
+            }
+            if (jmxMetrics != null) {
+                jmxMetrics.close();
+                jmxMetrics = null;
+            }
         }
     }
 }
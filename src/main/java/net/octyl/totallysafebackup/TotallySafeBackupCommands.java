@@ -0,0 +1,282 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup;
+
+import com.mojang.authlib.GameProfile;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.commands.arguments.DimensionArgument;
+import net.minecraft.commands.arguments.GameProfileArgument;
+import net.minecraft.network.chat.TextComponent;
+import net.octyl.totallysafebackup.backup.BackupDirectory;
+import net.octyl.totallysafebackup.backup.restore.RestoreEngine;
+import net.octyl.totallysafebackup.backup.restore.RestoreSelection;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The {@code /totally-safe-backup} command, which runs everything through the mod's API.
+ */
+final class TotallySafeBackupCommands {
+    private final TotallySafeBackup mod;
+
+    TotallySafeBackupCommands(TotallySafeBackup mod) {
+        this.mod = mod;
+    }
+
+    void register(CommandDispatcher<CommandSourceStack> dispatcher) {
+        dispatcher.register(
+            Commands.literal("totally-safe-backup")
+                .requires(ctx -> ctx.hasPermission(2))
+                .then(Commands.literal("perform").executes(this::performCommand))
+                .then(Commands.literal("status").executes(ctx -> {
+                    ctx.getSource().sendSuccess(new TextComponent(describeStatus()), false);
+                    return 1;
+                }))
+                .then(Commands.literal("restore").then(Commands.argument("backup", StringArgumentType.word())
+                    .executes(ctx -> restoreCommand(ctx, RestoreSelection.all()))
+                    .then(Commands.literal("dimension").then(
+                        Commands.argument("dimension", DimensionArgument.dimension())
+                            .executes(ctx -> restoreCommand(ctx, RestoreSelection.dimension(dimensionId(ctx))))
+                    ))
+                    .then(Commands.literal("file").then(
+                        Commands.argument("path", StringArgumentType.greedyString())
+                            .executes(ctx -> restoreCommand(
+                                ctx, RestoreSelection.file(StringArgumentType.getString(ctx, "path"))
+                            ))
+                    ))
+                    .then(Commands.literal("chunks").then(
+                        Commands.argument("dimension", DimensionArgument.dimension())
+                            .then(Commands.argument("fromX", IntegerArgumentType.integer())
+                                .then(Commands.argument("fromZ", IntegerArgumentType.integer())
+                                    .then(Commands.argument("toX", IntegerArgumentType.integer())
+                                        .then(Commands.argument("toZ", IntegerArgumentType.integer())
+                                            .executes(ctx -> restoreCommand(ctx, RestoreSelection.chunks(
+                                                dimensionId(ctx),
+                                                IntegerArgumentType.getInteger(ctx, "fromX"),
+                                                IntegerArgumentType.getInteger(ctx, "fromZ"),
+                                                IntegerArgumentType.getInteger(ctx, "toX"),
+                                                IntegerArgumentType.getInteger(ctx, "toZ")
+                                            )))))))
+                    ))
+                ))
+                .then(Commands.literal("chunk").then(
+                    Commands.argument("dimension", DimensionArgument.dimension())
+                        .then(Commands.argument("x", IntegerArgumentType.integer())
+                            .then(Commands.argument("z", IntegerArgumentType.integer())
+                                .then(Commands.literal("history").executes(this::chunkHistoryCommand))
+                                .then(Commands.argument("time", StringArgumentType.word())
+                                    .executes(this::extractChunkCommand))))
+                ))
+                .then(Commands.literal("players").then(Commands.literal("restore").then(
+                    Commands.argument("snapshot", StringArgumentType.word()).then(
+                        Commands.argument("players", GameProfileArgument.gameProfile())
+                            .executes(this::restorePlayersCommand)
+                    )
+                )))
+        );
+    }
+
+    private static String dimensionId(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+        return DimensionArgument.getDimension(ctx, "dimension").dimension().location().toString();
+    }
+
+    private int performCommand(CommandContext<CommandSourceStack> ctx) {
+        var source = ctx.getSource();
+        var request = mod.submitBackupRequest();
+        source.sendSuccess(new TextComponent(request.joined()
+            ? "A backup is already waiting to start, this request joins it."
+            : "Backup requested, it starts as soon as any running backup is done."), true);
+        request.result().whenComplete((result, failure) -> source.getServer().execute(() -> {
+            if (failure != null) {
+                var cause = unwrap(failure);
+                TotallySafeBackup.LOGGER.warn("Requested backup failed", cause);
+                source.sendFailure(new TextComponent("Backup failed: " + cause.getMessage()));
+                return;
+            }
+            var message = switch (result.outcome()) {
+                case COMPLETED -> String.format(
+                    Locale.ROOT, "Backup %s completed: %d files in %s.",
+                    result.name(), result.report().fileCount(), formatDuration(result.report().elapsed())
+                );
+                case SKIPPED -> "Backup skipped, nothing changed since the last one.";
+            };
+            source.sendSuccess(new TextComponent(message), true);
+        }));
+        return 1;
+    }
+
+    private int restoreCommand(CommandContext<CommandSourceStack> ctx, RestoreSelection selection) {
+        var source = ctx.getSource();
+        var name = StringArgumentType.getString(ctx, "backup");
+        source.sendSuccess(new TextComponent("Restoring " + selection + " from backup " + name + "..."), true);
+        reportRestore(
+            source, "backup " + name, mod.restoreBackup(name, selection),
+            "Stop the server and move them into the world to finish."
+        );
+        return 1;
+    }
+
+    private int restorePlayersCommand(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+        var source = ctx.getSource();
+        var snapshot = StringArgumentType.getString(ctx, "snapshot");
+        var players = GameProfileArgument.getGameProfiles(ctx, "players").stream()
+            .map(GameProfile::getId)
+            .toList();
+        source.sendSuccess(new TextComponent(
+            "Restoring " + RestoreSelection.players(players) + " from player snapshot " + snapshot + "..."
+        ), true);
+        reportRestore(
+            source, "player snapshot " + snapshot, mod.restorePlayers(snapshot, players),
+            "Move them into the world while the players are offline to finish."
+        );
+        return 1;
+    }
+
+    private int extractChunkCommand(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+        var source = ctx.getSource();
+        var dimension = dimensionId(ctx);
+        int x = IntegerArgumentType.getInteger(ctx, "x");
+        int z = IntegerArgumentType.getInteger(ctx, "z");
+        var timeArgument = StringArgumentType.getString(ctx, "time");
+        Optional<Instant> time;
+        try {
+            time = Optional.of(Instant.ofEpochMilli(Long.parseLong(timeArgument)));
+        } catch (NumberFormatException e) {
+            time = BackupDirectory.parseName(timeArgument);
+        }
+        if (time.isEmpty()) {
+            source.sendFailure(new TextComponent(
+                "Time must be in milliseconds since the epoch, or a backup name like "
+                    + BackupDirectory.nameFor(Instant.now())
+            ));
+            return 0;
+        }
+        var extract = mod.extractChunk(dimension, x, z, time.get());
+        extract.whenComplete((report, failure) -> source.getServer().execute(() -> {
+            if (failure != null) {
+                var cause = unwrap(failure);
+                TotallySafeBackup.LOGGER.warn("Failed to extract chunk {},{} in {}", x, z, dimension, cause);
+                source.sendFailure(new TextComponent("Extract failed: " + cause.getMessage()));
+                return;
+            }
+            source.sendSuccess(new TextComponent(String.format(
+                Locale.ROOT, "Extracted chunk %d,%d from backup %s: %d bytes of NBT in %s",
+                x, z, report.backup(), report.size(), report.file()
+            )), false);
+        }));
+        return 1;
+    }
+
+    private int chunkHistoryCommand(CommandContext<CommandSourceStack> ctx) throws CommandSyntaxException {
+        var source = ctx.getSource();
+        var dimension = dimensionId(ctx);
+        int x = IntegerArgumentType.getInteger(ctx, "x");
+        int z = IntegerArgumentType.getInteger(ctx, "z");
+        mod.getChunkHistory(dimension, x, z).whenComplete((versions, failure) -> source.getServer().execute(() -> {
+            if (failure != null) {
+                var cause = unwrap(failure);
+                TotallySafeBackup.LOGGER.warn(
+                    "Failed to read the history of chunk {},{} in {}", x, z, dimension, cause
+                );
+                source.sendFailure(new TextComponent("Failed to read chunk history: " + cause.getMessage()));
+                return;
+            }
+            if (versions.isEmpty()) {
+                source.sendSuccess(new TextComponent(
+                    "Chunk " + x + "," + z + " has no recorded history in kept backups."
+                ), false);
+                return;
+            }
+            var history = new StringBuilder("Chunk " + x + "," + z + " changed in:");
+            for (var version : versions) {
+                history.append("\n  ").append(version.backup()).append(version.exists()
+                    ? " (saved " + DateTimeFormatter.ISO_INSTANT.format(Instant.ofEpochSecond(version.timestamp())) + ")"
+                    : " (absent)");
+            }
+            source.sendSuccess(new TextComponent(history.toString()), false);
+        }));
+        return 1;
+    }
+
+    private static void reportRestore(
+        CommandSourceStack source, String description, CompletableFuture<RestoreEngine.Report> restore, String finish
+    ) {
+        restore.whenComplete((report, failure) -> source.getServer().execute(() -> {
+            if (failure != null) {
+                var cause = unwrap(failure);
+                TotallySafeBackup.LOGGER.warn("Failed to restore {}", description, cause);
+                source.sendFailure(new TextComponent("Restore failed: " + cause.getMessage()));
+                return;
+            }
+            source.sendSuccess(new TextComponent(String.format(
+                Locale.ROOT, "Restored %d files into %s in %s. %s",
+                report.fileCount(), report.destination(), formatDuration(report.elapsed()), finish
+            )), true);
+        }));
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+
+    private String describeStatus() {
+        var progress = mod.getCurrentProgress();
+        if (progress == null) {
+            var status = new StringBuilder("No backup is running.");
+            mod.getNextBackupTime().ifPresent(next -> status.append(" Next backup at ")
+                .append(DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(next.truncatedTo(ChronoUnit.SECONDS)))
+                .append('.'));
+            return status.toString();
+        }
+        var phase = progress.getPhase();
+        var status = new StringBuilder("Backup running");
+        if (phase != null) {
+            status.append(" (").append(phase.name().toLowerCase(Locale.ROOT)).append(")");
+        }
+        status.append(" for ").append(formatDuration(progress.getElapsed()));
+        var fraction = progress.getFractionDone();
+        if (fraction.isPresent()) {
+            status.append(String.format(
+                Locale.ROOT, ": %.1f%% done, %d of %d files",
+                fraction.getAsDouble() * 100, progress.getDoneFiles(), progress.getTotalFiles()
+            ));
+        }
+        progress.getEstimatedRemaining().ifPresent(eta -> status.append(", about ")
+            .append(formatDuration(eta)).append(" left"));
+        var saveBlocked = progress.getSaveBlocked();
+        if (!saveBlocked.isZero()) {
+            status.append(". World saving blocked for ").append(formatDuration(saveBlocked));
+        }
+        return status.append('.').toString();
+    }
+
+    private static String formatDuration(Duration duration) {
+        long seconds = duration.toSeconds();
+        if (seconds < 60) {
+            return seconds + "s";
+        }
+        return seconds / 60 + "m " + seconds % 60 + "s";
+    }
+}
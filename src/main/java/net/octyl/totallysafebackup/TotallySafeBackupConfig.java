@@ -0,0 +1,714 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup;
+
+import net.minecraftforge.common.ForgeConfigSpec;
+import net.minecraftforge.fml.loading.FMLPaths;
+import net.octyl.totallysafebackup.backup.BackupFormat;
+import net.octyl.totallysafebackup.backup.BackupThrottle;
+import net.octyl.totallysafebackup.backup.WorldSnapshot;
+import net.octyl.totallysafebackup.backup.metrics.JmxBackupMetrics;
+import net.octyl.totallysafebackup.backup.region.RegionCompactor;
+import net.octyl.totallysafebackup.backup.retention.RetentionPolicy;
+import net.octyl.totallysafebackup.backup.s3.S3Client;
+import net.octyl.totallysafebackup.backup.s3.S3Endpoint;
+import net.octyl.totallysafebackup.backup.s3.S3Uploader;
+import net.octyl.totallysafebackup.backup.schedule.BackupSchedule;
+import net.octyl.totallysafebackup.backup.target.CompressionPolicy;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Server configuration for the mod.
+ */
+public final class TotallySafeBackupConfig {
+    /**
+     * The config spec, registered as a server config.
+     */
+    public static final ForgeConfigSpec SPEC;
+    /**
+     * The config values.
+     */
+    public static final TotallySafeBackupConfig CONFIG;
+    private static final double MIB = 1024 * 1024;
+    private static final double GIB = 1024 * MIB;
+
+    static {
+        var pair = new ForgeConfigSpec.Builder().configure(TotallySafeBackupConfig::new);
+        CONFIG = pair.getLeft();
+        SPEC = pair.getRight();
+    }
+
+    /**
+     * Where backups go in the object store.
+     */
+    public enum ObjectStoreMode {
+        /**
+         * Don't upload backups.
+         */
+        OFF,
+        /**
+         * Upload a copy of each backup, as well as writing it locally.
+         */
+        MIRROR,
+        /**
+         * Only upload backups, without writing them locally.
+         */
+        ONLY,
+    }
+
+    /**
+     * The format to write backups in.
+     */
+    public final ForgeConfigSpec.EnumValue<BackupFormat> format;
+    /**
+     * How to snapshot the world before backing it up.
+     */
+    public final ForgeConfigSpec.EnumValue<WorldSnapshot.Mode> snapshotMode;
+    /**
+     * Whether to save chunks a slice at a time before a backup.
+     */
+    public final ForgeConfigSpec.BooleanValue flushIncremental;
+    /**
+     * The most milliseconds per tick to spend saving chunks before a backup.
+     */
+    public final ForgeConfigSpec.IntValue flushSliceMillis;
+    /**
+     * The most seconds to spend saving chunks a slice at a time.
+     */
+    public final ForgeConfigSpec.IntValue flushMaxSeconds;
+    /**
+     * The most backups in a chain of DELTA backups, counting the full one it starts with.
+     */
+    public final ForgeConfigSpec.IntValue deltaKeyframeInterval;
+    /**
+     * How to compact region files as they are backed up.
+     */
+    public final ForgeConfigSpec.EnumValue<RegionCompactor.Mode> regionCompaction;
+    /**
+     * The number of threads to compress with, or {@code 0} to pick based on the number of processors.
+     */
+    public final ForgeConfigSpec.IntValue compressionThreads;
+    /**
+     * The zstd compression level.
+     */
+    public final ForgeConfigSpec.IntValue zstdLevel;
+    /**
+     * Extensions of files that are stored without compression.
+     */
+    public final ForgeConfigSpec.ConfigValue<List<? extends String>> storedExtensions;
+    /**
+     * Extensions of files that are always compressed.
+     */
+    public final ForgeConfigSpec.ConfigValue<List<? extends String>> compressedExtensions;
+    /**
+     * The compression ratio above which sampled files are stored.
+     */
+    public final ForgeConfigSpec.DoubleValue storeRatio;
+    /**
+     * The number of threads to list the world with, or {@code 0} to choose automatically.
+     */
+    public final ForgeConfigSpec.IntValue walkThreads;
+    /**
+     * How many MiB of upcoming files to prefetch.
+     */
+    public final ForgeConfigSpec.IntValue readAheadMegabytes;
+    /**
+     * How often to checkpoint zip backups so they can resume if interrupted, or {@code 0} to not resume them.
+     */
+    public final ForgeConfigSpec.IntValue checkpointSeconds;
+    /**
+     * The most MiB per second to read from the world, or {@code 0} for no limit.
+     */
+    public final ForgeConfigSpec.DoubleValue throttleMegabytesPerSecond;
+    /**
+     * The most CPU cores the backup may use to read and compress, or {@code 0} for no limit.
+     */
+    public final ForgeConfigSpec.DoubleValue throttleCpuCores;
+    /**
+     * Whether to slow the backup down when the server lags.
+     */
+    public final ForgeConfigSpec.BooleanValue throttleAdaptive;
+    /**
+     * The average tick time above which an adaptive backup slows down.
+     */
+    public final ForgeConfigSpec.DoubleValue throttleTickTimeThreshold;
+    /**
+     * The slowest an adaptive backup will go, in MiB per second.
+     */
+    public final ForgeConfigSpec.DoubleValue throttleMinMegabytesPerSecond;
+    /**
+     * The minutes between scheduled backups.
+     */
+    public final ForgeConfigSpec.IntValue scheduleIntervalMinutes;
+    /**
+     * A cron expression for scheduled backups, which replaces the interval if not empty.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> scheduleCron;
+    /**
+     * Whether to skip scheduled backups when nothing changed.
+     */
+    public final ForgeConfigSpec.BooleanValue scheduleSkipUnchanged;
+    /**
+     * Whether to move backups away from the game's autosaves.
+     */
+    public final ForgeConfigSpec.BooleanValue scheduleAvoidAutosave;
+    /**
+     * The number of newest backups to always keep.
+     */
+    public final ForgeConfigSpec.IntValue retentionKeepLast;
+    /**
+     * The number of hours to keep one backup for.
+     */
+    public final ForgeConfigSpec.IntValue retentionHourly;
+    /**
+     * The number of days to keep one backup for.
+     */
+    public final ForgeConfigSpec.IntValue retentionDaily;
+    /**
+     * The number of weeks to keep one backup for.
+     */
+    public final ForgeConfigSpec.IntValue retentionWeekly;
+    /**
+     * The number of months to keep one backup for.
+     */
+    public final ForgeConfigSpec.IntValue retentionMonthly;
+    /**
+     * The most GiB backups may use, or {@code 0} for no limit.
+     */
+    public final ForgeConfigSpec.DoubleValue retentionMaxTotalGigabytes;
+    /**
+     * Whether to verify old backups in the background.
+     */
+    public final ForgeConfigSpec.BooleanValue verifyEnabled;
+    /**
+     * The minutes between background verifications.
+     */
+    public final ForgeConfigSpec.IntValue verifyIntervalMinutes;
+    /**
+     * The most MiB per second to read while verifying.
+     */
+    public final ForgeConfigSpec.DoubleValue verifyMegabytesPerSecond;
+    /**
+     * The days after which an intact backup is verified again, or {@code 0} to verify each backup once.
+     */
+    public final ForgeConfigSpec.IntValue verifyReverifyDays;
+    /**
+     * Whether to snapshot player data between full backups.
+     */
+    public final ForgeConfigSpec.BooleanValue playersEnabled;
+    /**
+     * The minutes between player data snapshots.
+     */
+    public final ForgeConfigSpec.IntValue playersIntervalMinutes;
+    /**
+     * The number of newest player data snapshots to keep.
+     */
+    public final ForgeConfigSpec.IntValue playersKeep;
+    /**
+     * The number of files to restore at once, or {@code 0} for one per processor.
+     */
+    public final ForgeConfigSpec.IntValue restoreThreads;
+    /**
+     * Extra directories to write a copy of each backup to.
+     */
+    public final ForgeConfigSpec.ConfigValue<List<? extends String>> mirrorDirectories;
+    /**
+     * How many MiB of the archive to queue for each mirror.
+     */
+    public final ForgeConfigSpec.IntValue mirrorQueueMegabytes;
+    /**
+     * Where backups go in the object store.
+     */
+    public final ForgeConfigSpec.EnumValue<ObjectStoreMode> objectStoreMode;
+    /**
+     * The object store's endpoint URI.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> objectStoreEndpoint;
+    /**
+     * The region to sign object store requests for.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> objectStoreRegion;
+    /**
+     * The bucket to upload backups to.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> objectStoreBucket;
+    /**
+     * The prefix of the keys backups are uploaded to.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> objectStorePrefix;
+    /**
+     * Whether the bucket is addressed in the path rather than the host name.
+     */
+    public final ForgeConfigSpec.BooleanValue objectStorePathStyle;
+    /**
+     * The access key ID, or empty to use {@code AWS_ACCESS_KEY_ID}.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> objectStoreAccessKey;
+    /**
+     * The secret access key, or empty to use {@code AWS_SECRET_ACCESS_KEY}.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> objectStoreSecretKey;
+    /**
+     * The size of each uploaded part, in MiB.
+     */
+    public final ForgeConfigSpec.IntValue objectStorePartSizeMegabytes;
+    /**
+     * The number of parts to upload at once.
+     */
+    public final ForgeConfigSpec.IntValue objectStoreUploadThreads;
+    /**
+     * The most MiB of parts to hold in memory.
+     */
+    public final ForgeConfigSpec.IntValue objectStoreMemoryMegabytes;
+    /**
+     * The number of times to try each request.
+     */
+    public final ForgeConfigSpec.IntValue objectStoreMaxAttempts;
+    /**
+     * Whether to expose metrics over JMX.
+     */
+    public final ForgeConfigSpec.BooleanValue metricsJmx;
+    /**
+     * The file to write Prometheus metrics to, or empty to not write them.
+     */
+    public final ForgeConfigSpec.ConfigValue<String> metricsPrometheusFile;
+
+    private TotallySafeBackupConfig(ForgeConfigSpec.Builder builder) {
+        format = builder
+            .comment(
+                "Format to write backups in.",
+                "ZIP writes a full zip file for every backup.",
+                "DEDUPLICATED writes to a shared store, where each backup only costs the space of what changed.",
+                "TAR_ZSTD writes a zstd-compressed tar file, which is smaller than ZIP and much faster to write.",
+                "TAR_LZ4 writes an LZ4-compressed tar file, which is larger but the fastest, for frequent backups.",
+                "TAR_GZIP writes a gzip-compressed tar file.",
+                "DELTA writes a file with only what changed since the previous backup. Region files are stored as",
+                "binary deltas, so a region with a few changed chunks costs about the size of those chunks.",
+                "Restoring reads back through the previous backups, to the last full one."
+            )
+            .defineEnum("format", BackupFormat.ZIP);
+        snapshotMode = builder
+            .comment(
+                "How to snapshot the world before backing it up. World saving is blocked until the snapshot exists.",
+                "OFF reads the world directly, so saving is blocked for the whole backup.",
+                "AUTO uses a copy-on-write clone if the file system supports it (e.g. btrfs, XFS). Otherwise it falls",
+                "back to COPY if that would still leave as much free space as the copy takes, and to OFF if not.",
+                "COPY always uses a plain copy, which needs enough free space for the whole world."
+            )
+            .defineEnum("snapshot", WorldSnapshot.Mode.AUTO);
+        regionCompaction = builder
+            .comment(
+                "How to compact region files as they are backed up. The game never shrinks them, so they fill up with",
+                "unused sectors. Compacted files are read into memory whole.",
+                "OFF backs up region files as they are.",
+                "COMPACT keeps only the sectors that chunks use. Restoring gives the same chunks.",
+                "STRIP_UNVISITED also drops chunks that no player has been near and that were never fully generated,",
+                "like the edges of explored areas. The game generates them again when they are needed, which only gives",
+                "the same terrain on the same Minecraft version and mods."
+            )
+            .defineEnum("regionCompaction", RegionCompactor.Mode.OFF);
+        builder.push("flush");
+        flushIncremental = builder
+            .comment(
+                "Save chunks a few milliseconds at a time over several ticks before a backup, rather than all at once.",
+                "The world is still saved in one go afterwards, but by then only the chunks changed since are left,",
+                "so busy servers don't freeze for seconds at the start of every backup."
+            )
+            .define("incremental", true);
+        flushSliceMillis = builder
+            .comment("Most milliseconds per tick to spend saving chunks.")
+            .defineInRange("sliceMillis", 10, 1, 1000);
+        flushMaxSeconds = builder
+            .comment("Most seconds to spend saving chunks a slice at a time, before saving the rest in one go.")
+            .defineInRange("maxSeconds", 30, 1, 600);
+        builder.pop();
+        builder.push("delta");
+        deltaKeyframeInterval = builder
+            .comment(
+                "Every this many DELTA backups, one stores every file whole, so restoring never reads back through",
+                "more than this many backups. Retention keeps the backups that kept ones are built on.",
+                "1 makes every backup a full one."
+            )
+            .defineInRange("keyframeInterval", 24, 1, 1000);
+        builder.pop();
+        builder.push("compression");
+        compressionThreads = builder
+            .comment("Number of threads used to compress backups. 0 uses all but one of the available processors.")
+            .defineInRange("threads", 0, 0, 256);
+        zstdLevel = builder
+            .comment("Compression level for TAR_ZSTD. Higher is smaller and slower, levels above 19 use a lot of memory.")
+            .defineInRange("zstdLevel", 3, 1, 22);
+        storedExtensions = builder
+            .comment("Extensions of files that are stored without compression, e.g. because they are already compressed.")
+            .defineList("storedExtensions", CompressionPolicy.DEFAULT_STORED_EXTENSIONS, e -> e instanceof String);
+        compressedExtensions = builder
+            .comment("Extensions of files that are always compressed.")
+            .defineList(
+                "compressedExtensions", CompressionPolicy.DEFAULT_DEFLATED_EXTENSIONS, e -> e instanceof String
+            );
+        storeRatio = builder
+            .comment(
+                "Files with other extensions are sampled.",
+                "If the sample compresses to more than this fraction of its size, the file is stored without compression."
+            )
+            .defineInRange("storeRatio", CompressionPolicy.DEFAULT_MAX_STORED_RATIO, 0.01, 1.0);
+        builder.pop();
+        builder.push("io");
+        walkThreads = builder
+            .comment("Number of threads used to list the world's directories. 0 chooses based on the processor count.")
+            .defineInRange("walkThreads", 0, 0, 64);
+        readAheadMegabytes = builder
+            .comment(
+                "MiB of upcoming files to read ahead of the backup, so it doesn't wait on cold reads. 0 to disable.",
+                "Read-ahead is skipped while the backup is throttled."
+            )
+            .defineInRange("readAheadMegabytes", 64, 0, 4096);
+        checkpointSeconds = builder
+            .comment(
+                "Seconds between checkpoints of a ZIP backup, which is resumed from its last checkpoint if the server",
+                "stops or crashes during it. 0 to start interrupted backups over instead.",
+                "Only used when the backup is written straight to the backup directory, with no mirrors or uploads."
+            )
+            .defineInRange("checkpointSeconds", 60, 0, 3600);
+        builder.pop();
+        builder.push("throttle");
+        throttleMegabytesPerSecond = builder
+            .comment("Most MiB per second to read from the world. 0 for no limit.")
+            .defineInRange("megabytesPerSecond", 0.0, 0.0, 1_000_000.0);
+        throttleCpuCores = builder
+            .comment(
+                "Most CPU cores to spend reading and compressing, e.g. 0.5 for half of one core. 0 for no limit.",
+                "Native compression threads, like zstd's, are not counted."
+            )
+            .defineInRange("cpuCores", 0.0, 0.0, 256.0);
+        throttleAdaptive = builder
+            .comment(
+                "Slow the backup down while the average tick time is above tickTimeThreshold,",
+                "and speed it back up while the server is idle."
+            )
+            .define("adaptive", false);
+        throttleTickTimeThreshold = builder
+            .comment("Average tick time in milliseconds above which an adaptive backup slows down.")
+            .defineInRange("tickTimeThreshold", 40.0, 1.0, 10_000.0);
+        throttleMinMegabytesPerSecond = builder
+            .comment("Slowest an adaptive backup will go, in MiB per second.")
+            .defineInRange("minMegabytesPerSecond", 1.0, 0.01, 1_000_000.0);
+        builder.pop();
+        builder.push("schedule");
+        scheduleIntervalMinutes = builder
+            .comment("Minutes between scheduled backups.")
+            .defineInRange("intervalMinutes", 60, 1, 7 * 24 * 60);
+        scheduleCron = builder
+            .comment(
+                "Cron expression for scheduled backups, e.g. \"0 */6 * * *\" for every 6 hours on the hour.",
+                "Fields are minute, hour, day of month, month and day of week, in the server's time zone.",
+                "Replaces intervalMinutes if not empty."
+            )
+            .define("cron", "");
+        scheduleSkipUnchanged = builder
+            .comment(
+                "Skip a scheduled backup if no players were online and no chunks were saved since the last one.",
+                "Backups started with the perform command always run."
+            )
+            .define("skipUnchanged", true);
+        scheduleAvoidAutosave = builder
+            .comment("Wait for the game's autosave to finish if a backup would start just before it.")
+            .define("avoidAutosave", true);
+        builder.pop();
+        builder.push("retention");
+        retentionKeepLast = builder
+            .comment("Number of newest backups to always keep.")
+            .defineInRange("keepLast", 1, 1, 10_000);
+        retentionHourly = builder
+            .comment("Keep the newest backup of each of this many recent hours.")
+            .defineInRange("hourly", 24, 0, 10_000);
+        retentionDaily = builder
+            .comment("Keep the newest backup of each of this many recent days.")
+            .defineInRange("daily", 7, 0, 10_000);
+        retentionWeekly = builder
+            .comment("Keep the newest backup of each of this many recent weeks.")
+            .defineInRange("weekly", 4, 0, 10_000);
+        retentionMonthly = builder
+            .comment("Keep the newest backup of each of this many recent months.")
+            .defineInRange("monthly", 0, 0, 10_000);
+        retentionMaxTotalGigabytes = builder
+            .comment(
+                "Most GiB that kept backups may use. The oldest are deleted until the rest fit. 0 for no limit.",
+                "DEDUPLICATED backups share their space, so they don't count towards this."
+            )
+            .defineInRange("maxTotalGigabytes", 0.0, 0.0, 1_000_000.0);
+        builder.pop();
+        builder.push("verify");
+        verifyEnabled = builder
+            .comment(
+                "Re-read old backups in the background and check them against the checksums written with them.",
+                "Corrupt backups stop counting towards retention, so an intact one is kept in their place."
+            )
+            .define("enabled", true);
+        verifyIntervalMinutes = builder
+            .comment("Minutes between verifications. Each one verifies a single backup.")
+            .defineInRange("intervalMinutes", 15, 1, 7 * 24 * 60);
+        verifyMegabytesPerSecond = builder
+            .comment("Most MiB per second to read while verifying.")
+            .defineInRange("megabytesPerSecond", 16.0, 0.1, 1_000_000.0);
+        verifyReverifyDays = builder
+            .comment("Days after which an intact backup is verified again. 0 to verify each backup only once.")
+            .defineInRange("reverifyDays", 7, 0, 3650);
+        builder.pop();
+        builder.push("players");
+        playersEnabled = builder
+            .comment(
+                "Snapshot player data, advancements, statistics and level.dat between full backups, so one player",
+                "can be rolled back to a few minutes ago. Snapshots are deduplicated, so unchanged files cost nothing.",
+                "Only the changed files are read on the server thread, chunk saving is never blocked."
+            )
+            .define("enabled", true);
+        playersIntervalMinutes = builder
+            .comment("Minutes between player data snapshots.")
+            .defineInRange("intervalMinutes", 5, 1, 24 * 60);
+        playersKeep = builder
+            .comment("Number of newest player data snapshots to keep. The default keeps a day of 5 minute snapshots.")
+            .defineInRange("keep", 288, 1, 100_000);
+        builder.pop();
+        builder.push("restore");
+        restoreThreads = builder
+            .comment("Files to restore at once. 0 for one per processor. Tar backups are always read by one thread.")
+            .defineInRange("threads", 0, 0, 256);
+        builder.pop();
+        builder.push("mirrors");
+        mirrorDirectories = builder
+            .comment(
+                "Extra directories, e.g. on another disk, to write a copy of each backup to as it is written.",
+                "Relative to the game directory. The world is still only read and compressed once.",
+                "If a mirror fails, the backup carries on without it. DEDUPLICATED and DELTA backups are not mirrored."
+            )
+            .defineList("directories", List.of(), e -> e instanceof String);
+        mirrorQueueMegabytes = builder
+            .comment("MiB of the archive to queue for each destination, before a slow one holds the backup back.")
+            .defineInRange("queueMegabytes", 32, 1, 4096);
+        builder.pop();
+        builder.push("objectStore");
+        objectStoreMode = builder
+            .comment(
+                "Upload backups to an S3-compatible object store, like AWS S3 or MinIO.",
+                "MIRROR uploads a copy while the backup is written locally. If the upload fails, it is resumed",
+                "from the local copy after the next backup.",
+                "ONLY uploads the backup without writing it to local disk. Those backups aren't verified or",
+                "pruned by this mod, use the bucket's lifecycle rules to expire them.",
+                "DEDUPLICATED and DELTA backups are never uploaded."
+            )
+            .defineEnum("mode", ObjectStoreMode.OFF);
+        objectStoreEndpoint = builder
+            .comment("Endpoint of the object store, e.g. https://s3.us-east-1.amazonaws.com or http://localhost:9000.")
+            .define("endpoint", "");
+        objectStoreRegion = builder
+            .comment("Region to sign requests for. Most self-hosted stores accept us-east-1.")
+            .define("region", "us-east-1");
+        objectStoreBucket = builder
+            .comment("Bucket to upload backups to.")
+            .define("bucket", "");
+        objectStorePrefix = builder
+            .comment("Prefix of the keys backups are uploaded to.")
+            .define("prefix", "totally-safe-backups/");
+        objectStorePathStyle = builder
+            .comment("Address the bucket in the path rather than the host name, which most self-hosted stores need.")
+            .define("pathStyle", true);
+        objectStoreAccessKey = builder
+            .comment("Access key ID. Empty to use the AWS_ACCESS_KEY_ID environment variable.")
+            .define("accessKey", "");
+        objectStoreSecretKey = builder
+            .comment("Secret access key. Empty to use the AWS_SECRET_ACCESS_KEY environment variable.")
+            .define("secretKey", "");
+        objectStorePartSizeMegabytes = builder
+            .comment("Size of each uploaded part in MiB. A backup can have at most 10000 parts.")
+            .defineInRange("partSizeMegabytes", 16, 5, 5120);
+        objectStoreUploadThreads = builder
+            .comment("Number of parts to upload at once.")
+            .defineInRange("uploadThreads", 4, 1, 64);
+        objectStoreMemoryMegabytes = builder
+            .comment(
+                "Most MiB of parts to hold in memory while they upload. Writing the backup waits for memory to free up.",
+                "At least two parts are always allowed."
+            )
+            .defineInRange("memoryMegabytes", 128, 10, 65536);
+        objectStoreMaxAttempts = builder
+            .comment("Number of times to try each request before giving up on the upload.")
+            .defineInRange("maxAttempts", 5, 1, 100);
+        builder.pop();
+        builder.push("metrics");
+        metricsJmx = builder
+            .comment("Expose backup metrics over JMX, as " + JmxBackupMetrics.OBJECT_NAME + ".")
+            .define("jmx", false);
+        metricsPrometheusFile = builder
+            .comment(
+                "File to write backup metrics to in the Prometheus text format, e.g. for node_exporter's textfile" +
+                    " collector. Relative to the game directory. Empty to not write metrics."
+            )
+            .define("prometheusFile", "");
+        builder.pop();
+    }
+
+    /**
+     * {@return the compression policy described by this config}
+     */
+    public CompressionPolicy compressionPolicy() {
+        return new CompressionPolicy(
+            Set.copyOf(storedExtensions.get()),
+            Set.copyOf(compressedExtensions.get()),
+            storeRatio.get()
+        );
+    }
+
+    /**
+     * Create a throttle described by this config.
+     *
+     * @param averageTickTimeMillis supplies the server's average tick time, in milliseconds
+     * @return the throttle
+     */
+    public BackupThrottle createThrottle(DoubleSupplier averageTickTimeMillis) {
+        var adaptive = throttleAdaptive.get()
+            ? new BackupThrottle.Adaptive(
+                averageTickTimeMillis, throttleTickTimeThreshold.get(), throttleMinMegabytesPerSecond.get() * MIB
+            )
+            : null;
+        return new BackupThrottle(throttleMegabytesPerSecond.get() * MIB, throttleCpuCores.get(), adaptive);
+    }
+
+    /**
+     * {@return a throttle for background verification}
+     */
+    public BackupThrottle createVerifyThrottle() {
+        return new BackupThrottle(verifyMegabytesPerSecond.get() * MIB, 0, null);
+    }
+
+    /**
+     * {@return the retention policy described by this config}
+     */
+    public RetentionPolicy retentionPolicy() {
+        return new RetentionPolicy(
+            retentionKeepLast.get(),
+            retentionHourly.get(),
+            retentionDaily.get(),
+            retentionWeekly.get(),
+            retentionMonthly.get(),
+            (long) (retentionMaxTotalGigabytes.get() * GIB),
+            ZoneId.systemDefault()
+        );
+    }
+
+    /**
+     * {@return the backup schedule described by this config}
+     *
+     * @throws IllegalArgumentException if the cron expression is invalid
+     */
+    public BackupSchedule createSchedule() {
+        var cron = scheduleCron.get();
+        if (!cron.isBlank()) {
+            return BackupSchedule.cron(cron);
+        }
+        return BackupSchedule.every(Duration.ofMinutes(scheduleIntervalMinutes.get()));
+    }
+
+    /**
+     * Create an uploader for the configured object store.
+     *
+     * @param journalFile the file to record unfinished uploads in
+     * @return the uploader, or {@code null} if uploading is off
+     * @throws IllegalArgumentException if the object store settings are invalid
+     */
+    @Nullable
+    public S3Uploader createUploader(Path journalFile) {
+        if (objectStoreMode.get() == ObjectStoreMode.OFF) {
+            return null;
+        }
+        var accessKey = objectStoreAccessKey.get();
+        var secretKey = objectStoreSecretKey.get();
+        if (accessKey.isEmpty()) {
+            accessKey = Objects.requireNonNullElse(System.getenv("AWS_ACCESS_KEY_ID"), "");
+        }
+        if (secretKey.isEmpty()) {
+            secretKey = Objects.requireNonNullElse(System.getenv("AWS_SECRET_ACCESS_KEY"), "");
+        }
+        var endpoint = new S3Endpoint(
+            URI.create(objectStoreEndpoint.get()),
+            objectStoreRegion.get(),
+            objectStoreBucket.get(),
+            objectStorePathStyle.get(),
+            accessKey,
+            secretKey
+        );
+        int partSize = objectStorePartSizeMegabytes.get() * 1024 * 1024;
+        return new S3Uploader(
+            new S3Client(endpoint),
+            journalFile,
+            partSize,
+            Math.max(2, (int) (objectStoreMemoryMegabytes.get() * MIB / partSize)),
+            objectStoreUploadThreads.get(),
+            objectStoreMaxAttempts.get()
+        );
+    }
+
+    /**
+     * {@return the number of threads to list the world with, with {@code 0} resolved}
+     */
+    public int resolveWalkThreads() {
+        int threads = walkThreads.get();
+        if (threads == 0) {
+            // Listing is bound by I/O latency, a few threads are enough to hide it
+            return Math.min(8, Runtime.getRuntime().availableProcessors());
+        }
+        return threads;
+    }
+
+    /**
+     * {@return the mirror directories, resolved against the game directory}
+     */
+    public List<Path> resolveMirrorDirectories() {
+        var directories = new ArrayList<Path>();
+        for (var directory : mirrorDirectories.get()) {
+            directories.add(FMLPaths.GAMEDIR.get().resolve(directory));
+        }
+        return directories;
+    }
+
+    /**
+     * {@return the number of compression threads to use, with {@code 0} resolved}
+     */
+    public int resolveCompressionThreads() {
+        int threads = compressionThreads.get();
+        if (threads == 0) {
+            return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        }
+        return threads;
+    }
+
+    /**
+     * {@return the number of files to restore at once, with {@code 0} resolved}
+     */
+    public int resolveRestoreThreads() {
+        int threads = restoreThreads.get();
+        if (threads == 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return threads;
+    }
+}
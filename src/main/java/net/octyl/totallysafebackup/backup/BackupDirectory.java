@@ -0,0 +1,375 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.history.ChunkHistory;
+import net.octyl.totallysafebackup.backup.restore.RestoreSource;
+import net.octyl.totallysafebackup.backup.retention.BackupCatalog;
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.target.DeltaArchiveReader;
+import net.octyl.totallysafebackup.backup.target.ParallelZipBackupTarget;
+import net.octyl.totallysafebackup.backup.target.PartialFile;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import net.octyl.totallysafebackup.backup.verify.ChecksumManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Optional;
+
+/**
+ * The directory backups are kept in, with the catalog of kept backups, the chunk history and the content stores kept
+ * alongside them. Thread-safe, backups, verification and restores all read from it.
+ */
+public final class BackupDirectory {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final DateTimeFormatter NAME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH_mm_ss");
+
+    /**
+     * Name a backup by when it was made. Names are safe to use in file names, and sort by time.
+     *
+     * @param time when the backup was made
+     * @return the name
+     */
+    public static String nameFor(Instant time) {
+        return NAME_FORMAT.format(time.atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * Find when a backup was made from its name.
+     *
+     * @param name the name, from {@link #nameFor(Instant)}
+     * @return when the backup was made, or empty if the name isn't one of ours
+     */
+    public static Optional<Instant> parseName(String name) {
+        try {
+            return Optional.of(LocalDateTime.parse(name, NAME_FORMAT).toInstant(ZoneOffset.UTC));
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Find the format a backup was written in.
+     *
+     * @param entry the backup
+     * @return the format
+     * @throws IOException if the format is unknown
+     */
+    public static BackupFormat formatOf(BackupCatalog.Entry entry) throws IOException {
+        try {
+            return BackupFormat.valueOf(entry.format());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Backup " + entry.name() + " is in unknown format " + entry.format(), e);
+        }
+    }
+
+    private final Path directory;
+    /**
+     * The backups kept by retention, loaded on first use. Guarded by {@code this}.
+     */
+    @Nullable
+    private BackupCatalog catalog;
+    /**
+     * When each chunk changed, loaded on first use. Guarded by {@code this}.
+     */
+    @Nullable
+    private ChunkHistory chunkHistory;
+
+    /**
+     * Create a new {@link BackupDirectory}.
+     *
+     * @param directory the directory
+     */
+    public BackupDirectory(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * {@return the directory}
+     */
+    public Path getPath() {
+        return directory;
+    }
+
+    /**
+     * {@return the directory snapshots of the world are staged in}
+     */
+    public Path getStagingDirectory() {
+        return directory.resolve(".staging");
+    }
+
+    /**
+     * {@return the directory files are restored into}
+     *
+     * @param name the name of the restore
+     */
+    public Path getRestoreDirectory(String name) {
+        return directory.resolve("restores").resolve(name);
+    }
+
+    /**
+     * {@return the file unfinished uploads are recorded in}
+     */
+    public Path getUploadJournal() {
+        return directory.resolve("uploads.dat");
+    }
+
+    /**
+     * {@return the file the signatures of the last delta backup are kept in}
+     */
+    public Path getDeltaSignatureFile() {
+        return directory.resolve("delta-signatures.dat");
+    }
+
+    /**
+     * Find the file a backup is written to.
+     *
+     * @param format the format of the backup
+     * @param name the name of the backup
+     * @return the file, which for a deduplicated backup is its snapshot in the content store
+     * @throws IOException if there is an error opening the content store
+     */
+    public Path getBackupFile(BackupFormat format, String name) throws IOException {
+        var extension = format.getFileExtension();
+        if (extension == null) {
+            return openContentStore().snapshotPath(name);
+        }
+        return directory.resolve(name + extension);
+    }
+
+    /**
+     * Find the file the change index of a format is kept in.
+     *
+     * @param format the format
+     * @return the file, or {@code null} if the format can't leave unchanged files out
+     * @throws IOException if there is an error opening the content store
+     */
+    @Nullable
+    public Path getChangeIndexFile(BackupFormat format) throws IOException {
+        return switch (format) {
+            case DEDUPLICATED -> openContentStore().changeIndexPath();
+            case DELTA -> directory.resolve("delta-index.dat");
+            case ZIP, TAR_ZSTD, TAR_LZ4, TAR_GZIP -> null;
+        };
+    }
+
+    /**
+     * {@return the file a backup in the catalog is kept in}
+     *
+     * @param entry the backup
+     */
+    public Path getFile(BackupCatalog.Entry entry) {
+        return directory.resolve(entry.path());
+    }
+
+    /**
+     * {@return the content store deduplicated backups are written to}
+     *
+     * @throws IOException if there is an error opening the store
+     */
+    public ContentStore openContentStore() throws IOException {
+        return new ContentStore(directory.resolve("store"));
+    }
+
+    /**
+     * {@return the content store player data snapshots are written to}
+     *
+     * @throws IOException if there is an error opening the store
+     */
+    public ContentStore openPlayerStore() throws IOException {
+        return new ContentStore(directory.resolve("players"));
+    }
+
+    /**
+     * Get the catalog of kept backups, building it from the backups in the directory if it was never saved.
+     *
+     * @return the catalog
+     * @throws IOException if there is an error building the catalog
+     */
+    public synchronized BackupCatalog openCatalog() throws IOException {
+        if (catalog == null) {
+            var file = directory.resolve("catalog.dat");
+            var loaded = BackupCatalog.load(file);
+            catalog = loaded.isPresent() ? loaded.get() : rebuildCatalog(file);
+        }
+        return catalog;
+    }
+
+    /**
+     * {@return the index of when each chunk changed}
+     */
+    public synchronized ChunkHistory openChunkHistory() {
+        if (chunkHistory == null) {
+            chunkHistory = ChunkHistory.load(directory.resolve("chunk-history.dat"));
+        }
+        return chunkHistory;
+    }
+
+    /**
+     * Describe a backup for the catalog.
+     *
+     * @param name the name of the backup
+     * @param format the format of the backup
+     * @param createdAt when the backup was made
+     * @param backupFile the file the backup was written to
+     * @param sizeBytes the size of the backup, or a negative number if it isn't known
+     * @return the catalog entry
+     */
+    public BackupCatalog.Entry catalogEntry(
+        String name, BackupFormat format, Instant createdAt, Path backupFile, long sizeBytes
+    ) {
+        var path = directory.relativize(backupFile).toString().replace(File.separatorChar, '/');
+        String base = null;
+        if (format == BackupFormat.DELTA) {
+            try {
+                base = DeltaArchiveReader.readBase(backupFile);
+            } catch (IOException e) {
+                // Verification will find it unreadable, and retention will replace it
+                LOGGER.warn("Failed to read the base of {}", backupFile, e);
+            }
+        }
+        return new BackupCatalog.Entry(
+            name, format.name(), createdAt, Math.max(0, sizeBytes), path,
+            format == BackupFormat.DEDUPLICATED, null, false, base
+        );
+    }
+
+    /**
+     * Open a backup in the catalog to restore from.
+     *
+     * @param entry the backup
+     * @return the source
+     * @throws IOException if the backup can't be opened
+     */
+    public RestoreSource openRestoreSource(BackupCatalog.Entry entry) throws IOException {
+        var format = formatOf(entry);
+        var file = getFile(entry);
+        return switch (format) {
+            case ZIP -> RestoreSource.zip(file);
+            case DEDUPLICATED -> RestoreSource.snapshot(openContentStore(), entry.name());
+            case DELTA -> RestoreSource.delta(file);
+            case TAR_ZSTD -> RestoreSource.tar(file, TarCodec.ZSTD);
+            case TAR_LZ4 -> RestoreSource.tar(file, TarCodec.LZ4);
+            case TAR_GZIP -> RestoreSource.tar(file, TarCodec.GZIP);
+        };
+    }
+
+    /**
+     * Clear out the partial files that interrupted backups left in the directory. If a backup is resumable, the
+     * latest checkpointed zip archive is renamed to its partial archive instead, along with its checkpoint and
+     * checksums, so it continues that one.
+     *
+     * @param backupFile the file of the backup that is about to be written
+     * @param resumable whether the backup can continue an interrupted one
+     */
+    public void cleanUpPartialFiles(Path backupFile, boolean resumable) {
+        var partials = new ArrayList<Path>();
+        try (var files = Files.list(directory)) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                var fileName = file.getFileName().toString();
+                if (PartialFile.isPartial(file) || fileName.endsWith(".checkpoint")) {
+                    partials.add(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to list partial files in {}", directory, e);
+            return;
+        }
+        Path resumed = null;
+        if (resumable) {
+            long resumedModified = Long.MIN_VALUE;
+            for (var file : partials) {
+                if (!PartialFile.isPartial(file)
+                    || !PartialFile.fileFor(file).getFileName().toString().endsWith(".zip")
+                    || !Files.exists(ParallelZipBackupTarget.checkpointPathFor(file))) {
+                    continue;
+                }
+                long modified = file.toFile().lastModified();
+                if (modified > resumedModified) {
+                    resumed = file;
+                    resumedModified = modified;
+                }
+            }
+        }
+        if (resumed != null) {
+            var previous = PartialFile.fileFor(resumed);
+            var partial = PartialFile.pathFor(backupFile);
+            try {
+                Files.move(resumed, partial);
+                Files.move(
+                    ParallelZipBackupTarget.checkpointPathFor(resumed),
+                    ParallelZipBackupTarget.checkpointPathFor(partial)
+                );
+                var previousManifest = PartialFile.pathFor(ChecksumManifest.pathFor(previous));
+                if (Files.exists(previousManifest)) {
+                    Files.move(previousManifest, PartialFile.pathFor(ChecksumManifest.pathFor(backupFile)));
+                }
+                LOGGER.info("Resuming the interrupted backup {}", previous.getFileName());
+            } catch (IOException e) {
+                LOGGER.warn("Failed to resume the interrupted backup {}, starting over", previous.getFileName(), e);
+            }
+        }
+        for (var file : partials) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to delete partial file {}", file, e);
+            }
+        }
+    }
+
+    /**
+     * Build a catalog from the backups already in the directory. This is the only time retention lists the backups.
+     */
+    private BackupCatalog rebuildCatalog(Path file) throws IOException {
+        LOGGER.info("Building a catalog of existing backups...");
+        var catalog = new BackupCatalog(file);
+        try (var files = Files.list(directory)) {
+            for (var backupFile : (Iterable<Path>) files::iterator) {
+                var fileName = backupFile.getFileName().toString();
+                for (var format : BackupFormat.values()) {
+                    var extension = format.getFileExtension();
+                    if (extension == null || !fileName.endsWith(extension)) {
+                        continue;
+                    }
+                    var name = fileName.substring(0, fileName.length() - extension.length());
+                    parseName(name).ifPresent(createdAt -> {
+                        try {
+                            catalog.add(catalogEntry(name, format, createdAt, backupFile, Files.size(backupFile)));
+                        } catch (IOException e) {
+                            LOGGER.warn("Failed to read the size of {}", backupFile, e);
+                        }
+                    });
+                }
+            }
+        }
+        var store = openContentStore();
+        for (var name : store.listSnapshots()) {
+            parseName(name).ifPresent(createdAt -> catalog.add(catalogEntry(
+                name, BackupFormat.DEDUPLICATED, createdAt, store.snapshotPath(name), 0
+            )));
+        }
+        LOGGER.info("Found {} existing backups", catalog.entries().size());
+        return catalog;
+    }
+}
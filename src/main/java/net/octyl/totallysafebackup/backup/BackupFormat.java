@@ -0,0 +1,63 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.target.DeltaBackupTarget;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+
+import javax.annotation.Nullable;
+
+/**
+ * The format of a backup.
+ */
+public enum BackupFormat {
+    /**
+     * A zip file per backup.
+     */
+    ZIP,
+    /**
+     * A content-addressed store shared by all backups, which only stores data that changed.
+     */
+    DEDUPLICATED,
+    /**
+     * A zstd-compressed tar file per backup.
+     */
+    TAR_ZSTD,
+    /**
+     * An LZ4-compressed tar file per backup.
+     */
+    TAR_LZ4,
+    /**
+     * A gzip-compressed tar file per backup.
+     */
+    TAR_GZIP,
+    /**
+     * A file per backup with only what changed since the previous one, and region files as binary deltas.
+     */
+    DELTA,
+    ;
+
+    /**
+     * {@return the extension of a backup file in this format, or {@code null} if it isn't written to a file}
+     */
+    @Nullable
+    public String getFileExtension() {
+        return switch (this) {
+            case ZIP -> ".zip";
+            case DEDUPLICATED -> null;
+            case DELTA -> DeltaBackupTarget.EXTENSION;
+            case TAR_ZSTD -> "." + TarCodec.ZSTD.getExtension();
+            case TAR_LZ4 -> "." + TarCodec.LZ4.getExtension();
+            case TAR_GZIP -> "." + TarCodec.GZIP.getExtension();
+        };
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.base.Preconditions;
+import net.octyl.totallysafebackup.backup.s3.S3Uploader;
+import net.octyl.totallysafebackup.backup.target.ArchiveSink;
+import net.octyl.totallysafebackup.backup.target.FileArchiveSink;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The copies of each backup archive kept outside the backup directory, in mirror directories and the object store.
+ * Copies are written as the archive is, and deleted with it.
+ */
+public final class BackupMirrors {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final List<Path> directories;
+    @Nullable
+    private final S3Uploader uploader;
+    private final String objectKeyPrefix;
+
+    /**
+     * Create a new {@link BackupMirrors}.
+     *
+     * @param directories the mirror directories
+     * @param uploader the uploader to the object store, or {@code null} if nothing is uploaded
+     * @param objectKeyPrefix the prefix of the keys archives are uploaded to
+     */
+    public BackupMirrors(List<Path> directories, @Nullable S3Uploader uploader, String objectKeyPrefix) {
+        this.directories = List.copyOf(directories);
+        this.uploader = uploader;
+        this.objectKeyPrefix = objectKeyPrefix;
+    }
+
+    /**
+     * {@return whether there are no copies, so an archive is only in the backup directory}
+     */
+    public boolean isEmpty() {
+        return directories.isEmpty() && uploader == null;
+    }
+
+    /**
+     * {@return whether archives are uploaded to the object store}
+     */
+    public boolean isUploading() {
+        return uploader != null;
+    }
+
+    /**
+     * {@return the key an archive is uploaded to}
+     *
+     * @param fileName the file name of the archive
+     */
+    public String getObjectKey(Path fileName) {
+        return objectKeyPrefix + fileName;
+    }
+
+    /**
+     * Open a sink in each mirror directory, and one uploading to the object store if archives are uploaded. Mirrors
+     * are optional, so one that can't be opened is only logged.
+     *
+     * @param backupFile the archive, in the backup directory
+     * @param upload whether to open a sink uploading the archive, if archives are uploaded
+     * @return the sinks
+     */
+    public List<ArchiveSink> openSinks(Path backupFile, boolean upload) {
+        var sinks = new ArrayList<ArchiveSink>();
+        for (var directory : directories) {
+            var mirrorFile = directory.resolve(backupFile.getFileName());
+            try {
+                Files.createDirectories(directory);
+                sinks.add(new FileArchiveSink(mirrorFile));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to open mirror {}, backing up without it", mirrorFile, e);
+            }
+        }
+        if (upload && uploader != null) {
+            var key = getObjectKey(backupFile.getFileName());
+            try {
+                sinks.add(uploader.openSink(key, backupFile));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to start uploading {}, uploading it after the backup instead", key, e);
+                try {
+                    uploader.uploadLater(key, backupFile);
+                } catch (IOException journalError) {
+                    LOGGER.warn("Failed to record the upload of {}", key, journalError);
+                }
+            }
+        }
+        return sinks;
+    }
+
+    /**
+     * Open a sink uploading an archive that isn't written locally. A failed upload can't be resumed without a local
+     * copy, so it fails the backup.
+     *
+     * @param backupFile where the archive would be in the backup directory
+     * @return the sink
+     * @throws IOException if the upload can't be started
+     * @throws IllegalStateException if archives aren't uploaded
+     */
+    public ArchiveSink openUploadOnlySink(Path backupFile) throws IOException {
+        Preconditions.checkState(uploader != null, "Archives aren't uploaded");
+        return uploader.openSink(getObjectKey(backupFile.getFileName()), null);
+    }
+
+    /**
+     * Delete the copies of an archive, so they are kept as long as the original.
+     *
+     * @param fileName the file name of the archive
+     */
+    public void delete(Path fileName) {
+        if (uploader != null) {
+            var key = getObjectKey(fileName);
+            try {
+                uploader.delete(key);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to delete uploaded backup {}", key, e);
+            }
+        }
+        for (var directory : directories) {
+            try {
+                Files.deleteIfExists(directory.resolve(fileName));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to delete mirrored backup {}", directory.resolve(fileName), e);
+            }
+        }
+    }
+}
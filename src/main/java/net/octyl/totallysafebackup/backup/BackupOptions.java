@@ -0,0 +1,50 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.region.RegionCompactor;
+
+import javax.annotation.Nullable;
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * Options for a single backup run.
+ *
+ * @param snapshotMode how to snapshot the world before backing it up
+ * @param changeIndexFile where to keep the {@link ChangeIndex}, or {@code null} to read every file. Only used if
+ *     the target {@linkplain net.octyl.totallysafebackup.backup.target.BackupTarget#supportsUnchangedFiles()
+ *     supports unchanged files}.
+ * @param throttle paces reading the world's files
+ * @param walkThreads the number of threads to list the world with
+ * @param readAheadBytes how many bytes of upcoming files to prefetch, or {@code 0} to not prefetch. Prefetching
+ *     is skipped while the throttle is limited, as it would read around it.
+ * @param regionCompaction how to compact region files as they are saved
+ * @param flushSlice the most time per tick to spend saving chunks before the world is saved for the backup, or zero
+ *     to save everything in one blocking save. Only used by {@link BackupWorker}.
+ * @param flushTimeout the most time to spend saving chunks a slice at a time, after which the blocking save does
+ *     the rest
+ * @param checkpointInterval how often to checkpoint the target, or zero to only checkpoint it when interrupted. Only used if the target
+ *     {@linkplain net.octyl.totallysafebackup.backup.target.BackupTarget#supportsResume() supports resuming}.
+ */
+public record BackupOptions(
+    WorldSnapshot.Mode snapshotMode,
+    @Nullable Path changeIndexFile,
+    BackupThrottle throttle,
+    int walkThreads,
+    long readAheadBytes,
+    RegionCompactor.Mode regionCompaction,
+    Duration flushSlice,
+    Duration flushTimeout,
+    Duration checkpointInterval
+) {
+}
@@ -0,0 +1,509 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.octyl.totallysafebackup.backup.region.DirtyRegionTracker;
+import net.octyl.totallysafebackup.backup.region.RegionCompactor;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import net.octyl.totallysafebackup.backup.target.BackupTarget;
+import net.octyl.totallysafebackup.backup.target.BufferPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+
+/**
+ * The file half of a backup: lists a world directory, snapshots it, and saves every file to a target. It knows
+ * nothing about the server, so it can run against any directory, e.g. from a benchmark.
+ *
+ * <p>
+ * The world must not be saved while this is listing and snapshotting it. {@link BackupWorker} takes care of that
+ * for a running server.
+ * </p>
+ */
+public class BackupPipeline {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int READ_AHEAD_THREADS = 2;
+    /**
+     * The most units to snapshot at once.
+     */
+    private static final int SNAPSHOT_THREADS = 4;
+    /**
+     * Region files larger than this are copied as they are, rather than compacted.
+     */
+    private static final long MAX_COMPACTED_REGION_SIZE = 256L * 1024 * 1024;
+
+    private final Path stagingDir;
+
+    /**
+     * Create a new pipeline.
+     *
+     * @param stagingDir the directory to stage snapshots in
+     */
+    public BackupPipeline(Path stagingDir) {
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * Back up a world directory, and commit the target.
+     *
+     * @param worldDir the world directory
+     * @param backupTarget the target to back up to, caller is responsible for cleanup on failure
+     * @param options the options for this backup
+     * @param progress the progress to update as the backup runs
+     * @param dirtyRegions the region writes since the last backup, taken while the world couldn't be saved, or
+     *     {@code null} if they aren't tracked. Committed if the change index is saved, aborted otherwise.
+     * @param onStaged run once the world has been snapshotted and may be saved again, if the snapshot was staged
+     * @return a report of what the backup did
+     * @throws Exception if the backup fails
+     */
+    public BackupReport run(
+        Path worldDir, BackupTarget backupTarget, BackupOptions options, BackupProgress progress,
+        @Nullable DirtyRegionTracker.Checkpoint dirtyRegions, Runnable onStaged
+    ) throws Exception {
+        return run(
+            worldDir, backupTarget, options, progress, dirtyRegions, List.of(new BackupUnit("world", List.of(), onStaged))
+        );
+    }
+
+    /**
+     * Back up a world directory in units that are snapshotted separately, and commit the target. All units go to the
+     * same target.
+     *
+     * @param worldDir the world directory
+     * @param backupTarget the target to back up to, caller is responsible for cleanup on failure
+     * @param options the options for this backup
+     * @param progress the progress to update as the backup runs
+     * @param dirtyRegions the region writes since the last backup, taken while the world couldn't be saved, or
+     *     {@code null} if they aren't tracked. Committed if the change index is saved, aborted otherwise.
+     * @param units the units to snapshot the world in, exactly one of which must have no directories
+     * @return a report of what the backup did
+     * @throws Exception if the backup fails
+     */
+    public BackupReport run(
+        Path worldDir, BackupTarget backupTarget, BackupOptions options, BackupProgress progress,
+        @Nullable DirtyRegionTracker.Checkpoint dirtyRegions, List<BackupUnit> units
+    ) throws Exception {
+        boolean indexSaved = false;
+        try {
+            progress.enterPhase(BackupProgress.Phase.WALK);
+            long startNanos = System.nanoTime();
+            long startCpuNanos = BackupReport.processCpuNanos();
+            long listedAt = System.currentTimeMillis();
+            var worldFiles = WorldSnapshot.listWorld(worldDir, options.walkThreads());
+            long inputBytes = 0;
+            for (WorldFile file : worldFiles) {
+                inputBytes += file.attributes().size();
+            }
+            int fileCount = worldFiles.size();
+            progress.setTotal(fileCount, inputBytes);
+            var changeIndexFile = backupTarget.supportsUnchangedFiles() ? options.changeIndexFile() : null;
+            var newChangeIndex = changeIndexFile == null
+                ? null
+                : new ChangeIndex(listedAt, dirtyRegions == null ? null : dirtyRegions.getSession());
+            if (changeIndexFile != null) {
+                var changeIndex = ChangeIndex.load(changeIndexFile);
+                // The tracker can only vouch for the time since this index was made if it saw all of it
+                var trustedRegions = dirtyRegions != null
+                    && dirtyRegions.getSession().equals(changeIndex.getTrackerSession())
+                    ? dirtyRegions
+                    : null;
+                worldFiles = saveUnchangedFiles(
+                    worldDir, worldFiles, backupTarget, changeIndex, trustedRegions, newChangeIndex, progress
+                );
+            }
+            if (backupTarget.supportsResume()) {
+                worldFiles = saveResumedFiles(worldFiles, backupTarget, progress);
+            }
+            progress.enterPhase(BackupProgress.Phase.SNAPSHOT);
+            var snapshots = createSnapshots(worldDir, worldFiles, units, options.snapshotMode());
+            try (var closer = Closer.create()) {
+                var files = new ArrayList<WorldFile>(worldFiles.size());
+                for (var snapshot : snapshots) {
+                    closer.register(snapshot);
+                    files.addAll(snapshot.files());
+                }
+                // Save the units together, largest files first. Units that weren't staged stay blocked until the
+                // target commits, whatever order they are saved in, as targets may read files until then.
+                files.sort(WorldSnapshot.LARGEST_FIRST);
+                // Prefetching would read around the throttle
+                if (options.readAheadBytes() > 0 && !options.throttle().isLimited()) {
+                    try (var readAhead = new ReadAhead(files, options.readAheadBytes(), READ_AHEAD_THREADS)) {
+                        saveFiles(files, backupTarget, newChangeIndex, options, progress, readAhead);
+                    }
+                } else {
+                    saveFiles(files, backupTarget, newChangeIndex, options, progress, null);
+                }
+            }
+            long endCpuNanos = BackupReport.processCpuNanos();
+            var cpuTime = startCpuNanos < 0 || endCpuNanos < 0
+                ? Duration.ofNanos(-1)
+                : Duration.ofNanos(endCpuNanos - startCpuNanos);
+            if (changeIndexFile != null) {
+                try {
+                    newChangeIndex.save(changeIndexFile);
+                    indexSaved = true;
+                } catch (IOException e) {
+                    // The backup itself is fine, the next one will just read more
+                    LOGGER.warn("Failed to save change index", e);
+                }
+            }
+            return new BackupReport(
+                fileCount, inputBytes, Duration.ofNanos(System.nanoTime() - startNanos), cpuTime
+            );
+        } finally {
+            if (dirtyRegions != null) {
+                if (indexSaved) {
+                    dirtyRegions.commit();
+                } else {
+                    // Nothing on disk covers these writes, so the next backup has to see them
+                    dirtyRegions.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Snapshot each unit, concurrently. Each unit is released as soon as its own snapshot is staged. Units that aren't
+     * staged, e.g. with {@link WorldSnapshot.Mode#OFF} or when {@link WorldSnapshot.Mode#AUTO} can't clone, are left
+     * for the caller to release once the backup is done.
+     *
+     * @return the snapshot of each unit
+     */
+    private List<WorldSnapshot> createSnapshots(
+        Path worldDir, List<WorldFile> worldFiles, List<BackupUnit> units, WorldSnapshot.Mode mode
+    ) throws IOException {
+        var partitions = BackupUnit.partition(worldFiles, units);
+        if (mode != WorldSnapshot.Mode.OFF) {
+            // Anything already here was left behind by a crash, including units that are gone now
+            WorldSnapshot.deleteTree(stagingDir);
+        }
+        var tasks = new ArrayList<Callable<WorldSnapshot>>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            var unit = units.get(i);
+            var files = partitions.get(i);
+            var unitStagingDir = stagingDir.resolve("unit-" + i);
+            tasks.add(() -> {
+                long startNanos = System.nanoTime();
+                var snapshot = WorldSnapshot.create(worldDir, files, unitStagingDir, mode);
+                // Once the snapshot won't change, the unit can save again while we back it up. A unit with nothing
+                // to back up has nothing to protect either.
+                if (snapshot.isStaged() || files.isEmpty()) {
+                    LOGGER.info(
+                        "Staged {}, {} files in {} ms",
+                        unit.name(), files.size(), Duration.ofNanos(System.nanoTime() - startNanos).toMillis()
+                    );
+                    unit.release().run();
+                } else {
+                    LOGGER.info("{} wasn't staged, it can't be saved until the backup is done", unit.name());
+                }
+                return snapshot;
+            });
+        }
+        var executor = Executors.newFixedThreadPool(
+            Math.min(tasks.size(), SNAPSHOT_THREADS),
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("totally-safe-backup-snapshot-%d")
+                .build()
+        );
+        var snapshots = new ArrayList<WorldSnapshot>(units.size());
+        Throwable failure = null;
+        try {
+            for (var future : executor.invokeAll(tasks)) {
+                try {
+                    snapshots.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    } else {
+                        failure.addSuppressed(e.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new RuntimeException("Backup interrupted!", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failure != null) {
+            for (var snapshot : snapshots) {
+                try {
+                    snapshot.close();
+                } catch (IOException e) {
+                    failure.addSuppressed(e);
+                }
+            }
+            Throwables.throwIfInstanceOf(failure, IOException.class);
+            Throwables.throwIfUnchecked(failure);
+            throw new IOException(failure);
+        }
+        return snapshots;
+    }
+
+    /**
+     * Save the files that haven't changed since the last backup, without reading them.
+     *
+     * @return the files that still need to be saved
+     */
+    private List<WorldFile> saveUnchangedFiles(
+        Path worldDir, List<WorldFile> worldFiles, BackupTarget backupTarget, ChangeIndex changeIndex,
+        @Nullable DirtyRegionTracker.Checkpoint trustedRegions, ChangeIndex newChangeIndex, BackupProgress progress
+    ) throws IOException {
+        var remaining = new ArrayList<WorldFile>();
+        int cleanRegions = 0;
+        // Resolving a key touches the disk, so only do it once per region directory
+        var regionDirectoryKeys = new HashMap<Path, Path>();
+        for (WorldFile file : worldFiles) {
+            ChangeIndex.Entry entry;
+            if (trustedRegions != null && RegionFileHeader.isRegionFile(file.path())) {
+                // The attributes still have to match, as something other than the game may have written the file.
+                // If the game hasn't written it since it was indexed, it doesn't have to be hashed again even if it
+                // was modified just before the index was made.
+                var previous = changeIndex.get(file.path());
+                boolean clean = previous != null
+                    && previous.matches(file.attributes())
+                    && !trustedRegions.isDirty(regionDirectoryKeys
+                        .computeIfAbsent(worldDir.resolve(file.path()).getParent(), DirtyRegionTracker::directoryKey)
+                        .resolve(file.path().getFileName()));
+                entry = clean ? previous : null;
+                if (clean) {
+                    cleanRegions++;
+                }
+            } else {
+                entry = changeIndex.findUnchanged(file.path(), file.attributes());
+            }
+            if (entry != null && backupTarget.saveUnchanged(file.path(), entry.contentHash())) {
+                newChangeIndex.put(file.path(), entry);
+                progress.fileDone(file.attributes().size());
+            } else {
+                remaining.add(file);
+            }
+        }
+        LOGGER.info(
+            "{} of {} files are unchanged since the last backup",
+            worldFiles.size() - remaining.size(), worldFiles.size()
+        );
+        if (trustedRegions != null) {
+            LOGGER.info(
+                "{} region files are clean, {} were written to", cleanRegions, trustedRegions.getDirtyRegionCount()
+            );
+        }
+        return remaining;
+    }
+
+    /**
+     * Save the files that an interrupted attempt at this backup already stored, without reading them.
+     *
+     * @return the files that still need to be saved
+     */
+    private List<WorldFile> saveResumedFiles(
+        List<WorldFile> worldFiles, BackupTarget backupTarget, BackupProgress progress
+    ) throws IOException {
+        var remaining = new ArrayList<WorldFile>();
+        for (WorldFile file : worldFiles) {
+            if (backupTarget.saveResumed(file.path(), file.attributes())) {
+                progress.fileDone(file.attributes().size());
+            } else {
+                remaining.add(file);
+            }
+        }
+        if (remaining.size() < worldFiles.size()) {
+            LOGGER.info(
+                "Resuming an interrupted backup, {} of {} files were already saved",
+                worldFiles.size() - remaining.size(), worldFiles.size()
+            );
+        }
+        return remaining;
+    }
+
+    /**
+     * Checkpoint a target that can resume, as the backup is being interrupted. The interrupt is held back while
+     * checkpointing, as it would otherwise stop the checkpoint too.
+     */
+    private static void checkpointInterrupted(BackupTarget backupTarget) {
+        if (!backupTarget.supportsResume()) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            backupTarget.checkpoint();
+            LOGGER.info("Checkpointed the interrupted backup, it will resume from here");
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to checkpoint the interrupted backup", e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Save some files to a target, and commit it.
+     *
+     * @param files the files to save
+     * @param backupTarget the target to save to
+     * @param newChangeIndex the index to record the saved files in, or {@code null} to not record them
+     * @param options the options for this backup
+     * @param progress the progress to update as files are saved
+     * @param readAhead prefetches {@code files}, or {@code null} to not prefetch
+     * @throws Exception if saving fails
+     */
+    private void saveFiles(
+        List<WorldFile> files, BackupTarget backupTarget, @Nullable ChangeIndex newChangeIndex,
+        BackupOptions options, BackupProgress progress, @Nullable ReadAhead readAhead
+    ) throws Exception {
+        progress.enterPhase(BackupProgress.Phase.WRITE);
+        LOGGER.info("Backing up server into {}", backupTarget);
+        var throttle = options.throttle();
+        var compaction = new CompactionStats();
+        boolean checkpointing = backupTarget.supportsResume() && !options.checkpointInterval().isZero();
+        long checkpointNanos = options.checkpointInterval().toNanos();
+        long lastCheckpoint = System.nanoTime();
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                var file = files.get(i);
+                // Die if we were asked to
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new RuntimeException("Backup interrupted!");
+                }
+                if (checkpointing && System.nanoTime() - lastCheckpoint >= checkpointNanos) {
+                    backupTarget.checkpoint();
+                    lastCheckpoint = System.nanoTime();
+                }
+                if (readAhead != null) {
+                    readAhead.advance(i);
+                }
+                if (options.regionCompaction() != RegionCompactor.Mode.OFF
+                    && RegionFileHeader.isRegionFile(file.path())
+                    && file.attributes().size() <= MAX_COMPACTED_REGION_SIZE) {
+                    saveCompactedRegion(file, backupTarget, newChangeIndex, options, compaction);
+                } else if (newChangeIndex == null && !throttle.isLimited()) {
+                    backupTarget.saveFile(file.path(), file.source());
+                } else {
+                    // Throttling has to see every read, so the target can't copy the file on its own
+                    backupTarget.saveFile(file.path(), file.source(), file.attributes().size(), channel -> {
+                        var hasher = newChangeIndex == null ? null : Hashing.sha256().newHasher();
+                        var pool = BufferPool.shared();
+                        var buffer = pool.acquire();
+                        try (var input = throttle.wrap(FileChannel.open(file.source(), StandardOpenOption.READ))) {
+                            while (input.read(buffer) != -1) {
+                                buffer.flip();
+                                if (hasher != null) {
+                                    int start = buffer.position();
+                                    hasher.putBytes(buffer);
+                                    buffer.position(start);
+                                }
+                                while (buffer.hasRemaining()) {
+                                    channel.write(buffer);
+                                }
+                                buffer.clear();
+                            }
+                        } finally {
+                            pool.release(buffer);
+                        }
+                        if (hasher != null) {
+                            newChangeIndex.put(file.path(), ChangeIndex.Entry.of(file.attributes(), hasher.hash()));
+                        }
+                    });
+                }
+                // Asynchronous targets may still be working on it, but it's close enough for an estimate
+                progress.fileDone(file.attributes().size());
+            }
+        } catch (Throwable t) {
+            if (Thread.currentThread().isInterrupted()) {
+                checkpointInterrupted(backupTarget);
+            }
+            throw t;
+        }
+        if (compaction.files > 0) {
+            LOGGER.info(
+                "Compacted {} region files from {} to {} bytes, dropping {} unvisited chunks",
+                compaction.files, compaction.inputBytes, compaction.outputBytes, compaction.strippedChunks
+            );
+        }
+        progress.enterPhase(BackupProgress.Phase.COMMIT);
+        // Close it to save the file to disk.
+        backupTarget.commit();
+    }
+
+    /**
+     * Save a region file with only its live chunks. The file is mapped rather than read, as chunks can be anywhere in
+     * it, and the chunks are written to the target straight from the mapping.
+     */
+    private void saveCompactedRegion(
+        WorldFile file, BackupTarget backupTarget, @Nullable ChangeIndex newChangeIndex, BackupOptions options,
+        CompactionStats stats
+    ) throws IOException {
+        ByteBuffer data;
+        try (var input = FileChannel.open(file.source(), StandardOpenOption.READ)) {
+            // The file may have shrunk since it was listed, the game will have rewritten the header too
+            data = input.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(input.size(), file.attributes().size()));
+        }
+        var result = RegionCompactor.compact(
+            data,
+            options.regionCompaction() == RegionCompactor.Mode.STRIP_UNVISITED && RegionCompactor.isTerrain(file.path())
+        );
+        // Chunks stay compressed as the game wrote them, so the target stores the file as it would the original
+        backupTarget.saveFile(file.path(), file.source(), result.size(), channel -> {
+            // The index describes what the target has, which is the compacted file
+            var hasher = newChangeIndex == null ? null : Hashing.sha256().newHasher();
+            // Reads from the mapping bypass the throttle's wrappers, so they're charged here
+            var meter = options.throttle().newMeter();
+            result.write(buffer -> {
+                if (meter != null) {
+                    meter.charge(buffer.remaining());
+                }
+                if (hasher != null) {
+                    hasher.putBytes(buffer.duplicate());
+                }
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            });
+            if (hasher != null) {
+                newChangeIndex.put(file.path(), ChangeIndex.Entry.of(file.attributes(), hasher.hash()));
+            }
+        });
+        stats.files++;
+        stats.inputBytes += data.limit();
+        stats.outputBytes += result.size();
+        stats.strippedChunks += result.strippedCount();
+    }
+
+    /**
+     * Totals of the region files compacted by one backup.
+     */
+    private static final class CompactionStats {
+        private int files;
+        private long inputBytes;
+        private long outputBytes;
+        private long strippedChunks;
+    }
+}
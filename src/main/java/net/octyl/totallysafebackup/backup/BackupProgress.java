@@ -0,0 +1,218 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalDouble;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live progress of a single backup. Updated by the backup thread, and safe to read from any thread.
+ */
+public final class BackupProgress {
+    /**
+     * A phase of a backup, in the order they happen.
+     */
+    public enum Phase {
+        /**
+         * Flushing the world to disk on the server thread.
+         */
+        SAVE,
+        /**
+         * Listing the world's files, and skipping unchanged ones.
+         */
+        WALK,
+        /**
+         * Staging a snapshot of the world.
+         */
+        SNAPSHOT,
+        /**
+         * Reading, compressing, and writing files.
+         */
+        WRITE,
+        /**
+         * Finishing the backup once every file is queued.
+         */
+        COMMIT,
+        /**
+         * Deleting old backups.
+         */
+        RETENTION,
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Phase, Duration> phaseDurations = new EnumMap<>(Phase.class);
+    private final AtomicLong doneFiles = new AtomicLong();
+    private final AtomicLong doneBytes = new AtomicLong();
+    private volatile Phase phase;
+    private long phaseStartNanos;
+    private volatile long totalFiles = -1;
+    private volatile long totalBytes = -1;
+    private volatile long writeStartNanos = -1;
+    private volatile long writeStartDoneBytes;
+    private long saveBlockedSinceNanos = -1;
+    private long saveBlockedNanos;
+
+    /**
+     * End the current phase, if any, and start a new one.
+     *
+     * @param next the phase to start
+     */
+    public synchronized void enterPhase(Phase next) {
+        endPhase();
+        phase = next;
+        phaseStartNanos = System.nanoTime();
+        if (next == Phase.WRITE) {
+            writeStartDoneBytes = doneBytes.get();
+            writeStartNanos = phaseStartNanos;
+        }
+    }
+
+    /**
+     * End the current phase, if any. Call this when the backup is over.
+     */
+    public synchronized void endPhase() {
+        if (phase != null) {
+            phaseDurations.merge(phase, Duration.ofNanos(System.nanoTime() - phaseStartNanos), Duration::plus);
+            phase = null;
+        }
+    }
+
+    /**
+     * Mark when the world can't be saved because of this backup.
+     *
+     * @param blocked {@code true} when saving is blocked, {@code false} when it is allowed again
+     */
+    public synchronized void setSaveBlocked(boolean blocked) {
+        if (blocked && saveBlockedSinceNanos == -1) {
+            saveBlockedSinceNanos = System.nanoTime();
+        } else if (!blocked && saveBlockedSinceNanos != -1) {
+            saveBlockedNanos += System.nanoTime() - saveBlockedSinceNanos;
+            saveBlockedSinceNanos = -1;
+        }
+    }
+
+    /**
+     * Set the amount of work in this backup.
+     *
+     * @param files the number of files
+     * @param bytes the total size of the files
+     */
+    public void setTotal(long files, long bytes) {
+        totalBytes = bytes;
+        totalFiles = files;
+    }
+
+    /**
+     * Record that a file is done.
+     *
+     * @param bytes the size of the file
+     */
+    public void fileDone(long bytes) {
+        doneBytes.addAndGet(bytes);
+        doneFiles.incrementAndGet();
+    }
+
+    /**
+     * {@return the current phase, or {@code null} if the backup hasn't started or is over}
+     */
+    public Phase getPhase() {
+        return phase;
+    }
+
+    /**
+     * {@return the number of files that are done}
+     */
+    public long getDoneFiles() {
+        return doneFiles.get();
+    }
+
+    /**
+     * {@return the total number of files, or {@code -1} if the world hasn't been listed yet}
+     */
+    public long getTotalFiles() {
+        return totalFiles;
+    }
+
+    /**
+     * {@return the number of bytes that are done}
+     */
+    public long getDoneBytes() {
+        return doneBytes.get();
+    }
+
+    /**
+     * {@return the total number of bytes, or {@code -1} if the world hasn't been listed yet}
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * {@return the time since the backup started}
+     */
+    public Duration getElapsed() {
+        return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * {@return the fraction of bytes that are done, if the total is known}
+     */
+    public OptionalDouble getFractionDone() {
+        long total = totalBytes;
+        if (total < 0) {
+            return OptionalDouble.empty();
+        }
+        return OptionalDouble.of(total == 0 ? 1.0 : Math.min(1.0, (double) doneBytes.get() / total));
+    }
+
+    /**
+     * {@return the estimated time until every file is done, based on the rate of the write phase so far}
+     */
+    public Optional<Duration> getEstimatedRemaining() {
+        long total = totalBytes;
+        long writeStart = writeStartNanos;
+        if (total < 0 || writeStart < 0) {
+            return Optional.empty();
+        }
+        long done = doneBytes.get();
+        long writtenSinceStart = done - writeStartDoneBytes;
+        long elapsed = System.nanoTime() - writeStart;
+        if (writtenSinceStart <= 0 || elapsed <= 0) {
+            return Optional.empty();
+        }
+        double nanosPerByte = (double) elapsed / writtenSinceStart;
+        return Optional.of(Duration.ofNanos((long) (Math.max(0, total - done) * nanosPerByte)));
+    }
+
+    /**
+     * {@return the time spent in each finished phase}
+     */
+    public synchronized Map<Phase, Duration> getPhaseDurations() {
+        return Collections.unmodifiableMap(new EnumMap<>(phaseDurations));
+    }
+
+    /**
+     * {@return the total time the world couldn't be saved because of this backup}
+     */
+    public synchronized Duration getSaveBlocked() {
+        long blocked = saveBlockedNanos;
+        if (saveBlockedSinceNanos != -1) {
+            blocked += System.nanoTime() - saveBlockedSinceNanos;
+        }
+        return Duration.ofNanos(blocked);
+    }
+}
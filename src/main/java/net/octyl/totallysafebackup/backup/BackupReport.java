@@ -0,0 +1,64 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * What a backup did and what it cost, for comparing formats and codecs.
+ *
+ * @param fileCount the number of files backed up
+ * @param inputBytes the total size of the files backed up
+ * @param elapsed the wall-clock time spent reading and writing the files
+ * @param cpuTime the CPU time used by the whole process in that time, which includes the server itself and any
+ *     native compression threads
+ */
+public record BackupReport(long fileCount, long inputBytes, Duration elapsed, Duration cpuTime) {
+    private static final double MIB = 1024 * 1024;
+
+    /**
+     * {@return the CPU time used by the process so far, in nanoseconds, or {@code -1} if it is unavailable}
+     */
+    static long processCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * Describe this report for a log.
+     *
+     * @param outputBytes the size of the backup that was written, or {@code -1} if it isn't known
+     * @return the description
+     */
+    public String describe(long outputBytes) {
+        var description = new StringBuilder();
+        description.append(String.format(Locale.ROOT, "%d files, %.1f MiB", fileCount, inputBytes / MIB));
+        if (outputBytes >= 0) {
+            description.append(String.format(
+                Locale.ROOT, " -> %.1f MiB (%.1f%%)",
+                outputBytes / MIB, inputBytes == 0 ? 100.0 : outputBytes * 100.0 / inputBytes
+            ));
+        }
+        double seconds = elapsed.toNanos() / 1e9;
+        description.append(String.format(
+            Locale.ROOT, " in %.1f s, %.1f MiB/s", seconds, seconds == 0 ? 0 : inputBytes / MIB / seconds
+        ));
+        if (!cpuTime.isNegative()) {
+            description.append(String.format(Locale.ROOT, ", %.1f s CPU", cpuTime.toNanos() / 1e9));
+        }
+        return description.toString();
+    }
+}
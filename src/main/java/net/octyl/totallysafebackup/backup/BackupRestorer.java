@@ -0,0 +1,176 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.history.ChunkExtractor;
+import net.octyl.totallysafebackup.backup.history.ChunkHistory;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import net.octyl.totallysafebackup.backup.restore.RestoreEngine;
+import net.octyl.totallysafebackup.backup.restore.RestoreSelection;
+import net.octyl.totallysafebackup.backup.restore.RestoreSource;
+import net.octyl.totallysafebackup.backup.retention.BackupCatalog;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Restores files and chunks from the backups in the catalog, and from player data snapshots. Everything is restored
+ * into the backup directory, to be moved into the world by hand.
+ */
+public final class BackupRestorer {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final BackupDirectory directory;
+
+    /**
+     * Create a new {@link BackupRestorer}.
+     *
+     * @param directory the backup directory
+     */
+    public BackupRestorer(BackupDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Restore part of a backup into {@code restores/<name>}, replacing anything restored there before.
+     *
+     * @param name the name of the backup
+     * @param selection the part of the backup to restore
+     * @param worldDir the world, which region files that are only partly restored take their other chunks from
+     * @param threads the number of files to restore at once
+     * @return a report of the restore
+     * @throws IOException if the backup doesn't exist, or there is an error restoring it
+     */
+    public RestoreEngine.Report restore(String name, RestoreSelection selection, Path worldDir, int threads)
+        throws IOException {
+        var catalog = directory.openCatalog();
+        var entry = catalog.get(name).orElseThrow(() -> new NoSuchFileException(name, null, "No such backup"));
+        if (entry.corrupt()) {
+            LOGGER.warn("Backup {} failed verification, restoring it anyway", name);
+        }
+        try (var source = directory.openRestoreSource(entry)) {
+            return new RestoreEngine(threads).restore(source, selection, directory.getRestoreDirectory(name), worldDir);
+        }
+    }
+
+    /**
+     * Restore some players' files from a player data snapshot into {@code restores/players-<snapshot>}, replacing
+     * anything restored there before.
+     *
+     * @param snapshot the name of the player data snapshot
+     * @param players the UUIDs of the players to restore
+     * @param worldDir the world
+     * @param threads the number of files to restore at once
+     * @return a report of the restore
+     * @throws IOException if the snapshot doesn't exist, or there is an error restoring it
+     */
+    public RestoreEngine.Report restorePlayers(String snapshot, Collection<UUID> players, Path worldDir, int threads)
+        throws IOException {
+        var store = directory.openPlayerStore();
+        if (!store.listSnapshots().contains(snapshot)) {
+            throw new NoSuchFileException(snapshot, null, "No such player snapshot");
+        }
+        try (var source = RestoreSource.snapshot(store, snapshot)) {
+            return new RestoreEngine(threads).restore(
+                source, RestoreSelection.players(players), directory.getRestoreDirectory("players-" + snapshot),
+                worldDir
+            );
+        }
+    }
+
+    /**
+     * Extract one chunk as it was at a point in time into {@code restores/chunks}, as uncompressed NBT. The chunk is
+     * read from the newest kept backup made by then, using the {@link ChunkHistory} to read only its sectors.
+     *
+     * @param dimension the dimension's ID
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @param time the point in time
+     * @return a report of the extracted chunk
+     * @throws IOException if there is an error reading the chunk, or it didn't exist then
+     */
+    public ChunkExtractor.Report extractChunk(String dimension, int chunkX, int chunkZ, Instant time)
+        throws IOException {
+        var catalog = directory.openCatalog();
+        var dimensionDirectory = RestoreSelection.dimensionDirectory(dimension);
+        var versions = directory.openChunkHistory().history(
+            ChunkHistory.regionPath(dimensionDirectory, chunkX, chunkZ), RegionFileHeader.chunkIndex(chunkX, chunkZ)
+        );
+        // The newest version in a kept backup made by then
+        ChunkHistory.Version version = null;
+        BackupCatalog.Entry entry = null;
+        for (int i = versions.size() - 1; i >= 0 && entry == null; i--) {
+            var candidate = catalog.get(versions.get(i).backup());
+            if (candidate.isPresent() && !candidate.get().createdAt().isAfter(time)) {
+                version = versions.get(i);
+                entry = candidate.get();
+            }
+        }
+        var chunk = "chunk " + chunkX + "," + chunkZ + " in " + dimension;
+        if (entry == null) {
+            // Backups from before the history was recorded can still be searched through the region file's header
+            entry = catalog.entries().stream()
+                .filter(e -> !e.createdAt().isAfter(time))
+                .max(Comparator.comparing(BackupCatalog.Entry::createdAt))
+                .orElseThrow(() -> new NoSuchFileException(
+                    chunk, null, "No backup was made by " + DateTimeFormatter.ISO_INSTANT.format(time)
+                ));
+        }
+        if (entry.corrupt()) {
+            LOGGER.warn("Backup {} failed verification, extracting from it anyway", entry.name());
+        }
+        Optional<byte[]> nbt = Optional.empty();
+        if (version == null || version.exists()) {
+            try (var source = directory.openRestoreSource(entry)) {
+                nbt = ChunkExtractor.read(source, dimensionDirectory, chunkX, chunkZ, version);
+            }
+        }
+        if (nbt.isEmpty()) {
+            throw new NoSuchFileException(chunk, null, "Not in backup " + entry.name());
+        }
+        var file = directory.getRestoreDirectory("chunks").resolve(String.format(
+            Locale.ROOT, "%s.%d.%d-%s.nbt", dimension.replace(':', '_'), chunkX, chunkZ, entry.name()
+        ));
+        Files.createDirectories(file.getParent());
+        Files.write(file, nbt.get());
+        return new ChunkExtractor.Report(entry.name(), entry.createdAt(), file, nbt.get().length);
+    }
+
+    /**
+     * Get the versions of one chunk that are in kept backups.
+     *
+     * @param dimension the dimension's ID
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @return the versions, oldest first
+     * @throws IOException if there is an error reading the catalog
+     */
+    public List<ChunkHistory.Version> chunkHistory(String dimension, int chunkX, int chunkZ) throws IOException {
+        var catalog = directory.openCatalog();
+        return directory.openChunkHistory().history(
+            ChunkHistory.regionPath(RestoreSelection.dimensionDirectory(dimension), chunkX, chunkZ),
+            RegionFileHeader.chunkIndex(chunkX, chunkZ)
+        ).stream().filter(version -> catalog.get(version.backup()).isPresent()).toList();
+    }
+}
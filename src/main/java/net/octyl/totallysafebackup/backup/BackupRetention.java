@@ -0,0 +1,76 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.retention.BackupCatalog;
+import net.octyl.totallysafebackup.backup.retention.RetentionPolicy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.Collectors;
+
+/**
+ * Adds new backups to the catalog, and deletes the ones a retention policy no longer keeps, along with everything
+ * kept for them elsewhere.
+ */
+public final class BackupRetention {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final BackupDirectory directory;
+
+    /**
+     * Create a new {@link BackupRetention}.
+     *
+     * @param directory the backup directory
+     */
+    public BackupRetention(BackupDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Add a backup to the catalog, then delete the backups the policy doesn't keep. Their copies are deleted from
+     * the mirrors, their versions are pruned from the chunk history, and the content store is cleaned of blobs only
+     * they used. Failures are logged, the backup itself is fine.
+     *
+     * @param backup the new backup
+     * @param policy the retention policy
+     * @param mirrors where copies of the backups went
+     */
+    public void apply(BackupCatalog.Entry backup, RetentionPolicy policy, BackupMirrors mirrors) {
+        try {
+            var catalog = directory.openCatalog();
+            catalog.add(backup);
+            var deleted = catalog.prune(policy);
+            catalog.save();
+            LOGGER.info("Deleted {} old backups, keeping {}", deleted.size(), catalog.entries().size());
+            for (var entry : deleted) {
+                if (!entry.deduplicated()) {
+                    mirrors.delete(Path.of(entry.path()).getFileName());
+                }
+            }
+            if (!deleted.isEmpty()) {
+                var history = directory.openChunkHistory();
+                history.prune(catalog.entries().stream()
+                    .map(BackupCatalog.Entry::name)
+                    .collect(Collectors.toSet()));
+                history.save();
+            }
+            if (deleted.stream().anyMatch(BackupCatalog.Entry::deduplicated)) {
+                directory.openContentStore().collectGarbage();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to clear old backups", e);
+        }
+    }
+}
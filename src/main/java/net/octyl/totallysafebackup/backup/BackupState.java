@@ -11,24 +11,43 @@
 
 package net.octyl.totallysafebackup.backup;
 
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.storage.LevelStorageSource;
 
 /**
- * Backup state for a server.
+ * Backup state for a server. The server's own files, like {@code level.dat} and player data, and each dimension are
+ * blocked from saving separately, so each can save again as soon as its own snapshot is done.
  */
 public interface BackupState {
     /**
-     * Set whether the server is backing up.
+     * Set whether the server's own files are backing up.
      *
-     * @param backingUp whether the server is backing up
+     * @param backingUp whether the server's own files are backing up
      */
     void setBackingUp(boolean backingUp);
 
     /**
-     * {@return whether the server is backing up}
+     * {@return whether the server's own files are backing up}
      */
     boolean isBackingUp();
 
+    /**
+     * Set whether a dimension is backing up.
+     *
+     * @param dimension the dimension
+     * @param backingUp whether the dimension is backing up
+     */
+    void setBackingUp(ResourceKey<Level> dimension, boolean backingUp);
+
+    /**
+     * Check if a dimension is backing up.
+     *
+     * @param dimension the dimension
+     * @return {@code true} if the dimension is backing up
+     */
+    boolean isBackingUp(ResourceKey<Level> dimension);
+
     /**
      * {@return the level storage access}
      */
@@ -0,0 +1,164 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.history.ChunkHistoryTarget;
+import net.octyl.totallysafebackup.backup.target.ArchiveSink;
+import net.octyl.totallysafebackup.backup.target.BackupTarget;
+import net.octyl.totallysafebackup.backup.target.BufferPool;
+import net.octyl.totallysafebackup.backup.target.CompressionPolicy;
+import net.octyl.totallysafebackup.backup.target.DeduplicatingBackupTarget;
+import net.octyl.totallysafebackup.backup.target.DeltaBackupTarget;
+import net.octyl.totallysafebackup.backup.target.FanOutBackupTarget;
+import net.octyl.totallysafebackup.backup.target.FileArchiveSink;
+import net.octyl.totallysafebackup.backup.target.ParallelZipBackupTarget;
+import net.octyl.totallysafebackup.backup.target.PartialFile;
+import net.octyl.totallysafebackup.backup.target.PublishingBackupTarget;
+import net.octyl.totallysafebackup.backup.target.TarBackupTarget;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import net.octyl.totallysafebackup.backup.verify.ChecksummingBackupTarget;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Composes the target a backup is written to from its format, and from where copies of it go.
+ */
+public final class BackupTargetFactory {
+    private final BackupDirectory directory;
+    private final int compressionThreads;
+    private final CompressionPolicy compressionPolicy;
+    private final int zstdLevel;
+    private final int deltaKeyframeInterval;
+    private final long mirrorQueueBytes;
+
+    /**
+     * Create a new {@link BackupTargetFactory}.
+     *
+     * @param directory the backup directory
+     * @param compressionThreads the number of threads to compress archives with
+     * @param compressionPolicy how to pick the compression of each file in a zip archive
+     * @param zstdLevel the zstd compression level
+     * @param deltaKeyframeInterval the most delta backups in a chain, counting the keyframe
+     * @param mirrorQueueBytes how much of an archive may be queued for its slowest copy
+     */
+    public BackupTargetFactory(
+        BackupDirectory directory, int compressionThreads, CompressionPolicy compressionPolicy, int zstdLevel,
+        int deltaKeyframeInterval, long mirrorQueueBytes
+    ) {
+        this.directory = directory;
+        this.compressionThreads = compressionThreads;
+        this.compressionPolicy = compressionPolicy;
+        this.zstdLevel = zstdLevel;
+        this.deltaKeyframeInterval = deltaKeyframeInterval;
+        this.mirrorQueueBytes = mirrorQueueBytes;
+    }
+
+    /**
+     * Open the target of a backup. Archives are written with checksums, and copied as they are written. The chunks
+     * in the backup are recorded in the chunk history, unless it is only uploaded, where it can't be read from.
+     *
+     * @param format the format of the backup
+     * @param name the name of the backup
+     * @param backupFile the file the backup is written to, from {@link BackupDirectory#getBackupFile}
+     * @param mirrors where copies of the archive go
+     * @param remoteOnly whether the archive is only uploaded, rather than written to the backup file
+     * @param resumable whether the archive is checkpointed, so an interrupted one can be continued
+     * @return the target
+     * @throws IOException if there is an error opening the target
+     */
+    public BackupTarget open(
+        BackupFormat format, String name, Path backupFile, BackupMirrors mirrors,
+        boolean remoteOnly, boolean resumable
+    ) throws IOException {
+        var target = openTarget(format, name, backupFile, mirrors, remoteOnly, resumable);
+        return remoteOnly ? target : new ChunkHistoryTarget(target, directory.openChunkHistory(), name);
+    }
+
+    private BackupTarget openTarget(
+        BackupFormat format, String name, Path backupFile, BackupMirrors mirrors,
+        boolean remoteOnly, boolean resumable
+    ) throws IOException {
+        if (format == BackupFormat.DEDUPLICATED) {
+            // Blobs are named by their hash, they don't need checksums of their own
+            return new DeduplicatingBackupTarget(directory.openContentStore(), name);
+        }
+        if (format == BackupFormat.DELTA) {
+            // Every file is checked against its hash when it is rebuilt, and a copy elsewhere would be useless
+            // without the backups it is built on
+            return new DeltaBackupTarget(
+                directory.getPath(), name, directory.getDeltaSignatureFile(), deltaKeyframeInterval
+            );
+        }
+        var copies = mirrors.openSinks(backupFile, !remoteOnly);
+        BackupTarget target;
+        if (copies.isEmpty() && !remoteOnly) {
+            var partial = PartialFile.pathFor(backupFile);
+            target = new PublishingBackupTarget(resumable
+                ? ParallelZipBackupTarget.openResumable(
+                    backupFile.toString(), partial, compressionThreads, compressionPolicy
+                )
+                : openArchiveTarget(
+                    format, backupFile,
+                    FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)
+                ), backupFile);
+        } else {
+            var sinks = new ArrayList<ArchiveSink>(copies.size() + 1);
+            try {
+                sinks.add(remoteOnly ? mirrors.openUploadOnlySink(backupFile) : new FileArchiveSink(backupFile));
+            } catch (Throwable t) {
+                for (var copy : copies) {
+                    copy.close();
+                }
+                throw t;
+            }
+            sinks.addAll(copies);
+            int queueBuffers = Math.max(1, (int) (mirrorQueueBytes / BufferPool.DEFAULT_BUFFER_SIZE));
+            target = new FanOutBackupTarget(
+                sinks, queueBuffers, channel -> openArchiveTarget(format, backupFile, channel)
+            );
+        }
+        // Checksums are kept next to the local archive, there is none to keep them next to
+        return remoteOnly ? target : new ChecksummingBackupTarget(target, backupFile);
+    }
+
+    private BackupTarget openArchiveTarget(
+        BackupFormat format, Path backupFile, WritableByteChannel channel
+    ) throws IOException {
+        try {
+            return switch (format) {
+                case ZIP -> new ParallelZipBackupTarget(
+                    backupFile.toString(), channel, compressionThreads, compressionPolicy
+                );
+                case TAR_ZSTD -> openTarTarget(backupFile, channel, TarCodec.ZSTD);
+                case TAR_LZ4 -> openTarTarget(backupFile, channel, TarCodec.LZ4);
+                case TAR_GZIP -> openTarTarget(backupFile, channel, TarCodec.GZIP);
+                case DEDUPLICATED, DELTA -> throw new IllegalArgumentException("Not an archive format: " + format);
+            };
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+    }
+
+    private BackupTarget openTarTarget(Path backupFile, WritableByteChannel channel, TarCodec codec)
+        throws IOException {
+        return new TarBackupTarget(
+            backupFile.toString(), Channels.newOutputStream(channel), codec, zstdLevel, compressionThreads
+        );
+    }
+}
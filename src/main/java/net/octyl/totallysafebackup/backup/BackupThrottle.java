@@ -0,0 +1,297 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.RateLimiter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Paces reads of world files, so a backup doesn't starve the server of disk bandwidth or CPU.
+ *
+ * <p>
+ * Bandwidth is limited with a token bucket of bytes. CPU is limited by charging each reading thread for the CPU it
+ * used since its last read, which includes compressing the previous chunk, and sleeping whenever the total gets
+ * ahead of the budget. Compression on native threads, like zstd's workers, isn't seen.
+ * </p>
+ *
+ * <p>
+ * In adaptive mode, the byte rate is halved whenever the server's average tick time goes above a threshold, and
+ * raised again while the server has time to spare.
+ * </p>
+ */
+public final class BackupThrottle {
+    private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * A throttle that never waits.
+     */
+    public static final BackupThrottle UNLIMITED = new BackupThrottle(0, 0, null);
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double MIB = 1024 * 1024;
+
+    /**
+     * Settings for adaptive mode.
+     *
+     * @param averageTickTimeMillis supplies the server's average tick time, in milliseconds
+     * @param thresholdMillis the tick time above which the backup slows down
+     * @param minBytesPerSecond the slowest the backup will go
+     */
+    public record Adaptive(DoubleSupplier averageTickTimeMillis, double thresholdMillis, double minBytesPerSecond) {
+        /**
+         * Validate the settings.
+         */
+        public Adaptive {
+            Preconditions.checkArgument(thresholdMillis > 0, "Threshold must be positive");
+            Preconditions.checkArgument(minBytesPerSecond > 0, "Minimum rate must be positive");
+        }
+    }
+
+    private final double maxBytesPerSecond;
+    private final double cpuBudget;
+    @Nullable
+    private final Adaptive adaptive;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong cpuUsedNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    @Nullable
+    private final RateLimiter rateLimiter;
+    /**
+     * The current byte rate, or infinity if it is unlimited.
+     */
+    private volatile double bytesPerSecond;
+    private long lastAdjustNanos = startNanos;
+    private long lastAdjustBytes;
+
+    /**
+     * Create a new throttle.
+     *
+     * @param maxBytesPerSecond the most bytes to read per second, or {@code 0} for no limit
+     * @param cpuBudget the most CPU cores the reading threads may use, or {@code 0} for no limit
+     * @param adaptive settings to adapt the byte rate to the server's tick time, or {@code null} to not adapt
+     */
+    public BackupThrottle(double maxBytesPerSecond, double cpuBudget, @Nullable Adaptive adaptive) {
+        Preconditions.checkArgument(maxBytesPerSecond >= 0, "Rate must not be negative");
+        Preconditions.checkArgument(cpuBudget >= 0, "CPU budget must not be negative");
+        this.maxBytesPerSecond = maxBytesPerSecond == 0 ? Double.POSITIVE_INFINITY : maxBytesPerSecond;
+        this.cpuBudget = cpuBudget;
+        this.adaptive = adaptive;
+        this.bytesPerSecond = this.maxBytesPerSecond;
+        boolean needsLimiter = maxBytesPerSecond > 0 || adaptive != null;
+        this.rateLimiter = needsLimiter
+            ? RateLimiter.create(Double.isInfinite(bytesPerSecond) ? Double.MAX_VALUE : bytesPerSecond)
+            : null;
+    }
+
+    /**
+     * {@return whether this throttle ever waits}
+     */
+    public boolean isLimited() {
+        return rateLimiter != null || (cpuBudget > 0 && threads.isCurrentThreadCpuTimeSupported());
+    }
+
+    /**
+     * Wrap a stream so that reading from it is paced by this throttle.
+     *
+     * @param input the stream to wrap
+     * @return the paced stream, or {@code input} if this throttle never waits
+     */
+    public InputStream wrap(InputStream input) {
+        return isLimited() ? new ThrottledInputStream(input) : input;
+    }
+
+    /**
+     * Wrap a channel so that reading from it is paced by this throttle.
+     *
+     * @param channel the channel to wrap
+     * @return the paced channel, or {@code channel} if this throttle never waits
+     */
+    public ReadableByteChannel wrap(ReadableByteChannel channel) {
+        return isLimited() ? new ThrottledChannel(channel) : channel;
+    }
+
+    /**
+     * Create a meter for reads that can't be wrapped, like copies out of a mapped file.
+     *
+     * @return the meter, which is only to be used by one thread, or {@code null} if this throttle never waits
+     */
+    @Nullable Meter newMeter() {
+        return isLimited() ? new Meter() : null;
+    }
+
+    private void acquire(int bytes, long cpuNanos) throws InterruptedIOException {
+        if (rateLimiter != null) {
+            maybeAdjust();
+            if (!Double.isInfinite(bytesPerSecond)) {
+                rateLimiter.acquire(Math.max(1, bytes));
+            }
+        }
+        bytesRead.addAndGet(bytes);
+        if (cpuBudget > 0 && cpuNanos > 0) {
+            long used = cpuUsedNanos.addAndGet(cpuNanos);
+            long allowed = (long) ((System.nanoTime() - startNanos) * cpuBudget);
+            if (used > allowed) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep((long) ((used - allowed) / cpuBudget));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+    }
+
+    private synchronized void maybeAdjust() {
+        if (adaptive == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - lastAdjustNanos;
+        if (elapsed < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        long bytes = bytesRead.get();
+        double observed = (bytes - lastAdjustBytes) / (elapsed / 1e9);
+        lastAdjustNanos = now;
+        lastAdjustBytes = bytes;
+
+        double tickTime = adaptive.averageTickTimeMillis().getAsDouble();
+        double current = bytesPerSecond;
+        double next = current;
+        if (tickTime > adaptive.thresholdMillis()) {
+            // Halve what we're actually doing, the limit may be far above it
+            next = Math.max(adaptive.minBytesPerSecond(), Math.min(current, observed) / 2);
+        } else if (tickTime < adaptive.thresholdMillis() / 2 && !Double.isInfinite(current)) {
+            next = current * 1.5;
+            if (next >= maxBytesPerSecond || (Double.isInfinite(maxBytesPerSecond) && observed < current / 2)) {
+                // Either we're back to the limit, or the limit isn't what's slowing us down anymore
+                next = maxBytesPerSecond;
+            }
+        }
+        if (next != current) {
+            bytesPerSecond = next;
+            Preconditions.checkNotNull(rateLimiter).setRate(Double.isInfinite(next) ? Double.MAX_VALUE : next);
+            if (Double.isInfinite(next)) {
+                LOGGER.info("Average tick time is {} ms, backup is no longer throttled", tickTime);
+            } else {
+                LOGGER.info("Average tick time is {} ms, throttling backup to {} MiB/s", tickTime, next / MIB);
+            }
+        }
+    }
+
+    /**
+     * Charges one reader's reads to the throttle. Each reader is only read by one thread.
+     */
+    final class Meter {
+        private final boolean tracksCpu = cpuBudget > 0 && threads.isCurrentThreadCpuTimeSupported();
+        private long lastCpuNanos = -1;
+
+        private Meter() {
+        }
+
+        void charge(int bytes) throws InterruptedIOException {
+            long cpuNanos = 0;
+            if (tracksCpu) {
+                // Only count from the first read, the reader may have been opened by another thread
+                long now = threads.getCurrentThreadCpuTime();
+                if (lastCpuNanos != -1) {
+                    cpuNanos = now - lastCpuNanos;
+                }
+                lastCpuNanos = now;
+            }
+            acquire(bytes, cpuNanos);
+        }
+    }
+
+    /**
+     * Paces reads through the throttle. Each stream is only read by one thread.
+     */
+    private final class ThrottledInputStream extends FilterInputStream {
+        private final Meter meter = new Meter();
+
+        private ThrottledInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                meter.charge(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, Math.min(len, CHUNK_SIZE));
+            if (read > 0) {
+                meter.charge(read);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Paces reads through the throttle. Each channel is only read by one thread.
+     */
+    private final class ThrottledChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+        private final Meter meter = new Meter();
+
+        private ThrottledChannel(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            // Read at most a chunk at a time, so the pacing stays smooth with large buffers
+            int limit = dst.limit();
+            dst.limit(Math.min(limit, dst.position() + CHUNK_SIZE));
+            int read;
+            try {
+                read = channel.read(dst);
+            } finally {
+                dst.limit(limit);
+            }
+            if (read > 0) {
+                meter.charge(read);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A part of the world that is snapshotted on its own, like one dimension. Units are snapshotted concurrently, and
+ * each is released as soon as its own snapshot is staged, so the game can save it again without waiting on the
+ * others.
+ *
+ * <p>
+ * Releasing early needs a staged snapshot. A unit that is read straight from the world stays blocked until the
+ * backup is done, as the target may read its files at any time until it commits.
+ * </p>
+ *
+ * @param name the name of the unit, for logging
+ * @param directories the directories that belong to this unit, relative to the world. A unit with none gets every
+ *     file that no other unit claims.
+ * @param release run once the game may save this unit's files again, from any thread. Only run if the snapshot was
+ *     staged, otherwise the files must not change until the backup is done.
+ */
+public record BackupUnit(String name, List<Path> directories, Runnable release) {
+    public BackupUnit {
+        directories = List.copyOf(directories);
+        for (var directory : directories) {
+            Preconditions.checkArgument(!directory.isAbsolute(), "Directory must be relative: %s", directory);
+        }
+    }
+
+    /**
+     * Split files between units. Each file goes to the unit with the longest directory containing it, or the unit
+     * without directories if there is none.
+     *
+     * @param files the files to split, relative to the world
+     * @param units the units, exactly one of which must have no directories
+     * @return the files of each unit, in the same order as {@code units}, keeping the order of {@code files}
+     */
+    static List<List<WorldFile>> partition(List<WorldFile> files, List<BackupUnit> units) {
+        int rest = -1;
+        for (int i = 0; i < units.size(); i++) {
+            if (units.get(i).directories().isEmpty()) {
+                Preconditions.checkArgument(rest == -1, "Only one unit may have no directories");
+                rest = i;
+            }
+        }
+        Preconditions.checkArgument(rest != -1, "One unit must have no directories");
+        var partitions = new ArrayList<List<WorldFile>>(units.size());
+        for (int i = 0; i < units.size(); i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (var file : files) {
+            int owner = rest;
+            int ownerDepth = 0;
+            for (int i = 0; i < units.size(); i++) {
+                for (var directory : units.get(i).directories()) {
+                    if (directory.getNameCount() > ownerDepth && file.path().startsWith(directory)) {
+                        owner = i;
+                        ownerDepth = directory.getNameCount();
+                    }
+                }
+            }
+            partitions.get(owner).add(file);
+        }
+        return partitions;
+    }
+}
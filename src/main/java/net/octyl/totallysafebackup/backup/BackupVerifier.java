@@ -0,0 +1,125 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.metrics.BackupMetrics;
+import net.octyl.totallysafebackup.backup.retention.BackupCatalog;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import net.octyl.totallysafebackup.backup.verify.ArchiveVerifier;
+import net.octyl.totallysafebackup.backup.verify.ChecksumManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+
+/**
+ * Verifies the backups in the catalog one at a time, in the background, and marks the corrupt ones so retention
+ * replaces them.
+ */
+public final class BackupVerifier {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final BackupDirectory directory;
+    private final BackupMetrics metrics;
+
+    /**
+     * Create a new {@link BackupVerifier}.
+     *
+     * @param directory the backup directory
+     * @param metrics the metrics to record verifications in
+     */
+    public BackupVerifier(BackupDirectory directory, BackupMetrics metrics) {
+        this.directory = directory;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Verify the backup that most needs it, if any does. Failures are logged.
+     *
+     * @param reverifyAfter how long until a verified backup is verified again, or {@link Duration#ZERO} to never
+     *     verify it again
+     * @param throttle the throttle to read backups with
+     */
+    public void verifyNext(Duration reverifyAfter, BackupThrottle throttle) {
+        try {
+            var catalog = directory.openCatalog();
+            var now = Instant.now();
+            // Unverified backups first, newest first, as they're the ones retention is about to rely on
+            catalog.entries().stream()
+                .filter(e -> !e.corrupt())
+                .filter(e -> e.verifiedAt() == null
+                    || (!reverifyAfter.isZero() && e.verifiedAt().plus(reverifyAfter).isBefore(now)))
+                .min(Comparator.comparing((BackupCatalog.Entry e) -> e.verifiedAt() != null)
+                    .thenComparing(e -> e.verifiedAt() == null ? Instant.EPOCH : e.verifiedAt())
+                    .thenComparing(BackupCatalog.Entry::createdAt, Comparator.reverseOrder()))
+                .ifPresent(entry -> verify(catalog, entry, throttle));
+        } catch (Exception e) {
+            LOGGER.warn("Failed to verify backups", e);
+        }
+    }
+
+    private void verify(BackupCatalog catalog, BackupCatalog.Entry entry, BackupThrottle throttle) {
+        ArchiveVerifier.Result result;
+        try {
+            var format = BackupDirectory.formatOf(entry);
+            var file = directory.getFile(entry);
+            if (format == BackupFormat.DEDUPLICATED) {
+                result = ArchiveVerifier.verifySnapshot(directory.openContentStore(), entry.name(), throttle);
+            } else if (format == BackupFormat.DELTA) {
+                result = ArchiveVerifier.verifyDelta(file, throttle);
+            } else {
+                var manifestFile = ChecksumManifest.pathFor(file);
+                if (!Files.exists(manifestFile)) {
+                    // Written before checksums were, there's nothing to check against
+                    LOGGER.info("Backup {} has no checksums, it can't be verified", entry.name());
+                    catalog.markVerified(entry.name(), Instant.now(), false);
+                    catalog.save();
+                    return;
+                }
+                var manifest = ChecksumManifest.read(manifestFile);
+                result = switch (format) {
+                    case ZIP -> ArchiveVerifier.verifyZip(file, manifest, throttle);
+                    case TAR_ZSTD -> ArchiveVerifier.verifyTar(file, TarCodec.ZSTD, manifest, throttle);
+                    case TAR_LZ4 -> ArchiveVerifier.verifyTar(file, TarCodec.LZ4, manifest, throttle);
+                    case TAR_GZIP -> ArchiveVerifier.verifyTar(file, TarCodec.GZIP, manifest, throttle);
+                    case DEDUPLICATED, DELTA -> throw new IllegalStateException("Handled above");
+                };
+            }
+        } catch (IOException e) {
+            // Couldn't get at the backup, which doesn't mean it's corrupt, e.g. retention just deleted it
+            LOGGER.warn("Failed to verify backup {}", entry.name(), e);
+            return;
+        }
+        catalog.markVerified(entry.name(), Instant.now(), !result.isIntact());
+        try {
+            catalog.save();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save backup catalog", e);
+        }
+        metrics.backupVerified(entry.name(), result.isIntact());
+        if (result.isIntact()) {
+            LOGGER.info(
+                "Verified backup {}: {} entries, {} bytes intact",
+                entry.name(), result.entriesChecked(), result.bytesChecked()
+            );
+        } else {
+            LOGGER.error(
+                "Backup {} is corrupt and will be replaced by an intact one in retention: {}",
+                entry.name(), String.join("; ", result.problems())
+            );
+        }
+    }
+}
@@ -15,35 +15,49 @@
 import net.minecraft.network.chat.ChatType;
 import net.minecraft.network.chat.TextComponent;
 import net.minecraft.server.MinecraftServer;
+import net.octyl.totallysafebackup.backup.flush.IncrementalFlush;
+import net.octyl.totallysafebackup.backup.region.DirtyRegionTracker;
 import net.octyl.totallysafebackup.backup.target.BackupTarget;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Worker for backing up a server.
  */
 public class BackupWorker {
     private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * The overworld keeps its dimension data in the world directory itself, next to the server's own files.
+     */
+    private static final List<Path> OVERWORLD_DIRECTORIES = List.of(
+        Path.of("region"), Path.of("entities"), Path.of("poi"), Path.of("data")
+    );
 
     private final BackupState backupState;
     private final MinecraftServer server;
+    private final BackupPipeline pipeline;
+    /**
+     * The tracker's write count when the last successful backup saved the world, or {@code -1} if there wasn't one.
+     */
+    private volatile long backedUpWriteCount = -1;
 
     /**
      * Create a new backup worker.
      *
      * @param server the server to backup
+     * @param stagingDir the directory to stage snapshots in
      */
-    public BackupWorker(MinecraftServer server) {
+    public BackupWorker(MinecraftServer server, Path stagingDir) {
         this.backupState = (BackupState) server;
         this.server = server;
+        this.pipeline = new BackupPipeline(stagingDir);
     }
 
     /**
@@ -55,27 +69,99 @@ private void onServerThread(Runnable runnable) {
         server.executeBlocking(runnable);
     }
 
+    /**
+     * Check if the game may have written region data since the last successful backup by this worker. Changes that
+     * haven't been saved yet aren't seen, but they will be by the time they are saved.
+     *
+     * @return {@code true} if a backup now could differ from the last one
+     */
+    public boolean hasWritesSinceLastBackup() {
+        long backedUp = backedUpWriteCount;
+        return backedUp < 0 || DirtyRegionTracker.get().getWriteCount() != backedUp;
+    }
+
+    private boolean isAnythingBackingUp() {
+        if (backupState.isBackingUp()) {
+            return true;
+        }
+        for (var dimension : server.levelKeys()) {
+            if (backupState.isBackingUp(dimension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void releaseAll() {
+        backupState.setBackingUp(false);
+        for (var dimension : server.levelKeys()) {
+            backupState.setBackingUp(dimension, false);
+        }
+    }
+
+    /**
+     * Split the world into a unit for each dimension, and one for the server's own files and anything else. Each
+     * unit lets its part of the world save again once its snapshot is staged.
+     */
+    private List<BackupUnit> createUnits(Path worldDir, BackupProgress progress) {
+        var dimensions = List.copyOf(server.levelKeys());
+        var blocked = new AtomicInteger(dimensions.size() + 1);
+        Runnable released = () -> {
+            if (blocked.decrementAndGet() == 0) {
+                progress.setSaveBlocked(false);
+                LOGGER.info("Snapshot staged, world saving resumed");
+            }
+        };
+        var units = new ArrayList<BackupUnit>(dimensions.size() + 1);
+        units.add(new BackupUnit("server files", List.of(), () -> {
+            backupState.setBackingUp(false);
+            released.run();
+        }));
+        for (var dimension : dimensions) {
+            var dimensionDir = worldDir.relativize(backupState.getStorageAccess().getDimensionPath(dimension));
+            units.add(new BackupUnit(
+                dimension.location().toString(),
+                dimensionDir.toString().isEmpty() ? OVERWORLD_DIRECTORIES : List.of(dimensionDir),
+                () -> {
+                    backupState.setBackingUp(dimension, false);
+                    released.run();
+                }
+            ));
+        }
+        return units;
+    }
+
     /**
      * Responsible for backing up the server.
      *
      * @param backupTarget the directory to back up to, caller is responsible for cleanup on failure
+     * @param options the options for this backup
+     * @param progress the progress to update as the backup runs
+     * @return a report of what the backup did
      * @throws Exception if the backup fails
      */
-    public void runBackupProcess(BackupTarget backupTarget) throws Exception {
+    public BackupReport runBackupProcess(BackupTarget backupTarget, BackupOptions options, BackupProgress progress)
+        throws Exception {
         // Broadcast start
         server.getPlayerList().broadcastMessage(
             new TextComponent("Server backup started..."), ChatType.SYSTEM, Util.NIL_UUID
         );
         // Enter safe zone, where we will unset the backup flag when we're done
         var didSetBackingUp = new AtomicBoolean();
+        var dirtyRegions = new AtomicReference<DirtyRegionTracker.Checkpoint>();
         try {
             // WORLD SYNC: Save the world, then pause it from saving
+            progress.enterPhase(BackupProgress.Phase.SAVE);
+            if (!options.flushSlice().isZero()) {
+                // Save most chunks a slice at a time, so the blocking save below has little left to do
+                new IncrementalFlush(server, options.flushSlice(), options.flushTimeout()).run();
+            }
             onServerThread(() -> {
                 if (server.isCurrentlySaving()) {
                     // This is apparently an async save. This shouldn't happen, but if it does, bail.
                     throw new IllegalStateException("Server is being saved asynchronously!");
                 }
-                if (backupState.isBackingUp()) {
+                if (isAnythingBackingUp()) {
                     // Unclean state from a previous backup. This shouldn't happen, but if it does, bail.
                     throw new IllegalStateException("Server is already backing up!");
                 }
@@ -84,14 +170,27 @@ public void runBackupProcess(BackupTarget backupTarget) throws Exception {
                     throw new RuntimeException("Failed to save the world!");
                 }
                 backupState.setBackingUp(true);
+                for (var dimension : server.levelKeys()) {
+                    backupState.setBackingUp(dimension, true);
+                }
                 didSetBackingUp.set(true);
+                progress.setSaveBlocked(true);
+                // Everything written so far is on disk now, and nothing more will be until we're done listing
+                dirtyRegions.set(DirtyRegionTracker.get().checkpoint());
             });
-            // Now we can actually backup the server
-            backupServer(backupTarget);
+            var worldDir = backupState.getStorageAccess().getWorldDir();
+            // The pipeline finishes the checkpoint from here on
+            var checkpoint = dirtyRegions.getAndSet(null);
+            long writeCount = checkpoint.getWriteCount();
+            var report = pipeline.run(
+                worldDir, backupTarget, options, progress, checkpoint, createUnits(worldDir, progress)
+            );
+            backedUpWriteCount = writeCount;
 
             server.getPlayerList().broadcastMessage(
                 new TextComponent("Server backup completed!"), ChatType.SYSTEM, Util.NIL_UUID
             );
+            return report;
         } catch (Throwable t) {
             server.getPlayerList().broadcastMessage(
                 new TextComponent("Server backup failed! See console for details."), ChatType.SYSTEM, Util.NIL_UUID
@@ -99,32 +198,14 @@ public void runBackupProcess(BackupTarget backupTarget) throws Exception {
             LOGGER.warn("Server backup failed!", t);
             throw t;
         } finally {
+            var checkpoint = dirtyRegions.get();
+            if (checkpoint != null) {
+                checkpoint.abort();
+            }
             if (didSetBackingUp.get()) {
-                backupState.setBackingUp(false);
+                releaseAll();
             }
+            progress.setSaveBlocked(false);
         }
     }
-
-    private void backupServer(BackupTarget backupTarget) throws Exception {
-        LOGGER.info("Backing up server into {}", backupTarget);
-        var worldDir = backupState.getStorageAccess().getWorldDir();
-        Files.walkFileTree(worldDir, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                // Die if we were asked to
-                if (Thread.currentThread().isInterrupted()) {
-                    throw new RuntimeException("Backup interrupted!");
-                }
-                // Skip the session lock file
-                if (file.getFileName().toString().equals("session.lock")) {
-                    return FileVisitResult.CONTINUE;
-                }
-                var relativePath = worldDir.relativize(file);
-                backupTarget.saveFile(relativePath, stream -> Files.copy(file, stream));
-                return FileVisitResult.CONTINUE;
-            }
-        });
-        // Close it to save the file to disk.
-        backupTarget.commit();
-    }
 }
@@ -0,0 +1,248 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.hash.HashCode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Remembers the size, modification time, and content hash of every file from the last committed backup, so that
+ * files that haven't changed since then don't need to be read again.
+ *
+ * <p>
+ * Paths are stored relative to the world, using {@code /} as a separator.
+ * </p>
+ */
+public final class ChangeIndex {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x54534249; // TSBI
+    private static final int VERSION = 2;
+    private static final int HASH_BYTES = 32;
+    /**
+     * Files modified this close to the time they were indexed may be modified again without their modification time
+     * changing, depending on the file system's timestamp resolution. They are never trusted.
+     */
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    /**
+     * An indexed file.
+     *
+     * @param size the size of the file
+     * @param lastModified the modification time of the file, in milliseconds since the epoch
+     * @param fileKey the {@linkplain BasicFileAttributes#fileKey() file key} of the file, or an empty string if the
+     *     file system doesn't provide one
+     * @param contentHash the SHA-256 hash of the file's content
+     */
+    public record Entry(long size, long lastModified, String fileKey, HashCode contentHash) {
+        /**
+         * Create an entry for a file.
+         *
+         * @param attributes the file's attributes
+         * @param contentHash the SHA-256 hash of the file's content
+         * @return the entry
+         */
+        public static Entry of(BasicFileAttributes attributes, HashCode contentHash) {
+            return new Entry(
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                Objects.toString(attributes.fileKey(), ""),
+                contentHash
+            );
+        }
+
+        /**
+         * Check if the file still looks the same as when it was indexed.
+         *
+         * @param attributes the file's current attributes
+         * @return {@code true} if the file is unchanged
+         */
+        public boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size()
+                && lastModified == attributes.lastModifiedTime().toMillis()
+                && fileKey.equals(Objects.toString(attributes.fileKey(), ""));
+        }
+    }
+
+    /**
+     * Load an index, or create an empty one if the file doesn't exist or can't be read.
+     *
+     * @param file the file to load from
+     * @return the index
+     */
+    public static ChangeIndex load(Path file) {
+        try (var input = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file))
+        ))) {
+            int version = input.readInt() == MAGIC ? input.readInt() : -1;
+            if (version != 1 && version != VERSION) {
+                throw new IOException("Not a supported change index");
+            }
+            long indexedAt = input.readLong();
+            UUID trackerSession = null;
+            if (version >= 2 && input.readBoolean()) {
+                trackerSession = new UUID(input.readLong(), input.readLong());
+            }
+            int count = input.readInt();
+            var entries = new ConcurrentHashMap<String, Entry>(count);
+            for (int i = 0; i < count; i++) {
+                var path = input.readUTF();
+                long size = input.readLong();
+                long lastModified = input.readLong();
+                var fileKey = input.readUTF();
+                var hash = new byte[HASH_BYTES];
+                input.readFully(hash);
+                entries.put(path, new Entry(size, lastModified, fileKey, HashCode.fromBytes(hash)));
+            }
+            return new ChangeIndex(indexedAt, trackerSession, entries);
+        } catch (NoSuchFileException e) {
+            return new ChangeIndex(0, null, new ConcurrentHashMap<>());
+        } catch (IOException e) {
+            // The index is only a cache, we can always read everything again
+            LOGGER.warn("Failed to load change index from {}, all files will be read", file, e);
+            return new ChangeIndex(0, null, new ConcurrentHashMap<>());
+        }
+    }
+
+    private final long indexedAt;
+    @Nullable
+    private final UUID trackerSession;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Create an empty index.
+     *
+     * @param indexedAt the time the indexed files were listed, in milliseconds since the epoch
+     * @param trackerSession the {@linkplain net.octyl.totallysafebackup.backup.region.DirtyRegionTracker#getSession()
+     *     dirty region tracker session} that was checkpointed when the files were listed, or {@code null} if there
+     *     was none
+     */
+    public ChangeIndex(long indexedAt, @Nullable UUID trackerSession) {
+        this(indexedAt, trackerSession, new ConcurrentHashMap<>());
+    }
+
+    private ChangeIndex(long indexedAt, @Nullable UUID trackerSession, Map<String, Entry> entries) {
+        this.indexedAt = indexedAt;
+        this.trackerSession = trackerSession;
+        this.entries = entries;
+    }
+
+    private static String key(Path path) {
+        var key = new StringBuilder();
+        for (Path part : path) {
+            if (!key.isEmpty()) {
+                key.append('/');
+            }
+            key.append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * {@return the dirty region tracker session that was checkpointed when the files were listed, or {@code null}}
+     */
+    @Nullable
+    public UUID getTrackerSession() {
+        return trackerSession;
+    }
+
+    /**
+     * Get the entry for a file, without checking that it is unchanged. Only for when something else, like the dirty
+     * region tracker, can vouch for files modified too recently for {@link #findUnchanged(Path, BasicFileAttributes)}
+     * to trust.
+     *
+     * @param path the path of the file, relative to the world
+     * @return the entry, or {@code null} if the file isn't indexed
+     */
+    @Nullable
+    public Entry get(Path path) {
+        return entries.get(key(path));
+    }
+
+    /**
+     * Find the entry for a file, if it is unchanged since it was indexed.
+     *
+     * @param path the path of the file, relative to the world
+     * @param attributes the file's current attributes
+     * @return the entry, or {@code null} if the file is new, changed, or can't be trusted
+     */
+    @Nullable
+    public Entry findUnchanged(Path path, BasicFileAttributes attributes) {
+        var entry = entries.get(key(path));
+        if (entry == null || !entry.matches(attributes)) {
+            return null;
+        }
+        if (entry.lastModified() > indexedAt - RACY_WINDOW_MILLIS) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Add or replace the entry for a file. Safe to call from multiple threads.
+     *
+     * @param path the path of the file, relative to the world
+     * @param entry the entry
+     */
+    public void put(Path path, Entry entry) {
+        entries.put(key(path), entry);
+    }
+
+    /**
+     * Save this index, replacing the file atomically.
+     *
+     * @param file the file to save to
+     * @throws IOException if there is an error saving
+     */
+    public void save(Path file) throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(Files.newOutputStream(tempFile))
+        ))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(indexedAt);
+            output.writeBoolean(trackerSession != null);
+            if (trackerSession != null) {
+                output.writeLong(trackerSession.getMostSignificantBits());
+                output.writeLong(trackerSession.getLeastSignificantBits());
+            }
+            output.writeInt(entries.size());
+            for (var entry : entries.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().size());
+                output.writeLong(entry.getValue().lastModified());
+                output.writeUTF(entry.getValue().fileKey());
+                output.write(entry.getValue().contentHash().asBytes());
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
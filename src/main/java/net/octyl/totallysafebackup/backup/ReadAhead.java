@@ -0,0 +1,118 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Warms the page cache for files that are about to be backed up, by reading them ahead of time in large sequential
+ * reads. Java has no way to ask the OS to prefetch a file, so the data is read and thrown away.
+ *
+ * <p>
+ * At most {@code windowBytes} of files past the current one are prefetched, so the cache isn't flooded with files
+ * that will be evicted before they are used.
+ * </p>
+ */
+final class ReadAhead implements Closeable {
+    private static final int READ_SIZE = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+        () -> ByteBuffer.allocateDirect(READ_SIZE)
+    );
+
+    private final List<WorldFile> files;
+    private final long windowBytes;
+    private final ExecutorService executor;
+    /**
+     * The index of the file being backed up.
+     */
+    private volatile int current;
+    /**
+     * The index of the next file to prefetch.
+     */
+    private int next;
+    /**
+     * The size of the files after the current one that have been prefetched.
+     */
+    private long prefetchedBytes;
+
+    /**
+     * Create a new read-ahead.
+     *
+     * @param files the files that will be backed up, in order
+     * @param windowBytes how many bytes of files to prefetch ahead of the current one
+     * @param threads the number of threads to prefetch with
+     */
+    ReadAhead(List<WorldFile> files, long windowBytes, int threads) {
+        Preconditions.checkArgument(windowBytes > 0, "Window must be positive");
+        this.files = files;
+        this.windowBytes = windowBytes;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-read-ahead-%d")
+            .build());
+    }
+
+    /**
+     * Move to a file, and prefetch the files after it that fit in the window.
+     *
+     * @param index the index of the file that is about to be backed up
+     */
+    void advance(int index) {
+        // Files we've reached are no longer ahead of us
+        for (int i = current + 1; i <= index && i < next; i++) {
+            prefetchedBytes -= files.get(i).attributes().size();
+        }
+        current = index;
+        if (next <= index) {
+            next = index + 1;
+            prefetchedBytes = 0;
+        }
+        // Always take the next file, even if it alone is bigger than the window
+        while (next < files.size()
+            && (next == index + 1 || prefetchedBytes + files.get(next).attributes().size() <= windowBytes)) {
+            int prefetchIndex = next;
+            prefetchedBytes += files.get(prefetchIndex).attributes().size();
+            next++;
+            executor.execute(() -> prefetch(prefetchIndex));
+        }
+    }
+
+    private void prefetch(int index) {
+        if (index <= current) {
+            // Already being read, no point
+            return;
+        }
+        var buffer = BUFFER.get();
+        try (var channel = FileChannel.open(files.get(index).source(), StandardOpenOption.READ)) {
+            do {
+                buffer.clear();
+            } while (channel.read(buffer) != -1 && index > current);
+        } catch (IOException e) {
+            // Only a hint, the real read will report any problem
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
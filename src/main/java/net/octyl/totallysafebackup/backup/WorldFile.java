@@ -0,0 +1,25 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file in the world to back up.
+ *
+ * @param path the path relative to the world directory
+ * @param source the file to read the contents from, which may be a staged copy of the world file
+ * @param attributes the attributes of the file in the world, not of the staged copy
+ */
+public record WorldFile(Path path, Path source, BasicFileAttributes attributes) {
+}
@@ -0,0 +1,421 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup;
+
+import com.google.common.base.Preconditions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A frozen view of the world's files. When staged, the files are copied aside so that the world can be saved again
+ * while the copy is backed up.
+ */
+public final class WorldSnapshot implements Closeable {
+    private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * The most files to pass to one {@code cp}, to stay well under the argument length limit.
+     */
+    private static final int CLONE_BATCH_SIZE = 1000;
+    /**
+     * Set once {@link Mode#AUTO} has said that it copies rather than clones, so it doesn't say so for every unit of
+     * every backup.
+     */
+    private static final AtomicBoolean LOGGED_COPY_FALLBACK = new AtomicBoolean();
+    /**
+     * Set once {@link Mode#AUTO} has warned that it reads the world directly, for the same reason.
+     */
+    private static final AtomicBoolean WARNED_NO_ROOM = new AtomicBoolean();
+    /**
+     * Bytes that snapshots being copied by {@link Mode#AUTO} are about to use, which the file store doesn't show as
+     * used yet. Units are snapshotted concurrently, so each has to leave room for the others.
+     */
+    private static final AtomicLong RESERVED_COPY_BYTES = new AtomicLong();
+    /**
+     * Sorts files largest first, so that the biggest files start as early as possible when a target works on
+     * several at once.
+     */
+    static final Comparator<WorldFile> LARGEST_FIRST = Comparator.comparingLong((WorldFile f) -> f.attributes().size())
+        .reversed()
+        .thenComparing(f -> f.path().toString());
+
+    /**
+     * How to stage a snapshot.
+     */
+    public enum Mode {
+        /**
+         * Don't stage anything, read from the world while saving is blocked.
+         */
+        OFF,
+        /**
+         * Use a copy-on-write clone if the file system supports it, otherwise copy like {@link #COPY} if there's
+         * room. Copies need as much free space as the files, and only happen if at least as much again would be left
+         * for the game and the backup, otherwise the world is read directly like {@link #OFF}.
+         */
+        AUTO,
+        /**
+         * Always use a plain copy.
+         */
+        COPY,
+    }
+
+    /**
+     * List the files in the world, without staging them. Directories are listed concurrently, which matters for
+     * worlds with many dimensions and thousands of region files. The files are sorted largest first, so that the
+     * biggest files start as early as possible when a target works on several at once.
+     *
+     * @param worldDir the world directory
+     * @param threads the number of threads to list directories with
+     * @return the files in the world
+     * @throws IOException if there is an error listing the files
+     */
+    public static List<WorldFile> listWorld(Path worldDir, int threads) throws IOException {
+        Preconditions.checkArgument(threads > 0, "Must have at least one thread");
+        List<WorldFile> files;
+        if (threads == 1) {
+            files = walkWorld(worldDir);
+        } else {
+            var pool = new ForkJoinPool(threads, new NamedWorkerThreadFactory(), null, false);
+            try {
+                files = pool.invoke(new ListDirectoryTask(worldDir, worldDir, Thread.currentThread()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        var sorted = new ArrayList<>(files);
+        sorted.sort(LARGEST_FIRST);
+        return sorted;
+    }
+
+    private static boolean isSessionLock(Path file) {
+        return file.getFileName().toString().equals("session.lock");
+    }
+
+    private static List<WorldFile> walkWorld(Path worldDir) throws IOException {
+        var files = new ArrayList<WorldFile>();
+        Files.walkFileTree(worldDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // Die if we were asked to
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new RuntimeException("Backup interrupted!");
+                }
+                // Skip the session lock file
+                if (isSessionLock(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                files.add(new WorldFile(worldDir.relativize(file), file, attrs));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Create a snapshot of some files in the world. The world must not be saved until this returns.
+     *
+     * @param worldDir the world directory
+     * @param worldFiles the files to snapshot, from {@link #listWorld(Path, int)}
+     * @param stagingRoot the directory to stage copies in, should be on the same file system as the world
+     * @param mode how to stage the snapshot
+     * @return the snapshot
+     * @throws IOException if there is an error preparing the staging directory
+     */
+    public static WorldSnapshot create(Path worldDir, List<WorldFile> worldFiles, Path stagingRoot, Mode mode)
+        throws IOException {
+        if (mode == Mode.OFF) {
+            return new WorldSnapshot(worldFiles, null);
+        }
+        // Anything already here was left behind by a crash
+        deleteTree(stagingRoot);
+        Files.createDirectories(stagingRoot);
+        var stagingDir = Files.createTempDirectory(stagingRoot, "snapshot-");
+        try {
+            if (mode == Mode.AUTO) {
+                if (tryCloneFiles(worldDir, worldFiles, stagingDir)) {
+                    LOGGER.debug("Staged snapshot using copy-on-write clones");
+                } else if (!tryCopyFiles(worldFiles, stagingDir)) {
+                    if (!WARNED_NO_ROOM.getAndSet(true)) {
+                        LOGGER.warn(
+                            "Copy-on-write clones are unavailable, and there isn't enough free space to copy the "
+                                + "world aside. Snapshots will read from the world directly, which blocks saving for "
+                                + "the whole backup."
+                        );
+                    }
+                    deleteTree(stagingDir);
+                    return new WorldSnapshot(worldFiles, null);
+                }
+            } else {
+                copyFiles(worldFiles, stagingDir);
+                LOGGER.debug("Staged snapshot using copies");
+            }
+        } catch (IOException e) {
+            // Staging is only an optimization, we can still back up from the world itself
+            LOGGER.warn("Failed to stage snapshot, backing up from the world directly", e);
+            deleteTree(stagingDir);
+            return new WorldSnapshot(worldFiles, null);
+        } catch (Throwable t) {
+            deleteTree(stagingDir);
+            throw t;
+        }
+        var stagedFiles = new ArrayList<WorldFile>(worldFiles.size());
+        for (WorldFile file : worldFiles) {
+            stagedFiles.add(new WorldFile(file.path(), stagingDir.resolve(file.path()), file.attributes()));
+        }
+        return new WorldSnapshot(stagedFiles, stagingDir);
+    }
+
+    /**
+     * Try to clone the files with copy-on-write. This only shares blocks with the world, so it is nearly instant and
+     * costs no space until the world is modified. Only the given files are cloned, as other parts of the world may
+     * be snapshotted separately.
+     */
+    private static boolean tryCloneFiles(Path worldDir, List<WorldFile> worldFiles, Path stagingDir)
+        throws IOException {
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("linux")) {
+            return false;
+        }
+        for (int start = 0; start < worldFiles.size(); start += CLONE_BATCH_SIZE) {
+            var command = new ArrayList<>(List.of(
+                "cp", "-a", "--reflink=always", "--parents", "-t", stagingDir.toString(), "--"
+            ));
+            for (WorldFile file : worldFiles.subList(start, Math.min(start + CLONE_BATCH_SIZE, worldFiles.size()))) {
+                command.add(file.path().toString());
+            }
+            var process = new ProcessBuilder(command)
+                .directory(worldDir.toFile())
+                .redirectErrorStream(true)
+                .start();
+            try {
+                var output = new String(process.getInputStream().readAllBytes());
+                if (process.waitFor() != 0) {
+                    LOGGER.debug("Copy-on-write clone is unavailable: {}", output.strip());
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while cloning world", e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the files if there's room to, leaving at least as much free space as the copies take. Files that are
+     * hard-linked take no space, so they aren't counted.
+     */
+    private static boolean tryCopyFiles(List<WorldFile> worldFiles, Path stagingDir) throws IOException {
+        long needed = 0;
+        for (WorldFile file : worldFiles) {
+            if (!isReplacedAtomically(file.path())) {
+                needed += file.attributes().size();
+            }
+        }
+        long usable = Files.getFileStore(stagingDir).getUsableSpace();
+        long reserved = RESERVED_COPY_BYTES.addAndGet(needed);
+        try {
+            if (usable - reserved < needed) {
+                LOGGER.debug("Not enough free space to copy a snapshot: {} bytes needed, {} usable", needed, usable);
+                return false;
+            }
+            if (!LOGGED_COPY_FALLBACK.getAndSet(true)) {
+                LOGGER.info("Copy-on-write clones are unavailable, snapshots are copied aside instead");
+            }
+            // A failed clone may have left some files behind
+            deleteTree(stagingDir);
+            Files.createDirectories(stagingDir);
+            copyFiles(worldFiles, stagingDir);
+            LOGGER.debug("Staged snapshot using copies");
+            return true;
+        } finally {
+            RESERVED_COPY_BYTES.addAndGet(-needed);
+        }
+    }
+
+    private static void copyFiles(List<WorldFile> worldFiles, Path stagingDir) throws IOException {
+        for (WorldFile file : worldFiles) {
+            stageFile(file, stagingDir.resolve(file.path()));
+        }
+    }
+
+    private static void stageFile(WorldFile file, Path staged) throws IOException {
+        // Die if we were asked to
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("Backup interrupted!");
+        }
+        Files.createDirectories(staged.getParent());
+        if (isReplacedAtomically(file.path())) {
+            try {
+                Files.createLink(staged, file.source());
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // Fall through to a copy
+            }
+        }
+        Files.copy(file.source(), staged, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+
+    /**
+     * Check if the game replaces the file by renaming a new file over it, rather than writing it in place. Only
+     * those files can be hard-linked, as the link keeps pointing at the old contents. Region files are written in
+     * place, so a hard link to one would change under us.
+     */
+    private static boolean isReplacedAtomically(Path path) {
+        var fileName = path.getFileName().toString();
+        if (fileName.equals("level.dat")) {
+            return path.getNameCount() == 1;
+        }
+        return path.getNameCount() == 2
+            && path.getName(0).toString().equals("playerdata")
+            && fileName.endsWith(".dat");
+    }
+
+    /**
+     * Delete a directory tree, ignoring anything that is already gone.
+     *
+     * @param root the root of the tree
+     * @throws IOException if there is an error deleting the tree
+     */
+    static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, @Nullable IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private final List<WorldFile> files;
+    @Nullable
+    private final Path stagingDir;
+
+    private WorldSnapshot(List<WorldFile> files, @Nullable Path stagingDir) {
+        this.files = List.copyOf(files);
+        this.stagingDir = stagingDir;
+    }
+
+    /**
+     * {@return the files in the snapshot}
+     */
+    public List<WorldFile> files() {
+        return files;
+    }
+
+    /**
+     * {@return whether the files were staged, which means the world can be saved while they are backed up}
+     */
+    public boolean isStaged() {
+        return stagingDir != null;
+    }
+
+    /**
+     * Delete the staged files, if any.
+     *
+     * @throws IOException if there is an error deleting the files
+     */
+    @Override
+    public void close() throws IOException {
+        if (stagingDir != null) {
+            deleteTree(stagingDir);
+        }
+    }
+
+    /**
+     * Lists one directory, forking a task for each subdirectory.
+     */
+    private static final class ListDirectoryTask extends RecursiveTask<List<WorldFile>> {
+        private final Path worldDir;
+        private final Path dir;
+        private final Thread requester;
+
+        private ListDirectoryTask(Path worldDir, Path dir, Thread requester) {
+            this.worldDir = worldDir;
+            this.dir = dir;
+            this.requester = requester;
+        }
+
+        @Override
+        protected List<WorldFile> compute() {
+            var files = new ArrayList<WorldFile>();
+            var subdirectories = new ArrayList<ListDirectoryTask>();
+            try (var entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    // Die if we were asked to
+                    if (requester.isInterrupted()) {
+                        throw new RuntimeException("Backup interrupted!");
+                    }
+                    var attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        subdirectories.add(new ListDirectoryTask(worldDir, entry, requester));
+                    } else if (!isSessionLock(entry)) {
+                        files.add(new WorldFile(worldDir.relativize(entry), entry, attrs));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (var task : invokeAll(subdirectories)) {
+                files.addAll(task.join());
+            }
+            return files;
+        }
+    }
+
+    private static final class NamedWorkerThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("totally-safe-backup-walk-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.flush;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The chunk writes waiting on a chunk storage's IO thread. Implemented on the chunk storage.
+ */
+public interface ChunkWriteQueue {
+    /**
+     * Wait for the writes queued so far, without flushing the region files to disk. Must be called on the server
+     * thread, but the returned future may be waited on anywhere.
+     *
+     * @return a future completed once the queued writes are done
+     */
+    CompletableFuture<Void> awaitQueuedWrites();
+}
@@ -0,0 +1,35 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.flush;
+
+/**
+ * Saves a level's dirty chunks a few at a time. Implemented on the level's chunk map.
+ */
+public interface IncrementalChunkSaver {
+    /**
+     * Save loaded chunks that have unsaved changes, until the deadline passes. Must be called on the server thread.
+     *
+     * <p>
+     * Chunks are serialized here, and written to disk later on the storage's IO thread.
+     * </p>
+     *
+     * <p>
+     * Each call carries on from where the last one stopped, and stops looking at the deadline, so a call costs about
+     * its budget however many chunks are loaded.
+     * </p>
+     *
+     * @param deadlineNanos the {@link System#nanoTime()} to stop saving at
+     * @return an estimate of the number of chunks that still have unsaved changes, {@code 0} if every loaded chunk
+     *     was saved
+     */
+    int saveDirtyChunks(long deadlineNanos);
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.flush;
+
+import com.google.common.base.Preconditions;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Saves the world's dirty chunks in short slices on the server thread, one slice per task, so the game keeps ticking
+ * in between. The save that blocks the server before a backup then only has the few chunks changed since.
+ *
+ * <p>
+ * Each slice is a separate task on the server, and the next is only submitted once the previous one is done. The
+ * server runs its queued tasks at least once a tick, so no tick waits on more than one slice.
+ * </p>
+ */
+public final class IncrementalFlush {
+    private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * Few enough dirty chunks that saving them in the blocking save is quick.
+     */
+    private static final int SMALL_DIRTY_SET = 64;
+
+    private final MinecraftServer server;
+    private final Duration sliceBudget;
+    private final Duration timeout;
+
+    /**
+     * Create a new flush.
+     *
+     * @param server the server to save
+     * @param sliceBudget the most time to spend saving chunks in one slice
+     * @param timeout the most time to spend on the whole flush, after which the blocking save does the rest
+     */
+    public IncrementalFlush(MinecraftServer server, Duration sliceBudget, Duration timeout) {
+        Preconditions.checkArgument(!sliceBudget.isNegative() && !sliceBudget.isZero(), "Slice budget must be positive");
+        this.server = server;
+        this.sliceBudget = sliceBudget;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Save dirty chunks until few are left or the timeout passes, then wait for them to be written. Must not be
+     * called on the server thread.
+     *
+     * @throws InterruptedException if interrupted while waiting on the server
+     * @throws ExecutionException if a slice fails
+     */
+    public void run() throws InterruptedException, ExecutionException {
+        Preconditions.checkState(!server.isSameThread(), "Can't wait for the server on the server thread");
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + timeout.toNanos();
+        int slices = 0;
+        int remaining;
+        do {
+            remaining = server.submit(this::saveSlice).get();
+            slices++;
+        } while (remaining > SMALL_DIRTY_SET && System.nanoTime() - deadlineNanos < 0);
+        // Chunks are written on the IO threads, wait for them here rather than in the blocking save
+        var writes = server.submit(this::awaitQueuedWrites).get();
+        try {
+            writes.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            LOGGER.debug("Chunk writes are still queued, leaving them to the blocking save");
+        }
+        LOGGER.info(
+            "Saved chunks in {} slices over {} ms, about {} left for the blocking save",
+            slices, Duration.ofNanos(System.nanoTime() - startNanos).toMillis(), remaining
+        );
+    }
+
+    private int saveSlice() {
+        long deadlineNanos = System.nanoTime() + sliceBudget.toNanos();
+        int remaining = 0;
+        for (ServerLevel level : server.getAllLevels()) {
+            remaining += ((IncrementalChunkSaver) level.getChunkSource().chunkMap).saveDirtyChunks(deadlineNanos);
+        }
+        return remaining;
+    }
+
+    private CompletableFuture<Void> awaitQueuedWrites() {
+        var writes = new ArrayList<CompletableFuture<Void>>();
+        for (ServerLevel level : server.getAllLevels()) {
+            writes.add(((ChunkWriteQueue) level.getChunkSource().chunkMap).awaitQueuedWrites());
+        }
+        return CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.history;
+
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import net.octyl.totallysafebackup.backup.restore.RestoreSource;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads one chunk out of a backup, reading only its region file's header and the chunk's own sectors where the
+ * backup allows it.
+ */
+public final class ChunkExtractor {
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    /**
+     * Set in the compression type of chunks too big for their region file, whose data is in a separate file.
+     */
+    private static final int EXTERNAL_FLAG = 0x80;
+
+    /**
+     * A report of an extracted chunk.
+     *
+     * @param backup the name of the backup the chunk was read from
+     * @param createdAt when that backup was made
+     * @param file the file the chunk's NBT was written to
+     * @param size the size of the chunk's NBT
+     */
+    public record Report(String backup, Instant createdAt, Path file, int size) {
+    }
+
+    /**
+     * Read a chunk from a backup.
+     *
+     * @param source the backup
+     * @param dimensionDirectory the directory the chunk's dimension is saved in, as for
+     *     {@link ChunkHistory#regionPath(String, int, int)}
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @param version the chunk's version in this backup from the {@link ChunkHistory}, or {@code null} if it isn't
+     *     known, in which case it is found through the region file's header
+     * @return the chunk's uncompressed NBT, or empty if the backup doesn't have the chunk
+     * @throws IOException if there is an error reading the chunk, or it is corrupt
+     */
+    public static Optional<byte[]> read(
+        RestoreSource source, String dimensionDirectory, int chunkX, int chunkZ, @Nullable ChunkHistory.Version version
+    ) throws IOException {
+        var regionPath = ChunkHistory.regionPath(dimensionDirectory, chunkX, chunkZ);
+        int sectorOffset;
+        int sectorCount;
+        if (version != null && version.isLocated()) {
+            sectorOffset = version.sectorOffset();
+            sectorCount = version.sectorCount();
+        } else {
+            var headerBytes = source.readRange(regionPath, 0, RegionFileHeader.SIZE);
+            if (headerBytes.isEmpty() || headerBytes.get().length < RegionFileHeader.SIZE) {
+                return Optional.empty();
+            }
+            var header = RegionFileHeader.read(ByteBuffer.wrap(headerBytes.get()));
+            int index = RegionFileHeader.chunkIndex(chunkX, chunkZ);
+            sectorOffset = header.sectorOffset(index);
+            sectorCount = header.sectorCount(index);
+        }
+        if (sectorCount == 0) {
+            return Optional.empty();
+        }
+        var sectors = source.readRange(
+            regionPath, (long) sectorOffset * RegionFileHeader.SECTOR_SIZE, sectorCount * RegionFileHeader.SECTOR_SIZE
+        ).orElseThrow(() -> new IOException(regionPath + " disappeared while it was read"));
+        if (sectors.length < RegionFileHeader.CHUNK_PREFIX_SIZE) {
+            throw new IOException("Chunk " + chunkX + "," + chunkZ + " in " + regionPath + " is truncated");
+        }
+        var prefix = ByteBuffer.wrap(sectors);
+        long length = Integer.toUnsignedLong(prefix.getInt(0));
+        int compression = prefix.get(4);
+        byte[] data;
+        if ((compression & EXTERNAL_FLAG) != 0) {
+            var externalPath = dimensionDirectory + "region/c." + chunkX + "." + chunkZ + ".mcc";
+            data = source.readRange(externalPath, 0, Integer.MAX_VALUE)
+                .orElseThrow(() -> new IOException("External chunk " + externalPath + " is missing"));
+            compression &= ~EXTERNAL_FLAG;
+        } else {
+            if (length < 1 || length + 4 > sectors.length) {
+                throw new IOException("Chunk " + chunkX + "," + chunkZ + " in " + regionPath + " is truncated");
+            }
+            data = new byte[(int) length - 1];
+            prefix.get(RegionFileHeader.CHUNK_PREFIX_SIZE, data);
+        }
+        var raw = new ByteArrayInputStream(data);
+        try (InputStream input = switch (compression) {
+            case COMPRESSION_GZIP -> new GZIPInputStream(raw);
+            case COMPRESSION_ZLIB -> new InflaterInputStream(raw);
+            case COMPRESSION_NONE -> raw;
+            default -> throw new IOException(
+                "Chunk " + chunkX + "," + chunkZ + " uses unknown compression " + compression
+            );
+        }) {
+            return Optional.of(input.readAllBytes());
+        }
+    }
+
+    private ChunkExtractor() {
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.history;
+
+import com.google.common.base.Preconditions;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An index of when each chunk changed, across every backup it was recorded for. It is built from the region file
+ * headers as backups are saved, so a chunk can be found at any point in time without opening any backup but the one
+ * it is read from.
+ *
+ * <p>
+ * A chunk's timestamp in its region file header changes every time the game saves it, so a chunk gets a new
+ * {@link Version} only in the backups where that timestamp changed. Only terrain region files, in {@code region}
+ * directories, are indexed.
+ * </p>
+ *
+ * <p>
+ * Thread-safe, backups are recorded on the backup thread while chunks are looked up on the restore thread.
+ * </p>
+ */
+public final class ChunkHistory {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x54534248; // TSBH
+    private static final int VERSION = 1;
+
+    /**
+     * A version of a chunk, as it was saved in a backup.
+     *
+     * @param backup the name of the backup holding this version. It is the first backup of this version that is
+     *     still kept, later ones until the next version hold it too
+     * @param timestamp when the game saved this version, in seconds since the epoch, or {@code 0} if the chunk was
+     *     absent
+     * @param sectorOffset the sector this version starts at in the backup's copy of the region file, or {@code -1}
+     *     if it isn't known and must be read from the copy's header
+     * @param sectorCount the number of sectors this version occupies, or {@code 0} if the chunk was absent
+     */
+    public record Version(String backup, int timestamp, int sectorOffset, int sectorCount) {
+        /**
+         * {@return whether the chunk existed in this version}
+         */
+        public boolean exists() {
+            return sectorCount > 0;
+        }
+
+        /**
+         * {@return whether the location of this version in its backup is known}
+         */
+        public boolean isLocated() {
+            return sectorOffset >= 0;
+        }
+    }
+
+    /**
+     * Find the terrain region file holding a chunk.
+     *
+     * @param dimensionDirectory the directory the chunk's dimension is saved in, relative to the world and ending
+     *     with {@code /}, or an empty string for the overworld
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @return the path of the region file, relative to the world
+     */
+    public static String regionPath(String dimensionDirectory, int chunkX, int chunkZ) {
+        return dimensionDirectory + "region/r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca";
+    }
+
+    /**
+     * Check if a path is a terrain region file, which this index covers.
+     *
+     * @param path the path, relative to the world, using {@code /} as a separator
+     * @return {@code true} if the file is indexed
+     */
+    static boolean isIndexed(String path) {
+        return path.endsWith(".mca") && (path.startsWith("region/") || path.contains("/region/"));
+    }
+
+    /**
+     * Load an index. A missing or unreadable index is replaced by an empty one, which fills in again as backups are
+     * made.
+     *
+     * @param file the file to load from
+     * @return the index
+     */
+    public static ChunkHistory load(Path file) {
+        var history = new ChunkHistory(file);
+        try (var input = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file))
+        ))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a supported chunk history index");
+            }
+            int backupCount = input.readInt();
+            var backups = new String[backupCount];
+            for (int i = 0; i < backupCount; i++) {
+                backups[i] = input.readUTF();
+                history.backups.add(backups[i]);
+            }
+            int regionCount = input.readInt();
+            for (int i = 0; i < regionCount; i++) {
+                var region = new HashMap<Integer, List<Version>>();
+                history.regions.put(input.readUTF(), region);
+                int chunkCount = input.readInt();
+                for (int j = 0; j < chunkCount; j++) {
+                    int index = input.readUnsignedShort();
+                    int versionCount = input.readInt();
+                    var versions = new ArrayList<Version>(versionCount);
+                    for (int k = 0; k < versionCount; k++) {
+                        versions.add(new Version(
+                            backups[input.readInt()], input.readInt(), input.readInt(), input.readInt()
+                        ));
+                    }
+                    region.put(index, versions);
+                }
+            }
+            return history;
+        } catch (NoSuchFileException e) {
+            return history;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to load chunk history from {}, starting a new one", file, e);
+            return new ChunkHistory(file);
+        }
+    }
+
+    private final Path file;
+    /**
+     * The backups that versions are recorded for, oldest first.
+     */
+    private final List<String> backups = new ArrayList<>();
+    private final Map<String, Map<Integer, List<Version>>> regions = new HashMap<>();
+
+    private ChunkHistory(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Record the chunks that changed in a backup. Must be called for each backup after the ones before it, with the
+     * headers of the region files as they were saved in it. Region files that aren't given are taken to be
+     * unchanged.
+     *
+     * @param backup the name of the backup
+     * @param headers the headers of the region files, by path relative to the world, using {@code /} as a separator
+     */
+    public synchronized void record(String backup, Map<String, RegionFileHeader> headers) {
+        Preconditions.checkArgument(!backups.contains(backup), "Backup %s is already recorded", backup);
+        backups.add(backup);
+        headers.forEach((path, header) -> {
+            if (!isIndexed(path)) {
+                return;
+            }
+            var region = regions.computeIfAbsent(path, k -> new HashMap<>());
+            for (int index = 0; index < RegionFileHeader.CHUNK_COUNT; index++) {
+                var versions = region.get(index);
+                var last = versions == null ? null : versions.get(versions.size() - 1);
+                boolean present = header.hasChunk(index);
+                if (last == null ? !present : last.exists() == present
+                    && (!present || last.timestamp() == header.timestamp(index))) {
+                    continue;
+                }
+                region.computeIfAbsent(index, k -> new ArrayList<>()).add(present
+                    ? new Version(backup, header.timestamp(index), header.sectorOffset(index),
+                        header.sectorCount(index))
+                    : new Version(backup, 0, 0, 0));
+            }
+        });
+    }
+
+    /**
+     * Get every recorded version of a chunk.
+     *
+     * @param regionPath the path of the chunk's region file, from {@link #regionPath(String, int, int)}
+     * @param chunkIndex the index of the chunk in its region file
+     * @return the versions, oldest first
+     */
+    public synchronized List<Version> history(String regionPath, int chunkIndex) {
+        var region = regions.get(regionPath);
+        var versions = region == null ? null : region.get(chunkIndex);
+        return versions == null ? List.of() : List.copyOf(versions);
+    }
+
+    /**
+     * Forget the backups that are no longer kept. A version whose backup is gone moves to the next kept backup, if
+     * it was made before the chunk changed again. Its location there isn't known, as compaction may have moved it.
+     *
+     * @param kept the names of the backups that are kept
+     */
+    public synchronized void prune(Set<String> kept) {
+        if (kept.containsAll(backups)) {
+            return;
+        }
+        var position = new HashMap<String, Integer>();
+        for (int i = 0; i < backups.size(); i++) {
+            position.put(backups.get(i), i);
+        }
+        for (var region = regions.values().iterator(); region.hasNext(); ) {
+            var chunks = region.next();
+            for (var chunk = chunks.values().iterator(); chunk.hasNext(); ) {
+                var versions = chunk.next();
+                var pruned = new ArrayList<Version>(versions.size());
+                for (int i = 0; i < versions.size(); i++) {
+                    var version = versions.get(i);
+                    if (kept.contains(version.backup())) {
+                        pruned.add(version);
+                        continue;
+                    }
+                    int end = i + 1 < versions.size() ? position.get(versions.get(i + 1).backup()) : backups.size();
+                    for (int j = position.get(version.backup()) + 1; j < end; j++) {
+                        if (kept.contains(backups.get(j))) {
+                            pruned.add(new Version(
+                                backups.get(j), version.timestamp(), version.exists() ? -1 : 0, version.sectorCount()
+                            ));
+                            break;
+                        }
+                    }
+                }
+                if (pruned.isEmpty()) {
+                    chunk.remove();
+                } else {
+                    versions.clear();
+                    versions.addAll(pruned);
+                }
+            }
+            if (chunks.isEmpty()) {
+                region.remove();
+            }
+        }
+        backups.removeIf(backup -> !kept.contains(backup));
+    }
+
+    /**
+     * Save this index, replacing the file atomically.
+     *
+     * @throws IOException if there is an error saving
+     */
+    public synchronized void save() throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(Files.newOutputStream(tempFile))
+        ))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            var ids = new HashMap<String, Integer>();
+            output.writeInt(backups.size());
+            for (var backup : backups) {
+                ids.put(backup, ids.size());
+                output.writeUTF(backup);
+            }
+            output.writeInt(regions.size());
+            for (var region : regions.entrySet()) {
+                output.writeUTF(region.getKey());
+                output.writeInt(region.getValue().size());
+                for (var chunk : region.getValue().entrySet()) {
+                    output.writeShort(chunk.getKey());
+                    output.writeInt(chunk.getValue().size());
+                    for (var version : chunk.getValue()) {
+                        output.writeInt(ids.get(version.backup()));
+                        output.writeInt(version.timestamp());
+                        output.writeInt(version.sectorOffset());
+                        output.writeInt(version.sectorCount());
+                    }
+                }
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.history;
+
+import com.google.common.hash.HashCode;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import net.octyl.totallysafebackup.backup.target.BackupTarget;
+import org.apache.commons.io.function.IOConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Wraps a target to record the chunks saved to it in a {@link ChunkHistory}. The history is updated and saved when
+ * the target is committed.
+ *
+ * <p>
+ * Only the header at the start of each region file is looked at. Streamed files are captured as they pass through to
+ * the target, so they are seen exactly as they are saved, after any compaction. Files the target copies on its own
+ * have their header read separately, which comes from the page cache when the target has just read them, or is about
+ * to. Unchanged files are passed on without being read, as none of their chunks changed. Neither are files kept
+ * from an interrupted attempt at the backup, those are recorded by the next backup instead.
+ * </p>
+ */
+public final class ChunkHistoryTarget implements BackupTarget {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final BackupTarget delegate;
+    private final ChunkHistory history;
+    private final String backup;
+    private final Map<String, RegionFileHeader> headers = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new target.
+     *
+     * @param delegate the target to save to
+     * @param history the history to record the backup in
+     * @param backup the name of the backup
+     */
+    public ChunkHistoryTarget(BackupTarget delegate, ChunkHistory history, String backup) {
+        this.delegate = delegate;
+        this.history = history;
+        this.backup = backup;
+    }
+
+    private static String entryName(Path path) {
+        var name = new StringBuilder();
+        for (Path part : path) {
+            if (!name.isEmpty()) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    private void recordHeader(String name, byte[] header) {
+        headers.put(name, RegionFileHeader.read(ByteBuffer.wrap(header)));
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        var name = entryName(path);
+        if (!ChunkHistory.isIndexed(name)) {
+            delegate.saveFile(path, writer);
+            return;
+        }
+        delegate.saveFile(path, stream -> {
+            var capturing = new HeaderCapturingOutputStream(stream);
+            writer.accept(capturing);
+            if (capturing.captured == RegionFileHeader.SIZE) {
+                recordHeader(name, capturing.header);
+            }
+        });
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        var name = entryName(path);
+        delegate.saveFile(path, size, ChunkHistory.isIndexed(name) ? capturingHeader(name, writer) : writer);
+    }
+
+    @Override
+    public void saveFile(Path path, Path source, long size, IOConsumer<WritableByteChannel> writer)
+        throws IOException {
+        var name = entryName(path);
+        delegate.saveFile(path, source, size, ChunkHistory.isIndexed(name) ? capturingHeader(name, writer) : writer);
+    }
+
+    private IOConsumer<WritableByteChannel> capturingHeader(String name, IOConsumer<WritableByteChannel> writer) {
+        return channel -> {
+            var capturing = new HeaderCapturingChannel(channel);
+            writer.accept(capturing);
+            if (capturing.captured == RegionFileHeader.SIZE) {
+                recordHeader(name, capturing.header);
+            }
+        };
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        var name = entryName(path);
+        if (ChunkHistory.isIndexed(name)) {
+            var header = ByteBuffer.allocate(RegionFileHeader.SIZE);
+            try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                while (header.hasRemaining() && channel.read(header) != -1) {
+                    // Keep reading until the header is full or the file ends
+                }
+            }
+            if (!header.hasRemaining()) {
+                recordHeader(name, header.array());
+            }
+        }
+        delegate.saveFile(path, source);
+    }
+
+    @Override
+    public boolean supportsUnchangedFiles() {
+        return delegate.supportsUnchangedFiles();
+    }
+
+    @Override
+    public boolean saveUnchanged(Path path, HashCode contentHash) throws IOException {
+        return delegate.saveUnchanged(path, contentHash);
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return delegate.supportsResume();
+    }
+
+    @Override
+    public boolean saveResumed(Path path, BasicFileAttributes attributes) throws IOException {
+        return delegate.saveResumed(path, attributes);
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        delegate.checkpoint();
+    }
+
+    @Override
+    public void commit() throws IOException {
+        delegate.commit();
+        history.record(backup, Map.copyOf(headers));
+        try {
+            history.save();
+        } catch (IOException e) {
+            // The backup itself is fine, it just can't be found by chunk history until the next save
+            LOGGER.warn("Failed to save chunk history", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private static final class HeaderCapturingOutputStream extends FilterOutputStream {
+        private final byte[] header = new byte[RegionFileHeader.SIZE];
+        private int captured;
+
+        private HeaderCapturingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (captured < header.length) {
+                header[captured++] = (byte) b;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            int count = Math.min(len, header.length - captured);
+            if (count > 0) {
+                System.arraycopy(b, off, header, captured, count);
+                captured += count;
+            }
+        }
+    }
+
+    private static final class HeaderCapturingChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final byte[] header = new byte[RegionFileHeader.SIZE];
+        private int captured;
+
+        private HeaderCapturingChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int start = src.position();
+            int written = channel.write(src);
+            // Only capture what was written, the rest will be passed in again
+            int count = Math.min(written, header.length - captured);
+            if (count > 0) {
+                src.get(start, header, captured, count);
+                captured += count;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.metrics;
+
+import java.util.List;
+
+/**
+ * Receives measurements of backups, e.g. to export them to a monitoring system. Called from the backup thread, and
+ * from the verifier thread for {@link #backupVerified(String, boolean)}.
+ */
+public interface BackupMetrics {
+    /**
+     * Metrics that go nowhere.
+     */
+    BackupMetrics NONE = new BackupMetrics() {
+        @Override
+        public void backupCompleted(BackupSummary summary) {
+        }
+
+        @Override
+        public void backupFailed(String name) {
+        }
+    };
+
+    /**
+     * Combine several metrics into one that calls each in turn.
+     *
+     * @param metrics the metrics to combine
+     * @return the combined metrics
+     */
+    static BackupMetrics of(List<? extends BackupMetrics> metrics) {
+        var copy = List.copyOf(metrics);
+        return switch (copy.size()) {
+            case 0 -> NONE;
+            case 1 -> copy.get(0);
+            default -> new BackupMetrics() {
+                @Override
+                public void backupCompleted(BackupSummary summary) {
+                    for (BackupMetrics m : copy) {
+                        m.backupCompleted(summary);
+                    }
+                }
+
+                @Override
+                public void backupFailed(String name) {
+                    for (BackupMetrics m : copy) {
+                        m.backupFailed(name);
+                    }
+                }
+
+                @Override
+                public void backupVerified(String name, boolean intact) {
+                    for (BackupMetrics m : copy) {
+                        m.backupVerified(name, intact);
+                    }
+                }
+            };
+        };
+    }
+
+    /**
+     * Record a successful backup.
+     *
+     * @param summary the measurements of the backup
+     */
+    void backupCompleted(BackupSummary summary);
+
+    /**
+     * Record a failed backup.
+     *
+     * @param name the name of the backup
+     */
+    void backupFailed(String name);
+
+    /**
+     * Record the verification of an old backup against its checksums.
+     *
+     * @param name the name of the backup
+     * @param intact {@code true} if the backup matched its checksums, {@code false} if it is corrupt
+     */
+    default void backupVerified(String name, boolean intact) {
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link JmxBackupMetrics}. Values are from the last successful backup, or {@code -1} before there
+ * is one.
+ */
+public interface BackupMetricsMXBean {
+    /**
+     * {@return the number of successful backups since the server started}
+     */
+    long getBackupsCompleted();
+
+    /**
+     * {@return the number of failed backups since the server started}
+     */
+    long getBackupsFailed();
+
+    /**
+     * {@return the number of old backups verified intact since the server started}
+     */
+    long getBackupsVerified();
+
+    /**
+     * {@return the number of old backups found corrupt since the server started}
+     */
+    long getCorruptBackupsFound();
+
+    /**
+     * {@return when the last successful backup finished, in milliseconds since the epoch}
+     */
+    long getLastSuccessTimestamp();
+
+    /**
+     * {@return how long the last backup took, in milliseconds}
+     */
+    long getLastDurationMillis();
+
+    /**
+     * {@return how long the world couldn't be saved during the last backup, in milliseconds}
+     */
+    long getLastSaveBlockedMillis();
+
+    /**
+     * {@return how long each phase of the last backup took, in milliseconds}
+     */
+    Map<String, Long> getLastPhaseMillis();
+
+    /**
+     * {@return the number of files in the last backup}
+     */
+    long getLastFileCount();
+
+    /**
+     * {@return the number of bytes read by the last backup}
+     */
+    long getLastBytesRead();
+
+    /**
+     * {@return the number of bytes written by the last backup}
+     */
+    long getLastBytesWritten();
+
+    /**
+     * {@return the number of files per second in the last backup}
+     */
+    double getLastFilesPerSecond();
+
+    /**
+     * {@return the size of the last backup divided by the size of its files}
+     */
+    double getLastCompressionRatio();
+}
@@ -0,0 +1,58 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.metrics;
+
+import net.octyl.totallysafebackup.backup.BackupProgress;
+import net.octyl.totallysafebackup.backup.BackupReport;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Everything measured about a finished backup.
+ *
+ * @param name the name of the backup
+ * @param format the format of the backup
+ * @param finishedAt when the backup finished
+ * @param report what the backup read, and how long it took
+ * @param outputBytes the size of the backup that was written, or {@code -1} if it isn't known
+ * @param phaseDurations the time spent in each phase
+ * @param saveBlocked the time the world couldn't be saved because of this backup
+ */
+public record BackupSummary(
+    String name,
+    String format,
+    Instant finishedAt,
+    BackupReport report,
+    long outputBytes,
+    Map<BackupProgress.Phase, Duration> phaseDurations,
+    Duration saveBlocked
+) {
+    /**
+     * {@return the number of files backed up per second}
+     */
+    public double filesPerSecond() {
+        double seconds = report.elapsed().toNanos() / 1e9;
+        return seconds == 0 ? 0 : report.fileCount() / seconds;
+    }
+
+    /**
+     * {@return the size of the backup divided by the size of the files, or {@code -1} if it isn't known}
+     */
+    public double compressionRatio() {
+        if (outputBytes < 0 || report.inputBytes() == 0) {
+            return -1;
+        }
+        return (double) outputBytes / report.inputBytes();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BackupMetrics} exposed as an MXBean, named {@value #OBJECT_NAME}.
+ */
+public final class JmxBackupMetrics implements BackupMetrics, BackupMetricsMXBean, Closeable {
+    /**
+     * The object name the bean is registered under.
+     */
+    public static final String OBJECT_NAME = "net.octyl.totallysafebackup:type=BackupMetrics";
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * Create the metrics and register them with the platform MBean server, replacing any left over from a previous
+     * server in the same JVM.
+     *
+     * @return the metrics
+     * @throws JMException if the bean can't be registered
+     */
+    public static JmxBackupMetrics register() throws JMException {
+        var metrics = new JmxBackupMetrics(new ObjectName(OBJECT_NAME));
+        var server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(metrics.objectName)) {
+            server.unregisterMBean(metrics.objectName);
+        }
+        server.registerMBean(metrics, metrics.objectName);
+        return metrics;
+    }
+
+    private final ObjectName objectName;
+    private final AtomicLong backupsCompleted = new AtomicLong();
+    private final AtomicLong backupsFailed = new AtomicLong();
+    private final AtomicLong backupsVerified = new AtomicLong();
+    private final AtomicLong corruptBackupsFound = new AtomicLong();
+    @Nullable
+    private volatile BackupSummary last;
+
+    private JmxBackupMetrics(ObjectName objectName) {
+        this.objectName = objectName;
+    }
+
+    @Override
+    public void backupCompleted(BackupSummary summary) {
+        last = summary;
+        backupsCompleted.incrementAndGet();
+    }
+
+    @Override
+    public void backupFailed(String name) {
+        backupsFailed.incrementAndGet();
+    }
+
+    @Override
+    public void backupVerified(String name, boolean intact) {
+        (intact ? backupsVerified : corruptBackupsFound).incrementAndGet();
+    }
+
+    @Override
+    public long getBackupsCompleted() {
+        return backupsCompleted.get();
+    }
+
+    @Override
+    public long getBackupsFailed() {
+        return backupsFailed.get();
+    }
+
+    @Override
+    public long getBackupsVerified() {
+        return backupsVerified.get();
+    }
+
+    @Override
+    public long getCorruptBackupsFound() {
+        return corruptBackupsFound.get();
+    }
+
+    @Override
+    public long getLastSuccessTimestamp() {
+        var summary = last;
+        return summary == null ? -1 : summary.finishedAt().toEpochMilli();
+    }
+
+    @Override
+    public long getLastDurationMillis() {
+        var summary = last;
+        return summary == null ? -1 : summary.report().elapsed().toMillis();
+    }
+
+    @Override
+    public long getLastSaveBlockedMillis() {
+        var summary = last;
+        return summary == null ? -1 : summary.saveBlocked().toMillis();
+    }
+
+    @Override
+    public Map<String, Long> getLastPhaseMillis() {
+        var summary = last;
+        var phases = new LinkedHashMap<String, Long>();
+        if (summary != null) {
+            summary.phaseDurations().forEach((phase, duration) -> phases.put(phase.name(), duration.toMillis()));
+        }
+        return phases;
+    }
+
+    @Override
+    public long getLastFileCount() {
+        var summary = last;
+        return summary == null ? -1 : summary.report().fileCount();
+    }
+
+    @Override
+    public long getLastBytesRead() {
+        var summary = last;
+        return summary == null ? -1 : summary.report().inputBytes();
+    }
+
+    @Override
+    public long getLastBytesWritten() {
+        var summary = last;
+        return summary == null ? -1 : summary.outputBytes();
+    }
+
+    @Override
+    public double getLastFilesPerSecond() {
+        var summary = last;
+        return summary == null ? -1 : summary.filesPerSecond();
+    }
+
+    @Override
+    public double getLastCompressionRatio() {
+        var summary = last;
+        return summary == null ? -1 : summary.compressionRatio();
+    }
+
+    /**
+     * Unregister the bean.
+     */
+    @Override
+    public void close() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Failed to unregister {}", objectName, e);
+        }
+    }
+}
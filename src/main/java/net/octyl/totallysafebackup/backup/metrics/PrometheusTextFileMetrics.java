@@ -0,0 +1,130 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+/**
+ * {@link BackupMetrics} written to a file in the Prometheus text format, for a collector like node_exporter's
+ * textfile collector to pick up. The file is rewritten after every backup and verification.
+ */
+public final class PrometheusTextFileMetrics implements BackupMetrics {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String PREFIX = "totally_safe_backup_";
+
+    private final Path file;
+    private long backupsCompleted;
+    private long backupsFailed;
+    private long backupsVerified;
+    private long corruptBackupsFound;
+    @Nullable
+    private BackupSummary last;
+
+    /**
+     * Create new metrics.
+     *
+     * @param file the file to write, should end in {@code .prom}
+     */
+    public PrometheusTextFileMetrics(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized void backupCompleted(BackupSummary summary) {
+        backupsCompleted++;
+        last = summary;
+        write();
+    }
+
+    @Override
+    public synchronized void backupFailed(String name) {
+        backupsFailed++;
+        write();
+    }
+
+    @Override
+    public synchronized void backupVerified(String name, boolean intact) {
+        if (intact) {
+            backupsVerified++;
+        } else {
+            corruptBackupsFound++;
+        }
+        write();
+    }
+
+    private void write() {
+        var text = new StringBuilder();
+        metric(text, "backups_total", "counter", "Backups since the server started, by result.");
+        sample(text, "backups_total", "result=\"success\"", backupsCompleted);
+        sample(text, "backups_total", "result=\"failure\"", backupsFailed);
+        metric(text, "verifications_total", "counter", "Old backups verified since the server started, by result.");
+        sample(text, "verifications_total", "result=\"intact\"", backupsVerified);
+        sample(text, "verifications_total", "result=\"corrupt\"", corruptBackupsFound);
+        var summary = last;
+        if (summary != null) {
+            gauge(text, "last_success_timestamp_seconds", "When the last successful backup finished.",
+                summary.finishedAt().toEpochMilli() / 1000.0);
+            gauge(text, "last_duration_seconds", "How long the last backup took.",
+                summary.report().elapsed().toNanos() / 1e9);
+            gauge(text, "last_save_blocked_seconds", "How long the world couldn't be saved during the last backup.",
+                summary.saveBlocked().toNanos() / 1e9);
+            metric(text, "last_phase_duration_seconds", "gauge", "How long each phase of the last backup took.");
+            summary.phaseDurations().forEach((phase, duration) -> sample(
+                text, "last_phase_duration_seconds", "phase=\"" + phase.name().toLowerCase(Locale.ROOT) + "\"",
+                duration.toNanos() / 1e9
+            ));
+            gauge(text, "last_files", "Files in the last backup.", summary.report().fileCount());
+            gauge(text, "last_read_bytes", "Bytes read by the last backup.", summary.report().inputBytes());
+            gauge(text, "last_files_per_second", "Files per second in the last backup.", summary.filesPerSecond());
+            if (summary.outputBytes() >= 0) {
+                gauge(text, "last_written_bytes", "Bytes written by the last backup.", summary.outputBytes());
+                gauge(text, "last_compression_ratio", "Size of the last backup divided by the size of its files.",
+                    summary.compressionRatio());
+            }
+        }
+        try {
+            // Write atomically, so the collector never sees half a file
+            var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tempFile, text, StandardCharsets.UTF_8);
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write metrics to {}", file, e);
+        }
+    }
+
+    private static void gauge(StringBuilder text, String name, String help, double value) {
+        metric(text, name, "gauge", help);
+        sample(text, name, null, value);
+    }
+
+    private static void metric(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, @Nullable String labels, double value) {
+        text.append(PREFIX).append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+}
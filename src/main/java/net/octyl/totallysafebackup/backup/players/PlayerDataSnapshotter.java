@@ -0,0 +1,214 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.players;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import net.minecraft.server.MinecraftServer;
+import net.octyl.totallysafebackup.backup.ChangeIndex;
+import net.octyl.totallysafebackup.backup.WorldFile;
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.target.DeduplicatingBackupTarget;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Snapshots the player data into its own deduplicated store, much more often than the whole world is backed up. A
+ * player's inventory can then be rolled back to a few minutes ago, rather than to the last full backup.
+ *
+ * <p>
+ * The game only writes these files on the server thread, so the players are saved and the changed files are read
+ * into memory there, in one task. That gives a consistent snapshot without blocking chunk saves, which happen on the
+ * IO threads and never touch these files. Storing the snapshot happens back on the calling thread.
+ * </p>
+ */
+public final class PlayerDataSnapshotter {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final HashFunction HASH = Hashing.sha256();
+    /**
+     * The directories the game keeps one file per player in, relative to the world.
+     */
+    private static final List<Path> PLAYER_DIRECTORIES = List.of(
+        Path.of("playerdata"), Path.of("advancements"), Path.of("stats")
+    );
+    private static final Path LEVEL_DAT = Path.of("level.dat");
+    /**
+     * Collecting garbage reads every manifest, so it only happens once this many snapshots have been pruned.
+     */
+    private static final int PRUNED_PER_COLLECTION = 12;
+
+    private record CapturedFile(WorldFile file, byte[] content) {
+    }
+
+    private record Capture(ChangeIndex index, List<CapturedFile> changed, int fileCount, long serverNanos) {
+    }
+
+    private final MinecraftServer server;
+    private final Path worldDir;
+    private final ContentStore store;
+    private final int keep;
+    private final Path indexFile;
+    private ChangeIndex index;
+    private int prunedSinceCollection;
+
+    /**
+     * Create a new snapshotter. Only one snapshot may be taken at a time.
+     *
+     * @param server the server to save the players of
+     * @param worldDir the world directory
+     * @param store the store to keep the snapshots in, which must not be shared with full backups
+     * @param keep the number of newest snapshots to keep
+     */
+    public PlayerDataSnapshotter(MinecraftServer server, Path worldDir, ContentStore store, int keep) {
+        Preconditions.checkArgument(keep > 0, "Must keep at least one snapshot");
+        this.server = server;
+        this.worldDir = worldDir;
+        this.store = store;
+        this.keep = keep;
+        this.indexFile = store.changeIndexPath();
+        this.index = ChangeIndex.load(indexFile);
+    }
+
+    /**
+     * Take a snapshot, then delete the snapshots past the newest {@code keep}. Must not be called on the server
+     * thread.
+     *
+     * @param name the name of the snapshot, which should sort by time
+     * @throws IOException if there is an error reading the player data or writing the snapshot
+     * @throws InterruptedException if interrupted while waiting on the server
+     */
+    public void snapshot(String name) throws IOException, InterruptedException {
+        Preconditions.checkState(!server.isSameThread(), "Can't wait for the server on the server thread");
+        try (var target = new DeduplicatingBackupTarget(store, name)) {
+            Capture capture;
+            try {
+                capture = server.submit(() -> {
+                    try {
+                        return capture(target);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException io) {
+                    throw io.getCause();
+                }
+                throw new IOException("Failed to capture player data", e.getCause());
+            }
+            for (var captured : capture.changed()) {
+                target.saveFile(captured.file().path(), output -> output.write(captured.content()));
+                capture.index().put(
+                    captured.file().path(),
+                    ChangeIndex.Entry.of(captured.file().attributes(), HASH.hashBytes(captured.content()))
+                );
+            }
+            target.commit();
+            index = capture.index();
+            LOGGER.debug(
+                "Snapshotted player data as {}: {} files, {} changed, {} ms on the server thread",
+                name, capture.fileCount(), capture.changed().size(),
+                Duration.ofNanos(capture.serverNanos()).toMillis()
+            );
+        }
+        try {
+            index.save(indexFile);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save player data change index", e);
+        }
+        prune();
+    }
+
+    /**
+     * Save the players, and read every file that changed since the last snapshot. Runs on the server thread, so
+     * nothing can be written in between.
+     */
+    private Capture capture(DeduplicatingBackupTarget target) throws IOException {
+        long startNanos = System.nanoTime();
+        server.getPlayerList().saveAll();
+        var nextIndex = new ChangeIndex(System.currentTimeMillis(), null);
+        var files = listPlayerFiles();
+        var changed = new ArrayList<CapturedFile>();
+        for (var file : files) {
+            var entry = index.findUnchanged(file.path(), file.attributes());
+            if (entry != null && target.saveUnchanged(file.path(), entry.contentHash())) {
+                nextIndex.put(file.path(), entry);
+            } else {
+                changed.add(new CapturedFile(file, Files.readAllBytes(file.source())));
+            }
+        }
+        return new Capture(nextIndex, changed, files.size(), System.nanoTime() - startNanos);
+    }
+
+    private List<WorldFile> listPlayerFiles() throws IOException {
+        var files = new ArrayList<WorldFile>();
+        addFile(files, LEVEL_DAT);
+        for (var directory : PLAYER_DIRECTORIES) {
+            var dir = worldDir.resolve(directory);
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            try (var entries = Files.newDirectoryStream(dir)) {
+                for (var entry : entries) {
+                    // The game's own backup of the previous save, we keep our own history
+                    if (!entry.getFileName().toString().endsWith("_old")) {
+                        addFile(files, directory.resolve(entry.getFileName()));
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    private void addFile(List<WorldFile> files, Path path) throws IOException {
+        var source = worldDir.resolve(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (attributes.isRegularFile()) {
+            files.add(new WorldFile(path, source, attributes));
+        }
+    }
+
+    private void prune() throws IOException {
+        var snapshots = store.listSnapshots();
+        if (snapshots.size() <= keep) {
+            return;
+        }
+        for (var name : snapshots.subList(0, snapshots.size() - keep)) {
+            Files.deleteIfExists(store.snapshotPath(name));
+            prunedSinceCollection++;
+        }
+        if (prunedSinceCollection >= PRUNED_PER_COLLECTION) {
+            prunedSinceCollection = 0;
+            var garbage = store.collectGarbage();
+            LOGGER.debug(
+                "Deleted {} unused player data blobs, {} bytes", garbage.blobCount(), garbage.blobBytes()
+            );
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.region;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The few top-level tags of a chunk that decide whether it can be regenerated instead of backed up. Only those
+ * tags are decoded, everything else in the chunk is skipped.
+ *
+ * @param status the generation status of the chunk, or {@code null} if it has none
+ * @param inhabitedTime the number of ticks players have spent near the chunk
+ */
+record ChunkTags(@Nullable String status, long inhabitedTime) {
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+    private static final int TAG_END = 0;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_COMPOUND = 10;
+
+    /**
+     * Read the tags of a chunk in a region file.
+     *
+     * @param file the whole region file
+     * @param start the offset of the chunk's length prefix
+     * @param length the length of the chunk, including its length prefix
+     * @return the tags, or {@code null} if the chunk is stored externally, uses an unknown compression, or can't be
+     *     decoded
+     */
+    @Nullable
+    static ChunkTags read(ByteBuffer file, int start, int length) {
+        if (length <= RegionFileHeader.CHUNK_PREFIX_SIZE) {
+            return null;
+        }
+        var data = new byte[length - RegionFileHeader.CHUNK_PREFIX_SIZE];
+        file.get(start + RegionFileHeader.CHUNK_PREFIX_SIZE, data);
+        InputStream raw = new ByteArrayInputStream(data);
+        try {
+            // External chunks set the high bit, their data is in a separate file
+            raw = switch (file.get(start + 4)) {
+                case COMPRESSION_GZIP -> new GZIPInputStream(raw);
+                case COMPRESSION_ZLIB -> new InflaterInputStream(raw);
+                case COMPRESSION_NONE -> raw;
+                default -> null;
+            };
+            if (raw == null) {
+                return null;
+            }
+            try (var input = new DataInputStream(new BufferedInputStream(raw))) {
+                return readRoot(input);
+            }
+        } catch (IOException | RuntimeException e) {
+            // The game will find out for itself, all we need to know is that it isn't safe to drop
+            return null;
+        }
+    }
+
+    @Nullable
+    private static ChunkTags readRoot(DataInputStream input) throws IOException {
+        if (input.readByte() != TAG_COMPOUND) {
+            return null;
+        }
+        skipString(input);
+        String status = null;
+        long inhabitedTime = -1;
+        while (status == null || inhabitedTime == -1) {
+            int type = input.readByte();
+            if (type == TAG_END) {
+                break;
+            }
+            var name = input.readUTF();
+            if (type == TAG_STRING && name.equals("Status")) {
+                status = input.readUTF();
+            } else if (type == TAG_LONG && name.equals("InhabitedTime")) {
+                inhabitedTime = input.readLong();
+            } else {
+                skipPayload(input, type);
+            }
+        }
+        // Without the time we can't tell if anyone has been here
+        return inhabitedTime == -1 ? null : new ChunkTags(status, inhabitedTime);
+    }
+
+    private static void skipString(DataInputStream input) throws IOException {
+        input.skipNBytes(input.readUnsignedShort());
+    }
+
+    private static void skipPayload(DataInputStream input, int type) throws IOException {
+        switch (type) {
+            case 1 -> input.skipNBytes(1);
+            case 2 -> input.skipNBytes(2);
+            case 3, 5 -> input.skipNBytes(4);
+            case 4, 6 -> input.skipNBytes(8);
+            case 7 -> input.skipNBytes(readCount(input));
+            case 8 -> skipString(input);
+            case 9 -> {
+                int elementType = input.readByte();
+                int count = readCount(input);
+                for (int i = 0; i < count; i++) {
+                    skipPayload(input, elementType);
+                }
+            }
+            case 10 -> {
+                int entryType;
+                while ((entryType = input.readByte()) != TAG_END) {
+                    skipString(input);
+                    skipPayload(input, entryType);
+                }
+            }
+            case 11 -> input.skipNBytes(readCount(input) * 4L);
+            case 12 -> input.skipNBytes(readCount(input) * 8L);
+            default -> throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static int readCount(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if (count < 0) {
+            throw new IOException("Negative length " + count);
+        }
+        return count;
+    }
+
+    /**
+     * {@return whether the chunk was fully generated, and so may have entities and points of interest in other files}
+     */
+    boolean isFullyGenerated() {
+        return status == null || status.equals("full") || status.equals("minecraft:full");
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.region;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Records which region files the game has written, so a backup can skip regions that haven't changed without reading
+ * them. Only whole regions are tracked, as a changed region is read and hashed whole however few chunks changed.
+ *
+ * <p>
+ * Writes are fed in by a mixin on the game's region file class, from whatever thread does the I/O. A backup takes a
+ * {@link #checkpoint()} while world saving is blocked. If its change index is saved, the checkpoint is
+ * {@linkplain Checkpoint#commit() committed}, otherwise it is {@linkplain Checkpoint#abort() aborted} and its writes
+ * are counted again for the next backup. So the tracker always holds every write since the saved change index was
+ * made, as long as both are from the same {@linkplain #getSession() session}.
+ * </p>
+ */
+public final class DirtyRegionTracker {
+    private static final DirtyRegionTracker INSTANCE = new DirtyRegionTracker();
+
+    /**
+     * Turn a region file path into the key the tracker uses for it. The game and the backup may see the world
+     * through different paths, so this resolves links in its directory where it can. That touches the disk, so
+     * callers should resolve each file once, or use {@link #directoryKey(Path)} for many files in one directory.
+     *
+     * @param regionFile the path of the region file
+     * @return the key
+     */
+    public static Path key(Path regionFile) {
+        var absolute = regionFile.toAbsolutePath();
+        return directoryKey(absolute.getParent()).resolve(absolute.getFileName());
+    }
+
+    /**
+     * Resolve a directory of region files, so that the {@linkplain #key(Path) key} of a region file in it is this
+     * {@linkplain Path#resolve(Path) resolved} with its file name.
+     *
+     * @param directory the directory
+     * @return the resolved directory
+     */
+    public static Path directoryKey(Path directory) {
+        try {
+            return directory.toRealPath();
+        } catch (IOException e) {
+            return directory.toAbsolutePath().normalize();
+        }
+    }
+
+    /**
+     * {@return the tracker for this JVM}
+     */
+    public static DirtyRegionTracker get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Regions written since a backup started, but not yet part of a finished one.
+     */
+    public static final class Checkpoint {
+        private final DirtyRegionTracker tracker;
+        private final UUID session;
+        private final Set<Path> regions;
+        private final long writeCount;
+        private boolean done;
+
+        private Checkpoint(DirtyRegionTracker tracker, UUID session, Set<Path> regions, long writeCount) {
+            this.tracker = tracker;
+            this.session = session;
+            this.regions = regions;
+            this.writeCount = writeCount;
+        }
+
+        /**
+         * {@return the session this checkpoint belongs to}
+         */
+        public UUID getSession() {
+            return session;
+        }
+
+        /**
+         * {@return the tracker's {@linkplain DirtyRegionTracker#getWriteCount() write count} when this was taken}
+         */
+        public long getWriteCount() {
+            return writeCount;
+        }
+
+        /**
+         * Check if a region file was written to.
+         *
+         * @param regionFile the {@linkplain DirtyRegionTracker#key(Path) key} of the region file
+         * @return {@code true} if any chunk in the region was written
+         */
+        public boolean isDirty(Path regionFile) {
+            return regions.contains(regionFile);
+        }
+
+        /**
+         * {@return the number of region files that were written to}
+         */
+        public int getDirtyRegionCount() {
+            return regions.size();
+        }
+
+        /**
+         * Forget the writes in this checkpoint, because a backup now covers them.
+         */
+        public void commit() {
+            Preconditions.checkState(!done, "Checkpoint is already finished");
+            done = true;
+        }
+
+        /**
+         * Put the writes in this checkpoint back in the tracker, because no backup covers them.
+         */
+        public void abort() {
+            Preconditions.checkState(!done, "Checkpoint is already finished");
+            done = true;
+            tracker.restore(this);
+        }
+    }
+
+    private UUID session = UUID.randomUUID();
+    private Set<Path> regions = new HashSet<>();
+    private long writeCount;
+
+    private DirtyRegionTracker() {
+    }
+
+    /**
+     * Forget everything and start a new session. Call this when a server starts, as writes from before it weren't
+     * seen.
+     */
+    public synchronized void reset() {
+        session = UUID.randomUUID();
+        regions = new HashSet<>();
+    }
+
+    /**
+     * {@return the current session, which changes every time the tracker is reset}
+     */
+    public synchronized UUID getSession() {
+        return session;
+    }
+
+    /**
+     * {@return the number of chunk writes recorded in this JVM, which only ever goes up}
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Record a write to a chunk in a region file.
+     *
+     * @param regionFile the {@linkplain #key(Path) key} of the region file
+     */
+    public synchronized void markWritten(Path regionFile) {
+        regions.add(regionFile);
+        writeCount++;
+    }
+
+    /**
+     * Take every write recorded so far, and start recording into an empty tracker.
+     *
+     * @return the writes recorded so far
+     */
+    public synchronized Checkpoint checkpoint() {
+        var checkpoint = new Checkpoint(this, session, regions, writeCount);
+        regions = new HashSet<>();
+        return checkpoint;
+    }
+
+    private synchronized void restore(Checkpoint checkpoint) {
+        if (!checkpoint.session.equals(session)) {
+            // The tracker was reset, these writes are from a session nobody trusts anymore
+            return;
+        }
+        regions.addAll(checkpoint.regions);
+    }
+}
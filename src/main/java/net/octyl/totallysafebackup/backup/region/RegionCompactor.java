@@ -0,0 +1,206 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.region;
+
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+/**
+ * Rewrites region files with only their live chunks. The game never shrinks a region file, and leaves the sectors
+ * of chunks that moved behind as garbage, so a busy region can be several times the size of its chunks.
+ *
+ * <p>
+ * The compacted file has each chunk in as few sectors as it needs, in chunk order, with the padding zeroed. The game
+ * reads it the same as the original.
+ * </p>
+ *
+ * <p>
+ * The compacted file isn't built in memory. Only its header is, and the chunks are written straight from the
+ * original, so a mapped region file can be compacted without copying it to the heap.
+ * </p>
+ */
+public final class RegionCompactor {
+    /**
+     * How to compact region files.
+     */
+    public enum Mode {
+        /**
+         * Copy region files as they are.
+         */
+        OFF,
+        /**
+         * Drop unused sectors and padding.
+         */
+        COMPACT,
+        /**
+         * Also drop chunks that no player has visited and that were never fully generated. The game generates them
+         * again from the seed when they are needed.
+         */
+        STRIP_UNVISITED,
+    }
+
+    private static final ByteBuffer ZEROS = ByteBuffer.wrap(new byte[RegionFileHeader.SECTOR_SIZE]).asReadOnlyBuffer();
+
+    /**
+     * A compacted region file, which refers to the original for the chunk data.
+     */
+    public static final class Result {
+        private final ByteBuffer file;
+        private final ByteBuffer header;
+        private final int[] starts;
+        private final int[] lengths;
+        private final long size;
+        private final int chunkCount;
+        private final int strippedCount;
+
+        private Result(
+            ByteBuffer file, ByteBuffer header, int[] starts, int[] lengths, long size, int chunkCount,
+            int strippedCount
+        ) {
+            this.file = file;
+            this.header = header;
+            this.starts = starts;
+            this.lengths = lengths;
+            this.size = size;
+            this.chunkCount = chunkCount;
+            this.strippedCount = strippedCount;
+        }
+
+        /**
+         * {@return the size of the compacted file}
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * {@return the number of chunks kept}
+         */
+        public int chunkCount() {
+            return chunkCount;
+        }
+
+        /**
+         * {@return the number of unvisited chunks dropped}
+         */
+        public int strippedCount() {
+            return strippedCount;
+        }
+
+        /**
+         * Write the compacted file. The original must not have changed since it was compacted.
+         *
+         * <p>
+         * The file is handed over as consecutive buffers, which are only valid until {@code output} returns. Safe to
+         * call more than once, and from another thread.
+         * </p>
+         *
+         * @param output the consumer of the buffers, which must consume all of each
+         * @throws IOException if {@code output} fails
+         */
+        public void write(IOConsumer<ByteBuffer> output) throws IOException {
+            if (header.limit() == 0) {
+                // Too short to have a header, so it's copied as it is
+                output.accept(file.duplicate());
+                return;
+            }
+            output.accept(header.duplicate());
+            for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+                if (lengths[i] == -1) {
+                    continue;
+                }
+                output.accept(file.slice(starts[i], lengths[i]));
+                int padding = RegionFileHeader.sectorsFor(lengths[i]) * RegionFileHeader.SECTOR_SIZE - lengths[i];
+                if (padding > 0) {
+                    output.accept(ZEROS.duplicate().limit(padding));
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if a region file holds terrain, rather than entities or points of interest. Only terrain records whether
+     * a chunk has been visited.
+     *
+     * @param path the path of the region file
+     * @return {@code true} if the file is in a {@code region} directory
+     */
+    public static boolean isTerrain(Path path) {
+        var parent = path.getParent();
+        return parent != null && parent.getFileName() != null && parent.getFileName().toString().equals("region");
+    }
+
+    /**
+     * Compact a region file.
+     *
+     * @param file the whole region file, which must stay unchanged while the result is used
+     * @param stripUnvisited whether to drop chunks that no player has visited, only for {@linkplain #isTerrain(Path)
+     *     terrain}
+     * @return the compacted file
+     */
+    public static Result compact(ByteBuffer file, boolean stripUnvisited) {
+        if (file.limit() < RegionFileHeader.SIZE) {
+            // An empty or truncated file has no chunks, the game fixes it up when it opens it
+            return new Result(file.duplicate(), ByteBuffer.allocate(0), new int[0], new int[0], file.limit(), 0, 0);
+        }
+        var header = RegionFileHeader.read(file);
+        var lengths = new int[RegionFileHeader.CHUNK_COUNT];
+        long size = RegionFileHeader.SIZE;
+        int chunkCount = 0;
+        int strippedCount = 0;
+        for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+            // A chunk with an invalid location is dropped, the same as the game does when it reads one
+            lengths[i] = header.chunkLength(i, file);
+            if (lengths[i] == -1) {
+                continue;
+            }
+            if (stripUnvisited && isUnvisited(file, header, i, lengths[i])) {
+                lengths[i] = -1;
+                strippedCount++;
+                continue;
+            }
+            size += RegionFileHeader.sectorsFor(lengths[i]) * (long) RegionFileHeader.SECTOR_SIZE;
+            chunkCount++;
+        }
+        var compactedHeader = ByteBuffer.allocate(RegionFileHeader.SIZE).order(ByteOrder.BIG_ENDIAN);
+        var starts = new int[RegionFileHeader.CHUNK_COUNT];
+        int sector = RegionFileHeader.SIZE / RegionFileHeader.SECTOR_SIZE;
+        for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+            if (lengths[i] == -1) {
+                continue;
+            }
+            starts[i] = header.sectorOffset(i) * RegionFileHeader.SECTOR_SIZE;
+            int sectors = RegionFileHeader.sectorsFor(lengths[i]);
+            compactedHeader.putInt(i * 4, sector << 8 | sectors);
+            compactedHeader.putInt(RegionFileHeader.SECTOR_SIZE + i * 4, header.timestamp(i));
+            sector += sectors;
+        }
+        return new Result(file.duplicate(), compactedHeader, starts, lengths, size, chunkCount, strippedCount);
+    }
+
+    /**
+     * Check if a chunk can be regenerated instead of kept. Fully generated chunks are always kept, even if nobody
+     * visited them, as their entities and points of interest are in other region files that would disagree with a
+     * regenerated chunk.
+     */
+    private static boolean isUnvisited(ByteBuffer file, RegionFileHeader header, int index, int length) {
+        var tags = ChunkTags.read(file, header.sectorOffset(index) * RegionFileHeader.SECTOR_SIZE, length);
+        return tags != null && tags.inhabitedTime() == 0 && !tags.isFullyGenerated();
+    }
+
+    private RegionCompactor() {
+    }
+}
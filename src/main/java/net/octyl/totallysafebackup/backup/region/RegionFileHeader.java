@@ -0,0 +1,167 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.region;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+
+/**
+ * The header of an Anvil region file ({@code .mca}), which locates each of the 32x32 chunks in the file.
+ *
+ * <p>
+ * The file is split into 4 KiB sectors. The first sector holds a location for each chunk, the second holds the last
+ * time each chunk was written. Each chunk's data starts with a big-endian length, which counts the compression type
+ * byte that follows it.
+ * </p>
+ */
+public final class RegionFileHeader {
+    /**
+     * The size of a sector in a region file.
+     */
+    public static final int SECTOR_SIZE = 4096;
+    /**
+     * The number of chunks in a region file.
+     */
+    public static final int CHUNK_COUNT = 1024;
+    /**
+     * The size of the header.
+     */
+    public static final int SIZE = 2 * SECTOR_SIZE;
+    /**
+     * The size of the length and compression type that prefix each chunk's data.
+     */
+    public static final int CHUNK_PREFIX_SIZE = 5;
+
+    /**
+     * Check if a path looks like a region file.
+     *
+     * @param path the path to check
+     * @return {@code true} if the path has the region file extension
+     */
+    public static boolean isRegionFile(Path path) {
+        var fileName = path.getFileName();
+        return fileName != null && fileName.toString().endsWith(".mca");
+    }
+
+    /**
+     * Get the index of a chunk in its region file.
+     *
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @return the index of the chunk
+     */
+    public static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    /**
+     * Get the number of sectors needed to hold a chunk.
+     *
+     * @param length the length of the chunk, including its length prefix
+     * @return the number of sectors
+     */
+    public static int sectorsFor(int length) {
+        return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+    /**
+     * Read a header from the start of the given buffer. The buffer's position is not changed.
+     *
+     * @param data the buffer to read from, must have at least {@link #SIZE} bytes
+     * @return the header
+     */
+    public static RegionFileHeader read(ByteBuffer data) {
+        var view = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        var locations = new int[CHUNK_COUNT];
+        var timestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            locations[i] = view.getInt(i * 4);
+        }
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            timestamps[i] = view.getInt(SECTOR_SIZE + i * 4);
+        }
+        return new RegionFileHeader(locations, timestamps);
+    }
+
+    private final int[] locations;
+    private final int[] timestamps;
+
+    private RegionFileHeader(int[] locations, int[] timestamps) {
+        this.locations = locations;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Check if a chunk is present in the file.
+     *
+     * @param index the chunk index
+     * @return {@code true} if the chunk has a location
+     */
+    public boolean hasChunk(int index) {
+        return locations[index] != 0;
+    }
+
+    /**
+     * Get the sector a chunk starts at.
+     *
+     * @param index the chunk index
+     * @return the first sector of the chunk
+     */
+    public int sectorOffset(int index) {
+        return locations[index] >>> 8;
+    }
+
+    /**
+     * Get the number of sectors a chunk occupies.
+     *
+     * @param index the chunk index
+     * @return the number of sectors
+     */
+    public int sectorCount(int index) {
+        return locations[index] & 0xFF;
+    }
+
+    /**
+     * Get the last time a chunk was written.
+     *
+     * @param index the chunk index
+     * @return the timestamp, in seconds since the epoch
+     */
+    public int timestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Find the number of meaningful bytes a chunk occupies, including its length prefix. Sector padding after the
+     * chunk data is not counted.
+     *
+     * @param index the chunk index
+     * @param file the whole region file
+     * @return the length of the chunk, or {@code -1} if the chunk is absent or its location is invalid
+     */
+    public int chunkLength(int index, ByteBuffer file) {
+        if (!hasChunk(index)) {
+            return -1;
+        }
+        long start = (long) sectorOffset(index) * SECTOR_SIZE;
+        long allocated = (long) sectorCount(index) * SECTOR_SIZE;
+        if (start < SIZE || start + 4 > file.limit()) {
+            return -1;
+        }
+        long length = 4L + Integer.toUnsignedLong(file.duplicate().order(ByteOrder.BIG_ENDIAN).getInt((int) start));
+        if (length > allocated || start + length > file.limit()) {
+            return -1;
+        }
+        return (int) length;
+    }
+}
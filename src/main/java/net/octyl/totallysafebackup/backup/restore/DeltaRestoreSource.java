@@ -0,0 +1,71 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import net.octyl.totallysafebackup.backup.target.DeltaArchiveReader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * Restores from a delta archive, rebuilding the wanted files from the backups it is based on.
+ */
+final class DeltaRestoreSource implements RestoreSource {
+    private final DeltaArchiveReader reader;
+
+    DeltaRestoreSource(Path archive) throws IOException {
+        this.reader = DeltaArchiveReader.open(archive);
+    }
+
+    @Override
+    public Optional<Map<String, Long>> index() {
+        var index = new HashMap<String, Long>();
+        for (var entry : reader.entries()) {
+            index.put(entry.path(), entry.size());
+        }
+        return Optional.of(index);
+    }
+
+    @Override
+    public void read(Predicate<String> wanted, EntryConsumer consumer, Executor executor) throws IOException {
+        var entries = new ArrayList<DeltaArchiveReader.Entry>();
+        for (var entry : reader.entries()) {
+            if (wanted.test(entry.path())) {
+                entries.add(entry);
+            }
+        }
+        // Largest first, so the biggest files don't start last and hold up the end of the restore
+        entries.sort(Comparator.comparingLong(DeltaArchiveReader.Entry::size).reversed());
+        var reads = new ArrayList<ParallelReads.Read>(entries.size());
+        for (var entry : entries) {
+            reads.add(() -> {
+                try (var content = reader.open(entry.path())) {
+                    consumer.accept(entry.path(), entry.size(), content);
+                }
+            });
+        }
+        ParallelReads.runAll(List.copyOf(reads), executor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
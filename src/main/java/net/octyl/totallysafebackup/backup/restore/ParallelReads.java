@@ -0,0 +1,101 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs reads in parallel, stopping at the first failure.
+ */
+final class ParallelReads {
+    /**
+     * A read of one file.
+     */
+    @FunctionalInterface
+    interface Read {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run every read, and wait for them. Reads that haven't started when one fails are skipped.
+     *
+     * @param reads the reads
+     * @param executor the executor to run them on
+     * @throws IOException from the first read that failed
+     */
+    static void runAll(List<Read> reads, Executor executor) throws IOException {
+        var failed = new AtomicBoolean();
+        var futures = new ArrayList<CompletableFuture<Void>>(reads.size());
+        for (Read read : reads) {
+            futures.add(CompletableFuture.runAsync(() -> {
+                if (failed.get()) {
+                    throw new CancellationException();
+                }
+                try {
+                    read.run();
+                } catch (IOException e) {
+                    failed.set(true);
+                    throw new CompletionException(e);
+                } catch (Throwable t) {
+                    failed.set(true);
+                    throw t;
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get();
+        } catch (InterruptedException e) {
+            failed.set(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while restoring");
+        } catch (ExecutionException e) {
+            // Report the read that failed, not one that was skipped because of it
+            for (var future : futures) {
+                if (!future.isCompletedExceptionally()) {
+                    continue;
+                }
+                try {
+                    future.join();
+                } catch (CompletionException failure) {
+                    var cause = failure.getCause();
+                    if (cause instanceof CancellationException) {
+                        // Skipped, look for the one that failed
+                        continue;
+                    }
+                    if (cause instanceof IOException io) {
+                        throw io;
+                    }
+                    if (cause instanceof RuntimeException runtime) {
+                        throw runtime;
+                    }
+                    if (cause instanceof Error error) {
+                        throw error;
+                    }
+                    throw new IOException(cause);
+                }
+            }
+            throw new IOException("Restore failed", e.getCause());
+        }
+    }
+
+    private ParallelReads() {
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Rebuilds a region file from the chunks of two others.
+ */
+final class RegionMerger {
+    /**
+     * Merge a region file from a backup into the one it is restored over. The result is laid out compactly, with
+     * each chunk in as few sectors as it needs, in chunk order.
+     *
+     * @param regionX the region X coordinate
+     * @param regionZ the region Z coordinate
+     * @param restored the region file from the backup, for the selected chunks
+     * @param existing the region file being restored over, for the other chunks, or {@code null} if there is none
+     * @param selection decides which chunks come from the backup
+     * @return the merged region file
+     */
+    static ByteBuffer merge(
+        int regionX, int regionZ, ByteBuffer restored, @Nullable ByteBuffer existing, RestoreSelection selection
+    ) {
+        var restoredHeader = readHeader(restored);
+        var existingHeader = existing == null ? null : readHeader(existing);
+        var sources = new ByteBuffer[RegionFileHeader.CHUNK_COUNT];
+        var headers = new RegionFileHeader[RegionFileHeader.CHUNK_COUNT];
+        var lengths = new int[RegionFileHeader.CHUNK_COUNT];
+        long size = RegionFileHeader.SIZE;
+        for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+            int chunkX = regionX * 32 + (i & 31);
+            int chunkZ = regionZ * 32 + (i >> 5);
+            if (selection.includesChunk(chunkX, chunkZ)) {
+                sources[i] = restored;
+                headers[i] = restoredHeader;
+            } else {
+                sources[i] = existing;
+                headers[i] = existingHeader;
+            }
+            // A chunk with an invalid location is dropped, the same as the game does when it reads one
+            lengths[i] = headers[i] == null ? -1 : headers[i].chunkLength(i, sources[i]);
+            if (lengths[i] != -1) {
+                size += RegionFileHeader.sectorsFor(lengths[i]) * (long) RegionFileHeader.SECTOR_SIZE;
+            }
+        }
+        var merged = ByteBuffer.allocate(Math.toIntExact(size)).order(ByteOrder.BIG_ENDIAN);
+        int sector = RegionFileHeader.SIZE / RegionFileHeader.SECTOR_SIZE;
+        for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+            if (lengths[i] == -1) {
+                continue;
+            }
+            int start = headers[i].sectorOffset(i) * RegionFileHeader.SECTOR_SIZE;
+            merged.put(sector * RegionFileHeader.SECTOR_SIZE, sources[i], start, lengths[i]);
+            int sectors = RegionFileHeader.sectorsFor(lengths[i]);
+            merged.putInt(i * 4, sector << 8 | sectors);
+            merged.putInt(RegionFileHeader.SECTOR_SIZE + i * 4, headers[i].timestamp(i));
+            sector += sectors;
+        }
+        return merged;
+    }
+
+    @Nullable
+    private static RegionFileHeader readHeader(ByteBuffer file) {
+        // An empty or truncated file has no chunks
+        return file.limit() < RegionFileHeader.SIZE ? null : RegionFileHeader.read(file);
+    }
+
+    private RegionMerger() {
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Restores files from backups into a directory, extracting them in parallel where the backup allows it.
+ *
+ * <p>
+ * Each file is written to a temporary file next to it and moved into place once complete, so an interrupted restore
+ * never leaves a partial file under a real name. Restoring into the live world is not supported, the server must be
+ * stopped to swap the restored files in.
+ * </p>
+ */
+public final class RestoreEngine {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * What a restore did.
+     *
+     * @param destination the directory files were restored into
+     * @param fileCount the number of files restored
+     * @param byteCount the number of bytes restored
+     * @param elapsed how long the restore took
+     */
+    public record Report(Path destination, long fileCount, long byteCount, Duration elapsed) {
+    }
+
+    private final int threads;
+
+    /**
+     * Create a new restore engine.
+     *
+     * @param threads the number of files to restore at once
+     */
+    public RestoreEngine(int threads) {
+        Preconditions.checkArgument(threads > 0, "Must have at least one thread");
+        this.threads = threads;
+    }
+
+    /**
+     * Restore part of a backup.
+     *
+     * @param source the backup to restore from
+     * @param selection the part of the backup to restore
+     * @param destination the directory to restore into, files already in it are replaced
+     * @param baseDir the directory to take unselected chunks from when a region file is only partly restored and
+     *     doesn't exist in {@code destination} yet, usually the world, or {@code null} to leave them out
+     * @return a report of what was restored
+     * @throws IOException if there is an error restoring, or there isn't enough space for the restored files
+     */
+    public Report restore(RestoreSource source, RestoreSelection selection, Path destination, @Nullable Path baseDir)
+        throws IOException {
+        long start = System.nanoTime();
+        var root = Files.createDirectories(destination).toAbsolutePath().normalize();
+        var index = source.index();
+        if (index.isPresent()) {
+            // Fail before writing anything, rather than leaving a half restored directory behind
+            long needed = index.get().entrySet().stream()
+                .filter(e -> selection.includes(e.getKey()))
+                .mapToLong(Map.Entry::getValue)
+                .sum();
+            long usable = Files.getFileStore(root).getUsableSpace();
+            if (needed > usable) {
+                throw new IOException(
+                    "Restoring " + selection + " needs " + needed + " bytes, but only " + usable + " are free"
+                );
+            }
+        }
+        var fileCount = new AtomicLong();
+        var byteCount = new AtomicLong();
+        var executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-restore-%d")
+            .build());
+        try {
+            source.read(selection::includes, (path, size, content) -> {
+                var target = resolve(root, path);
+                if (selection.isPartial(path)) {
+                    var merged = mergeRegion(path, target, baseDir, content, selection);
+                    writeFile(target, merged.limit(), new ByteArrayInputStream(merged.array(), 0, merged.limit()));
+                } else {
+                    writeFile(target, size, content);
+                }
+                fileCount.incrementAndGet();
+                byteCount.addAndGet(Files.size(target));
+            }, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+        var report = new Report(
+            root, fileCount.get(), byteCount.get(), Duration.ofNanos(System.nanoTime() - start)
+        );
+        LOGGER.info(
+            "Restored {} into {}: {} files, {} bytes in {} ms",
+            selection, root, report.fileCount(), report.byteCount(), report.elapsed().toMillis()
+        );
+        return report;
+    }
+
+    private static Path resolve(Path root, String path) throws IOException {
+        var target = root.resolve(path).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Refusing to restore " + path + ", it is outside of " + root);
+        }
+        return target;
+    }
+
+    private static ByteBuffer mergeRegion(
+        String path, Path target, @Nullable Path baseDir, InputStream content, RestoreSelection selection
+    ) throws IOException {
+        var region = RestoreSelection.regionCoordinates(path);
+        Preconditions.checkState(region != null, "Not a region file: %s", path);
+        var restored = ByteBuffer.wrap(content.readAllBytes());
+        // Restores of several boxes build on each other, before falling back to the base
+        ByteBuffer existing = null;
+        if (Files.exists(target)) {
+            existing = ByteBuffer.wrap(Files.readAllBytes(target));
+        } else if (baseDir != null && Files.exists(baseDir.resolve(path))) {
+            existing = ByteBuffer.wrap(Files.readAllBytes(baseDir.resolve(path)));
+        }
+        return RegionMerger.merge(region[0], region[1], restored, existing, selection);
+    }
+
+    private static void writeFile(Path target, long size, InputStream content) throws IOException {
+        Files.createDirectories(target.getParent());
+        var tempFile = target.resolveSibling(target.getFileName() + ".restoring");
+        try {
+            try (var file = new RandomAccessFile(tempFile.toFile(), "rw")) {
+                // Java can't reserve space directly, but sizing the file up front lets the file system allocate it
+                // in one go, rather than extending it on every write
+                file.setLength(Math.max(0, size));
+                var channel = file.getChannel();
+                var buffer = new byte[BUFFER_SIZE];
+                long written = 0;
+                int read;
+                while ((read = content.read(buffer)) != -1) {
+                    var chunk = ByteBuffer.wrap(buffer, 0, read);
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    written += read;
+                }
+                if (size >= 0 && written != size) {
+                    throw new IOException("Expected " + size + " bytes for " + target + ", but read " + written);
+                }
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * The part of a backup to restore. Paths are relative to the world, using {@code /} as a separator.
+ */
+public final class RestoreSelection {
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    private static final Pattern EXTERNAL_CHUNK_FILE = Pattern.compile("c\\.(-?\\d+)\\.(-?\\d+)\\.mcc");
+    /**
+     * The directories of a dimension that hold chunk data, all in region files.
+     */
+    private static final Set<String> CHUNK_DIRECTORIES = Set.of("region", "entities", "poi");
+
+    /**
+     * {@return a selection of the whole backup}
+     */
+    public static RestoreSelection all() {
+        return new RestoreSelection("everything", path -> true, null);
+    }
+
+    /**
+     * Select one dimension. For the overworld, that is only its chunk data, as the rest of the world's root directory
+     * is shared by every dimension.
+     *
+     * @param dimension the dimension's ID, e.g. {@code minecraft:the_nether}
+     * @return the selection
+     */
+    public static RestoreSelection dimension(String dimension) {
+        var directory = dimensionDirectory(dimension);
+        if (directory.isEmpty()) {
+            return new RestoreSelection(
+                "dimension " + dimension,
+                path -> {
+                    int slash = path.indexOf('/');
+                    return slash != -1 && CHUNK_DIRECTORIES.contains(path.substring(0, slash));
+                },
+                null
+            );
+        }
+        return new RestoreSelection("dimension " + dimension, path -> path.startsWith(directory), null);
+    }
+
+    /**
+     * Select one file, or every file in one directory.
+     *
+     * @param path the path of the file or directory
+     * @return the selection
+     */
+    public static RestoreSelection file(String path) {
+        var normalized = path.replace('\\', '/');
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        Preconditions.checkArgument(!normalized.isEmpty(), "Path must not be empty");
+        var file = normalized;
+        var directory = normalized + "/";
+        return new RestoreSelection(file, p -> p.equals(file) || p.startsWith(directory), null);
+    }
+
+    /**
+     * Select the files the game keeps for some players: their inventory and position, advancements, and statistics.
+     *
+     * @param players the UUIDs of the players
+     * @return the selection
+     */
+    public static RestoreSelection players(Collection<UUID> players) {
+        Preconditions.checkArgument(!players.isEmpty(), "Must select at least one player");
+        var files = new HashSet<String>();
+        for (var player : players) {
+            files.add("playerdata/" + player + ".dat");
+            files.add("advancements/" + player + ".json");
+            files.add("stats/" + player + ".json");
+        }
+        return new RestoreSelection(
+            players.size() == 1 ? "player " + players.iterator().next() : players.size() + " players",
+            files::contains,
+            null
+        );
+    }
+
+    /**
+     * Select the chunks in a box. Region files that are only partly in the box are rebuilt with the selected chunks
+     * from the backup, and the other chunks from the file being restored over.
+     *
+     * @param dimension the dimension's ID, e.g. {@code minecraft:overworld}
+     * @param fromX the chunk X coordinate of one corner
+     * @param fromZ the chunk Z coordinate of one corner
+     * @param toX the chunk X coordinate of the opposite corner
+     * @param toZ the chunk Z coordinate of the opposite corner
+     * @return the selection
+     */
+    public static RestoreSelection chunks(String dimension, int fromX, int fromZ, int toX, int toZ) {
+        var box = new ChunkBox(
+            dimensionDirectory(dimension),
+            Math.min(fromX, toX), Math.min(fromZ, toZ), Math.max(fromX, toX), Math.max(fromZ, toZ)
+        );
+        return new RestoreSelection(
+            String.format(Locale.ROOT, "chunks %d,%d to %d,%d in %s",
+                box.minX, box.minZ, box.maxX, box.maxZ, dimension),
+            box::includes,
+            box
+        );
+    }
+
+    /**
+     * Find the directory a dimension is saved in, relative to the world.
+     *
+     * @param dimension the dimension's ID, assumed to be in the {@code minecraft} namespace if it has none
+     * @return the directory, ending with {@code /}, or an empty string for the overworld
+     */
+    public static String dimensionDirectory(String dimension) {
+        int colon = dimension.indexOf(':');
+        var namespace = colon == -1 ? "minecraft" : dimension.substring(0, colon);
+        var path = dimension.substring(colon + 1);
+        Preconditions.checkArgument(
+            !namespace.isEmpty() && !path.isEmpty() && !path.contains("..") && !namespace.contains("/"),
+            "Invalid dimension %s", dimension
+        );
+        if (namespace.equals("minecraft")) {
+            var vanilla = switch (path) {
+                case "overworld" -> "";
+                case "the_nether" -> "DIM-1/";
+                case "the_end" -> "DIM1/";
+                default -> null;
+            };
+            if (vanilla != null) {
+                return vanilla;
+            }
+        }
+        return "dimensions/" + namespace + "/" + path + "/";
+    }
+
+    private final String description;
+    private final Predicate<String> files;
+    @Nullable
+    private final ChunkBox chunkBox;
+
+    private RestoreSelection(String description, Predicate<String> files, @Nullable ChunkBox chunkBox) {
+        this.description = description;
+        this.files = files;
+        this.chunkBox = chunkBox;
+    }
+
+    /**
+     * Check if a file in the backup is restored, in whole or in part.
+     *
+     * @param path the path of the file
+     * @return {@code true} if the file is restored
+     */
+    public boolean includes(String path) {
+        return files.test(path);
+    }
+
+    /**
+     * Check if only some of the chunks in a region file are restored.
+     *
+     * @param path the path of the file
+     * @return {@code true} if the file is a region file that is only partly selected
+     */
+    public boolean isPartial(String path) {
+        return chunkBox != null && chunkBox.isPartial(path);
+    }
+
+    /**
+     * Check if a chunk is restored. Only meaningful for files that are {@linkplain #isPartial(String) partial}.
+     *
+     * @param chunkX the chunk X coordinate
+     * @param chunkZ the chunk Z coordinate
+     * @return {@code true} if the chunk is in the selection
+     */
+    public boolean includesChunk(int chunkX, int chunkZ) {
+        return chunkBox == null || chunkBox.contains(chunkX, chunkZ);
+    }
+
+    /**
+     * Get the coordinates of a region file from its name.
+     *
+     * @param path the path of the file
+     * @return the region X and Z coordinates, or {@code null} if the file isn't a region file
+     */
+    @Nullable
+    static int[] regionCoordinates(String path) {
+        var matcher = REGION_FILE.matcher(path.substring(path.lastIndexOf('/') + 1));
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            return new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * A box of chunks in one dimension, inclusive on all sides.
+     */
+    private record ChunkBox(String directory, int minX, int minZ, int maxX, int maxZ) {
+        boolean contains(int chunkX, int chunkZ) {
+            return chunkX >= minX && chunkX <= maxX && chunkZ >= minZ && chunkZ <= maxZ;
+        }
+
+        /**
+         * {@return the file name, if the path is directly in one of this dimension's chunk directories}
+         */
+        @Nullable
+        private String chunkFileName(String path) {
+            if (!path.startsWith(directory)) {
+                return null;
+            }
+            var rest = path.substring(directory.length());
+            int slash = rest.indexOf('/');
+            if (slash == -1 || rest.indexOf('/', slash + 1) != -1
+                || !CHUNK_DIRECTORIES.contains(rest.substring(0, slash))) {
+                return null;
+            }
+            return rest.substring(slash + 1);
+        }
+
+        boolean includes(String path) {
+            var fileName = chunkFileName(path);
+            if (fileName == null) {
+                return false;
+            }
+            var region = regionCoordinates(fileName);
+            if (region != null) {
+                long regionMinX = region[0] * 32L;
+                long regionMinZ = region[1] * 32L;
+                return regionMinX <= maxX && regionMinX + 31 >= minX && regionMinZ <= maxZ && regionMinZ + 31 >= minZ;
+            }
+            // Chunks too big for their region file are stored next to it
+            var external = EXTERNAL_CHUNK_FILE.matcher(fileName);
+            try {
+                return external.matches()
+                    && contains(Integer.parseInt(external.group(1)), Integer.parseInt(external.group(2)));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+
+        boolean isPartial(String path) {
+            var fileName = chunkFileName(path);
+            var region = fileName == null ? null : regionCoordinates(fileName);
+            if (region == null) {
+                return false;
+            }
+            long regionMinX = region[0] * 32L;
+            long regionMinZ = region[1] * 32L;
+            return regionMinX < minX || regionMinX + 31 > maxX || regionMinZ < minZ || regionMinZ + 31 > maxZ;
+        }
+    }
+}
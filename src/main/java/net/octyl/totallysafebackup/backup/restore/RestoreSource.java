@@ -0,0 +1,136 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import net.octyl.totallysafebackup.backup.verify.ChecksumManifest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+
+/**
+ * A backup to restore files from.
+ */
+public interface RestoreSource extends Closeable {
+    /**
+     * Open a zip archive. Entries are located through its central directory, and read in parallel.
+     *
+     * @param archive the archive
+     * @return the source
+     * @throws IOException if the archive can't be opened
+     */
+    static RestoreSource zip(Path archive) throws IOException {
+        return new ZipRestoreSource(archive);
+    }
+
+    /**
+     * Open a compressed tar archive. A tar archive has no index, so it is read from the start. If it has
+     * {@linkplain ChecksumManifest checksums}, reading stops as soon as every wanted file has been read.
+     *
+     * @param archive the archive
+     * @param codec the codec it is compressed with
+     * @return the source
+     * @throws IOException if the checksums can't be read
+     */
+    static RestoreSource tar(Path archive, TarCodec codec) throws IOException {
+        var manifestFile = ChecksumManifest.pathFor(archive);
+        var manifest = Files.exists(manifestFile) ? ChecksumManifest.read(manifestFile) : null;
+        return new TarRestoreSource(archive, codec, manifest);
+    }
+
+    /**
+     * Open a snapshot in a content store. Files are located through the snapshot's manifest, and read in parallel.
+     *
+     * @param store the store
+     * @param name the name of the snapshot
+     * @return the source
+     * @throws IOException if the manifest can't be read
+     */
+    static RestoreSource snapshot(ContentStore store, String name) throws IOException {
+        return new SnapshotRestoreSource(store, store.readSnapshot(name));
+    }
+
+    /**
+     * Open a delta archive. Files are located through its index, and rebuilt from the archives it is based on, which
+     * must be in the same directory.
+     *
+     * @param archive the archive
+     * @return the source
+     * @throws IOException if the archive can't be opened
+     */
+    static RestoreSource delta(Path archive) throws IOException {
+        return new DeltaRestoreSource(archive);
+    }
+
+    /**
+     * Receives the content of a file.
+     */
+    @FunctionalInterface
+    interface EntryConsumer {
+        /**
+         * Accept a file.
+         *
+         * @param path the path of the file, relative to the world, using {@code /} as a separator
+         * @param size the size of the file
+         * @param content the content of the file, only valid during this call
+         * @throws IOException if there is an error handling the file
+         */
+        void accept(String path, long size, InputStream content) throws IOException;
+    }
+
+    /**
+     * Get the files in the backup and their sizes, without reading their content.
+     *
+     * @return the files, or empty if the backup has no index to read them from
+     * @throws IOException if there is an error reading the index
+     */
+    Optional<Map<String, Long>> index() throws IOException;
+
+    /**
+     * Read the wanted files. Returns once every file has been consumed, or one has failed.
+     *
+     * @param wanted decides which files to read
+     * @param consumer the consumer of the files, called from several threads at once if the source supports it
+     * @param executor the executor to read files on in parallel
+     * @throws IOException if there is an error reading a file, or from the consumer
+     */
+    void read(Predicate<String> wanted, EntryConsumer consumer, Executor executor) throws IOException;
+
+    /**
+     * Read part of one file. Sources that can seek, like a zip archive with the file stored uncompressed or a
+     * snapshot, read only the wanted range. Others read the file from its start up to the range.
+     *
+     * @param path the path of the file, relative to the world, using {@code /} as a separator
+     * @param offset the offset of the range in the file
+     * @param length the most bytes to read
+     * @return the bytes of the range, fewer than {@code length} if the file ends first, or empty if the backup
+     *     doesn't have the file
+     * @throws IOException if there is an error reading the file
+     */
+    default Optional<byte[]> readRange(String path, long offset, int length) throws IOException {
+        var range = new AtomicReference<byte[]>();
+        read(path::equals, (p, size, content) -> {
+            content.skipNBytes(Math.min(offset, size));
+            range.set(content.readNBytes(length));
+        }, Runnable::run);
+        return Optional.ofNullable(range.get());
+    }
+}
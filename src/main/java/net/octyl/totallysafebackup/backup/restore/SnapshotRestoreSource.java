@@ -0,0 +1,185 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.store.SnapshotManifest;
+
+import javax.annotation.Nullable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * Restores from a snapshot in a content store, reading only the blobs of the wanted files.
+ */
+final class SnapshotRestoreSource implements RestoreSource {
+    private final ContentStore store;
+    private final SnapshotManifest manifest;
+
+    SnapshotRestoreSource(ContentStore store, SnapshotManifest manifest) {
+        this.store = store;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public Optional<Map<String, Long>> index() {
+        var index = new HashMap<String, Long>();
+        for (var file : manifest.files()) {
+            index.put(file.path(), file.size());
+        }
+        return Optional.of(index);
+    }
+
+    @Override
+    public void read(Predicate<String> wanted, EntryConsumer consumer, Executor executor) throws IOException {
+        var files = new ArrayList<SnapshotManifest.FileEntry>();
+        for (var file : manifest.files()) {
+            if (wanted.test(file.path())) {
+                files.add(file);
+            }
+        }
+        // Largest first, so the biggest files don't start last and hold up the end of the restore
+        files.sort(Comparator.comparingLong(SnapshotManifest.FileEntry::size).reversed());
+        var reads = new ArrayList<ParallelReads.Read>(files.size());
+        for (var file : files) {
+            reads.add(() -> {
+                try (var content = new PieceInputStream(file)) {
+                    consumer.accept(file.path(), file.size(), content);
+                }
+            });
+        }
+        ParallelReads.runAll(List.copyOf(reads), executor);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Rebuilds a file from its pieces, zero-filling the gaps between them.
+     */
+    private final class PieceInputStream extends InputStream {
+        private final SnapshotManifest.FileEntry file;
+        private final Iterator<SnapshotManifest.Piece> pieces;
+        @Nullable
+        private SnapshotManifest.Piece next;
+        @Nullable
+        private SnapshotManifest.Piece currentPiece;
+        @Nullable
+        private InputStream current;
+        private long position;
+
+        private PieceInputStream(SnapshotManifest.FileEntry file) {
+            this.file = file;
+            var sorted = new ArrayList<>(file.pieces());
+            sorted.sort(Comparator.comparingLong(SnapshotManifest.Piece::offset));
+            this.pieces = sorted.iterator();
+            this.next = pieces.hasNext() ? pieces.next() : null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current != null) {
+                    long currentEnd = currentPiece.offset() + currentPiece.length();
+                    if (position < currentEnd) {
+                        int read = current.read(b, off, (int) Math.min(len, currentEnd - position));
+                        if (read == -1) {
+                            throw new EOFException(
+                                "Blob " + currentPiece.hash() + " of " + file.path() + " is truncated"
+                            );
+                        }
+                        position += read;
+                        return read;
+                    }
+                    current.close();
+                    current = null;
+                }
+                long gapEnd = next == null ? file.size() : next.offset();
+                if (position < gapEnd) {
+                    int zeros = (int) Math.min(len, gapEnd - position);
+                    Arrays.fill(b, off, off + zeros, (byte) 0);
+                    position += zeros;
+                    return zeros;
+                }
+                if (next == null) {
+                    return -1;
+                }
+                if (next.offset() < position) {
+                    throw new IOException("Pieces of " + file.path() + " overlap");
+                }
+                currentPiece = next;
+                current = Files.newInputStream(store.blobPath(next.hash()));
+                next = pieces.hasNext() ? pieces.next() : null;
+            }
+        }
+
+        /**
+         * Skip ahead without opening the blobs of the pieces skipped over.
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            long start = position;
+            long target = Math.min(position + Math.max(n, 0), file.size());
+            if (current != null) {
+                long currentEnd = currentPiece.offset() + currentPiece.length();
+                if (target < currentEnd) {
+                    current.skipNBytes(target - position);
+                    position = target;
+                    return target - start;
+                }
+                current.close();
+                current = null;
+            }
+            while (next != null && next.offset() + next.length() <= target) {
+                next = pieces.hasNext() ? pieces.next() : null;
+            }
+            if (next != null && next.offset() < target) {
+                currentPiece = next;
+                current = Files.newInputStream(store.blobPath(next.hash()));
+                current.skipNBytes(target - next.offset());
+                next = pieces.hasNext() ? pieces.next() : null;
+            }
+            position = target;
+            return target - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+}
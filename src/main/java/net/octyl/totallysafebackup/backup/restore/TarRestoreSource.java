@@ -0,0 +1,89 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import net.octyl.totallysafebackup.backup.target.TarArchiveReader;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import net.octyl.totallysafebackup.backup.verify.ChecksumManifest;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * Restores from a compressed tar archive. The archive is one compressed stream, so it is read by a single thread.
+ */
+final class TarRestoreSource implements RestoreSource {
+    private final Path archive;
+    private final TarCodec codec;
+    @Nullable
+    private final ChecksumManifest manifest;
+
+    TarRestoreSource(Path archive, TarCodec codec, @Nullable ChecksumManifest manifest) {
+        this.archive = archive;
+        this.codec = codec;
+        this.manifest = manifest;
+    }
+
+    @Override
+    public Optional<Map<String, Long>> index() {
+        if (manifest == null) {
+            return Optional.empty();
+        }
+        var index = new HashMap<String, Long>();
+        manifest.entries().forEach((name, entry) -> index.put(name, entry.size()));
+        return Optional.of(index);
+    }
+
+    @Override
+    public void read(Predicate<String> wanted, EntryConsumer consumer, Executor executor) throws IOException {
+        // Without checksums we can't know that the last wanted entry has been read, so the whole archive is
+        HashSet<String> remaining = null;
+        if (manifest != null) {
+            remaining = new HashSet<>();
+            for (String name : manifest.entries().keySet()) {
+                if (wanted.test(name)) {
+                    remaining.add(name);
+                }
+            }
+            if (remaining.isEmpty()) {
+                return;
+            }
+        }
+        try (var tar = new TarArchiveReader(codec.unwrap(
+            new BufferedInputStream(Files.newInputStream(archive), 64 * 1024)
+        ))) {
+            TarArchiveReader.Entry entry;
+            while ((entry = tar.next()) != null) {
+                if (!wanted.test(entry.name())) {
+                    continue;
+                }
+                consumer.accept(entry.name(), entry.size(), tar.content());
+                if (remaining != null && remaining.remove(entry.name()) && remaining.isEmpty()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Restores from a zip archive, reading only the wanted entries through the central directory.
+ */
+final class ZipRestoreSource implements RestoreSource {
+    private final ZipFile zip;
+
+    ZipRestoreSource(Path archive) throws IOException {
+        this.zip = new ZipFile(archive.toFile());
+    }
+
+    @Override
+    public Optional<Map<String, Long>> index() {
+        var index = new HashMap<String, Long>();
+        zip.stream()
+            .filter(e -> !e.isDirectory())
+            .forEach(e -> index.put(e.getName(), e.getSize()));
+        return Optional.of(index);
+    }
+
+    @Override
+    public void read(Predicate<String> wanted, EntryConsumer consumer, Executor executor) throws IOException {
+        var entries = new ArrayList<ZipEntry>();
+        zip.stream()
+            .filter(e -> !e.isDirectory() && wanted.test(e.getName()))
+            .forEach(entries::add);
+        // Largest first, so the biggest entries don't start last and hold up the end of the restore
+        entries.sort(Comparator.comparingLong(ZipEntry::getSize).reversed());
+        var reads = new ArrayList<ParallelReads.Read>(entries.size());
+        for (ZipEntry entry : entries) {
+            reads.add(() -> {
+                try (var content = zip.getInputStream(entry)) {
+                    consumer.accept(entry.getName(), entry.getSize(), content);
+                }
+            });
+        }
+        ParallelReads.runAll(List.copyOf(reads), executor);
+    }
+
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+}
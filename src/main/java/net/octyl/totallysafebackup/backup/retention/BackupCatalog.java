@@ -0,0 +1,277 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.retention;
+
+import com.google.common.base.Preconditions;
+import net.octyl.totallysafebackup.backup.verify.ChecksumManifest;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Every backup that retention is responsible for, kept in memory and saved next to the backups. Retention works from
+ * the catalog, so it never needs to list the backup directory, which can be slow on network storage.
+ *
+ * <p>
+ * Thread-safe, backups are added and pruned on the backup thread while the verifier marks them on its own.
+ * </p>
+ */
+public final class BackupCatalog {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x54534243; // TSBC
+    private static final int VERSION = 3;
+
+    /**
+     * A backup in the catalog.
+     *
+     * @param name the name of the backup, which sorts by time
+     * @param format the format of the backup
+     * @param createdAt when the backup was made
+     * @param sizeBytes the space the backup uses on its own, or {@code 0} if it shares its space with other backups
+     * @param path the file to delete to remove the backup, relative to the catalog
+     * @param deduplicated whether the backup is a snapshot in a content store, whose blobs must be collected
+     *     separately
+     * @param verifiedAt when the backup was last verified, or {@code null} if it never was
+     * @param corrupt whether verification found the backup corrupt
+     * @param base the backup this one only holds the changes since, which is kept as long as this one is, or
+     *     {@code null} if it stands on its own
+     */
+    public record Entry(String name, String format, Instant createdAt, long sizeBytes, String path,
+                        boolean deduplicated, @Nullable Instant verifiedAt, boolean corrupt, @Nullable String base) {
+        /**
+         * Create a new entry.
+         */
+        public Entry {
+            Preconditions.checkArgument(sizeBytes >= 0, "Size must not be negative");
+        }
+
+        /**
+         * Copy this entry with the result of a verification.
+         *
+         * @param verifiedAt when the backup was verified
+         * @param corrupt whether the backup is corrupt
+         * @return the new entry
+         */
+        public Entry withVerification(Instant verifiedAt, boolean corrupt) {
+            return new Entry(name, format, createdAt, sizeBytes, path, deduplicated, verifiedAt, corrupt, base);
+        }
+    }
+
+    /**
+     * Load a catalog.
+     *
+     * @param file the file to load from
+     * @return the catalog, or empty if it doesn't exist or can't be read, in which case it should be rebuilt
+     */
+    public static Optional<BackupCatalog> load(Path file) {
+        try (var input = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file))
+        ))) {
+            int version = input.readInt() == MAGIC ? input.readInt() : -1;
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Not a supported backup catalog");
+            }
+            var catalog = new BackupCatalog(file);
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                var name = input.readUTF();
+                var format = input.readUTF();
+                var createdAt = Instant.ofEpochMilli(input.readLong());
+                long sizeBytes = input.readLong();
+                var path = input.readUTF();
+                boolean deduplicated = input.readBoolean();
+                Instant verifiedAt = null;
+                boolean corrupt = false;
+                if (version >= 2) {
+                    long verifiedAtMillis = input.readLong();
+                    verifiedAt = verifiedAtMillis < 0 ? null : Instant.ofEpochMilli(verifiedAtMillis);
+                    corrupt = input.readBoolean();
+                }
+                var base = version >= 3 && input.readBoolean() ? input.readUTF() : null;
+                catalog.add(new Entry(
+                    name, format, createdAt, sizeBytes, path, deduplicated, verifiedAt, corrupt, base
+                ));
+            }
+            return Optional.of(catalog);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load backup catalog from {}, it will be rebuilt", file, e);
+            return Optional.empty();
+        }
+    }
+
+    private final Path file;
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Create an empty catalog.
+     *
+     * @param file the file to save to
+     */
+    public BackupCatalog(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * {@return the directory that entry paths are relative to}
+     */
+    public Path getDirectory() {
+        return file.toAbsolutePath().getParent();
+    }
+
+    /**
+     * {@return every backup, oldest first}
+     */
+    public synchronized List<Entry> entries() {
+        return List.copyOf(entries.values());
+    }
+
+    /**
+     * Find a backup by name.
+     *
+     * @param name the name of the backup
+     * @return the backup, if it is in the catalog
+     */
+    public synchronized Optional<Entry> get(String name) {
+        return Optional.ofNullable(entries.get(name));
+    }
+
+    /**
+     * Add a backup, replacing any with the same name.
+     *
+     * @param entry the backup
+     */
+    public synchronized void add(Entry entry) {
+        entries.put(entry.name(), entry);
+    }
+
+    /**
+     * Remove a backup.
+     *
+     * @param name the name of the backup
+     */
+    public synchronized void remove(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * Record the result of verifying a backup, if it is still in the catalog.
+     *
+     * @param name the name of the backup
+     * @param verifiedAt when it was verified
+     * @param corrupt whether it is corrupt
+     */
+    public synchronized void markVerified(String name, Instant verifiedAt, boolean corrupt) {
+        entries.computeIfPresent(name, (k, entry) -> entry.withVerification(verifiedAt, corrupt));
+    }
+
+    /**
+     * Save this catalog, replacing the file atomically.
+     *
+     * @throws IOException if there is an error saving
+     */
+    public synchronized void save() throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(Files.newOutputStream(tempFile))
+        ))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            var values = new ArrayList<>(entries.values());
+            output.writeInt(values.size());
+            for (Entry entry : values) {
+                output.writeUTF(entry.name());
+                output.writeUTF(entry.format());
+                output.writeLong(entry.createdAt().toEpochMilli());
+                output.writeLong(entry.sizeBytes());
+                output.writeUTF(entry.path());
+                output.writeBoolean(entry.deduplicated());
+                output.writeLong(entry.verifiedAt() == null ? -1 : entry.verifiedAt().toEpochMilli());
+                output.writeBoolean(entry.corrupt());
+                output.writeBoolean(entry.base() != null);
+                if (entry.base() != null) {
+                    output.writeUTF(entry.base());
+                }
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Delete the backups a policy doesn't keep, along with their checksums, and remove them from the catalog. Backups
+     * that can't be deleted stay in the catalog, to be tried again next time. The catalog is not saved.
+     *
+     * <p>
+     * The bases of kept backups are kept too, even if the policy wouldn't keep them, as the backups built on them
+     * can't be restored without them. They may take the kept backups over the policy's quota.
+     * </p>
+     *
+     * @param policy the policy to apply
+     * @return the backups that were deleted
+     */
+    public synchronized List<Entry> prune(RetentionPolicy policy) {
+        var expired = policy.selectExpired(List.copyOf(entries.values()));
+        var expiredNames = new HashSet<String>();
+        for (Entry entry : expired) {
+            expiredNames.add(entry.name());
+        }
+        var needed = new HashSet<String>();
+        for (Entry entry : entries.values()) {
+            if (expiredNames.contains(entry.name())) {
+                continue;
+            }
+            var base = entry.base();
+            while (base != null && needed.add(base)) {
+                var baseEntry = entries.get(base);
+                base = baseEntry == null ? null : baseEntry.base();
+            }
+        }
+        var deleted = new ArrayList<Entry>();
+        var directory = getDirectory();
+        for (Entry entry : expired) {
+            if (needed.contains(entry.name())) {
+                continue;
+            }
+            var file = directory.resolve(entry.path());
+            try {
+                Files.deleteIfExists(file);
+                Files.deleteIfExists(ChecksumManifest.pathFor(file));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to delete old backup {}", entry.name(), e);
+                continue;
+            }
+            LOGGER.info("Deleted {} backup {}", entry.corrupt() ? "corrupt" : "old", entry.name());
+            entries.remove(entry.name());
+            deleted.add(entry);
+        }
+        return deleted;
+    }
+}
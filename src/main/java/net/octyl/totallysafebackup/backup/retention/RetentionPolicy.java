@@ -0,0 +1,127 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.retention;
+
+import com.google.common.base.Preconditions;
+
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Which backups to keep, as a grandfather-father-son rotation with an optional size quota.
+ *
+ * <p>
+ * Each rotation keeps the newest backup of each of its most recent periods, e.g. {@code daily = 7} keeps the newest
+ * backup of each of the last 7 days that have one. A backup is kept if any rotation keeps it. The quota then drops
+ * the oldest kept backups until the rest fit, but never the newest one.
+ * </p>
+ *
+ * <p>
+ * Backups that verification found corrupt are never kept, and don't count towards any rotation, so a period whose
+ * newest backup is corrupt keeps an older intact one instead.
+ * </p>
+ *
+ * @param keepLast the number of newest backups to always keep, at least {@code 1}
+ * @param hourly the number of hours to keep a backup for
+ * @param daily the number of days to keep a backup for
+ * @param weekly the number of ISO weeks to keep a backup for
+ * @param monthly the number of months to keep a backup for
+ * @param maxTotalBytes the most space the kept backups may use, or {@code 0} for no limit. Backups that share their
+ *     space, like deduplicated snapshots, count as nothing.
+ * @param zone the time zone that periods start in
+ */
+public record RetentionPolicy(int keepLast, int hourly, int daily, int weekly, int monthly, long maxTotalBytes,
+                              ZoneId zone) {
+    /**
+     * Create a new policy.
+     */
+    public RetentionPolicy {
+        Preconditions.checkArgument(keepLast >= 1, "Must keep at least the newest backup");
+        Preconditions.checkArgument(hourly >= 0 && daily >= 0 && weekly >= 0 && monthly >= 0,
+            "Rotation counts must not be negative");
+        Preconditions.checkArgument(maxTotalBytes >= 0, "Quota must not be negative");
+    }
+
+    /**
+     * Find the backups this policy doesn't keep. This is a single pass over the backups, plus one per rotation.
+     *
+     * @param backups every backup, oldest first
+     * @return the backups to delete, oldest first
+     */
+    public List<BackupCatalog.Entry> selectExpired(List<BackupCatalog.Entry> backups) {
+        int count = backups.size();
+        var newestFirst = new ArrayList<>(backups);
+        Collections.reverse(newestFirst);
+        var keep = new boolean[count];
+        for (int i = 0, kept = 0; i < count && kept < keepLast; i++) {
+            if (!newestFirst.get(i).corrupt()) {
+                keep[i] = true;
+                kept++;
+            }
+        }
+        keepOnePerPeriod(newestFirst, keep, hourly, time -> time.truncatedTo(ChronoUnit.HOURS));
+        keepOnePerPeriod(newestFirst, keep, daily, ZonedDateTime::toLocalDate);
+        keepOnePerPeriod(newestFirst, keep, weekly, time ->
+            time.get(IsoFields.WEEK_BASED_YEAR) * 100 + time.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR));
+        keepOnePerPeriod(newestFirst, keep, monthly, YearMonth::from);
+        if (maxTotalBytes > 0) {
+            long total = 0;
+            boolean newest = true;
+            for (int i = 0; i < count; i++) {
+                if (!keep[i]) {
+                    continue;
+                }
+                total += newestFirst.get(i).sizeBytes();
+                if (!newest && total > maxTotalBytes) {
+                    // Over the quota, everything older goes
+                    for (int j = i; j < count; j++) {
+                        keep[j] = false;
+                    }
+                    break;
+                }
+                newest = false;
+            }
+        }
+        var expired = new ArrayList<BackupCatalog.Entry>();
+        for (int i = count - 1; i >= 0; i--) {
+            if (!keep[i]) {
+                expired.add(newestFirst.get(i));
+            }
+        }
+        return expired;
+    }
+
+    private void keepOnePerPeriod(
+        List<BackupCatalog.Entry> newestFirst, boolean[] keep, int periods, Function<ZonedDateTime, Object> period
+    ) {
+        Object lastPeriod = null;
+        int kept = 0;
+        for (int i = 0; i < newestFirst.size() && kept < periods; i++) {
+            if (newestFirst.get(i).corrupt()) {
+                continue;
+            }
+            var entryPeriod = period.apply(newestFirst.get(i).createdAt().atZone(zone));
+            if (!entryPeriod.equals(lastPeriod)) {
+                keep[i] = true;
+                lastPeriod = entryPeriod;
+                kept++;
+            }
+        }
+    }
+}
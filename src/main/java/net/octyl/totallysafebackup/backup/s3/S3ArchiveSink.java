@@ -0,0 +1,133 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.base.Preconditions;
+import net.octyl.totallysafebackup.backup.target.ArchiveSink;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link ArchiveSink} that uploads the archive as a multipart upload as it is written. A part is sent as soon as it
+ * fills, while the next one is filled.
+ */
+final class S3ArchiveSink implements ArchiveSink {
+    private final S3Uploader uploader;
+    private final String key;
+    private final String uploadId;
+    private final boolean resumable;
+    private final List<CompletableFuture<UploadJournal.UploadedPart>> parts = new ArrayList<>();
+    @Nullable
+    private volatile Throwable failure;
+    @Nullable
+    private byte[] current;
+    private int length;
+    private boolean committed;
+    private boolean closed;
+
+    S3ArchiveSink(S3Uploader uploader, String key, String uploadId, boolean resumable) {
+        this.uploader = uploader;
+        this.key = key;
+        this.uploadId = uploadId;
+        this.resumable = resumable;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (committed || closed) {
+            throw new ClosedChannelException();
+        }
+        var failed = failure;
+        if (failed != null) {
+            throw new IOException("Failed to upload " + key, failed);
+        }
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (current == null) {
+                current = uploader.acquirePart();
+                length = 0;
+            }
+            int count = Math.min(src.remaining(), current.length - length);
+            src.get(current, length, count);
+            length += count;
+            if (length == current.length) {
+                sendCurrent();
+            }
+        }
+        return written;
+    }
+
+    private void sendCurrent() {
+        var data = current;
+        current = null;
+        if (data == null) {
+            return;
+        }
+        var part = uploader.uploadPart(key, uploadId, parts.size() + 1, data, length, null);
+        part.whenComplete((ignored, error) -> {
+            if (error != null && failure == null) {
+                failure = error;
+            }
+        });
+        parts.add(part);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !committed && !closed;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed && !closed, "Sink is already committed or closed");
+        if (current == null && parts.isEmpty()) {
+            // An empty archive is still one empty part
+            current = uploader.acquirePart();
+            length = 0;
+        }
+        sendCurrent();
+        uploader.complete(key, uploadId, parts);
+        committed = true;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            uploader.releasePart(current);
+            current = null;
+        }
+        try {
+            if (!committed) {
+                // Let the parts in flight finish, so they don't race the abort or a resume
+                S3Uploader.awaitQuietly(parts);
+                uploader.abandon(key, uploadId, resumable);
+            }
+        } finally {
+            uploader.release(key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "S3ArchiveSink[" + uploader.getClient().getEndpoint().bucket() + "/" + key + "]";
+    }
+}
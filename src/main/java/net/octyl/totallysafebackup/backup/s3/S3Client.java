@@ -0,0 +1,284 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nullable;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of the S3 API for multipart uploads, over {@link HttpClient}. Works with AWS and with S3-compatible
+ * stores like MinIO.
+ *
+ * <p>
+ * Thread-safe, parts of one upload are meant to be sent from several threads at once.
+ * </p>
+ *
+ * <p>
+ * Not final, so tests can stand in for the store without a server.
+ * </p>
+ */
+public class S3Client {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(5);
+
+    /**
+     * A part of a multipart upload, as the store knows it.
+     *
+     * @param number the part number, from {@code 1}
+     * @param etag the entity tag the store returned for the part, which completing the upload needs
+     * @param size the size of the part
+     */
+    public record Part(int number, String etag, long size) {
+    }
+
+    private final S3Endpoint endpoint;
+    private final SigV4Signer signer;
+    private final HttpClient http;
+
+    /**
+     * Create a new client.
+     *
+     * @param endpoint the bucket to talk to
+     */
+    public S3Client(S3Endpoint endpoint) {
+        this.endpoint = endpoint;
+        this.signer = new SigV4Signer(endpoint.region(), endpoint.accessKey(), endpoint.secretKey());
+        this.http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    }
+
+    /**
+     * {@return the bucket this client talks to}
+     */
+    public S3Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Start a multipart upload.
+     *
+     * @param key the key of the object to upload
+     * @return the upload ID
+     * @throws IOException if the request fails
+     */
+    public String createMultipartUpload(String key) throws IOException {
+        var response = send("POST", key, "uploads", null, 0, null, 0, "Failed to start upload of " + key);
+        return text(parse(response), "UploadId");
+    }
+
+    /**
+     * Upload a part of a multipart upload. Sending the same part number again replaces the part.
+     *
+     * @param key the key of the object
+     * @param uploadId the upload ID
+     * @param number the part number, from {@code 1}
+     * @param data the array holding the part
+     * @param length the size of the part, from the start of {@code data}
+     * @param sha256 the SHA-256 of the part, which the request is signed with
+     * @return the uploaded part
+     * @throws IOException if the request fails
+     */
+    public Part uploadPart(String key, String uploadId, int number, byte[] data, int length, HashCode sha256)
+        throws IOException {
+        var response = send(
+            "PUT", key, "partNumber=" + number + "&uploadId=" + S3Endpoint.encode(uploadId, false),
+            data, length, sha256, 0, "Failed to upload part " + number + " of " + key
+        );
+        var etag = response.headers().firstValue("ETag")
+            .orElseThrow(() -> new IOException("No ETag for part " + number + " of " + key));
+        return new Part(number, etag, length);
+    }
+
+    /**
+     * List the parts the store has for a multipart upload.
+     *
+     * @param key the key of the object
+     * @param uploadId the upload ID
+     * @return the parts, by part number
+     * @throws IOException if the request fails, e.g. with {@code NoSuchUpload} if the upload is gone
+     */
+    public List<Part> listParts(String key, String uploadId) throws IOException {
+        var parts = new ArrayList<Part>();
+        int marker = 0;
+        while (true) {
+            var response = send(
+                "GET", key, "part-number-marker=" + marker + "&uploadId=" + S3Endpoint.encode(uploadId, false),
+                null, 0, null, 0, "Failed to list parts of " + key
+            );
+            var document = parse(response);
+            var elements = document.getElementsByTagName("Part");
+            for (int i = 0; i < elements.getLength(); i++) {
+                var element = (Element) elements.item(i);
+                parts.add(new Part(
+                    Integer.parseInt(text(element, "PartNumber")),
+                    text(element, "ETag"),
+                    Long.parseLong(text(element, "Size"))
+                ));
+            }
+            var truncated = document.getElementsByTagName("IsTruncated");
+            if (truncated.getLength() == 0 || !Boolean.parseBoolean(truncated.item(0).getTextContent().strip())) {
+                return parts;
+            }
+            marker = Integer.parseInt(text(document.getDocumentElement(), "NextPartNumberMarker"));
+        }
+    }
+
+    /**
+     * Complete a multipart upload, which makes the object appear.
+     *
+     * @param key the key of the object
+     * @param uploadId the upload ID
+     * @param parts every part of the object, in order
+     * @throws IOException if the request fails
+     */
+    public void completeMultipartUpload(String key, String uploadId, List<Part> parts) throws IOException {
+        var body = new StringBuilder("<CompleteMultipartUpload>");
+        for (var part : parts) {
+            body.append("<Part><PartNumber>").append(part.number()).append("</PartNumber><ETag>")
+                .append(part.etag().replace("&", "&amp;").replace("<", "&lt;"))
+                .append("</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+        var bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        var response = send(
+            "POST", key, "uploadId=" + S3Endpoint.encode(uploadId, false),
+            bytes, bytes.length, null, 0, "Failed to complete upload of " + key
+        );
+        // The store can fail after sending a successful status, it then reports the error in the body
+        var document = parse(response);
+        if (document.getDocumentElement().getTagName().equals("Error")) {
+            throw new S3Exception(
+                "Failed to complete upload of " + key, 500, text(document.getDocumentElement(), "Code")
+            );
+        }
+    }
+
+    /**
+     * Abort a multipart upload, which deletes its parts.
+     *
+     * @param key the key of the object
+     * @param uploadId the upload ID
+     * @throws IOException if the request fails
+     */
+    public void abortMultipartUpload(String key, String uploadId) throws IOException {
+        send(
+            "DELETE", key, "uploadId=" + S3Endpoint.encode(uploadId, false),
+            null, 0, null, 404, "Failed to abort upload of " + key
+        );
+    }
+
+    /**
+     * Delete an object. Deleting an object that doesn't exist succeeds.
+     *
+     * @param key the key of the object
+     * @throws IOException if the request fails
+     */
+    public void deleteObject(String key) throws IOException {
+        send("DELETE", key, null, null, 0, null, 404, "Failed to delete " + key);
+    }
+
+    private HttpResponse<byte[]> send(
+        String method, String key, @Nullable String query, @Nullable byte[] body, int length,
+        @Nullable HashCode bodySha256, int alsoAccepted, String failure
+    ) throws IOException {
+        var objectUri = endpoint.objectUri(key);
+        var uri = query == null ? objectUri : URI.create(objectUri + "?" + query);
+        String payloadSha256;
+        if (body == null) {
+            payloadSha256 = SigV4Signer.EMPTY_PAYLOAD_SHA256;
+        } else if (bodySha256 != null) {
+            payloadSha256 = bodySha256.toString();
+        } else {
+            payloadSha256 = Hashing.sha256().hashBytes(body, 0, length).toString();
+        }
+        var builder = HttpRequest.newBuilder(uri)
+            .timeout(REQUEST_TIMEOUT)
+            .method(method, body == null
+                ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofByteArray(body, 0, length));
+        signer.sign(method, uri, Map.of(), payloadSha256, Instant.now()).forEach(builder::header);
+        HttpResponse<byte[]> response;
+        try {
+            response = http.send(builder.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(failure + ": interrupted");
+        }
+        int status = response.statusCode();
+        if (status / 100 != 2 && status != alsoAccepted) {
+            var errorCode = "";
+            try {
+                errorCode = text(parse(response).getDocumentElement(), "Code");
+            } catch (IOException e) {
+                // No error document, the status will have to do
+            }
+            throw new S3Exception(failure, status, errorCode);
+        }
+        return response;
+    }
+
+    private static Document parse(HttpResponse<byte[]> response) throws IOException {
+        try {
+            var factory = DocumentBuilderFactory.newInstance();
+            // Responses never need a DTD, so don't let one reach out anywhere
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_DTD, "");
+            factory.setAttribute(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "");
+            return factory.newDocumentBuilder().parse(new ByteArrayInputStream(response.body()));
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Invalid response from " + response.uri(), e);
+        }
+    }
+
+    private static String text(Document document, String tag) throws IOException {
+        return text(document.getDocumentElement(), tag);
+    }
+
+    private static String text(Element parent, String tag) throws IOException {
+        if (parent.getTagName().equals(tag)) {
+            return parent.getTextContent().strip();
+        }
+        var elements = parent.getElementsByTagName(tag);
+        if (elements.getLength() == 0) {
+            throw new IOException("Response is missing " + tag);
+        }
+        return elements.item(0).getTextContent().strip();
+    }
+
+    @Override
+    public String toString() {
+        return "S3Client[" + endpoint + "]";
+    }
+}
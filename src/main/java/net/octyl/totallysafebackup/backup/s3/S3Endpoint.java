@@ -0,0 +1,93 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.base.Preconditions;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Where a bucket in an S3-compatible object store is, and how to sign requests to it.
+ *
+ * @param endpoint the base URI of the service, e.g. {@code https://s3.us-east-1.amazonaws.com} or
+ *     {@code http://localhost:9000}
+ * @param region the region to sign requests for
+ * @param bucket the bucket to store objects in
+ * @param pathStyle whether the bucket is addressed in the path rather than the host name, which most
+ *     self-hosted stores need
+ * @param accessKey the access key ID
+ * @param secretKey the secret access key
+ */
+public record S3Endpoint(
+    URI endpoint, String region, String bucket, boolean pathStyle, String accessKey, String secretKey
+) {
+    /**
+     * Create a new endpoint.
+     */
+    public S3Endpoint {
+        Preconditions.checkArgument(
+            "http".equals(endpoint.getScheme()) || "https".equals(endpoint.getScheme()),
+            "Endpoint must be an http or https URI"
+        );
+        Preconditions.checkArgument(endpoint.getHost() != null, "Endpoint must have a host");
+        Preconditions.checkArgument(!region.isEmpty(), "Region must not be empty");
+        Preconditions.checkArgument(!bucket.isEmpty(), "Bucket must not be empty");
+    }
+
+    /**
+     * Encode a string for a URI, as S3 expects for both paths and signatures.
+     *
+     * @param value the value to encode
+     * @param keepSlash whether to leave {@code /} as is, for paths
+     * @return the encoded value
+     */
+    static String encode(String value, boolean keepSlash) {
+        var encoded = new StringBuilder(value.length());
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+                || c == '-' || c == '.' || c == '_' || c == '~' || (keepSlash && c == '/')) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                    .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Get the URI of an object, without a query.
+     *
+     * @param key the object's key
+     * @return the URI
+     */
+    URI objectUri(String key) {
+        var base = endpoint.getRawPath() == null ? "" : endpoint.getRawPath();
+        if (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        if (pathStyle) {
+            return URI.create(endpoint.getScheme() + "://" + endpoint.getRawAuthority()
+                + base + "/" + encode(bucket, false) + "/" + encode(key, true));
+        }
+        return URI.create(endpoint.getScheme() + "://" + bucket + "." + endpoint.getRawAuthority()
+            + base + "/" + encode(key, true));
+    }
+
+    @Override
+    public String toString() {
+        // Never log the secret
+        return "S3Endpoint[" + endpoint + ", region=" + region + ", bucket=" + bucket + "]";
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import java.io.IOException;
+
+/**
+ * An error response from an object store.
+ */
+public final class S3Exception extends IOException {
+    private final int statusCode;
+    private final String errorCode;
+
+    /**
+     * Create a new exception.
+     *
+     * @param message what was being done
+     * @param statusCode the HTTP status code
+     * @param errorCode the S3 error code, e.g. {@code NoSuchUpload}, or an empty string if there was none
+     */
+    public S3Exception(String message, int statusCode, String errorCode) {
+        super(message + ": HTTP " + statusCode + (errorCode.isEmpty() ? "" : " " + errorCode));
+        this.statusCode = statusCode;
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * {@return the HTTP status code}
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * {@return the S3 error code, or an empty string if there was none}
+     */
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * {@return whether the request may succeed if it is sent again}
+     */
+    public boolean isRetryable() {
+        return statusCode >= 500 || statusCode == 429 || statusCode == 408
+            || errorCode.equals("RequestTimeout") || errorCode.equals("SlowDown");
+    }
+}
@@ -0,0 +1,471 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.octyl.totallysafebackup.backup.target.ArchiveSink;
+import org.apache.commons.io.function.IOSupplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads archives to an object store with multipart uploads.
+ *
+ * <p>
+ * Parts are uploaded on a pool of threads, several at once. The parts waiting to be uploaded or being uploaded are
+ * held in memory, up to a fixed number of them, after which whoever is filling the next part waits. Every request is
+ * retried with a growing delay, so a brief outage only slows an upload down.
+ * </p>
+ *
+ * <p>
+ * Each upload and the parts it has uploaded are recorded in a journal. If an upload is interrupted and there is a
+ * local copy of the archive, {@link #resumePending()} finishes it, and only uploads the parts the store doesn't
+ * already have. Interrupted uploads without a local copy can't be finished, and are aborted so their parts don't
+ * cost storage.
+ * </p>
+ */
+public final class S3Uploader implements Closeable {
+    /**
+     * The smallest part size the store accepts, for every part but the last.
+     */
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final long MAX_RETRY_DELAY_MILLIS = 30_000;
+
+    private final S3Client client;
+    private final UploadJournal journal;
+    private final int partSize;
+    private final int maxAttempts;
+    private final Semaphore partPermits;
+    private final Queue<byte[]> idleParts = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executor;
+    /**
+     * Runs {@link #resumePending()} for {@link #resumePendingLater()}. Separate from the upload threads, as resuming
+     * waits on them.
+     */
+    private final ExecutorService resumeExecutor;
+    /**
+     * Set while a {@link #resumePendingLater()} is waiting to start. One that has started may have passed new uploads
+     * by, so another can still be queued behind it.
+     */
+    private final AtomicBoolean resumeQueued = new AtomicBoolean();
+    private final Set<String> activeKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a new uploader.
+     *
+     * @param client the client for the store to upload to
+     * @param journalFile the file to record unfinished uploads in
+     * @param partSize the size of every part but the last, at least {@link #MIN_PART_SIZE}
+     * @param memoryParts the most parts to hold in memory at once, at least {@code 2}
+     * @param threads the number of parts to upload at once
+     * @param maxAttempts the number of times to try each request before giving up
+     */
+    public S3Uploader(S3Client client, Path journalFile, int partSize, int memoryParts, int threads, int maxAttempts) {
+        Preconditions.checkArgument(partSize >= MIN_PART_SIZE, "Parts must be at least %s bytes", MIN_PART_SIZE);
+        Preconditions.checkArgument(memoryParts >= 2, "Must hold at least two parts in memory");
+        Preconditions.checkArgument(threads > 0, "Must have at least one upload thread");
+        Preconditions.checkArgument(maxAttempts > 0, "Must try at least once");
+        this.client = client;
+        this.journal = UploadJournal.load(journalFile);
+        this.partSize = partSize;
+        this.maxAttempts = maxAttempts;
+        this.partPermits = new Semaphore(memoryParts);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-upload-%d")
+            .build());
+        this.resumeExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-upload-resume-%d")
+            .build());
+    }
+
+    /**
+     * {@return the client this uploader uses}
+     */
+    public S3Client getClient() {
+        return client;
+    }
+
+    /**
+     * Start uploading an archive as it is written.
+     *
+     * @param key the key to upload to
+     * @param source the local copy of the archive, to resume from if the upload is interrupted, or {@code null} if
+     *     there is none
+     * @return the sink to write the archive to, which completes the upload when committed
+     * @throws IOException if the upload can't be started
+     */
+    public ArchiveSink openSink(String key, @Nullable Path source) throws IOException {
+        Preconditions.checkState(activeKeys.add(key), "Already uploading %s", key);
+        try {
+            var uploadId = withRetries("start upload of " + key, () -> client.createMultipartUpload(key));
+            journal.put(new UploadJournal.Upload(key, uploadId, source, partSize, Map.of()));
+            return new S3ArchiveSink(this, key, uploadId, source != null);
+        } catch (Throwable t) {
+            activeKeys.remove(key);
+            throw t;
+        }
+    }
+
+    /**
+     * Record that a local archive should be uploaded by the next {@link #resumePending()}, e.g. because the store
+     * couldn't be reached to start uploading it as it was written.
+     *
+     * @param key the key to upload to
+     * @param source the archive to upload
+     * @throws IOException if there is an error saving the journal
+     */
+    public void uploadLater(String key, Path source) throws IOException {
+        journal.put(new UploadJournal.Upload(key, "", source, partSize, Map.of()));
+    }
+
+    /**
+     * Finish every interrupted upload that has a local copy, and abort the rest. Uploads that are still in progress
+     * are left alone. Failures are logged, and the uploads are tried again next time.
+     */
+    public void resumePending() {
+        for (var pending : journal.uploads()) {
+            var key = pending.key();
+            if (!activeKeys.add(key)) {
+                continue;
+            }
+            try {
+                // It may have finished since the journal was read
+                var upload = journal.get(key);
+                if (upload == null) {
+                    continue;
+                }
+                var source = upload.source();
+                if (source != null && Files.isRegularFile(source)) {
+                    resume(upload, source);
+                } else {
+                    LOGGER.info("Aborting interrupted upload of {}, there is no local copy to resume from", upload.key());
+                    abort(upload.key(), upload.uploadId());
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to finish interrupted upload of {}, will try again later", key, e);
+            } finally {
+                activeKeys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Run {@link #resumePending()} in the background, so an unreachable store doesn't hold up the caller while
+     * requests are retried. Does nothing if one is already waiting to run.
+     */
+    public void resumePendingLater() {
+        if (!resumeQueued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            resumeExecutor.execute(() -> {
+                resumeQueued.set(false);
+                try {
+                    resumePending();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to finish interrupted uploads", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed, the next uploader will pick them up
+            resumeQueued.set(false);
+        }
+    }
+
+    /**
+     * Delete an object, e.g. when the backup it holds is pruned.
+     *
+     * @param key the key of the object
+     * @throws IOException if the request fails
+     */
+    public void delete(String key) throws IOException {
+        withRetries("delete " + key, () -> {
+            client.deleteObject(key);
+            return null;
+        });
+    }
+
+    private void resume(UploadJournal.Upload upload, Path source) throws IOException {
+        var key = upload.key();
+        var uploadId = upload.uploadId();
+        var stored = new HashMap<Integer, S3Client.Part>();
+        if (!uploadId.isEmpty()) {
+            try {
+                var resumeId = uploadId;
+                for (var part : withRetries("list parts of " + key, () -> client.listParts(key, resumeId))) {
+                    stored.put(part.number(), part);
+                }
+            } catch (S3Exception e) {
+                if (e.getStatusCode() != 404) {
+                    throw e;
+                }
+                // The store forgot the upload, e.g. by expiring it
+                uploadId = "";
+            }
+        }
+        var journaled = upload.parts();
+        if (upload.partSize() != partSize) {
+            // The parts can't be reused, so don't keep them around
+            abort(key, uploadId);
+            uploadId = "";
+        }
+        if (uploadId.isEmpty()) {
+            stored.clear();
+            journaled = Map.of();
+            uploadId = withRetries("start upload of " + key, () -> client.createMultipartUpload(key));
+            journal.put(new UploadJournal.Upload(key, uploadId, source, partSize, Map.of()));
+        }
+        var parts = new ArrayList<CompletableFuture<UploadJournal.UploadedPart>>();
+        int reused = 0;
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int partCount = (int) Math.max(1, (size + partSize - 1) / partSize);
+            for (int number = 1; number <= partCount; number++) {
+                long offset = (long) (number - 1) * partSize;
+                int length = (int) Math.min(partSize, size - offset);
+                var data = acquirePart();
+                HashCode sha256;
+                try {
+                    readFully(channel, ByteBuffer.wrap(data, 0, length), offset);
+                    sha256 = Hashing.sha256().hashBytes(data, 0, length);
+                } catch (Throwable t) {
+                    releasePart(data);
+                    throw t;
+                }
+                var previous = journaled.get(number);
+                var storedPart = stored.get(number);
+                if (previous != null && storedPart != null && previous.part().size() == length
+                    && previous.sha256().equals(sha256) && previous.part().etag().equals(storedPart.etag())) {
+                    // The store has exactly this part already
+                    releasePart(data);
+                    parts.add(CompletableFuture.completedFuture(previous));
+                    reused++;
+                } else {
+                    parts.add(uploadPart(key, uploadId, number, data, length, sha256));
+                }
+            }
+        } catch (Throwable t) {
+            awaitQuietly(parts);
+            throw t;
+        }
+        complete(key, uploadId, parts);
+        LOGGER.info("Finished upload of {} from {}, reusing {} of {} parts", key, source, reused, parts.size());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("File ended early");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Take an array for a part, waiting if too many parts are in memory already.
+     */
+    byte[] acquirePart() throws InterruptedIOException {
+        try {
+            partPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a part to upload");
+        }
+        var part = idleParts.poll();
+        return part == null ? new byte[partSize] : part;
+    }
+
+    void releasePart(byte[] part) {
+        idleParts.add(part);
+        partPermits.release();
+    }
+
+    /**
+     * Upload a part on the upload threads, and release its array once it's done.
+     */
+    CompletableFuture<UploadJournal.UploadedPart> uploadPart(
+        String key, String uploadId, int number, byte[] data, int length, @Nullable HashCode sha256
+    ) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    var hash = sha256 == null ? Hashing.sha256().hashBytes(data, 0, length) : sha256;
+                    var part = withRetries(
+                        "upload part " + number + " of " + key,
+                        () -> client.uploadPart(key, uploadId, number, data, length, hash)
+                    );
+                    var uploaded = new UploadJournal.UploadedPart(part, hash);
+                    journal.partUploaded(key, uploaded);
+                    return uploaded;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    releasePart(data);
+                }
+            }, executor);
+        } catch (Throwable t) {
+            releasePart(data);
+            throw t;
+        }
+    }
+
+    /**
+     * Wait for every part, then complete the upload.
+     */
+    void complete(String key, String uploadId, List<CompletableFuture<UploadJournal.UploadedPart>> parts)
+        throws IOException {
+        var completed = new ArrayList<S3Client.Part>(parts.size());
+        for (var part : parts) {
+            completed.add(await(part).part());
+        }
+        withRetries("complete upload of " + key, () -> {
+            client.completeMultipartUpload(key, uploadId, completed);
+            return null;
+        });
+        journal.remove(key);
+    }
+
+    /**
+     * Give up on an upload started by {@link #openSink(String, Path)}.
+     *
+     * @param resumable whether to keep the upload to be resumed from its local copy
+     */
+    void abandon(String key, String uploadId, boolean resumable) {
+        if (resumable) {
+            LOGGER.info("Upload of {} was interrupted, it will be resumed from the local copy", key);
+            return;
+        }
+        try {
+            abort(key, uploadId);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to abort upload of {}, will try again later", key, e);
+        }
+    }
+
+    /**
+     * Mark an upload started by {@link #openSink(String, Path)} as no longer in progress, whether it was completed or
+     * abandoned.
+     */
+    void release(String key) {
+        activeKeys.remove(key);
+    }
+
+    private void abort(String key, String uploadId) throws IOException {
+        if (!uploadId.isEmpty()) {
+            withRetries("abort upload of " + key, () -> {
+                client.abortMultipartUpload(key, uploadId);
+                return null;
+            });
+        }
+        journal.remove(key);
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the upload");
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw new IOException("Failed to upload", cause);
+        }
+    }
+
+    /**
+     * Wait for parts that are no longer needed, so their arrays are released before we go on.
+     */
+    static void awaitQuietly(List<? extends CompletableFuture<?>> parts) {
+        CompletableFuture.allOf(parts.toArray(CompletableFuture[]::new)).handle((ignored, error) -> null).join();
+    }
+
+    private <T> T withRetries(String action, IOSupplier<T> request) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return request.get();
+            } catch (S3Exception e) {
+                if (!e.isRetryable() || attempt >= maxAttempts) {
+                    throw e;
+                }
+                LOGGER.warn("Failed to {}, retrying ({}/{}): {}", action, attempt, maxAttempts, e.getMessage());
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                LOGGER.warn("Failed to {}, retrying ({}/{}): {}", action, attempt, maxAttempts, e.toString());
+            }
+            try {
+                Thread.sleep(Math.min(MAX_RETRY_DELAY_MILLIS, 500L << Math.min(attempt - 1, 16)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to " + action);
+            }
+        }
+    }
+
+    /**
+     * Stop the upload threads. Uploads that are still running are interrupted, and left to {@link #resumePending()}.
+     */
+    @Override
+    public void close() {
+        resumeExecutor.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return "S3Uploader[" + client.getEndpoint() + "]";
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Signs requests with AWS Signature Version 4, which every S3-compatible store accepts.
+ */
+final class SigV4Signer {
+    /**
+     * The SHA-256 of an empty payload.
+     */
+    static final String EMPTY_PAYLOAD_SHA256 = Hashing.sha256().hashBytes(new byte[0]).toString();
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String SERVICE = "s3";
+    private static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+        .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ofPattern("yyyyMMdd").withZone(ZoneOffset.UTC);
+
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+
+    SigV4Signer(String region, String accessKey, String secretKey) {
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * Sign a request.
+     *
+     * @param method the HTTP method
+     * @param uri the full URI, whose query must already be encoded the way S3 expects
+     * @param headers headers to sign besides {@code host}, {@code x-amz-date} and {@code x-amz-content-sha256}
+     * @param payloadSha256 the hex SHA-256 of the body
+     * @param now the time of the request
+     * @return every signed header to send, including {@code Authorization} but not {@code host}, which the HTTP
+     *     client sets itself
+     */
+    Map<String, String> sign(
+        String method, URI uri, Map<String, String> headers, String payloadSha256, Instant now
+    ) {
+        var amzDate = DATE_TIME.format(now);
+        var scope = DATE.format(now) + "/" + region + "/" + SERVICE + "/aws4_request";
+
+        var signed = new TreeMap<String, String>();
+        headers.forEach((name, value) -> signed.put(name.toLowerCase(Locale.ROOT), value.strip()));
+        signed.put("host", uri.getRawAuthority());
+        signed.put("x-amz-content-sha256", payloadSha256);
+        signed.put("x-amz-date", amzDate);
+
+        var canonicalHeaders = new StringBuilder();
+        signed.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value).append('\n'));
+        var signedHeaders = String.join(";", signed.keySet());
+        var canonicalRequest = method + "\n"
+            + (uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath()) + "\n"
+            + canonicalQuery(uri.getRawQuery()) + "\n"
+            + canonicalHeaders + "\n"
+            + signedHeaders + "\n"
+            + payloadSha256;
+        var stringToSign = ALGORITHM + "\n"
+            + amzDate + "\n"
+            + scope + "\n"
+            + Hashing.sha256().hashString(canonicalRequest, StandardCharsets.UTF_8);
+
+        byte[] key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+        key = hmac(key, DATE.format(now));
+        key = hmac(key, region);
+        key = hmac(key, SERVICE);
+        key = hmac(key, "aws4_request");
+        var signature = Hashing.hmacSha256(key).hashString(stringToSign, StandardCharsets.UTF_8).toString();
+
+        var result = new TreeMap<>(signed);
+        result.remove("host");
+        result.put("Authorization", ALGORITHM + " Credential=" + accessKey + "/" + scope
+            + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+        return result;
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        return Hashing.hmacSha256(key).hashString(data, StandardCharsets.UTF_8).asBytes();
+    }
+
+    /**
+     * Sort the query parameters by name, and give parameters without a value an empty one.
+     */
+    private static String canonicalQuery(@Nullable String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return "";
+        }
+        var parameters = new TreeMap<String, String>();
+        for (var parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            if (equals == -1) {
+                parameters.put(parameter, "");
+            } else {
+                parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+            }
+        }
+        var query = new StringBuilder();
+        parameters.forEach((name, value) -> {
+            if (!query.isEmpty()) {
+                query.append('&');
+            }
+            query.append(name).append('=').append(value);
+        });
+        return query.toString();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.hash.HashCode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the multipart uploads that haven't finished, and the parts they have uploaded, so that they can be
+ * resumed or cleaned up after the server stops part way through one. Saved after every change.
+ */
+final class UploadJournal {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x5453424A; // TSBJ
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+
+    /**
+     * A part that was uploaded.
+     *
+     * @param part the part, as the store returned it
+     * @param sha256 the SHA-256 of the part's content, to check a local file still matches it
+     */
+    record UploadedPart(S3Client.Part part, HashCode sha256) {
+    }
+
+    /**
+     * An upload that hasn't finished.
+     *
+     * @param key the key of the object
+     * @param uploadId the upload ID, or an empty string if the upload hasn't been started yet
+     * @param source the local copy of the object, to resume from, or {@code null} if there is none
+     * @param partSize the size of every part but the last
+     * @param parts the parts uploaded so far, by part number
+     */
+    record Upload(String key, String uploadId, @Nullable Path source, int partSize, Map<Integer, UploadedPart> parts) {
+        Upload {
+            parts = Map.copyOf(parts);
+        }
+    }
+
+    /**
+     * Load a journal, or create an empty one if the file doesn't exist or can't be read.
+     *
+     * @param file the file to load from
+     * @return the journal
+     */
+    static UploadJournal load(Path file) {
+        var uploads = new LinkedHashMap<String, Upload>();
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a supported upload journal");
+            }
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                var key = input.readUTF();
+                var uploadId = input.readUTF();
+                var source = input.readUTF();
+                int partSize = input.readInt();
+                int partCount = input.readInt();
+                var parts = new TreeMap<Integer, UploadedPart>();
+                for (int j = 0; j < partCount; j++) {
+                    int number = input.readInt();
+                    var etag = input.readUTF();
+                    long size = input.readLong();
+                    var hash = new byte[HASH_BYTES];
+                    input.readFully(hash);
+                    parts.put(number, new UploadedPart(new S3Client.Part(number, etag, size), HashCode.fromBytes(hash)));
+                }
+                uploads.put(key, new Upload(key, uploadId, source.isEmpty() ? null : Path.of(source), partSize, parts));
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing was ever uploaded
+        } catch (IOException e) {
+            // Whatever was in it is left for the store's own expiry of incomplete uploads
+            LOGGER.warn("Failed to load upload journal from {}, forgetting unfinished uploads", file, e);
+            uploads.clear();
+        }
+        return new UploadJournal(file, uploads);
+    }
+
+    private final Path file;
+    private final Map<String, Upload> uploads;
+
+    private UploadJournal(Path file, Map<String, Upload> uploads) {
+        this.file = file;
+        this.uploads = uploads;
+    }
+
+    /**
+     * {@return the unfinished uploads}
+     */
+    synchronized List<Upload> uploads() {
+        return List.copyOf(uploads.values());
+    }
+
+    /**
+     * {@return the unfinished upload to a key, or {@code null} if there is none}
+     *
+     * @param key the key of the upload
+     */
+    synchronized @Nullable Upload get(String key) {
+        return uploads.get(key);
+    }
+
+    /**
+     * Record an upload, replacing any earlier one of the same key.
+     *
+     * @param upload the upload
+     * @throws IOException if there is an error saving the journal
+     */
+    synchronized void put(Upload upload) throws IOException {
+        uploads.put(upload.key(), upload);
+        save();
+    }
+
+    /**
+     * Record that a part of an upload was uploaded.
+     *
+     * @param key the key of the upload
+     * @param part the part
+     * @throws IOException if there is an error saving the journal
+     */
+    synchronized void partUploaded(String key, UploadedPart part) throws IOException {
+        var upload = uploads.get(key);
+        if (upload == null) {
+            return;
+        }
+        var parts = new TreeMap<>(upload.parts());
+        parts.put(part.part().number(), part);
+        uploads.put(key, new Upload(key, upload.uploadId(), upload.source(), upload.partSize(), parts));
+        save();
+    }
+
+    /**
+     * Forget an upload, because it finished or was aborted.
+     *
+     * @param key the key of the upload
+     * @throws IOException if there is an error saving the journal
+     */
+    synchronized void remove(String key) throws IOException {
+        if (uploads.remove(key) != null) {
+            save();
+        }
+    }
+
+    private void save() throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(uploads.size());
+            for (var upload : uploads.values()) {
+                output.writeUTF(upload.key());
+                output.writeUTF(upload.uploadId());
+                output.writeUTF(upload.source() == null ? "" : upload.source().toString());
+                output.writeInt(upload.partSize());
+                output.writeInt(upload.parts().size());
+                for (var part : new TreeMap<>(upload.parts()).values()) {
+                    output.writeInt(part.part().number());
+                    output.writeUTF(part.part().etag());
+                    output.writeLong(part.part().size());
+                    output.write(part.sha256().asBytes());
+                }
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
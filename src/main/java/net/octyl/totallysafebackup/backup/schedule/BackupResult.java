@@ -0,0 +1,58 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.schedule;
+
+import net.octyl.totallysafebackup.backup.BackupReport;
+
+import javax.annotation.Nullable;
+
+/**
+ * The result of a backup requested from a {@link BackupScheduler}. Failed backups complete their future
+ * exceptionally instead.
+ *
+ * @param outcome what happened
+ * @param name the name of the backup, or {@code null} if it was skipped
+ * @param report the report of the backup, or {@code null} if it was skipped
+ */
+public record BackupResult(Outcome outcome, @Nullable String name, @Nullable BackupReport report) {
+    /**
+     * What happened to a requested backup.
+     */
+    public enum Outcome {
+        /**
+         * The backup was written.
+         */
+        COMPLETED,
+        /**
+         * Nothing changed since the last backup, so no backup was written.
+         */
+        SKIPPED,
+    }
+
+    /**
+     * Create the result of a written backup.
+     *
+     * @param name the name of the backup
+     * @param report the report of the backup
+     * @return the result
+     */
+    public static BackupResult completed(String name, BackupReport report) {
+        return new BackupResult(Outcome.COMPLETED, name, report);
+    }
+
+    /**
+     * {@return the result of a backup that was skipped}
+     */
+    public static BackupResult skipped() {
+        return new BackupResult(Outcome.SKIPPED, null, null);
+    }
+}
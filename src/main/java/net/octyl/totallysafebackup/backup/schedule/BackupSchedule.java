@@ -0,0 +1,57 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.schedule;
+
+import com.google.common.base.Preconditions;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+
+/**
+ * When backups should run.
+ */
+@FunctionalInterface
+public interface BackupSchedule {
+    /**
+     * Create a schedule that runs every {@code interval}. Runs are counted from the previous scheduled time, not from
+     * when the previous run finished, so a slow backup doesn't make the schedule drift.
+     *
+     * @param interval the time between runs
+     * @return the schedule
+     */
+    static BackupSchedule every(Duration interval) {
+        Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), "Interval must be positive");
+        return previous -> previous.plus(interval);
+    }
+
+    /**
+     * Create a schedule from a cron expression, with the usual five fields: minute, hour, day of month, month and
+     * day of week. Each field is {@code *}, a number, a range like {@code 1-5}, or a list of those, and may have a
+     * step like {@code *}{@code /15}. Days of the week are {@code 0} to {@code 7}, where both {@code 0} and {@code 7}
+     * are Sunday. Names of months and days are not supported.
+     *
+     * @param expression the cron expression
+     * @return the schedule
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    static BackupSchedule cron(String expression) {
+        return CronSchedule.parse(expression);
+    }
+
+    /**
+     * Find the next time to run.
+     *
+     * @param previous the previous scheduled time, or the time the schedule started
+     * @return the next time to run, after {@code previous}
+     */
+    ZonedDateTime next(ZonedDateTime previous);
+}
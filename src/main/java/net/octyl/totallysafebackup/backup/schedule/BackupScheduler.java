@@ -0,0 +1,287 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.schedule;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs backups on a schedule and on request, one at a time.
+ *
+ * <p>
+ * Requests made while a backup is waiting to start are coalesced into it, so any number of requests during a
+ * backup only cause one more. A scheduled time that arrives while a backup is running is skipped rather than queued,
+ * so a slow backup never builds up a backlog. Scheduled backups are also skipped if nothing changed since the last
+ * one, while requested backups always run.
+ * </p>
+ */
+public final class BackupScheduler {
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * Runs a single backup.
+     */
+    @FunctionalInterface
+    public interface BackupRunner {
+        /**
+         * Run a backup.
+         *
+         * @return the result of the backup
+         * @throws Exception if the backup fails
+         */
+        BackupResult run() throws Exception;
+    }
+
+    /**
+     * A request for a backup.
+     *
+     * @param joined whether the request joined a backup that was already waiting to start, rather than adding one
+     * @param result completed with the result of the backup, or exceptionally if it fails or the scheduler shuts down
+     *     first. Cancelling it doesn't cancel the backup.
+     */
+    public record Request(boolean joined, CompletableFuture<BackupResult> result) {
+    }
+
+    private final BackupSchedule schedule;
+    private final BackupRunner runner;
+    private final BooleanSupplier hasChanges;
+    private final Supplier<Duration> startDelay;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-scheduler-%d")
+            .build()
+    );
+    private final ExecutorService backupExecutor = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-thread-%d")
+            .build()
+    );
+
+    // All guarded by this
+    /**
+     * The backup that will run next, which new requests join.
+     */
+    @Nullable
+    private CompletableFuture<BackupResult> pending;
+    /**
+     * Whether {@link #pending} was requested, rather than only scheduled.
+     */
+    private boolean pendingRequested;
+    /**
+     * Whether a backup is queued, waiting or running. Only one is at a time.
+     */
+    private boolean active;
+    /**
+     * Whether a backup is running right now.
+     */
+    private boolean running;
+    @Nullable
+    private ZonedDateTime nextRun;
+    @Nullable
+    private ScheduledFuture<?> nextRunFuture;
+    private boolean shutDown;
+
+    /**
+     * Create a new scheduler. It doesn't run anything until {@link #start() started}.
+     *
+     * @param schedule when to run backups
+     * @param runner runs a backup, on the scheduler's backup thread
+     * @param hasChanges checks if a scheduled backup has anything new to back up
+     * @param startDelay how long to wait before starting a backup, e.g. to stay clear of the game's own saves. It is
+     *     checked again after waiting.
+     */
+    public BackupScheduler(
+        BackupSchedule schedule, BackupRunner runner, BooleanSupplier hasChanges, Supplier<Duration> startDelay
+    ) {
+        this.schedule = schedule;
+        this.runner = runner;
+        this.hasChanges = hasChanges;
+        this.startDelay = startDelay;
+    }
+
+    /**
+     * Start running backups on the schedule.
+     */
+    public synchronized void start() {
+        Preconditions.checkState(!shutDown, "Scheduler is shut down");
+        Preconditions.checkState(nextRunFuture == null, "Scheduler is already started");
+        scheduleNext(ZonedDateTime.now());
+    }
+
+    /**
+     * {@return the time of the next scheduled backup, if the scheduler is running}
+     */
+    public synchronized Optional<ZonedDateTime> getNextRun() {
+        return Optional.ofNullable(nextRun);
+    }
+
+    /**
+     * Request a backup. If one is already waiting to start, this joins it instead of adding another. The backup runs
+     * even if nothing changed.
+     *
+     * @return a future completed with the result of the backup, or exceptionally if it fails or the scheduler shuts
+     *     down first. Cancelling it doesn't cancel the backup.
+     */
+    public CompletableFuture<BackupResult> requestBackup() {
+        return submitRequest().result();
+    }
+
+    /**
+     * Request a backup, like {@link #requestBackup()}, and tell whether it joined one that was already waiting.
+     *
+     * @return the request
+     */
+    public synchronized Request submitRequest() {
+        boolean joined = pending != null && !shutDown;
+        return new Request(joined, request(true).copy());
+    }
+
+    private synchronized CompletableFuture<BackupResult> request(boolean requested) {
+        if (shutDown) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Scheduler is shut down"));
+        }
+        if (pending == null) {
+            pending = new CompletableFuture<>();
+            if (!active) {
+                active = true;
+                queueBackup(Duration.ZERO);
+            }
+        }
+        pendingRequested |= requested;
+        return pending;
+    }
+
+    private void scheduleNext(ZonedDateTime previous) {
+        assert Thread.holdsLock(this);
+        var now = ZonedDateTime.now();
+        var next = schedule.next(previous);
+        if (!next.isAfter(now)) {
+            // Runs were missed, e.g. because the machine was asleep. One backup now covers all of them.
+            next = schedule.next(now);
+        }
+        var scheduledTime = next;
+        nextRun = scheduledTime;
+        nextRunFuture = timer.schedule(
+            () -> onScheduledTime(scheduledTime), Duration.between(now, scheduledTime).toMillis(), TimeUnit.MILLISECONDS
+        );
+    }
+
+    private synchronized void onScheduledTime(ZonedDateTime time) {
+        if (shutDown) {
+            return;
+        }
+        if (running) {
+            LOGGER.warn("The previous backup is still running, skipping the backup scheduled for {}", time);
+        } else {
+            request(false);
+        }
+        scheduleNext(time);
+    }
+
+    private void queueBackup(Duration delay) {
+        assert Thread.holdsLock(this);
+        timer.schedule(() -> {
+            try {
+                backupExecutor.execute(this::runPending);
+            } catch (RejectedExecutionException e) {
+                // Shut down while waiting, the pending future was already failed
+            }
+        }, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void runPending() {
+        var delay = startDelay.get();
+        CompletableFuture<BackupResult> future;
+        boolean requested;
+        synchronized (this) {
+            if (shutDown || pending == null) {
+                return;
+            }
+            if (delay.compareTo(Duration.ZERO) > 0) {
+                LOGGER.info("Delaying backup by {} seconds", delay.toSeconds());
+                queueBackup(delay);
+                return;
+            }
+            future = pending;
+            requested = pendingRequested;
+            pending = null;
+            pendingRequested = false;
+            running = true;
+        }
+        try {
+            BackupResult result;
+            if (!requested && !hasChanges.getAsBoolean()) {
+                LOGGER.info("Nothing changed since the last backup, skipping the scheduled backup");
+                result = BackupResult.skipped();
+            } else {
+                result = runner.run();
+            }
+            future.complete(result);
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            // Terminate ourselves if we got an Error
+            if (t instanceof Error err) {
+                throw err;
+            }
+        } finally {
+            synchronized (this) {
+                running = false;
+                if (pending != null && !shutDown) {
+                    queueBackup(Duration.ZERO);
+                } else {
+                    active = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop scheduling backups, interrupt the running one, and wait for it to stop. Waiting requests fail with a
+     * {@link CancellationException}.
+     *
+     * @param timeout how long to wait for the running backup to stop
+     * @return {@code true} if it stopped in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(Duration timeout) throws InterruptedException {
+        synchronized (this) {
+            shutDown = true;
+            nextRun = null;
+            if (pending != null) {
+                pending.completeExceptionally(new CancellationException("Scheduler was shut down"));
+                pending = null;
+            }
+        }
+        timer.shutdownNow();
+        backupExecutor.shutdownNow();
+        return backupExecutor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.schedule;
+
+import com.google.common.base.Preconditions;
+
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * A schedule parsed from a five-field cron expression.
+ */
+final class CronSchedule implements BackupSchedule {
+    /**
+     * How far ahead to look before giving up, e.g. for {@code 0 0 31 2 *}.
+     */
+    private static final int MAX_YEARS = 5;
+
+    static CronSchedule parse(String expression) {
+        var fields = expression.strip().split("\\s+");
+        Preconditions.checkArgument(fields.length == 5, "Expected 5 fields in '%s'", expression);
+        var daysOfWeek = parseField(fields[4], 0, 7, "day of week");
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        var schedule = new CronSchedule(
+            expression,
+            parseField(fields[0], 0, 59, "minute"),
+            parseField(fields[1], 0, 23, "hour"),
+            parseField(fields[2], 1, 31, "day of month"),
+            parseField(fields[3], 1, 12, "month"),
+            daysOfWeek,
+            fields[2].equals("*"),
+            fields[4].equals("*")
+        );
+        // Make sure the expression can actually match, rather than finding out when the first run is due
+        schedule.next(ZonedDateTime.now());
+        return schedule;
+    }
+
+    private static BitSet parseField(String field, int min, int max, String name) {
+        var values = new BitSet(max + 1);
+        for (String part : field.split(",", -1)) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash != -1) {
+                step = parseNumber(part.substring(slash + 1), 1, Integer.MAX_VALUE, name);
+                part = part.substring(0, slash);
+            }
+            int start;
+            int end;
+            if (part.equals("*")) {
+                start = min;
+                end = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash == -1) {
+                    start = parseNumber(part, min, max, name);
+                    // "5/15" means from 5 to the end, every 15
+                    end = slash == -1 ? start : max;
+                } else {
+                    start = parseNumber(part.substring(0, dash), min, max, name);
+                    end = parseNumber(part.substring(dash + 1), min, max, name);
+                    Preconditions.checkArgument(start <= end, "Backwards %s range '%s'", name, part);
+                }
+            }
+            for (int value = start; value <= end; value += step) {
+                values.set(value);
+            }
+        }
+        return values;
+    }
+
+    private static int parseNumber(String text, int min, int max, String name) {
+        int value;
+        try {
+            value = Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " '" + text + "'", e);
+        }
+        Preconditions.checkArgument(
+            min <= value && value <= max, "%s %s is not between %s and %s", name, value, min, max
+        );
+        return value;
+    }
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean anyDayOfMonth;
+    private final boolean anyDayOfWeek;
+
+    private CronSchedule(
+        String expression, BitSet minutes, BitSet hours, BitSet daysOfMonth, BitSet months, BitSet daysOfWeek,
+        boolean anyDayOfMonth, boolean anyDayOfWeek
+    ) {
+        this.expression = expression;
+        this.minutes = minutes;
+        this.hours = hours;
+        this.daysOfMonth = daysOfMonth;
+        this.months = months;
+        this.daysOfWeek = daysOfWeek;
+        this.anyDayOfMonth = anyDayOfMonth;
+        this.anyDayOfWeek = anyDayOfWeek;
+    }
+
+    @Override
+    public ZonedDateTime next(ZonedDateTime previous) {
+        var time = previous.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+        var limit = time.plusYears(MAX_YEARS);
+        // Move to the start of the next month, day or hour whenever a coarser field doesn't match
+        while (time.isBefore(limit)) {
+            if (!months.get(time.getMonthValue())) {
+                time = time.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+            } else if (!matchesDay(time)) {
+                time = time.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+            } else if (!hours.get(time.getHour())) {
+                time = time.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+            } else if (!minutes.get(time.getMinute())) {
+                time = time.plusMinutes(1);
+            } else {
+                return time;
+            }
+        }
+        throw new IllegalArgumentException("Cron expression '" + expression + "' never matches");
+    }
+
+    private boolean matchesDay(ZonedDateTime time) {
+        boolean dayOfMonth = daysOfMonth.get(time.getDayOfMonth());
+        boolean dayOfWeek = daysOfWeek.get(time.getDayOfWeek().getValue() % 7);
+        // Like cron, a day matches either field if both are restricted
+        if (anyDayOfMonth || anyDayOfWeek) {
+            return dayOfMonth && dayOfWeek;
+        }
+        return dayOfMonth || dayOfWeek;
+    }
+
+    @Override
+    public String toString() {
+        return "cron(" + expression.strip() + ")";
+    }
+}
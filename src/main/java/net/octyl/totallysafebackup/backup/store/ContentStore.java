@@ -0,0 +1,300 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.store;
+
+import com.google.common.hash.HashCode;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A directory of content-addressed blobs, and the snapshot manifests that reference them.
+ *
+ * <p>
+ * Blobs are named by their SHA-256 hash, and never modified once written. New blobs and manifests are written to a
+ * temporary file and moved into place, so a crash never leaves a partial file under a real name.
+ * </p>
+ */
+public class ContentStore {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final String MANIFEST_EXTENSION = ".manifest";
+
+    /**
+     * What a garbage collection removed.
+     *
+     * @param blobCount the number of blobs deleted
+     * @param blobBytes the total size of the blobs deleted
+     */
+    public record CollectedGarbage(long blobCount, long blobBytes) {
+    }
+
+    private final Path root;
+    private final Path blobs;
+    private final Path snapshots;
+    private final Path temp;
+
+    /**
+     * Open a store, creating its directories if needed.
+     *
+     * @param root the root directory of the store
+     * @throws IOException if there is an error creating the directories
+     */
+    public ContentStore(Path root) throws IOException {
+        this.root = root;
+        this.blobs = Files.createDirectories(root.resolve("blobs"));
+        this.snapshots = Files.createDirectories(root.resolve("snapshots"));
+        this.temp = Files.createDirectories(root.resolve("tmp"));
+    }
+
+    /**
+     * {@return the root directory of the store}
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * {@return where snapshots of this store keep their {@linkplain net.octyl.totallysafebackup.backup.ChangeIndex
+     * change index}}
+     */
+    public Path changeIndexPath() {
+        return root.resolve("change-index.dat");
+    }
+
+    /**
+     * Get the path of a blob.
+     *
+     * @param hash the hash of the blob
+     * @return the path of the blob
+     */
+    public Path blobPath(HashCode hash) {
+        var hex = hash.toString();
+        return blobs.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * Check if a blob exists.
+     *
+     * @param hash the hash of the blob
+     * @return {@code true} if the blob exists
+     */
+    public boolean hasBlob(HashCode hash) {
+        return Files.exists(blobPath(hash));
+    }
+
+    /**
+     * Write a blob, unless it already exists.
+     *
+     * @param hash the hash of {@code data}
+     * @param data the content of the blob, consumed by this call
+     * @throws IOException if there is an error writing the blob
+     */
+    public void writeBlob(HashCode hash, ByteBuffer data) throws IOException {
+        var target = blobPath(hash);
+        if (Files.exists(target)) {
+            return;
+        }
+        var tempFile = createTempFile();
+        try {
+            try (var channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            moveBlob(hash, tempFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Discard a blob that is missing or doesn't match its hash. The change index is discarded too, as it may vouch
+     * for files that are made of the blob, so the next snapshot reads every file and stores the blob again if the
+     * world still has it.
+     *
+     * @param hash the hash of the blob
+     * @throws IOException if there is an error deleting the blob or the change index
+     */
+    public void discardBlob(HashCode hash) throws IOException {
+        Files.deleteIfExists(blobPath(hash));
+        Files.deleteIfExists(changeIndexPath());
+    }
+
+    /**
+     * Move a temporary file into place as a blob. If the blob already exists, the temporary file is deleted instead.
+     *
+     * @param hash the hash of the file's content
+     * @param tempFile the file to move, usually from {@link #createTempFile()}
+     * @throws IOException if there is an error moving the file
+     */
+    public void moveBlob(HashCode hash, Path tempFile) throws IOException {
+        var target = blobPath(hash);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(tempFile);
+        }
+    }
+
+    /**
+     * Create a temporary file in the store, on the same file system as the blobs.
+     *
+     * @return the temporary file
+     * @throws IOException if there is an error creating the file
+     */
+    public Path createTempFile() throws IOException {
+        return Files.createTempFile(temp, "blob", ".tmp");
+    }
+
+    /**
+     * Get the path of a snapshot manifest.
+     *
+     * @param name the name of the snapshot
+     * @return the path of the manifest
+     */
+    public Path snapshotPath(String name) {
+        return snapshots.resolve(name + MANIFEST_EXTENSION);
+    }
+
+    /**
+     * List the names of all snapshots, oldest first. Snapshot names are expected to sort by time.
+     *
+     * @return the snapshot names
+     * @throws IOException if there is an error listing the snapshots
+     */
+    public List<String> listSnapshots() throws IOException {
+        try (var files = Files.list(snapshots)) {
+            return files
+                .map(p -> p.getFileName().toString())
+                .filter(n -> n.endsWith(MANIFEST_EXTENSION))
+                .map(n -> n.substring(0, n.length() - MANIFEST_EXTENSION.length()))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Read the newest snapshot manifest, if there is one.
+     *
+     * @return the newest manifest
+     * @throws IOException if there is an error reading the manifest
+     */
+    public Optional<SnapshotManifest> readLatestSnapshot() throws IOException {
+        var names = listSnapshots();
+        if (names.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(readSnapshot(names.get(names.size() - 1)));
+    }
+
+    /**
+     * Read a snapshot manifest.
+     *
+     * @param name the name of the snapshot
+     * @return the manifest
+     * @throws IOException if there is an error reading the manifest
+     */
+    public SnapshotManifest readSnapshot(String name) throws IOException {
+        try (var input = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(snapshotPath(name)))
+        ))) {
+            return SnapshotManifest.read(input);
+        }
+    }
+
+    /**
+     * Write a snapshot manifest, replacing any existing manifest with the same name.
+     *
+     * @param name the name of the snapshot
+     * @param manifest the manifest
+     * @throws IOException if there is an error writing the manifest
+     */
+    public void writeSnapshot(String name, SnapshotManifest manifest) throws IOException {
+        var tempFile = createTempFile();
+        try {
+            try (var output = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(Files.newOutputStream(tempFile))
+            ))) {
+                manifest.write(output);
+            }
+            Files.move(tempFile, snapshotPath(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Delete every blob that no snapshot references, and any temporary files. Nothing may write to the store while
+     * this runs, as blobs of an unfinished snapshot aren't referenced yet.
+     *
+     * @return what was deleted
+     * @throws IOException if there is an error reading a manifest or deleting a blob
+     */
+    public CollectedGarbage collectGarbage() throws IOException {
+        var referenced = new HashSet<HashCode>();
+        for (String name : listSnapshots()) {
+            for (var file : readSnapshot(name).files()) {
+                for (var piece : file.pieces()) {
+                    referenced.add(piece.hash());
+                }
+            }
+        }
+        long[] collected = new long[2];
+        Files.walkFileTree(blobs, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                HashCode hash;
+                try {
+                    hash = HashCode.fromString(file.getFileName().toString());
+                } catch (IllegalArgumentException e) {
+                    // Not ours, leave it alone
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!referenced.contains(hash)) {
+                    Files.delete(file);
+                    collected[0]++;
+                    collected[1] += attrs.size();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        try (var tempFiles = Files.list(temp)) {
+            for (var tempFile : (Iterable<Path>) tempFiles::iterator) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+        LOGGER.info("Collected {} unreferenced blobs, {} bytes", collected[0], collected[1]);
+        return new CollectedGarbage(collected[0], collected[1]);
+    }
+}
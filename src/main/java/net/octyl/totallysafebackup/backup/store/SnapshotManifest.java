@@ -0,0 +1,112 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.store;
+
+import com.google.common.hash.HashCode;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The list of files in a snapshot, and the blobs that make up each file.
+ *
+ * @param files the files in the snapshot
+ */
+public record SnapshotManifest(List<FileEntry> files) {
+    private static final int MAGIC = 0x5453424D; // TSBM
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+
+    /**
+     * A file in a snapshot. The file is rebuilt by writing each piece at its offset, and zero-filling any gaps.
+     *
+     * @param path the relative path of the file, using {@code /} as a separator
+     * @param size the size of the file
+     * @param contentHash the hash of the whole file
+     * @param pieces the pieces of the file
+     */
+    public record FileEntry(String path, long size, HashCode contentHash, List<Piece> pieces) {
+    }
+
+    /**
+     * A piece of a file, stored as a blob.
+     *
+     * @param offset the offset of the piece in the file
+     * @param length the length of the piece
+     * @param hash the hash of the piece, which is also the blob's name
+     */
+    public record Piece(long offset, long length, HashCode hash) {
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param input the input to read from
+     * @return the manifest
+     * @throws IOException if there is an error reading, or the manifest is invalid
+     */
+    public static SnapshotManifest read(DataInput input) throws IOException {
+        if (input.readInt() != MAGIC) {
+            throw new IOException("Not a snapshot manifest");
+        }
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported snapshot manifest version " + version);
+        }
+        int fileCount = input.readInt();
+        var files = new ArrayList<FileEntry>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            var path = input.readUTF();
+            long size = input.readLong();
+            var contentHash = readHash(input);
+            int pieceCount = input.readInt();
+            var pieces = new ArrayList<Piece>(pieceCount);
+            for (int j = 0; j < pieceCount; j++) {
+                pieces.add(new Piece(input.readLong(), input.readLong(), readHash(input)));
+            }
+            files.add(new FileEntry(path, size, contentHash, List.copyOf(pieces)));
+        }
+        return new SnapshotManifest(List.copyOf(files));
+    }
+
+    private static HashCode readHash(DataInput input) throws IOException {
+        var bytes = new byte[HASH_BYTES];
+        input.readFully(bytes);
+        return HashCode.fromBytes(bytes);
+    }
+
+    /**
+     * Write this manifest.
+     *
+     * @param output the output to write to
+     * @throws IOException if there is an error writing
+     */
+    public void write(DataOutput output) throws IOException {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(files.size());
+        for (FileEntry file : files) {
+            output.writeUTF(file.path());
+            output.writeLong(file.size());
+            output.write(file.contentHash().asBytes());
+            output.writeInt(file.pieces().size());
+            for (Piece piece : file.pieces()) {
+                output.writeLong(piece.offset());
+                output.writeLong(piece.length());
+                output.write(piece.hash().asBytes());
+            }
+        }
+    }
+}
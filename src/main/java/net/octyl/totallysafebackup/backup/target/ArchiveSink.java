@@ -0,0 +1,36 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Somewhere a finished archive's bytes are sent as they are produced, like a file on disk. A sink is only appended
+ * to, and only by one thread at a time.
+ */
+public interface ArchiveSink extends WritableByteChannel {
+    /**
+     * Make everything written so far the finished archive, and refuse any more writes.
+     *
+     * @throws IOException if there is an error finishing the archive
+     */
+    void commit() throws IOException;
+
+    /**
+     * Release any resources held by this sink. If this sink was not committed, whatever was written is discarded.
+     *
+     * @throws IOException if there is an error closing the sink
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -11,16 +11,22 @@
 
 package net.octyl.totallysafebackup.backup.target;
 
+import com.google.common.hash.HashCode;
 import org.apache.commons.io.function.IOConsumer;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 
 /**
- * A place to store backups. Should be closed to save the file to disk.
+ * A place to store backups. Should be committed to save the file to disk, and closed to release its resources.
  */
-public interface BackupTarget {
+public interface BackupTarget extends Closeable {
     /**
      * Save the given file, using {@code writer} to write the contents.
      *
@@ -28,16 +34,147 @@ public interface BackupTarget {
      * The path must be relative.
      * </p>
      *
+     * <p>
+     * Implementations may run {@code writer} later, on another thread. It must stay valid until {@link #commit()}
+     * returns.
+     * </p>
+     *
      * @param path the path to save
      * @param writer the writer to use
      * @throws IOException if there is an error saving the file
      */
     void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException;
 
+    /**
+     * Save the given file of a known size, using {@code writer} to write the contents to a channel.
+     *
+     * <p>
+     * Unlike {@link #saveFile(Path, IOConsumer)}, the writer can hand over buffers, like the direct buffers of a
+     * {@link BufferPool}, without them being copied into byte arrays first. Knowing the size up front also lets
+     * implementations write the contents as they come, rather than buffering them. The same rules apply to when
+     * {@code writer} is run.
+     * </p>
+     *
+     * @param path the path to save
+     * @param size the exact number of bytes {@code writer} writes, implementations may fail if it is wrong
+     * @param writer the writer to use
+     * @throws IOException if there is an error saving the file
+     */
+    default void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        saveFile(path, stream -> writer.accept(Channels.newChannel(stream)));
+    }
+
+    /**
+     * Save the given file, copying the contents from {@code source}.
+     *
+     * <p>
+     * This allows implementations to read the file directly, e.g. to copy it without passing through the heap.
+     * Implementations may read {@code source} later, on another thread. It must not change until {@link #commit()}
+     * returns.
+     * </p>
+     *
+     * @param path the path to save
+     * @param source the file to read the contents from
+     * @throws IOException if there is an error saving the file
+     */
+    default void saveFile(Path path, Path source) throws IOException {
+        saveFile(path, stream -> Files.copy(source, stream));
+    }
+
+    /**
+     * Save the given file of a known size, using {@code writer} to write the contents, which come from
+     * {@code source}.
+     *
+     * <p>
+     * This is for when the caller has to do the reading itself, e.g. to throttle it or to transform the contents, but
+     * there is still a file behind them. Implementations may look at {@code source} to decide how to store the file,
+     * like {@link #saveFile(Path, Path)} does, but the contents are whatever {@code writer} writes. The same rules
+     * as {@link #saveFile(Path, long, IOConsumer)} apply to when {@code writer} is run.
+     * </p>
+     *
+     * @param path the path to save
+     * @param source the file the contents come from
+     * @param size the exact number of bytes {@code writer} writes, implementations may fail if it is wrong
+     * @param writer the writer to use
+     * @throws IOException if there is an error saving the file
+     */
+    default void saveFile(Path path, Path source, long size, IOConsumer<WritableByteChannel> writer)
+        throws IOException {
+        saveFile(path, size, writer);
+    }
+
+    /**
+     * {@return whether this target can {@linkplain #saveUnchanged(Path, HashCode) save unchanged files} without
+     * reading them}
+     */
+    default boolean supportsUnchangedFiles() {
+        return false;
+    }
+
+    /**
+     * Save a file that is unchanged since the last committed backup to this target, without reading it.
+     *
+     * <p>
+     * If this returns {@code false}, the file must be saved with {@link #saveFile(Path, IOConsumer)} instead.
+     * </p>
+     *
+     * @param path the path to save
+     * @param contentHash the SHA-256 hash of the file's content
+     * @return {@code true} if the file was saved
+     * @throws IOException if there is an error saving the file
+     */
+    default boolean saveUnchanged(Path path, HashCode contentHash) throws IOException {
+        return false;
+    }
+
+    /**
+     * {@return whether this target can continue a backup that was interrupted, keeping the files it
+     * {@linkplain #checkpoint() checkpointed} before}
+     */
+    default boolean supportsResume() {
+        return false;
+    }
+
+    /**
+     * Save a file that an interrupted attempt at this backup already stored, if it is unchanged since, without reading
+     * it.
+     *
+     * <p>
+     * If the target {@linkplain #supportsResume() supports resuming}, this is called for each file before any are
+     * saved. If this returns {@code false}, the file is saved later in this backup, and the target may keep its
+     * attributes to recognize it if this attempt is interrupted too.
+     * </p>
+     *
+     * @param path the path to save
+     * @param attributes the attributes of the file in the world
+     * @return {@code true} if the file was saved
+     * @throws IOException if there is an error saving the file
+     */
+    default boolean saveResumed(Path path, BasicFileAttributes attributes) throws IOException {
+        return false;
+    }
+
+    /**
+     * Make everything saved so far durable, so an interrupted backup can be resumed from here. Returns once it is.
+     * Does nothing if the target doesn't {@linkplain #supportsResume() support resuming}.
+     *
+     * @throws IOException if there is an error writing the checkpoint
+     */
+    default void checkpoint() throws IOException {
+    }
+
     /**
      * Commit all saved files, and refuse any more.
      *
      * @throws IOException if there is an error committing the files
      */
     void commit() throws IOException;
+
+    /**
+     * Release any resources held by this target. If this target was not committed, the backup is abandoned.
+     *
+     * @throws IOException if there is an error closing the target
+     */
+    @Override
+    void close() throws IOException;
 }
@@ -0,0 +1,92 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data held in a growing list of pooled buffers, written to like a channel. Used instead of a byte array that is
+ * reallocated as it grows, and then thrown away.
+ */
+final class BufferChain implements WritableByteChannel {
+    private final BufferPool pool;
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+    private boolean flipped;
+
+    BufferChain(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * {@return the last buffer, with space to write into, adding one if the last is full}
+     */
+    ByteBuffer tail() {
+        Preconditions.checkState(!flipped, "Chain is already flipped");
+        if (buffers.isEmpty() || !buffers.get(buffers.size() - 1).hasRemaining()) {
+            buffers.add(pool.acquire());
+        }
+        return buffers.get(buffers.size() - 1);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            var tail = tail();
+            int count = Math.min(tail.remaining(), src.remaining());
+            tail.put(tail.position(), src, src.position(), count);
+            tail.position(tail.position() + count);
+            src.position(src.position() + count);
+        }
+        return length;
+    }
+
+    /**
+     * Stop writing, and prepare the data to be read.
+     *
+     * @return the buffers holding the data, in order
+     */
+    ByteBuffer[] flip() {
+        Preconditions.checkState(!flipped, "Chain is already flipped");
+        flipped = true;
+        var data = buffers.toArray(ByteBuffer[]::new);
+        for (ByteBuffer buffer : data) {
+            buffer.flip();
+        }
+        return data;
+    }
+
+    /**
+     * Return the buffers to the pool. The data must not be used afterwards.
+     */
+    void release() {
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !flipped;
+    }
+
+    @Override
+    public void close() {
+        // Reading the data is still allowed, it's only released by release()
+    }
+}
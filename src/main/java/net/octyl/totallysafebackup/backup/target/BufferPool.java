@@ -0,0 +1,132 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers, so that copying a file doesn't allocate a new buffer for it.
+ *
+ * <p>
+ * Direct buffers can be read into and written from by the OS without an extra copy through the heap, but are slow
+ * to allocate and only freed by the garbage collector, so they are worth keeping. Buffers are created on demand, and
+ * at most a fixed number of idle ones are kept. Any more are left for the garbage collector when released.
+ * </p>
+ */
+public final class BufferPool {
+    /**
+     * The size of the shared pool's buffers, large enough for efficient sequential I/O.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_BUFFER_SIZE, 256);
+
+    /**
+     * {@return the pool shared by everything that backs up}
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> idle;
+    private final AtomicLong allocations = new AtomicLong();
+
+    /**
+     * Create a new pool.
+     *
+     * @param bufferSize the size of each buffer
+     * @param maxIdle the most idle buffers to keep
+     */
+    public BufferPool(int bufferSize, int maxIdle) {
+        Preconditions.checkArgument(bufferSize > 0, "Buffer size must be positive");
+        Preconditions.checkArgument(maxIdle > 0, "Must keep at least one buffer");
+        this.bufferSize = bufferSize;
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+    }
+
+    /**
+     * {@return the size of each buffer}
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * {@return the number of buffers this pool has allocated, which stops growing once it is warm}
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if none are idle. It should be {@linkplain #release(ByteBuffer)
+     * released} when no longer needed.
+     *
+     * @return a cleared buffer
+     */
+    public ByteBuffer acquire() {
+        var buffer = idle.poll();
+        if (buffer == null) {
+            allocations.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer to the pool. It must not be used afterwards.
+     *
+     * @param buffer a buffer from {@link #acquire()}
+     */
+    public void release(ByteBuffer buffer) {
+        Preconditions.checkArgument(
+            buffer.isDirect() && buffer.capacity() == bufferSize, "Buffer is not from this pool"
+        );
+        buffer.clear();
+        // If the pool is full, the buffer is left for the garbage collector
+        idle.offer(buffer);
+    }
+
+    /**
+     * Copy the rest of a file into a channel through one of this pool's buffers.
+     *
+     * @param source the file to copy from its current position
+     * @param target the channel to copy to
+     * @return the number of bytes copied
+     * @throws IOException if there is an error copying
+     */
+    public long copy(FileChannel source, WritableByteChannel target) throws IOException {
+        var buffer = acquire();
+        try {
+            long copied = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                copied += buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+            }
+            return copied;
+        } finally {
+            release(buffer);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether a file is worth compressing. Region files are made of chunks that are already compressed, so
+ * deflating them again costs a lot of CPU for almost no space.
+ *
+ * <p>
+ * Files are matched by extension first. Files with an unknown extension are sampled, and stored if the sample
+ * doesn't compress well.
+ * </p>
+ */
+public final class CompressionPolicy {
+    /**
+     * Extensions of files that {@link #DEFAULT} stores, as they are already compressed.
+     */
+    public static final List<String> DEFAULT_STORED_EXTENSIONS = List.of(
+        "mca", "mcc", "png", "jpg", "jpeg", "zip", "gz", "xz", "ogg"
+    );
+    /**
+     * Extensions of files that {@link #DEFAULT} deflates.
+     */
+    public static final List<String> DEFAULT_DEFLATED_EXTENSIONS = List.of(
+        "dat", "dat_old", "json", "nbt", "snbt", "txt", "mcmeta", "mcfunction", "properties", "toml"
+    );
+    /**
+     * The ratio above which {@link #DEFAULT} stores sampled files.
+     */
+    public static final double DEFAULT_MAX_STORED_RATIO = 0.9;
+    /**
+     * A policy that stores region data, and deflates known-compressible files.
+     */
+    public static final CompressionPolicy DEFAULT = new CompressionPolicy(
+        Set.copyOf(DEFAULT_STORED_EXTENSIONS), Set.copyOf(DEFAULT_DEFLATED_EXTENSIONS), DEFAULT_MAX_STORED_RATIO
+    );
+    /**
+     * Files smaller than this are always deflated, there's nothing to gain by sampling them.
+     */
+    private static final int SMALL_FILE_SIZE = 4096;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    /**
+     * The largest window mapped at once when checksumming stored files.
+     */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    /**
+     * How to write a file.
+     */
+    public enum Method {
+        /**
+         * Copy the file as-is.
+         */
+        STORE,
+        /**
+         * Compress the file with DEFLATE.
+         */
+        DEFLATE,
+    }
+
+    /**
+     * Compute the CRC-32 of a file by mapping it, so the data is never copied to the heap.
+     *
+     * @param source the file to read
+     * @param size the number of bytes to read
+     * @return the CRC-32
+     * @throws IOException if there is an error reading the file
+     */
+    static long mappedCrc32(FileChannel source, long size) throws IOException {
+        var crc = new CRC32();
+        for (long position = 0; position < size; position += MAP_WINDOW) {
+            crc.update(source.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+        }
+        return crc.getValue();
+    }
+
+    private final Set<String> storedExtensions;
+    private final Set<String> deflatedExtensions;
+    private final double maxStoredRatio;
+
+    /**
+     * Create a new policy.
+     *
+     * @param storedExtensions extensions of files that are always stored, without a leading {@code .}
+     * @param deflatedExtensions extensions of files that are always deflated, without a leading {@code .}
+     * @param maxStoredRatio files with other extensions are stored if a sample compresses to more than this
+     *     fraction of its size
+     */
+    public CompressionPolicy(Set<String> storedExtensions, Set<String> deflatedExtensions, double maxStoredRatio) {
+        Preconditions.checkArgument(maxStoredRatio > 0, "Ratio must be positive");
+        this.storedExtensions = Set.copyOf(storedExtensions);
+        this.deflatedExtensions = Set.copyOf(deflatedExtensions);
+        this.maxStoredRatio = maxStoredRatio;
+    }
+
+    /**
+     * Choose how to write a file.
+     *
+     * @param path the path of the file in the backup
+     * @param source the file to read from
+     * @return the method to use
+     * @throws IOException if there is an error sampling the file
+     */
+    public Method choose(Path path, Path source) throws IOException {
+        var fileName = path.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        if (dot != -1) {
+            var extension = fileName.substring(dot + 1).toLowerCase(Locale.ROOT);
+            if (storedExtensions.contains(extension)) {
+                return Method.STORE;
+            }
+            if (deflatedExtensions.contains(extension)) {
+                return Method.DEFLATE;
+            }
+        }
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            if (channel.size() < SMALL_FILE_SIZE) {
+                return Method.DEFLATE;
+            }
+            var sample = ByteBuffer.allocate((int) Math.min(SAMPLE_SIZE, channel.size()));
+            while (sample.hasRemaining() && channel.read(sample) != -1) {
+                // Keep reading until the sample is full
+            }
+            sample.flip();
+            return sampleRatio(sample) > maxStoredRatio ? Method.STORE : Method.DEFLATE;
+        }
+    }
+
+    private static double sampleRatio(ByteBuffer sample) {
+        int inputSize = sample.remaining();
+        var deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            var output = ByteBuffer.allocate(inputSize + 64);
+            long outputSize = 0;
+            while (!deflater.finished()) {
+                output.clear();
+                outputSize += deflater.deflate(output);
+            }
+            return (double) outputSize / inputSize;
+        } finally {
+            deflater.end();
+        }
+    }
+}
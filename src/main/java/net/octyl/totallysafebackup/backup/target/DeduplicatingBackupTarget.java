@@ -0,0 +1,236 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.store.SnapshotManifest;
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link BackupTarget} that stores each file as content-addressed blobs in a {@link ContentStore}, plus a manifest
+ * for the snapshot. Blobs that already exist are not written again, so unchanged data costs no space.
+ *
+ * <p>
+ * Region files are split per chunk, so a region with one modified chunk only stores that chunk again. The padding
+ * between chunks is not stored, and comes back as zeros when the file is rebuilt.
+ * </p>
+ */
+public class DeduplicatingBackupTarget implements BackupTarget {
+    private static final HashFunction HASH = Hashing.sha256();
+    /**
+     * Files larger than this are spilled to disk, and stored as a single blob.
+     */
+    private static final int MAX_BUFFERED_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Buffers a file in memory, until it gets too large and is spilled to a temporary file.
+     */
+    private static final class SpillingOutputStream extends OutputStream {
+        private final ContentStore store;
+        private ExposedByteArrayOutputStream memory;
+        private Path spillFile;
+        private OutputStream spillStream;
+
+        SpillingOutputStream(ContentStore store, ExposedByteArrayOutputStream memory) {
+            this.store = store;
+            this.memory = memory;
+            memory.reset();
+        }
+
+        private OutputStream target(int incoming) throws IOException {
+            if (memory != null && memory.size() + incoming > MAX_BUFFERED_SIZE) {
+                spillFile = store.createTempFile();
+                spillStream = Files.newOutputStream(spillFile);
+                memory.writeTo(spillStream);
+                memory = null;
+            }
+            return memory != null ? memory : spillStream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target(1).write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target(len).write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spillStream != null) {
+                spillStream.close();
+            }
+        }
+    }
+
+    private final String description;
+    private final ContentStore store;
+    private final String snapshotName;
+    /**
+     * Blobs known to be in the store, from writing or finding them in this snapshot.
+     */
+    private final Set<HashCode> knownBlobs = new HashSet<>();
+    private final Map<String, SnapshotManifest.FileEntry> previousFiles = new HashMap<>();
+    private final List<SnapshotManifest.FileEntry> files = new ArrayList<>();
+    /**
+     * Files are saved one at a time, so one buffer is reused for all of them, rather than growing a new one each time.
+     */
+    private final ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private final OutputStreamChannel streamChannel = new OutputStreamChannel();
+    private boolean committed;
+
+    /**
+     * Create a new {@link DeduplicatingBackupTarget}.
+     *
+     * @param store the store to write to
+     * @param snapshotName the name of the snapshot, which should sort by time
+     * @throws IOException if there is an error reading the previous snapshot
+     */
+    public DeduplicatingBackupTarget(ContentStore store, String snapshotName) throws IOException {
+        this.description = store.getRoot() + "@" + snapshotName;
+        this.store = store;
+        this.snapshotName = snapshotName;
+        // Blobs from last time aren't trusted without checking the disk, verification may have discarded them
+        store.readLatestSnapshot().ifPresent(previous -> {
+            for (var file : previous.files()) {
+                previousFiles.put(file.path(), file);
+            }
+        });
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        var buffer = new SpillingOutputStream(store, memory);
+        HashCode contentHash;
+        try (var hashing = new HashingOutputStream(HASH, buffer)) {
+            writer.accept(hashing);
+            contentHash = hashing.hash();
+        } catch (Throwable t) {
+            if (buffer.spillFile != null) {
+                Files.deleteIfExists(buffer.spillFile);
+            }
+            throw t;
+        }
+        var name = ZipArchiveWriter.entryName(path);
+        if (buffer.spillFile != null) {
+            long size = Files.size(buffer.spillFile);
+            if (knownBlobs.add(contentHash)) {
+                store.moveBlob(contentHash, buffer.spillFile);
+            } else {
+                Files.delete(buffer.spillFile);
+            }
+            files.add(new SnapshotManifest.FileEntry(
+                name, size, contentHash, List.of(new SnapshotManifest.Piece(0, size, contentHash))
+            ));
+            return;
+        }
+        var data = buffer.memory.toByteBuffer();
+        List<SnapshotManifest.Piece> pieces;
+        if (RegionFileHeader.isRegionFile(path) && data.limit() >= RegionFileHeader.SIZE) {
+            pieces = storeRegionPieces(data);
+        } else {
+            storeBlob(contentHash, data.duplicate());
+            pieces = List.of(new SnapshotManifest.Piece(0, data.limit(), contentHash));
+        }
+        files.add(new SnapshotManifest.FileEntry(name, data.limit(), contentHash, pieces));
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        saveFile(path, stream -> writer.accept(streamChannel.wrap(stream)));
+    }
+
+    @Override
+    public boolean supportsUnchangedFiles() {
+        return true;
+    }
+
+    @Override
+    public boolean saveUnchanged(Path path, HashCode contentHash) {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        var previous = previousFiles.get(ZipArchiveWriter.entryName(path));
+        if (previous == null || !previous.contentHash().equals(contentHash)) {
+            return false;
+        }
+        files.add(previous);
+        return true;
+    }
+
+    private List<SnapshotManifest.Piece> storeRegionPieces(ByteBuffer data) throws IOException {
+        var header = RegionFileHeader.read(data);
+        var pieces = new ArrayList<SnapshotManifest.Piece>();
+        pieces.add(storePiece(data, 0, RegionFileHeader.SIZE));
+        for (int i = 0; i < RegionFileHeader.CHUNK_COUNT; i++) {
+            int length = header.chunkLength(i, data);
+            if (length == -1) {
+                continue;
+            }
+            pieces.add(storePiece(data, header.sectorOffset(i) * RegionFileHeader.SECTOR_SIZE, length));
+        }
+        return List.copyOf(pieces);
+    }
+
+    private SnapshotManifest.Piece storePiece(ByteBuffer data, int offset, int length) throws IOException {
+        var slice = data.slice(offset, length);
+        var hash = HASH.hashBytes(slice.duplicate());
+        storeBlob(hash, slice);
+        return new SnapshotManifest.Piece(offset, length, hash);
+    }
+
+    private void storeBlob(HashCode hash, ByteBuffer data) throws IOException {
+        if (knownBlobs.add(hash)) {
+            // Only written if it isn't in the store already
+            store.writeBlob(hash, data);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed, "Target is already committed");
+        committed = true;
+        store.writeSnapshot(snapshotName, new SnapshotManifest(List.copyOf(files)));
+    }
+
+    @Override
+    public void close() {
+        // Nothing to release, blobs from an abandoned snapshot are left for garbage collection
+    }
+
+    @Override
+    public String toString() {
+        return "DeduplicatingBackupTarget[" + description + "]";
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a delta archive written by {@link DeltaBackupTarget}. Files stored as deltas or references are rebuilt from
+ * the backups before it, which are opened as they are needed. Every file is checked against its hash as it is read.
+ *
+ * <p>
+ * Thread-safe, files can be read from several threads at once.
+ * </p>
+ */
+public final class DeltaArchiveReader implements Closeable {
+    private static final int TRAILER_SIZE = Long.BYTES + Integer.BYTES;
+    private static final int HASH_BYTES = 32;
+
+    /**
+     * A file in the archive.
+     *
+     * @param path the path of the file, relative to the world, using {@code /} as a separator
+     * @param size the size of the file
+     * @param contentHash the SHA-256 hash of the file's content
+     */
+    public record Entry(String path, long size, HashCode contentHash) {
+    }
+
+    private record Header(int depth, @Nullable String base) {
+    }
+
+    /**
+     * Open an archive.
+     *
+     * @param archive the archive
+     * @return the reader
+     * @throws IOException if the archive can't be opened, or isn't a delta archive
+     */
+    public static DeltaArchiveReader open(Path archive) throws IOException {
+        var channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try {
+            return new DeltaArchiveReader(archive, channel);
+        } catch (Throwable t) {
+            channel.close();
+            throw t;
+        }
+    }
+
+    /**
+     * Read the name of the backup an archive is based on, without reading its index.
+     *
+     * @param archive the archive
+     * @return the name of the backup, or {@code null} if the archive is a keyframe
+     * @throws IOException if the archive can't be read, or isn't a delta archive
+     */
+    @Nullable
+    public static String readBase(Path archive) throws IOException {
+        try (var channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            return readHeader(channel).base();
+        }
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException {
+        var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+        if (input.readInt() != DeltaBackupTarget.MAGIC || input.readInt() != DeltaBackupTarget.VERSION) {
+            throw new IOException("Not a supported delta archive");
+        }
+        int depth = input.readInt();
+        return new Header(depth, input.readBoolean() ? input.readUTF() : null);
+    }
+
+    private final Path archive;
+    private final FileChannel channel;
+    private final Header header;
+    private final Map<String, DeltaBackupTarget.IndexEntry> index;
+    /**
+     * The reader of the base backup, opened when it is first needed. Guarded by {@code this}.
+     */
+    @Nullable
+    private DeltaArchiveReader baseReader;
+
+    private DeltaArchiveReader(Path archive, FileChannel channel) throws IOException {
+        this.archive = archive;
+        this.channel = channel;
+        this.header = readHeader(channel);
+        long size = channel.size();
+        if (size < TRAILER_SIZE) {
+            throw new EOFException("Delta archive is truncated");
+        }
+        var trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(trailer, size - TRAILER_SIZE);
+        trailer.flip();
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != DeltaBackupTarget.MAGIC || indexOffset < 0 || indexOffset > size - TRAILER_SIZE) {
+            throw new IOException("Delta archive is truncated, or was never committed");
+        }
+        var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(indexOffset))));
+        int count = input.readInt();
+        var entries = new LinkedHashMap<String, DeltaBackupTarget.IndexEntry>(count);
+        for (int i = 0; i < count; i++) {
+            var name = input.readUTF();
+            byte kind = input.readByte();
+            long entrySize = input.readLong();
+            var hash = new byte[HASH_BYTES];
+            input.readFully(hash);
+            long offset = input.readLong();
+            long length = input.readLong();
+            entries.put(name, new DeltaBackupTarget.IndexEntry(
+                name, kind, entrySize, HashCode.fromBytes(hash), offset, length
+            ));
+        }
+        this.index = entries;
+    }
+
+    /**
+     * {@return the name of the backup this archive is based on, or {@code null} if it is a keyframe}
+     */
+    @Nullable
+    public String getBase() {
+        return header.base();
+    }
+
+    /**
+     * {@return the files in the archive}
+     */
+    public List<Entry> entries() {
+        var entries = new ArrayList<Entry>(index.size());
+        for (var entry : index.values()) {
+            entries.add(new Entry(entry.name(), entry.size(), entry.contentHash()));
+        }
+        return entries;
+    }
+
+    /**
+     * Open a file in the archive. The stream fails at its end if the content doesn't match the file's hash.
+     *
+     * @param path the path of the file
+     * @return the content
+     * @throws IOException if the file isn't in the archive, or can't be rebuilt
+     */
+    public InputStream open(String path) throws IOException {
+        var entry = getEntry(path);
+        return switch (entry.kind()) {
+            case DeltaBackupTarget.KIND_FULL -> new CheckingInputStream(
+                new RangeInputStream(channel, entry.offset(), entry.offset() + entry.length()), entry
+            );
+            case DeltaBackupTarget.KIND_UNCHANGED -> {
+                checkBaseMatches(entry);
+                yield base().open(path);
+            }
+            default -> new ByteArrayInputStream(readAll(path));
+        };
+    }
+
+    private DeltaBackupTarget.IndexEntry getEntry(String path) throws NoSuchFileException {
+        var entry = index.get(path);
+        if (entry == null) {
+            throw new NoSuchFileException(archive + "!" + path);
+        }
+        return entry;
+    }
+
+    /**
+     * Rebuild a whole file in memory. Only files small enough to have been encoded as deltas are read this way.
+     */
+    private byte[] readAll(String path) throws IOException {
+        var entry = getEntry(path);
+        Preconditions.checkState(entry.size() <= Integer.MAX_VALUE - 8, "File is too large to rebuild: %s", path);
+        byte[] content;
+        switch (entry.kind()) {
+            case DeltaBackupTarget.KIND_FULL -> content = readRange(entry.offset(), (int) entry.length());
+            case DeltaBackupTarget.KIND_UNCHANGED -> {
+                checkBaseMatches(entry);
+                // The base checks its own content
+                return base().readAll(path);
+            }
+            case DeltaBackupTarget.KIND_DELTA -> content = applyDelta(
+                base().readAll(path), readRange(entry.offset(), (int) entry.length()), (int) entry.size()
+            );
+            default -> throw new IOException("Unknown kind " + entry.kind() + " of " + path + " in " + archive);
+        }
+        if (!Hashing.sha256().hashBytes(content).equals(entry.contentHash())) {
+            throw new IOException(path + " in " + archive + " doesn't match its hash");
+        }
+        return content;
+    }
+
+    private byte[] applyDelta(byte[] base, byte[] delta, int size) throws IOException {
+        var content = new byte[size];
+        var ops = new DataInputStream(new ByteArrayInputStream(delta));
+        int position = 0;
+        try {
+            byte op;
+            while ((op = ops.readByte()) != DeltaBackupTarget.OP_END) {
+                switch (op) {
+                    case DeltaBackupTarget.OP_COPY -> {
+                        long start = (long) ops.readInt() * DeltaBackupTarget.BLOCK_SIZE;
+                        int length = ops.readInt() * DeltaBackupTarget.BLOCK_SIZE;
+                        System.arraycopy(base, Math.toIntExact(start), content, position, length);
+                        position += length;
+                    }
+                    case DeltaBackupTarget.OP_LITERAL -> {
+                        int length = ops.readInt();
+                        ops.readFully(content, position, length);
+                        position += length;
+                    }
+                    default -> throw new IOException("Unknown delta operation " + op);
+                }
+            }
+        } catch (IndexOutOfBoundsException | ArithmeticException e) {
+            throw new IOException("Delta in " + archive + " doesn't fit its base", e);
+        }
+        if (position != size) {
+            throw new IOException("Delta in " + archive + " is the wrong size");
+        }
+        return content;
+    }
+
+    private void checkBaseMatches(DeltaBackupTarget.IndexEntry entry) throws IOException {
+        var baseEntry = base().getEntry(entry.name());
+        if (!baseEntry.contentHash().equals(entry.contentHash())) {
+            throw new IOException(entry.name() + " in " + archive + " doesn't match its base");
+        }
+    }
+
+    private synchronized DeltaArchiveReader base() throws IOException {
+        if (baseReader == null) {
+            var base = header.base();
+            if (base == null) {
+                throw new IOException(archive + " is a keyframe, but refers to a base");
+            }
+            baseReader = open(DeltaBackupTarget.pathFor(archive.getParent(), base));
+        }
+        return baseReader;
+    }
+
+    private byte[] readRange(long offset, int length) throws IOException {
+        var buffer = ByteBuffer.allocate(length);
+        readFully(buffer, offset);
+        return buffer.array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("Delta archive is truncated");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Close this archive, and any it was based on.
+     *
+     * @throws IOException if there is an error closing an archive
+     */
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            synchronized (this) {
+                if (baseReader != null) {
+                    baseReader.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads part of a channel, with positional reads so several can share the channel.
+     */
+    private static final class RangeInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        private RangeInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read == -1) {
+                throw new EOFException("Delta archive is truncated");
+            }
+            position += read;
+            return read;
+        }
+    }
+
+    /**
+     * Hashes a file as it is read, and fails at the end if it doesn't match.
+     */
+    private final class CheckingInputStream extends InputStream {
+        private final InputStream input;
+        private final DeltaBackupTarget.IndexEntry entry;
+        private final Hasher hasher = Hashing.sha256().newHasher();
+        private boolean checked;
+
+        private CheckingInputStream(InputStream input, DeltaBackupTarget.IndexEntry entry) {
+            this.input = input;
+            this.entry = entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = input.read(b, off, len);
+            if (read > 0) {
+                hasher.putBytes(b, off, read);
+            } else if (read == -1 && !checked) {
+                checked = true;
+                if (!hasher.hash().equals(entry.contentHash())) {
+                    throw new IOException(entry.name() + " in " + archive + " doesn't match its hash");
+                }
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.CountingOutputStream;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import org.apache.commons.io.function.IOConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BackupTarget} that writes a delta archive, holding only what changed since the previous delta backup.
+ * Region files are encoded against the previous backup's copy with rsync's algorithm: blocks found anywhere in the
+ * new file by their rolling checksum are stored as references, and only the bytes between them are stored. Files
+ * that are unchanged as a whole are stored as a reference alone, without reading them if the caller knows they are
+ * unchanged.
+ *
+ * <p>
+ * The block signatures of each backup are kept in a file of their own, computed from the copy of each file already
+ * in memory, so the next backup doesn't read the previous one at all. Restoring reads back along the chain of
+ * backups to the last keyframe, a backup with every file stored whole. A keyframe is written every
+ * {@code keyframeInterval} backups, and whenever the previous backup or its signatures are gone.
+ * </p>
+ *
+ * <p>
+ * The archive is a header naming the backup it is based on, the content of each file, then an index of the files.
+ * Region files are buffered in memory to encode them, other files are streamed straight into the archive.
+ * </p>
+ */
+public class DeltaBackupTarget implements BackupTarget {
+    /**
+     * The extension of delta archives.
+     */
+    public static final String EXTENSION = ".tsbd";
+    static final int MAGIC = 0x54534244; // TSBD
+    static final int VERSION = 1;
+    static final byte KIND_FULL = 0;
+    static final byte KIND_DELTA = 1;
+    static final byte KIND_UNCHANGED = 2;
+    static final byte OP_END = 0;
+    static final byte OP_COPY = 1;
+    static final byte OP_LITERAL = 2;
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final HashFunction HASH = Hashing.sha256();
+    /**
+     * Chunks start on sector boundaries, so blocks of a sector line up with them in both versions of a file.
+     */
+    static final int BLOCK_SIZE = RegionFileHeader.SECTOR_SIZE;
+    /**
+     * Region files larger than this are stored whole rather than read into memory to encode.
+     */
+    private static final int MAX_DELTA_SIZE = 256 * 1024 * 1024;
+
+    /**
+     * A file in the archive's index.
+     *
+     * @param name the entry name
+     * @param kind how the file is stored
+     * @param size the size of the file
+     * @param contentHash the SHA-256 hash of the file's content
+     * @param offset the offset of the stored content in the archive
+     * @param length the length of the stored content
+     */
+    record IndexEntry(String name, byte kind, long size, HashCode contentHash, long offset, long length) {
+    }
+
+    /**
+     * Find the archive of a delta backup.
+     *
+     * @param directory the directory delta backups are written to
+     * @param name the name of the backup
+     * @return the archive
+     */
+    public static Path pathFor(Path directory, String name) {
+        return directory.resolve(name + EXTENSION);
+    }
+
+    private final Path archive;
+    private final Path signatureFile;
+    @Nullable
+    private final DeltaSignatures base;
+    private final String name;
+    private final int depth;
+    private final CountingOutputStream output;
+    private final DataOutputStream dataOutput;
+    private final List<IndexEntry> index = new ArrayList<>();
+    private final Map<String, DeltaSignatures.FileSignature> signatures = new HashMap<>();
+    private final ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+    private final ExposedByteArrayOutputStream encoded = new ExposedByteArrayOutputStream();
+    private final OutputStreamChannel streamChannel = new OutputStreamChannel();
+    private final DeltaStats stats = new DeltaStats();
+    private boolean committed;
+    private boolean closed;
+
+    /**
+     * Create a new {@link DeltaBackupTarget}.
+     *
+     * @param directory the directory to write the archive to, where the previous delta backups are
+     * @param name the name of the backup, which should sort by time
+     * @param signatureFile the file that keeps the signatures of the last delta backup
+     * @param keyframeInterval the most backups in a chain, counting the keyframe, so {@code 1} makes every backup a
+     *     keyframe
+     * @throws IOException if there is an error creating the archive
+     */
+    public DeltaBackupTarget(Path directory, String name, Path signatureFile, int keyframeInterval)
+        throws IOException {
+        Preconditions.checkArgument(keyframeInterval > 0, "Keyframe interval must be positive");
+        this.archive = pathFor(directory, name);
+        this.signatureFile = signatureFile;
+        this.name = name;
+        var previous = DeltaSignatures.load(signatureFile);
+        if (previous != null
+            && previous.depth() + 1 < keyframeInterval
+            && Files.exists(pathFor(directory, previous.backupName()))) {
+            this.base = previous;
+            this.depth = previous.depth() + 1;
+        } else {
+            this.base = null;
+            this.depth = 0;
+        }
+        // Written under a temporary name until it is committed, anything already there was left behind by a crash
+        var partial = PartialFile.pathFor(archive);
+        Files.deleteIfExists(partial);
+        this.output = new CountingOutputStream(new BufferedOutputStream(
+            Files.newOutputStream(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 64 * 1024
+        ));
+        this.dataOutput = new DataOutputStream(output);
+        try {
+            dataOutput.writeInt(MAGIC);
+            dataOutput.writeInt(VERSION);
+            dataOutput.writeInt(depth);
+            dataOutput.writeBoolean(base != null);
+            if (base != null) {
+                dataOutput.writeUTF(base.backupName());
+            }
+        } catch (Throwable t) {
+            output.close();
+            throw t;
+        }
+    }
+
+    private static boolean isDeltaCandidate(Path path) {
+        return RegionFileHeader.isRegionFile(path);
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        if (isDeltaCandidate(path)) {
+            memory.reset();
+            writer.accept(memory);
+            saveBuffered(ZipArchiveWriter.entryName(path));
+        } else {
+            saveStreamed(ZipArchiveWriter.entryName(path), writer);
+        }
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        if (isDeltaCandidate(path) && size <= MAX_DELTA_SIZE) {
+            memory.reset();
+            writer.accept(streamChannel.wrap(memory));
+            saveBuffered(ZipArchiveWriter.entryName(path));
+        } else {
+            saveStreamed(ZipArchiveWriter.entryName(path), stream -> writer.accept(streamChannel.wrap(stream)));
+        }
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        if (isDeltaCandidate(path) && Files.size(source) <= MAX_DELTA_SIZE) {
+            memory.reset();
+            Files.copy(source, memory);
+            saveBuffered(ZipArchiveWriter.entryName(path));
+        } else {
+            saveStreamed(ZipArchiveWriter.entryName(path), stream -> Files.copy(source, stream));
+        }
+    }
+
+    /**
+     * Store a file whole, as it is written.
+     */
+    private void saveStreamed(String entryName, IOConsumer<OutputStream> writer) throws IOException {
+        long offset = output.getCount();
+        HashCode contentHash;
+        try (var hashing = new HashingOutputStream(HASH, new NonClosingOutputStream(output))) {
+            writer.accept(hashing);
+            contentHash = hashing.hash();
+        }
+        long length = output.getCount() - offset;
+        index.add(new IndexEntry(entryName, KIND_FULL, length, contentHash, offset, length));
+        signatures.put(entryName, DeltaSignatures.FileSignature.wholeFile(length, contentHash));
+        stats.add(length, length);
+    }
+
+    /**
+     * Store the file in {@link #memory}, as a delta if that is smaller.
+     */
+    private void saveBuffered(String entryName) throws IOException {
+        var data = memory.toByteBuffer().array();
+        int length = memory.size();
+        var contentHash = HASH.hashBytes(data, 0, length);
+        var signature = DeltaSignatures.FileSignature.compute(data, length, contentHash, BLOCK_SIZE);
+        signatures.put(entryName, signature);
+        var previous = base == null ? null : base.files().get(entryName);
+        if (previous != null && previous.size() == length && previous.contentHash().equals(contentHash)) {
+            index.add(new IndexEntry(entryName, KIND_UNCHANGED, length, contentHash, output.getCount(), 0));
+            stats.add(length, 0);
+            return;
+        }
+        long offset = output.getCount();
+        if (previous != null && previous.blockCount() > 0 && previous.blockSize() == BLOCK_SIZE) {
+            encoded.reset();
+            encodeDelta(data, length, new DeltaSignatures.BlockIndex(previous), new DataOutputStream(encoded));
+            // Mostly new data encodes to a little more than the data itself
+            if (encoded.size() < length) {
+                encoded.writeTo(output);
+                index.add(new IndexEntry(entryName, KIND_DELTA, length, contentHash, offset, encoded.size()));
+                stats.add(length, encoded.size());
+                return;
+            }
+        }
+        output.write(data, 0, length);
+        index.add(new IndexEntry(entryName, KIND_FULL, length, contentHash, offset, length));
+        stats.add(length, length);
+    }
+
+    /**
+     * Encode data as copies of blocks from the previous version, and literal runs of bytes between them.
+     */
+    private static void encodeDelta(byte[] data, int length, DeltaSignatures.BlockIndex blocks, DataOutputStream out)
+        throws IOException {
+        var checksum = new RollingChecksum(BLOCK_SIZE);
+        int position = 0;
+        int literalStart = 0;
+        boolean rolling = false;
+        int copyStart = -1;
+        int copyCount = 0;
+        while (position + BLOCK_SIZE <= length) {
+            if (!rolling) {
+                checksum.reset(data, position);
+                rolling = true;
+            }
+            int block = blocks.find(checksum.value(), data, position, copyStart + copyCount);
+            if (block != -1) {
+                if (literalStart < position) {
+                    writeCopy(out, copyStart, copyCount);
+                    copyCount = 0;
+                    writeLiteral(out, data, literalStart, position);
+                }
+                if (copyCount > 0 && block == copyStart + copyCount) {
+                    copyCount++;
+                } else {
+                    writeCopy(out, copyStart, copyCount);
+                    copyStart = block;
+                    copyCount = 1;
+                }
+                position += BLOCK_SIZE;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+            if (position + BLOCK_SIZE < length) {
+                checksum.roll(data[position], data[position + BLOCK_SIZE]);
+            }
+            position++;
+        }
+        writeCopy(out, copyStart, copyCount);
+        writeLiteral(out, data, literalStart, length);
+        out.writeByte(OP_END);
+    }
+
+    private static void writeCopy(DataOutputStream out, int firstBlock, int count) throws IOException {
+        if (count > 0) {
+            out.writeByte(OP_COPY);
+            out.writeInt(firstBlock);
+            out.writeInt(count);
+        }
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] data, int start, int end) throws IOException {
+        if (start < end) {
+            out.writeByte(OP_LITERAL);
+            out.writeInt(end - start);
+            out.write(data, start, end - start);
+        }
+    }
+
+    @Override
+    public boolean supportsUnchangedFiles() {
+        return true;
+    }
+
+    @Override
+    public boolean saveUnchanged(Path path, HashCode contentHash) {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        var entryName = ZipArchiveWriter.entryName(path);
+        var previous = base == null ? null : base.files().get(entryName);
+        if (previous == null || !previous.contentHash().equals(contentHash)) {
+            return false;
+        }
+        index.add(new IndexEntry(entryName, KIND_UNCHANGED, previous.size(), contentHash, output.getCount(), 0));
+        signatures.put(entryName, previous);
+        stats.add(previous.size(), 0);
+        return true;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed, "Target is already committed");
+        committed = true;
+        long indexOffset = output.getCount();
+        dataOutput.writeInt(index.size());
+        for (var entry : index) {
+            dataOutput.writeUTF(entry.name());
+            dataOutput.writeByte(entry.kind());
+            dataOutput.writeLong(entry.size());
+            dataOutput.write(entry.contentHash().asBytes());
+            dataOutput.writeLong(entry.offset());
+            dataOutput.writeLong(entry.length());
+        }
+        dataOutput.writeLong(indexOffset);
+        dataOutput.writeInt(MAGIC);
+        closed = true;
+        dataOutput.close();
+        PartialFile.publish(PartialFile.pathFor(archive), archive);
+        LOGGER.info(
+            "Wrote {} {}: {} of {} bytes stored",
+            base == null ? "keyframe" : "delta on " + base.backupName(), name, stats.storedBytes, stats.inputBytes
+        );
+        try {
+            new DeltaSignatures(name, depth, signatures).save(signatureFile);
+        } catch (IOException e) {
+            // The backup itself is fine, the next one is just encoded against an older one
+            LOGGER.warn("Failed to save delta signatures to {}", signatureFile, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            output.close();
+        }
+        if (!committed) {
+            Files.deleteIfExists(PartialFile.pathFor(archive));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeltaBackupTarget[" + archive + "]";
+    }
+
+    private static final class DeltaStats {
+        private long inputBytes;
+        private long storedBytes;
+
+        void add(long input, long stored) {
+            inputBytes += input;
+            storedBytes += stored;
+        }
+    }
+
+    /**
+     * Keeps writers from closing the archive.
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // The archive is closed by the target
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The signature of every file in a delta backup, which the next delta backup is encoded against. Kept in a file of
+ * its own, so the next backup never has to read the previous one.
+ *
+ * @param backupName the name of the backup the signatures describe
+ * @param depth the number of backups between that backup and its keyframe, {@code 0} for a keyframe
+ * @param files the signature of each file, by entry name
+ */
+record DeltaSignatures(String backupName, int depth, Map<String, FileSignature> files) {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x54534247; // TSBG
+    private static final int VERSION = 1;
+    private static final int HASH_BYTES = 32;
+    static final HashFunction STRONG_HASH = Hashing.murmur3_128();
+
+    /**
+     * The signature of one file.
+     *
+     * @param size the size of the file
+     * @param contentHash the SHA-256 hash of the file's content
+     * @param blockSize the size of each block
+     * @param weak the {@linkplain RollingChecksum weak checksum} of each whole block, empty if the file isn't encoded
+     *     as a delta
+     * @param strong the strong hash of each whole block
+     */
+    record FileSignature(long size, HashCode contentHash, int blockSize, int[] weak, long[] strong) {
+        /**
+         * Compute the signature of a file's content.
+         *
+         * @param data the content
+         * @param length the length of the content
+         * @param contentHash the SHA-256 hash of the content
+         * @param blockSize the size of each block
+         * @return the signature
+         */
+        static FileSignature compute(byte[] data, int length, HashCode contentHash, int blockSize) {
+            int blocks = length / blockSize;
+            var weak = new int[blocks];
+            var strong = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                weak[i] = RollingChecksum.of(data, i * blockSize, blockSize);
+                strong[i] = strongHash(data, i * blockSize, blockSize);
+            }
+            return new FileSignature(length, contentHash, blockSize, weak, strong);
+        }
+
+        /**
+         * Create the signature of a file without blocks, which can only be matched as a whole.
+         *
+         * @param size the size of the file
+         * @param contentHash the SHA-256 hash of the file's content
+         * @return the signature
+         */
+        static FileSignature wholeFile(long size, HashCode contentHash) {
+            return new FileSignature(size, contentHash, 0, new int[0], new long[0]);
+        }
+
+        int blockCount() {
+            return weak.length;
+        }
+    }
+
+    static long strongHash(byte[] data, int offset, int length) {
+        return STRONG_HASH.hashBytes(data, offset, length).asLong();
+    }
+
+    /**
+     * Finds the blocks of a signature by their checksums. Blocks with the same content are only kept once.
+     */
+    static final class BlockIndex {
+        private final FileSignature signature;
+        private final int[] table;
+        private final int[] next;
+        private final int mask;
+
+        BlockIndex(FileSignature signature) {
+            this.signature = signature;
+            int blocks = signature.blockCount();
+            int size = Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) * 2;
+            this.table = new int[size];
+            this.next = new int[blocks];
+            this.mask = size - 1;
+            Arrays.fill(table, -1);
+            for (int i = 0; i < blocks; i++) {
+                int slot = slot(signature.weak()[i]);
+                if (find(signature.weak()[i], signature.strong()[i]) != -1) {
+                    // Most often padding, which would make every lookup of it walk a long chain
+                    next[i] = -1;
+                    continue;
+                }
+                next[i] = table[slot];
+                table[slot] = i;
+            }
+        }
+
+        private int slot(int weak) {
+            return (weak ^ (weak >>> 16)) & mask;
+        }
+
+        private int find(int weak, long strong) {
+            for (int i = table[slot(weak)]; i != -1; i = next[i]) {
+                if (signature.weak()[i] == weak && signature.strong()[i] == strong) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Find a block with the same content as a window.
+         *
+         * @param weak the weak checksum of the window
+         * @param data the data the window is in
+         * @param offset the start of the window, which is one block long
+         * @param preferred the block to pick if it matches, as runs of consecutive blocks encode smaller
+         * @return the block, or {@code -1} if none matches
+         */
+        int find(int weak, byte[] data, int offset, int preferred) {
+            int blockSize = signature.blockSize();
+            long strong = 0;
+            boolean strongComputed = false;
+            if (preferred >= 0 && preferred < signature.blockCount() && signature.weak()[preferred] == weak) {
+                strong = strongHash(data, offset, blockSize);
+                strongComputed = true;
+                if (signature.strong()[preferred] == strong) {
+                    return preferred;
+                }
+            }
+            for (int i = table[slot(weak)]; i != -1; i = next[i]) {
+                if (signature.weak()[i] != weak) {
+                    continue;
+                }
+                if (!strongComputed) {
+                    strong = strongHash(data, offset, blockSize);
+                    strongComputed = true;
+                }
+                if (signature.strong()[i] == strong) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Load the signatures, if they can be.
+     *
+     * @param file the file to load from
+     * @return the signatures, or {@code null} if the file doesn't exist or can't be read
+     */
+    @Nullable
+    static DeltaSignatures load(Path file) {
+        try (var input = new DataInputStream(new BufferedInputStream(
+            new GZIPInputStream(Files.newInputStream(file))
+        ))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a supported signature file");
+            }
+            var backupName = input.readUTF();
+            int depth = input.readInt();
+            int count = input.readInt();
+            var files = new HashMap<String, FileSignature>(count);
+            for (int i = 0; i < count; i++) {
+                var path = input.readUTF();
+                long size = input.readLong();
+                var hash = new byte[HASH_BYTES];
+                input.readFully(hash);
+                int blockSize = input.readInt();
+                int blocks = input.readInt();
+                var weak = new int[blocks];
+                var strong = new long[blocks];
+                for (int j = 0; j < blocks; j++) {
+                    weak[j] = input.readInt();
+                    strong[j] = input.readLong();
+                }
+                files.put(path, new FileSignature(size, HashCode.fromBytes(hash), blockSize, weak, strong));
+            }
+            return new DeltaSignatures(backupName, depth, files);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // Signatures are only a cache, the next backup is just a keyframe without them
+            LOGGER.warn("Failed to load delta signatures from {}, the next backup will be a keyframe", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Save the signatures, replacing the file atomically.
+     *
+     * @param file the file to save to
+     * @throws IOException if there is an error saving
+     */
+    void save(Path file) throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var output = new DataOutputStream(new BufferedOutputStream(
+            new GZIPOutputStream(Files.newOutputStream(tempFile))
+        ))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(backupName);
+            output.writeInt(depth);
+            output.writeInt(files.size());
+            for (var entry : files.entrySet()) {
+                var signature = entry.getValue();
+                output.writeUTF(entry.getKey());
+                output.writeLong(signature.size());
+                output.write(signature.contentHash().asBytes());
+                output.writeInt(signature.blockSize());
+                output.writeInt(signature.blockCount());
+                for (int i = 0; i < signature.blockCount(); i++) {
+                    output.writeInt(signature.weak()[i]);
+                    output.writeLong(signature.strong()[i]);
+                }
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
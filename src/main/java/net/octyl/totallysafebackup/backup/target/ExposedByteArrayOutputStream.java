@@ -0,0 +1,41 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup.target;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteArrayOutputStream} that can expose its buffer without copying it.
+ */
+final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+    ExposedByteArrayOutputStream() {
+        super(64 * 1024);
+    }
+
+    /**
+     * {@return a view of the bytes written so far, which is invalidated by further writes}
+     */
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(buf, 0, count);
+    }
+
+    /**
+     * {@return a stream of the bytes written so far, which is invalidated by further writes}
+     */
+    InputStream toInputStream() {
+        return new ByteArrayInputStream(buf, 0, count);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import org.apache.commons.io.function.IOConsumer;
+import org.apache.commons.io.function.IOFunction;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * {@link BackupTarget} that writes one archive and sends it to several {@link ArchiveSink sinks} at once, e.g. the
+ * local backup directory and a second disk.
+ *
+ * <p>
+ * Each file is read and compressed once, by the archive target, and only the finished archive's bytes are copied to
+ * each sink. Every sink is fed from its own bounded queue, so a slow one eventually slows the backup down instead of
+ * buffering the whole archive, and the world is never read twice.
+ * </p>
+ *
+ * <p>
+ * The first sink is the primary one, and the backup fails if it does. Any other sink that fails is logged and left
+ * out, so an unreachable mirror doesn't cost the local backup.
+ * </p>
+ */
+public final class FanOutBackupTarget implements BackupTarget {
+    private final FanOutChannel channel;
+    private final BackupTarget archive;
+    private boolean committed;
+
+    /**
+     * Create a new target.
+     *
+     * @param sinks the sinks to send the archive to, the first being the primary one. They are closed by this target
+     * @param queueBuffers the most {@linkplain BufferPool#DEFAULT_BUFFER_SIZE buffers} to queue for each sink
+     * @param archive creates the target that writes the archive to the given channel, like
+     *     {@link ParallelZipBackupTarget}
+     * @throws IOException if there is an error creating the archive target
+     */
+    public FanOutBackupTarget(
+        List<? extends ArchiveSink> sinks, int queueBuffers,
+        IOFunction<WritableByteChannel, BackupTarget> archive
+    ) throws IOException {
+        this.channel = new FanOutChannel(sinks, queueBuffers, BufferPool.shared());
+        try {
+            this.archive = archive.apply(channel);
+        } catch (Throwable t) {
+            channel.closeSinks();
+            throw t;
+        }
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        archive.saveFile(path, writer);
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        archive.saveFile(path, size, writer);
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        archive.saveFile(path, source);
+    }
+
+    @Override
+    public void saveFile(Path path, Path source, long size, IOConsumer<WritableByteChannel> writer)
+        throws IOException {
+        archive.saveFile(path, source, size, writer);
+    }
+
+    @Override
+    public boolean supportsUnchangedFiles() {
+        return archive.supportsUnchangedFiles();
+    }
+
+    @Override
+    public boolean saveUnchanged(Path path, HashCode contentHash) throws IOException {
+        return archive.saveUnchanged(path, contentHash);
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed, "Target is already committed");
+        archive.commit();
+        channel.finish();
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            archive.close();
+        } finally {
+            // If we're not committed, the sinks throw away what they were sent
+            channel.closeSinks();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FanOutBackupTarget[" + archive + "]";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Channel that copies everything written to it into several {@link ArchiveSink sinks} at once.
+ *
+ * <p>
+ * Writes are collected into pooled buffers, and each full buffer is shared by every sink rather than copied for
+ * each. Every sink has its own thread and its own bounded queue of buffers, so a slow sink only blocks the writer
+ * once its queue is full, and never holds back the others until then.
+ * </p>
+ *
+ * <p>
+ * The first sink is the primary one. If it fails, writing fails, so the backup does. Any other sink that fails is
+ * logged and dropped, and the rest carry on without it.
+ * </p>
+ */
+final class FanOutChannel implements WritableByteChannel {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("totally-safe-backup-fan-out-%d")
+        .build();
+    /**
+     * Marks the end of the data in a queue.
+     */
+    private static final Chunk END = new Chunk(null, null, 0);
+
+    /**
+     * A full buffer, shared by the sinks. The last sink to finish with it returns it to the pool.
+     */
+    private static final class Chunk {
+        @Nullable
+        private final BufferPool pool;
+        @Nullable
+        private final ByteBuffer buffer;
+        private final AtomicInteger references;
+
+        private Chunk(@Nullable BufferPool pool, @Nullable ByteBuffer buffer, int references) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.references = new AtomicInteger(references);
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && pool != null && buffer != null) {
+                pool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Sends chunks to one sink on its own thread.
+     */
+    private static final class Destination implements Runnable {
+        private final ArchiveSink sink;
+        private final boolean primary;
+        private final BlockingQueue<Chunk> queue;
+        private final Thread thread;
+        @Nullable
+        private volatile Throwable failure;
+
+        private Destination(ArchiveSink sink, boolean primary, int queueBuffers) {
+            this.sink = sink;
+            this.primary = primary;
+            this.queue = new ArrayBlockingQueue<>(queueBuffers);
+            this.thread = THREAD_FACTORY.newThread(this);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Chunk chunk;
+                while ((chunk = queue.take()) != END) {
+                    try {
+                        if (failure == null) {
+                            // Each sink reads the shared buffer through its own view of it
+                            var data = chunk.buffer.duplicate();
+                            while (data.hasRemaining()) {
+                                sink.write(data);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        // Keep taking chunks, so the writer is never blocked on a sink that failed
+                        failure = t;
+                        if (!primary && !Thread.currentThread().isInterrupted()) {
+                            LOGGER.warn("Failed to write to {}, continuing without it", sink, t);
+                        }
+                    } finally {
+                        chunk.release();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Abandoned, the queue is drained by whoever interrupted us
+            }
+        }
+
+        void put(Chunk chunk) throws InterruptedIOException {
+            try {
+                queue.put(chunk);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + sink);
+            }
+        }
+    }
+
+    private final BufferPool pool;
+    private final List<Destination> destinations;
+    @Nullable
+    private ByteBuffer current;
+    private boolean open = true;
+
+    /**
+     * Create a new channel, and start sending to the sinks.
+     *
+     * @param sinks the sinks to send to, the first being the primary one
+     * @param queueBuffers the most buffers to queue for each sink
+     * @param pool the pool to take buffers from
+     */
+    FanOutChannel(List<? extends ArchiveSink> sinks, int queueBuffers, BufferPool pool) {
+        Preconditions.checkArgument(!sinks.isEmpty(), "Must have at least one sink");
+        Preconditions.checkArgument(queueBuffers > 0, "Must queue at least one buffer");
+        this.pool = pool;
+        var destinations = new ArrayList<Destination>(sinks.size());
+        for (int i = 0; i < sinks.size(); i++) {
+            destinations.add(new Destination(sinks.get(i), i == 0, queueBuffers));
+        }
+        this.destinations = List.copyOf(destinations);
+        for (var destination : this.destinations) {
+            destination.thread.start();
+        }
+    }
+
+    private void checkPrimary() throws IOException {
+        var failure = destinations.get(0).failure;
+        if (failure != null) {
+            throw new IOException("Failed to write to " + destinations.get(0).sink, failure);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        checkPrimary();
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (current == null) {
+                current = pool.acquire();
+            }
+            int length = Math.min(src.remaining(), current.remaining());
+            current.put(current.position(), src, src.position(), length);
+            current.position(current.position() + length);
+            src.position(src.position() + length);
+            if (!current.hasRemaining()) {
+                dispatch();
+            }
+        }
+        return written;
+    }
+
+    private void dispatch() throws InterruptedIOException {
+        var buffer = current;
+        current = null;
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.position() == 0) {
+            pool.release(buffer);
+            return;
+        }
+        buffer.flip();
+        var chunk = new Chunk(pool, buffer, destinations.size());
+        for (int i = 0; i < destinations.size(); i++) {
+            try {
+                destinations.get(i).put(chunk);
+            } catch (InterruptedIOException e) {
+                // The rest will never see it
+                for (int j = i; j < destinations.size(); j++) {
+                    chunk.release();
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Send what is left to the sinks, and tell them the data is complete. This doesn't wait for them, or commit
+     * them, which is left to {@link #finish()}.
+     *
+     * @throws IOException if interrupted while waiting for a sink's queue
+     */
+    @Override
+    public void close() throws IOException {
+        if (!open) {
+            return;
+        }
+        open = false;
+        dispatch();
+        for (var destination : destinations) {
+            destination.put(END);
+        }
+    }
+
+    /**
+     * Wait for every sink to be sent everything, then commit them. The primary sink is committed first.
+     *
+     * @throws IOException if the primary sink failed, or if interrupted
+     */
+    void finish() throws IOException {
+        close();
+        try {
+            for (var destination : destinations) {
+                destination.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the archive to be sent");
+        }
+        checkPrimary();
+        destinations.get(0).sink.commit();
+        for (var destination : destinations.subList(1, destinations.size())) {
+            if (destination.failure != null) {
+                continue;
+            }
+            try {
+                destination.sink.commit();
+            } catch (IOException e) {
+                destination.failure = e;
+                LOGGER.warn("Failed to commit {}, continuing without it", destination.sink, e);
+            }
+        }
+    }
+
+    /**
+     * Stop sending, and close every sink. Sinks that weren't {@linkplain #finish() committed} discard what they were
+     * sent.
+     *
+     * @throws IOException if there is an error closing a sink
+     */
+    void closeSinks() throws IOException {
+        open = false;
+        if (current != null) {
+            pool.release(current);
+            current = null;
+        }
+        for (var destination : destinations) {
+            destination.thread.interrupt();
+        }
+        IOException closeFailure = null;
+        for (var destination : destinations) {
+            try {
+                destination.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Chunk chunk;
+            while ((chunk = destination.queue.poll()) != null) {
+                if (chunk != END) {
+                    chunk.release();
+                }
+            }
+            try {
+                destination.sink.close();
+            } catch (IOException e) {
+                if (closeFailure == null) {
+                    closeFailure = e;
+                } else {
+                    closeFailure.addSuppressed(e);
+                }
+            }
+        }
+        if (closeFailure != null) {
+            throw closeFailure;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link ArchiveSink} that writes to a new file. The file is written under a {@linkplain PartialFile temporary name}
+ * and renamed once the sink is committed, or deleted again if it isn't.
+ */
+public final class FileArchiveSink implements ArchiveSink {
+    private final Path file;
+    private final Path partial;
+    private final FileChannel channel;
+    private boolean committed;
+
+    /**
+     * Create a new sink.
+     *
+     * @param file the file to write, which must not exist yet
+     * @throws IOException if there is an error creating the file
+     */
+    public FileArchiveSink(Path file) throws IOException {
+        this.file = file;
+        this.partial = PartialFile.pathFor(file);
+        // Anything already here was left behind by a crash
+        Files.deleteIfExists(partial);
+        this.channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return channel.write(src);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed, "Sink is already committed");
+        channel.close();
+        PartialFile.publish(partial, file);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        if (!committed) {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FileArchiveSink[" + file + "]";
+    }
+}
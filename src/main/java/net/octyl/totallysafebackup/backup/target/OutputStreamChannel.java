@@ -0,0 +1,63 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes buffers to a stream. Heap buffers are written straight from their arrays, direct buffers are copied
+ * through one reused array. Not thread-safe.
+ */
+final class OutputStreamChannel implements WritableByteChannel {
+    private final byte[] scratch = new byte[64 * 1024];
+    private OutputStream output = OutputStream.nullOutputStream();
+
+    /**
+     * Point this channel at a stream. Lets one channel, and its array, be reused for many streams.
+     *
+     * @param output the stream to write to
+     * @return this channel
+     */
+    OutputStreamChannel wrap(OutputStream output) {
+        this.output = output;
+        return this;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int length = src.remaining();
+        if (src.hasArray()) {
+            output.write(src.array(), src.arrayOffset() + src.position(), length);
+            src.position(src.limit());
+            return length;
+        }
+        while (src.hasRemaining()) {
+            int count = Math.min(scratch.length, src.remaining());
+            src.get(scratch, 0, count);
+            output.write(scratch, 0, count);
+        }
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        // The stream belongs to whoever wrapped it
+    }
+}
@@ -0,0 +1,561 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.apache.commons.io.function.IOConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * {@link BackupTarget} that compresses entries on a pool of threads, and writes them to a zip archive in the order
+ * they were saved.
+ *
+ * <p>
+ * {@link #saveFile(Path, IOConsumer)} only queues the entry, the writer is run later on a compression thread. The
+ * number of entries that are queued or compressed but not yet written is bounded, so a slow disk will eventually
+ * block the caller instead of buffering the whole world in memory.
+ * </p>
+ *
+ * <p>
+ * Files saved with {@link #saveFile(Path, Path)} that the {@link CompressionPolicy} chooses to store are checksummed
+ * through a memory map, and copied into the archive by the OS without passing through the heap. Files saved with
+ * {@link #saveFile(Path, Path, long, IOConsumer)} follow the same policy, but stored ones are buffered as they are
+ * written, as only the writer can read them.
+ * </p>
+ *
+ * <p>
+ * Everything else is compressed from and into pooled direct buffers, so in steady state saving a file allocates
+ * almost nothing.
+ * </p>
+ *
+ * <p>
+ * A target {@linkplain #openResumable(String, Path, int, CompressionPolicy) opened on a file} can be
+ * {@linkplain #checkpoint() checkpointed}. If the backup is interrupted, the next target opened on the same file
+ * truncates it to the last checkpoint and keeps the entries from before it whose files haven't changed. Entries it
+ * doesn't keep are left out of the central directory, their bytes are just dead space in the archive.
+ * </p>
+ */
+public class ParallelZipBackupTarget implements BackupTarget {
+    private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * How long to wait for running tasks to stop when closing. Compression tasks are interrupted, so this is only
+     * reached if one is stuck in I/O.
+     */
+    private static final Duration CLOSE_TIMEOUT = Duration.ofMinutes(1);
+    /**
+     * An entry that is ready to be written to the archive.
+     *
+     * @param data the compressed data, or {@code null} to copy {@code source} uncompressed
+     * @param source the file to copy, if {@code data} is {@code null}
+     */
+    private record PreparedEntry(
+        String name, int method, long crc, long size, @Nullable BufferChain data, @Nullable Path source
+    ) {
+    }
+
+    /**
+     * The attributes of a file in the world, to recognize it when resuming.
+     */
+    private record FileState(long size, long lastModified) {
+        static FileState of(BasicFileAttributes attributes) {
+            return new FileState(attributes.size(), attributes.lastModifiedTime().toMillis());
+        }
+    }
+
+    /**
+     * Find the checkpoint of a partial archive.
+     *
+     * @param partial the partial archive
+     * @return the checkpoint file, next to it
+     */
+    public static Path checkpointPathFor(Path partial) {
+        return partial.resolveSibling(partial.getFileName() + ".checkpoint");
+    }
+
+    /**
+     * Open a resumable target writing to a file. If the file has a checkpoint, it is continued from there, otherwise
+     * it is replaced. The file is left behind with its checkpoint if the target is closed without committing, so
+     * the backup can be resumed.
+     *
+     * @param description the description of the backup target
+     * @param file the file to write the archive to, usually a {@linkplain PartialFile partial} one
+     * @param threads the number of compression threads to use
+     * @param compressionPolicy the policy for files saved with a source file
+     * @return the target
+     * @throws IOException if there is an error opening the file
+     */
+    public static ParallelZipBackupTarget openResumable(
+        String description, Path file, int threads, CompressionPolicy compressionPolicy
+    ) throws IOException {
+        var checkpointFile = checkpointPathFor(file);
+        var checkpoint = ZipCheckpoint.load(checkpointFile)
+            .filter(loaded -> Files.exists(file) && loaded.length() <= file.toFile().length())
+            .orElse(null);
+        FileChannel channel;
+        if (checkpoint != null) {
+            channel = FileChannel.open(file, StandardOpenOption.WRITE);
+            try {
+                // Anything after the checkpoint may not have made it to disk
+                channel.truncate(checkpoint.length());
+                channel.position(checkpoint.length());
+            } catch (Throwable t) {
+                channel.close();
+                throw t;
+            }
+        } else {
+            Files.deleteIfExists(checkpointFile);
+            channel = FileChannel.open(
+                file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+            );
+        }
+        return new ParallelZipBackupTarget(description, channel, threads, compressionPolicy, file, checkpoint);
+    }
+
+    /**
+     * Prepares an entry on a compression thread.
+     */
+    @FunctionalInterface
+    private interface EntryPreparer {
+        PreparedEntry prepare(String name) throws IOException;
+    }
+
+    private final String description;
+    private final ZipArchiveWriter archive;
+    private final CompressionPolicy compressionPolicy;
+    private final ExecutorService compressionExecutor;
+    private final ExecutorService archiveExecutor;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final BufferPool bufferPool = BufferPool.shared();
+    private final Semaphore pendingEntries;
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    /**
+     * Entries that are queued or prepared, but not yet written. Their buffers are released on close if they are
+     * never written.
+     */
+    private final Set<CompletableFuture<PreparedEntry>> unwritten = ConcurrentHashMap.newKeySet();
+    private boolean committed;
+    /**
+     * The file being written, if this target is resumable.
+     */
+    @Nullable
+    private final FileChannel resumableFile;
+    @Nullable
+    private final Path checkpointFile;
+    /**
+     * The files from the last checkpoint that haven't been saved again yet, by entry name.
+     */
+    private final Map<String, ZipCheckpoint.SavedFile> checkpointed = new HashMap<>();
+    /**
+     * The attributes of files that are about to be saved, by entry name.
+     */
+    private final Map<String, FileState> pendingStates = new ConcurrentHashMap<>();
+    /**
+     * The files in the archive so far, only touched by the archive thread.
+     */
+    private final List<ZipCheckpoint.SavedFile> savedFiles = new ArrayList<>();
+
+    /**
+     * Create a new {@link ParallelZipBackupTarget}.
+     *
+     * @param description the description of the backup target
+     * @param channel the channel to write the archive to, closed by this target. It is only ever appended to, so it
+     *     doesn't have to be a file
+     * @param threads the number of compression threads to use
+     * @param compressionPolicy the policy for files saved with a source file
+     * @throws IOException if there is an error reading the channel's position
+     */
+    public ParallelZipBackupTarget(
+        String description, WritableByteChannel channel, int threads, CompressionPolicy compressionPolicy
+    ) throws IOException {
+        this(description, channel, threads, compressionPolicy, null, null);
+    }
+
+    private ParallelZipBackupTarget(
+        String description, WritableByteChannel channel, int threads, CompressionPolicy compressionPolicy,
+        @Nullable Path resumableFile, @Nullable ZipCheckpoint checkpoint
+    ) throws IOException {
+        Preconditions.checkArgument(threads > 0, "Must have at least one compression thread");
+        this.resumableFile = resumableFile == null ? null : (FileChannel) channel;
+        this.checkpointFile = resumableFile == null ? null : checkpointPathFor(resumableFile);
+        if (checkpoint != null) {
+            for (var file : checkpoint.files()) {
+                checkpointed.put(new String(file.entry().name(), StandardCharsets.UTF_8), file);
+            }
+        }
+        this.description = description;
+        this.archive = new ZipArchiveWriter(channel);
+        this.compressionPolicy = compressionPolicy;
+        this.compressionExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-compress-%d")
+            .build());
+        this.archiveExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("totally-safe-backup-archive-%d")
+            .build());
+        // Enough to keep every thread busy while the archive thread catches up
+        this.pendingEntries = new Semaphore(threads * 4);
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        queue(path, name -> compress(name, channel -> writer.accept(Channels.newOutputStream(channel))));
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        queue(path, name -> compress(name, writer));
+    }
+
+    @Override
+    public void saveFile(Path path, Path source, long size, IOConsumer<WritableByteChannel> writer)
+        throws IOException {
+        queue(path, name -> compressionPolicy.choose(path, source) == CompressionPolicy.Method.DEFLATE
+            ? compress(name, writer)
+            : store(name, writer));
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        queue(path, name -> {
+            if (compressionPolicy.choose(path, source) == CompressionPolicy.Method.DEFLATE) {
+                return compress(name, channel -> {
+                    try (var input = FileChannel.open(source, StandardOpenOption.READ)) {
+                        bufferPool.copy(input, channel);
+                    }
+                });
+            }
+            try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                long size = channel.size();
+                return new PreparedEntry(
+                    name, ZipEntry.STORED, CompressionPolicy.mappedCrc32(channel, size), size, null, source
+                );
+            }
+        });
+    }
+
+    private void queue(Path path, EntryPreparer preparer) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        if (lastWrite.isCompletedExceptionally()) {
+            // Fail fast, no point in compressing more if we can't write it
+            awaitLastWrite();
+        }
+        try {
+            pendingEntries.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to queue " + path, e);
+        }
+        var name = ZipArchiveWriter.entryName(path);
+        var prepared = CompletableFuture.supplyAsync(() -> {
+            try {
+                return preparer.prepare(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to prepare " + name, e);
+            }
+        }, compressionExecutor);
+        unwritten.add(prepared);
+        var written = lastWrite.thenCombineAsync(prepared, (ignored, entry) -> {
+            unwritten.remove(prepared);
+            try {
+                writeEntry(entry);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return (Void) null;
+        }, archiveExecutor);
+        written.whenComplete((ignored, error) -> pendingEntries.release());
+        lastWrite = written;
+    }
+
+    private void writeEntry(PreparedEntry entry) throws IOException {
+        ZipArchiveWriter.Entry written;
+        if (entry.data() != null) {
+            try {
+                written = archive.writeEntry(
+                    entry.name(), entry.method(), entry.crc(), entry.size(), entry.data().flip()
+                );
+            } finally {
+                entry.data().release();
+            }
+        } else {
+            try (var channel = FileChannel.open(Objects.requireNonNull(entry.source()), StandardOpenOption.READ)) {
+                written = archive.writeStoredEntry(entry.name(), entry.crc(), entry.size(), channel);
+            }
+        }
+        if (resumableFile != null) {
+            // Files saved without their attributes can't be recognized, and are saved again when resuming
+            var state = pendingStates.remove(entry.name());
+            savedFiles.add(state == null
+                ? new ZipCheckpoint.SavedFile(written, -1, 0)
+                : new ZipCheckpoint.SavedFile(written, state.size(), state.lastModified()));
+        }
+    }
+
+    private PreparedEntry compress(String name, IOConsumer<WritableByteChannel> writer) throws IOException {
+        var deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        var data = new BufferChain(bufferPool);
+        try {
+            var channel = new DeflatingChannel(deflater, data);
+            writer.accept(channel);
+            channel.finish();
+            return new PreparedEntry(
+                name, ZipEntry.DEFLATED, channel.crc.getValue(), deflater.getBytesRead(), data, null
+            );
+        } catch (Throwable t) {
+            data.release();
+            throw t;
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    private PreparedEntry store(String name, IOConsumer<WritableByteChannel> writer) throws IOException {
+        var data = new BufferChain(bufferPool);
+        try {
+            var channel = new StoringChannel(data);
+            writer.accept(channel);
+            return new PreparedEntry(name, ZipEntry.STORED, channel.crc.getValue(), channel.size, data, null);
+        } catch (Throwable t) {
+            data.release();
+            throw t;
+        }
+    }
+
+    private void awaitLastWrite() throws IOException {
+        try {
+            lastWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for entries to be written", e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof UncheckedIOException unchecked) {
+                throw unchecked.getCause();
+            }
+            throw new IOException("Failed to write entries", cause);
+        }
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return resumableFile != null;
+    }
+
+    @Override
+    public boolean saveResumed(Path path, BasicFileAttributes attributes) throws IOException {
+        if (resumableFile == null) {
+            return false;
+        }
+        Preconditions.checkState(!committed, "Target is already committed");
+        var name = ZipArchiveWriter.entryName(path);
+        var state = FileState.of(attributes);
+        var previous = checkpointed.remove(name);
+        if (previous == null || previous.size() != state.size() || previous.lastModified() != state.lastModified()) {
+            pendingStates.put(name, state);
+            return false;
+        }
+        // Listed in order with the entries being written, on the archive thread
+        lastWrite = lastWrite.thenRunAsync(() -> {
+            archive.addExistingEntry(previous.entry());
+            savedFiles.add(previous);
+        }, archiveExecutor);
+        return true;
+    }
+
+    /**
+     * Wait for every saved file to be written, flush the archive to disk, and record the entries in it. Writing
+     * stalls while this runs, so it shouldn't run too often.
+     *
+     * @throws IOException if there is an error writing the checkpoint
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        if (resumableFile == null) {
+            return;
+        }
+        Preconditions.checkState(!committed, "Target is already committed");
+        awaitLastWrite();
+        resumableFile.force(false);
+        new ZipCheckpoint(archive.position(), List.copyOf(savedFiles)).save(Objects.requireNonNull(checkpointFile));
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed, "Target is already committed");
+        committed = true;
+        awaitLastWrite();
+        archive.finish();
+        close();
+        if (checkpointFile != null) {
+            // The archive is complete, there is nothing left to resume
+            Files.deleteIfExists(checkpointFile);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // If we're not committed, this drops any queued entries on the floor
+        compressionExecutor.shutdownNow();
+        archiveExecutor.shutdownNow();
+        // Running tasks still hold deflaters and buffers, wait for them to hand them back
+        if (!Uninterruptibles.awaitTerminationUninterruptibly(compressionExecutor, CLOSE_TIMEOUT)
+            || !Uninterruptibles.awaitTerminationUninterruptibly(archiveExecutor, CLOSE_TIMEOUT)) {
+            LOGGER.warn("Timed out waiting for {} to stop, some of its memory may leak", this);
+        }
+        for (var prepared : unwritten) {
+            if (prepared.isDone() && !prepared.isCompletedExceptionally()) {
+                var data = prepared.join().data();
+                if (data != null) {
+                    data.release();
+                }
+            }
+        }
+        unwritten.clear();
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        archive.close();
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelZipBackupTarget[" + description + "]";
+    }
+
+    /**
+     * Deflates everything written to it into a chain of pooled buffers, and computes the CRC-32 of the input.
+     */
+    private static final class DeflatingChannel implements WritableByteChannel {
+        private static final byte[] NO_INPUT = new byte[0];
+
+        private final Deflater deflater;
+        private final BufferChain output;
+        private final CRC32 crc = new CRC32();
+
+        private DeflatingChannel(Deflater deflater, BufferChain output) {
+            this.deflater = deflater;
+            this.output = output;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            int start = src.position();
+            crc.update(src);
+            src.position(start);
+            // The deflater reads straight from the buffer, direct or not, advancing it as it goes
+            deflater.setInput(src);
+            while (!deflater.needsInput()) {
+                deflater.deflate(output.tail());
+            }
+            // Let go of the buffer, the caller may reuse it as soon as we return
+            deflater.setInput(NO_INPUT);
+            return length;
+        }
+
+        void finish() {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(output.tail());
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Finished by compress(), once the writer is done
+        }
+    }
+
+    /**
+     * Checksums what is written to it, and keeps it as-is.
+     */
+    private static final class StoringChannel implements WritableByteChannel {
+        private final BufferChain output;
+        private final CRC32 crc = new CRC32();
+        private long size;
+
+        private StoringChannel(BufferChain output) {
+            this.output = output;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int start = src.position();
+            crc.update(src);
+            src.position(start);
+            int length = output.write(src);
+            size += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to finish, the data is kept by store()
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Archives are written under a temporary name, and only renamed to their real one once they are complete and on
+ * disk. A crash can then never leave a truncated archive under a real name, where it would be taken for a backup.
+ */
+public final class PartialFile {
+    private static final String EXTENSION = ".partial";
+
+    /**
+     * Get the temporary name a file is written under.
+     *
+     * @param file the file
+     * @return the temporary file, next to it
+     */
+    public static Path pathFor(Path file) {
+        return file.resolveSibling(file.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Get the real name of a temporary file.
+     *
+     * @param partial the temporary file, which must be {@linkplain #isPartial(Path) partial}
+     * @return the file it is written for
+     */
+    public static Path fileFor(Path partial) {
+        Preconditions.checkArgument(isPartial(partial), "Not a partial file: %s", partial);
+        var fileName = partial.getFileName().toString();
+        return partial.resolveSibling(fileName.substring(0, fileName.length() - EXTENSION.length()));
+    }
+
+    /**
+     * Check if a path is a temporary file.
+     *
+     * @param path the path to check
+     * @return {@code true} if the path has the temporary extension
+     */
+    public static boolean isPartial(Path path) {
+        var fileName = path.getFileName();
+        return fileName != null && fileName.toString().endsWith(EXTENSION);
+    }
+
+    /**
+     * Flush a finished file to disk, and atomically rename it to its real name.
+     *
+     * @param partial the finished file, from {@link #pathFor(Path)}
+     * @param file the real name
+     * @throws IOException if there is an error flushing or renaming the file
+     */
+    public static void publish(Path partial, Path file) throws IOException {
+        try (var channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Flush a directory's entries to disk, so a rename in it survives a crash. Not every platform can, those that
+     * can't are left to flush it on their own.
+     *
+     * @param directory the directory
+     */
+    static void syncDirectory(Path directory) {
+        try (var channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Windows can't open a directory as a channel
+        }
+    }
+
+    private PartialFile() {
+    }
+}
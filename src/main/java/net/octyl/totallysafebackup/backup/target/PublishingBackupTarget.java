@@ -0,0 +1,110 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.hash.HashCode;
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Wraps a target writing a {@linkplain PartialFile partial} archive, to publish it under its real name once the
+ * target is committed. If it isn't, the partial archive is deleted, unless the target can
+ * {@linkplain BackupTarget#supportsResume() resume} from it.
+ */
+public final class PublishingBackupTarget implements BackupTarget {
+    private final BackupTarget delegate;
+    private final Path archive;
+    private boolean committed;
+
+    /**
+     * Create a new target.
+     *
+     * @param delegate the target writing {@code PartialFile.pathFor(archive)}
+     * @param archive the archive to publish
+     */
+    public PublishingBackupTarget(BackupTarget delegate, Path archive) {
+        this.delegate = delegate;
+        this.archive = archive;
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        delegate.saveFile(path, writer);
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        delegate.saveFile(path, size, writer);
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        delegate.saveFile(path, source);
+    }
+
+    @Override
+    public void saveFile(Path path, Path source, long size, IOConsumer<WritableByteChannel> writer)
+        throws IOException {
+        delegate.saveFile(path, source, size, writer);
+    }
+
+    @Override
+    public boolean supportsUnchangedFiles() {
+        return delegate.supportsUnchangedFiles();
+    }
+
+    @Override
+    public boolean saveUnchanged(Path path, HashCode contentHash) throws IOException {
+        return delegate.saveUnchanged(path, contentHash);
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return delegate.supportsResume();
+    }
+
+    @Override
+    public boolean saveResumed(Path path, BasicFileAttributes attributes) throws IOException {
+        return delegate.saveResumed(path, attributes);
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        delegate.checkpoint();
+    }
+
+    @Override
+    public void commit() throws IOException {
+        delegate.commit();
+        PartialFile.publish(PartialFile.pathFor(archive), archive);
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+        if (!committed && !delegate.supportsResume()) {
+            Files.deleteIfExists(PartialFile.pathFor(archive));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+/**
+ * The weak checksum of rsync: a checksum of a window of bytes that can be moved along by one byte in constant time.
+ * Cheap enough to compute at every offset of a file, but it collides too often to trust a match without a strong
+ * hash as well.
+ */
+final class RollingChecksum {
+    /**
+     * Compute the checksum of one window.
+     *
+     * @param data the data
+     * @param offset the start of the window
+     * @param length the length of the window
+     * @return the checksum
+     */
+    static int of(byte[] data, int offset, int length) {
+        var checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.value();
+    }
+
+    private final int window;
+    private int a;
+    private int b;
+
+    /**
+     * Create a checksum over windows of a fixed length.
+     *
+     * @param window the length of the window
+     */
+    RollingChecksum(int window) {
+        this.window = window;
+    }
+
+    /**
+     * Start over with the window at an offset.
+     *
+     * @param data the data
+     * @param offset the start of the window
+     */
+    void reset(byte[] data, int offset) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < window; i++) {
+            int value = data[offset + i] & 0xFF;
+            a += value;
+            b += (window - i) * value;
+        }
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Move the window along by one byte.
+     *
+     * @param out the byte leaving the start of the window
+     * @param in the byte entering the end of the window
+     */
+    void roll(byte out, byte in) {
+        int outValue = out & 0xFF;
+        a += (in & 0xFF) - outValue;
+        b += a - window * outValue;
+    }
+
+    /**
+     * {@return the checksum of the current window}
+     */
+    int value() {
+        return (a & 0xFFFF) | (b << 16);
+    }
+}
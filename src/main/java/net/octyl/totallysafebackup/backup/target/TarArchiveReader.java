@@ -0,0 +1,300 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.io.ByteStreams;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Low-level tar reader, for archives written by {@link TarBackupTarget}. Understands ustar headers and the pax
+ * {@code path} and {@code size} records. Entries other than regular files are skipped.
+ */
+public final class TarArchiveReader implements Closeable {
+    private static final int BLOCK_SIZE = 512;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_OLD_FILE = 0;
+    private static final byte TYPE_PAX_HEADER = 'x';
+    private static final int MAX_PAX_SIZE = 1024 * 1024;
+
+    /**
+     * An entry in the archive.
+     *
+     * @param name the entry name, using {@code /} as a separator
+     * @param size the number of bytes in the entry
+     */
+    public record Entry(String name, long size) {
+    }
+
+    private final InputStream input;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    @Nullable
+    private byte[] skipBuffer;
+    private long remaining;
+    private long padding;
+
+    /**
+     * Create a new reader.
+     *
+     * @param input the uncompressed tar stream, closed by this reader
+     */
+    public TarArchiveReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Move to the next regular file, skipping whatever is left of the current one.
+     *
+     * @return the next entry, or {@code null} at the end of the archive
+     * @throws IOException if there is an error reading, or the archive is invalid
+     */
+    @Nullable
+    public Entry next() throws IOException {
+        String paxPath = null;
+        long paxSize = -1;
+        while (true) {
+            skipEntry();
+            if (!readHeader()) {
+                return null;
+            }
+            var name = readName();
+            long size = readSize();
+            byte type = header[156];
+            startEntry(size);
+            if (type == TYPE_PAX_HEADER) {
+                if (size > MAX_PAX_SIZE) {
+                    throw new IOException("pax header is too large, the archive is corrupt");
+                }
+                for (String record : parsePaxRecords(readFully((int) size))) {
+                    int equals = record.indexOf('=');
+                    if (equals == -1) {
+                        throw new IOException("Invalid pax record '" + record + "'");
+                    }
+                    var key = record.substring(0, equals);
+                    var value = record.substring(equals + 1);
+                    if (key.equals("path")) {
+                        paxPath = value;
+                    } else if (key.equals("size")) {
+                        paxSize = parseLong(value);
+                    }
+                }
+                continue;
+            }
+            if (type != TYPE_FILE && type != TYPE_OLD_FILE) {
+                paxPath = null;
+                paxSize = -1;
+                continue;
+            }
+            if (paxSize >= 0) {
+                size = paxSize;
+                startEntry(size);
+            }
+            return new Entry(paxPath != null ? paxPath : name, size);
+        }
+    }
+
+    /**
+     * Open the content of the current entry. Closing the stream doesn't close the archive.
+     *
+     * @return the content
+     */
+    public InputStream content() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) {
+                    return -1;
+                }
+                int b = input.read();
+                if (b == -1) {
+                    throw new EOFException("Archive ended inside an entry");
+                }
+                remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (remaining == 0) {
+                    return -1;
+                }
+                int read = input.read(b, off, (int) Math.min(len, remaining));
+                if (read == -1) {
+                    throw new EOFException("Archive ended inside an entry");
+                }
+                remaining -= read;
+                return read;
+            }
+        };
+    }
+
+    private void startEntry(long size) {
+        remaining = size;
+        int remainder = (int) (size % BLOCK_SIZE);
+        padding = remainder == 0 ? 0 : BLOCK_SIZE - remainder;
+    }
+
+    private void skipEntry() throws IOException {
+        long toSkip = remaining + padding;
+        remaining = 0;
+        padding = 0;
+        if (toSkip == 0) {
+            return;
+        }
+        // Decompressing streams can only skip by decompressing, and some do it a few bytes at a time
+        if (skipBuffer == null) {
+            skipBuffer = new byte[64 * 1024];
+        }
+        while (toSkip > 0) {
+            int read = input.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, toSkip));
+            if (read == -1) {
+                throw new EOFException("Archive ended inside an entry");
+            }
+            toSkip -= read;
+        }
+    }
+
+    private byte[] readFully(int size) throws IOException {
+        var bytes = new byte[size];
+        ByteStreams.readFully(input, bytes);
+        remaining = 0;
+        return bytes;
+    }
+
+    /**
+     * Read the next header block.
+     *
+     * @return {@code false} at the end-of-archive marker
+     */
+    private boolean readHeader() throws IOException {
+        int read = ByteStreams.read(input, header, 0, BLOCK_SIZE);
+        if (read == 0) {
+            // Some writers leave out the marker
+            return false;
+        }
+        if (read != BLOCK_SIZE) {
+            throw new EOFException("Archive ended inside a header");
+        }
+        boolean empty = true;
+        for (byte b : header) {
+            if (b != 0) {
+                empty = false;
+                break;
+            }
+        }
+        if (empty) {
+            return false;
+        }
+        long expected = parseOctal(148, 8);
+        // The checksum is computed with its own field filled with spaces
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        if (checksum != expected) {
+            throw new IOException("Header checksum mismatch, the archive is corrupt");
+        }
+        return true;
+    }
+
+    private String readName() {
+        var name = readString(0, 100);
+        if (readString(257, 5).equals("ustar")) {
+            var prefix = readString(345, 155);
+            if (!prefix.isEmpty()) {
+                return prefix + "/" + name;
+            }
+        }
+        return name;
+    }
+
+    private long readSize() throws IOException {
+        if ((header[124] & 0x80) != 0) {
+            // Base-256, for sizes that don't fit in octal
+            long size = header[124] & 0x7F;
+            for (int i = 125; i < 136; i++) {
+                size = (size << 8) | (header[i] & 0xFF);
+            }
+            return size;
+        }
+        return parseOctal(124, 12);
+    }
+
+    private String readString(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private long parseOctal(int offset, int length) throws IOException {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                // Leading spaces are allowed, trailing NULs and spaces end the number
+                if (value == 0 && b == ' ') {
+                    continue;
+                }
+                break;
+            }
+            if (b < '0' || b > '7') {
+                throw new IOException("Invalid octal number in header, the archive is corrupt");
+            }
+            value = (value << 3) | (b - '0');
+        }
+        return value;
+    }
+
+    private static long parseLong(String value) throws IOException {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number '" + value + "' in pax header", e);
+        }
+    }
+
+    private static List<String> parsePaxRecords(byte[] bytes) throws IOException {
+        var parsed = new ArrayList<String>();
+        int position = 0;
+        while (position < bytes.length) {
+            int space = position;
+            while (space < bytes.length && bytes[space] != ' ') {
+                space++;
+            }
+            int length = (int) parseLong(new String(bytes, position, space - position, StandardCharsets.US_ASCII));
+            if (length <= space - position + 1 || position + length > bytes.length) {
+                throw new IOException("Invalid pax record length " + length);
+            }
+            // Each record starts with its own length in bytes, and ends with a newline
+            parsed.add(new String(bytes, space + 1, position + length - space - 2, StandardCharsets.UTF_8));
+            position += length;
+        }
+        return parsed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
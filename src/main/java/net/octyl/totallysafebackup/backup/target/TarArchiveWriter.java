@@ -0,0 +1,223 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Low-level POSIX tar writer. Every entry is a regular file, directories are implied by the entry names.
+ *
+ * <p>
+ * Names that don't fit the ustar header and sizes of 8 GiB or more are written in a pax extended header.
+ * </p>
+ */
+final class TarArchiveWriter implements Closeable {
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+    /**
+     * The largest size that fits in the 11 octal digits of the size field.
+     */
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_PAX_HEADER = 'x';
+    private static final byte[] ZEROS = new byte[BLOCK_SIZE * 2];
+
+    private final OutputStream output;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    /**
+     * Reused to copy every entry, so that entries don't allocate buffers of their own.
+     */
+    private final OutputStreamChannel contentChannel = new OutputStreamChannel();
+    private final byte[] copyBuffer = new byte[64 * 1024];
+    private final long modifiedTime;
+    private boolean finished;
+
+    /**
+     * Create a new writer.
+     *
+     * @param output the stream to write to, closed by this writer
+     */
+    TarArchiveWriter(OutputStream output) {
+        this.output = output;
+        this.contentChannel.wrap(output);
+        this.modifiedTime = System.currentTimeMillis() / 1000;
+    }
+
+    /**
+     * Write an entry, copying exactly {@code size} bytes from {@code data}. Anything after that is ignored.
+     *
+     * @param name the entry name, from {@link ZipArchiveWriter#entryName(java.nio.file.Path)}
+     * @param size the number of bytes in the entry
+     * @param data the entry's content
+     * @throws IOException if there is an error writing, or {@code data} has fewer than {@code size} bytes
+     */
+    void writeEntry(String name, long size, InputStream data) throws IOException {
+        writeHeaders(name, size);
+        // Never copy more than the header says, or the rest of the archive would be misaligned
+        long copied = 0;
+        while (copied < size) {
+            int read = data.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, size - copied));
+            if (read == -1) {
+                break;
+            }
+            output.write(copyBuffer, 0, read);
+            copied += read;
+        }
+        if (copied != size) {
+            throw new IOException("Entry " + name + " has " + copied + " bytes, expected " + size);
+        }
+        pad(size);
+    }
+
+    /**
+     * Write an entry, using {@code writer} to write exactly {@code size} bytes to a channel.
+     *
+     * @param name the entry name, from {@link ZipArchiveWriter#entryName(java.nio.file.Path)}
+     * @param size the number of bytes in the entry
+     * @param writer writes the entry's content
+     * @throws IOException if there is an error writing, or {@code writer} writes a different number of bytes
+     */
+    void writeEntry(String name, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        writeHeaders(name, size);
+        var entryChannel = new WritableByteChannel() {
+            private long copied;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                // Never copy more than the header says, or the rest of the archive would be misaligned
+                if (src.remaining() > size - copied) {
+                    throw new IOException("Entry " + name + " has more than the expected " + size + " bytes");
+                }
+                int written = contentChannel.write(src);
+                copied += written;
+                return written;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        writer.accept(entryChannel);
+        if (entryChannel.copied != size) {
+            throw new IOException("Entry " + name + " has " + entryChannel.copied + " bytes, expected " + size);
+        }
+        pad(size);
+    }
+
+    private void writeHeaders(String name, long size) throws IOException {
+        Preconditions.checkState(!finished, "Archive is already finished");
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        var paxRecords = new StringBuilder();
+        if (nameBytes.length > NAME_LENGTH) {
+            appendPaxRecord(paxRecords, "path", name);
+        }
+        if (size > MAX_USTAR_SIZE) {
+            appendPaxRecord(paxRecords, "size", Long.toString(size));
+        }
+        if (!paxRecords.isEmpty()) {
+            var pax = paxRecords.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader(truncatedName(nameBytes), pax.length, TYPE_PAX_HEADER);
+            output.write(pax);
+            pad(pax.length);
+        }
+        writeHeader(truncatedName(nameBytes), Math.min(size, MAX_USTAR_SIZE), TYPE_FILE);
+    }
+
+    private static byte[] truncatedName(byte[] nameBytes) {
+        // The real name is in the pax header, this is only for old readers
+        return nameBytes.length > NAME_LENGTH ? Arrays.copyOf(nameBytes, NAME_LENGTH) : nameBytes;
+    }
+
+    private static void appendPaxRecord(StringBuilder records, String key, String value) {
+        // Each record starts with its own length in bytes, including the length itself
+        int contentLength = 3 + key.getBytes(StandardCharsets.UTF_8).length
+            + value.getBytes(StandardCharsets.UTF_8).length;
+        int length = contentLength + Integer.toString(contentLength).length();
+        if (Integer.toString(length).length() != Integer.toString(contentLength).length()) {
+            length++;
+        }
+        records.append(length).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    private void writeHeader(byte[] name, long size, byte type) throws IOException {
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(name, 0, header, 0, name.length);
+        writeOctal(100, 8, 0644);
+        writeOctal(108, 8, 0);
+        writeOctal(116, 8, 0);
+        writeOctal(124, 12, size);
+        writeOctal(136, 12, modifiedTime);
+        header[156] = type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        // The checksum is computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        writeOctal(148, 7, checksum);
+        output.write(header);
+    }
+
+    /**
+     * Write a zero-padded octal number, followed by a NUL.
+     */
+    private void writeOctal(int offset, int length, long value) {
+        var digits = Long.toOctalString(value);
+        int padding = length - 1 - digits.length();
+        Preconditions.checkArgument(padding >= 0, "Value %s does not fit in %s bytes", value, length);
+        Arrays.fill(header, offset, offset + padding, (byte) '0');
+        for (int i = 0; i < digits.length(); i++) {
+            header[offset + padding + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+
+    private void pad(long size) throws IOException {
+        int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            output.write(ZEROS, 0, BLOCK_SIZE - remainder);
+        }
+    }
+
+    /**
+     * Write the end-of-archive marker. No more entries can be written.
+     *
+     * @throws IOException if there is an error writing
+     */
+    void finish() throws IOException {
+        Preconditions.checkState(!finished, "Archive is already finished");
+        finished = true;
+        output.write(ZEROS);
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+    }
+}
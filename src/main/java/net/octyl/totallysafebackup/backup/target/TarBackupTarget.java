@@ -0,0 +1,100 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.io.function.IOConsumer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link BackupTarget} that writes a tar archive through a {@link TarCodec}. The archive is written as a single
+ * stream, so it can go to a pipe or a network just as well as to a file.
+ *
+ * <p>
+ * Tar headers need the size of an entry before its content, so files saved with {@link #saveFile(Path, IOConsumer)}
+ * are buffered in memory. Files saved with {@link #saveFile(Path, long, IOConsumer)} or
+ * {@link #saveFile(Path, Path)} are streamed straight into the archive.
+ * </p>
+ */
+public class TarBackupTarget implements BackupTarget {
+    private final String description;
+    private final TarArchiveWriter archive;
+    private boolean committed;
+
+    /**
+     * Create a new {@link TarBackupTarget}.
+     *
+     * @param description the description of the backup target
+     * @param output the stream to write the compressed archive to, closed by this target
+     * @param codec the codec to compress the archive with
+     * @param level the compression level, if the codec has levels
+     * @param workers the number of threads to compress with, if the codec can use more than one
+     * @throws IOException if there is an error starting the codec
+     */
+    public TarBackupTarget(String description, OutputStream output, TarCodec codec, int level, int workers)
+        throws IOException {
+        Preconditions.checkArgument(workers > 0, "Must have at least one worker");
+        this.description = description;
+        this.archive = new TarArchiveWriter(new BufferedOutputStream(codec.wrap(output, level, workers), 64 * 1024));
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        var buffer = new ExposedByteArrayOutputStream();
+        writer.accept(buffer);
+        archive.writeEntry(ZipArchiveWriter.entryName(path), buffer.size(), buffer.toInputStream());
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        archive.writeEntry(ZipArchiveWriter.entryName(path), size, writer);
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        Preconditions.checkState(!committed, "Target is already committed");
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            archive.writeEntry(ZipArchiveWriter.entryName(path), channel.size(), Channels.newInputStream(channel));
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        Preconditions.checkState(!committed, "Target is already committed");
+        committed = true;
+        archive.finish();
+        close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+
+    @Override
+    public String toString() {
+        return "TarBackupTarget[" + description + "]";
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compression codec for {@link TarBackupTarget}. The whole tar stream is compressed as one, so unlike zip the
+ * codec can find redundancy across files.
+ */
+public enum TarCodec {
+    /**
+     * Gzip, readable everywhere but slow. Ignores the level and worker count.
+     */
+    GZIP("tar.gz") {
+        @Override
+        public OutputStream wrap(OutputStream output, int level, int workers) throws IOException {
+            return new GZIPOutputStream(output, 64 * 1024);
+        }
+
+        @Override
+        public InputStream unwrap(InputStream input) throws IOException {
+            return new GZIPInputStream(input, 64 * 1024);
+        }
+    },
+    /**
+     * Zstandard, which compresses better than gzip at a fraction of the CPU time. Supports levels from 1 to 19 (or
+     * up to 22, at great cost), and compresses on {@code workers} native threads.
+     */
+    ZSTD("tar.zst") {
+        @Override
+        public OutputStream wrap(OutputStream output, int level, int workers) throws IOException {
+            var zstd = new ZstdOutputStream(output, level);
+            zstd.setChecksum(true);
+            if (workers > 1) {
+                zstd.setWorkers(workers);
+            }
+            return zstd;
+        }
+
+        @Override
+        public InputStream unwrap(InputStream input) throws IOException {
+            return new ZstdInputStream(input);
+        }
+    },
+    /**
+     * LZ4 frames, which compress worse than the others but are fast enough to keep up with most disks, for frequent
+     * backups. Ignores the level and worker count.
+     */
+    LZ4("tar.lz4") {
+        @Override
+        public OutputStream wrap(OutputStream output, int level, int workers) throws IOException {
+            return new LZ4FrameOutputStream(output, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+        }
+
+        @Override
+        public InputStream unwrap(InputStream input) throws IOException {
+            return new LZ4FrameInputStream(input);
+        }
+    },
+    ;
+
+    private final String extension;
+
+    TarCodec(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * {@return the file extension for archives compressed with this codec, without a leading {@code .}}
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Wrap a stream to compress everything written to it. Closing the returned stream closes {@code output}.
+     *
+     * @param output the stream to write compressed data to
+     * @param level the compression level, if the codec has levels
+     * @param workers the number of threads to compress with, if the codec can use more than one
+     * @return the compressing stream
+     * @throws IOException if there is an error starting the stream
+     */
+    public abstract OutputStream wrap(OutputStream output, int level, int workers) throws IOException;
+
+    /**
+     * Wrap a stream to decompress everything read from it. Closing the returned stream closes {@code input}.
+     *
+     * @param input the stream to read compressed data from
+     * @return the decompressing stream
+     * @throws IOException if there is an error starting the stream
+     */
+    public abstract InputStream unwrap(InputStream input) throws IOException;
+}
@@ -0,0 +1,325 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import com.google.common.base.Preconditions;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.zip.ZipEntry;
+
+/**
+ * Low-level zip writer for entries that have already been compressed. {@link java.util.zip.ZipOutputStream} insists
+ * on doing the compression itself, which makes it impossible to compress entries in parallel.
+ *
+ * <p>
+ * Zip64 extensions are written only when a size, offset, or entry count requires them.
+ * </p>
+ *
+ * <p>
+ * The archive is written strictly in order, so the channel doesn't need to be seekable. Offsets are counted as they
+ * are written.
+ * </p>
+ */
+final class ZipArchiveWriter implements Closeable {
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+    private static final int CENTRAL_FILE_HEADER = 0x02014b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_UTF8 = 1 << 11;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    /**
+     * Convert a relative path to a zip entry name, which always uses {@code /} as a separator.
+     *
+     * @param path the path to convert
+     * @return the entry name
+     */
+    static String entryName(Path path) {
+        var joiner = new StringJoiner("/");
+        for (Path part : path) {
+            joiner.add(part.toString());
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * An entry written to the archive, as it is listed in the central directory.
+     *
+     * @param name the entry name, in UTF-8
+     * @param method the compression method
+     * @param crc the CRC-32 of the uncompressed data
+     * @param compressedSize the size of the stored data
+     * @param size the size of the uncompressed data
+     * @param offset the offset of the entry's local header
+     */
+    record Entry(byte[] name, int method, long crc, long compressedSize, long size, long offset) {
+    }
+
+    private final WritableByteChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+    private final int dosTime;
+    private final int dosDate;
+    private long position;
+    private boolean finished;
+
+    /**
+     * Create a new writer. Entries are written from the channel's current position, or offset {@code 0} if it has
+     * none.
+     *
+     * @param channel the channel to write to, closed by this writer
+     * @throws IOException if there is an error reading the channel's position
+     */
+    ZipArchiveWriter(WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        this.position = channel instanceof SeekableByteChannel seekable ? seekable.position() : 0;
+        var now = LocalDateTime.now();
+        this.dosTime = (now.getHour() << 11) | (now.getMinute() << 5) | (now.getSecond() >> 1);
+        this.dosDate = ((now.getYear() - 1980) << 9) | (now.getMonthValue() << 5) | now.getDayOfMonth();
+    }
+
+    /**
+     * Write an entry whose data is already in its final (possibly compressed) form.
+     *
+     * @param name the entry name
+     * @param method the compression method, e.g. {@link java.util.zip.ZipEntry#DEFLATED}
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     * @param data the entry data, in order, consumed by this call
+     * @return the written entry
+     * @throws IOException if there is an error writing the entry
+     */
+    Entry writeEntry(String name, int method, long crc, long size, ByteBuffer[] data) throws IOException {
+        Preconditions.checkState(!finished, "Archive is already finished");
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        long compressedSize = 0;
+        for (ByteBuffer buffer : data) {
+            compressedSize += buffer.remaining();
+        }
+        var entry = new Entry(nameBytes, method, crc, compressedSize, size, position);
+        writeLocalHeader(entry);
+        if (channel instanceof GatheringByteChannel gathering) {
+            // One gathering write, rather than one per buffer
+            long remaining = compressedSize;
+            while (remaining > 0) {
+                remaining -= gathering.write(data);
+            }
+            position += compressedSize;
+        } else {
+            for (ByteBuffer buffer : data) {
+                writeFully(buffer);
+            }
+        }
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * Write an uncompressed entry straight from a file. The data is transferred by the OS where possible, so it
+     * doesn't pass through the heap.
+     *
+     * @param name the entry name
+     * @param crc the CRC-32 of the data
+     * @param size the number of bytes to copy from the start of {@code source}
+     * @param source the file to copy from
+     * @return the written entry
+     * @throws IOException if there is an error writing the entry
+     */
+    Entry writeStoredEntry(String name, long crc, long size, FileChannel source) throws IOException {
+        Preconditions.checkState(!finished, "Archive is already finished");
+        var nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        var entry = new Entry(nameBytes, ZipEntry.STORED, crc, size, size, position);
+        writeLocalHeader(entry);
+        long copied = 0;
+        while (copied < size) {
+            long transferred = source.transferTo(copied, size - copied, channel);
+            if (transferred <= 0) {
+                throw new IOException("File ended early while writing " + name);
+            }
+            copied += transferred;
+        }
+        position += size;
+        entries.add(entry);
+        return entry;
+    }
+
+    /**
+     * List an entry that is already in the archive, before this writer's first entry, in the central directory.
+     *
+     * @param entry the entry, as returned when it was written
+     */
+    void addExistingEntry(Entry entry) {
+        Preconditions.checkState(!finished, "Archive is already finished");
+        Preconditions.checkArgument(entry.offset < position, "Entry is not in the archive yet");
+        entries.add(entry);
+    }
+
+    /**
+     * {@return the number of bytes in the archive so far}
+     */
+    long position() {
+        return position;
+    }
+
+    private void writeLocalHeader(Entry entry) throws IOException {
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        header.clear();
+        header.putInt(LOCAL_FILE_HEADER);
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) entry.method);
+        header.putShort((short) dosTime);
+        header.putShort((short) dosDate);
+        header.putInt((int) entry.crc);
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.compressedSize));
+        header.putInt((int) (zip64 ? ZIP64_MAGIC : entry.size));
+        header.putShort((short) entry.name.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(entry.name));
+        if (zip64) {
+            header.clear();
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) 16);
+            header.putLong(entry.size);
+            header.putLong(entry.compressedSize);
+            header.flip();
+            writeFully(header);
+        }
+    }
+
+    /**
+     * Write the central directory, and refuse any more entries. Does not close the channel.
+     *
+     * @throws IOException if there is an error writing the central directory
+     */
+    void finish() throws IOException {
+        Preconditions.checkState(!finished, "Archive is already finished");
+        finished = true;
+        long centralDirectoryOffset = position;
+        for (Entry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long centralDirectorySize = position - centralDirectoryOffset;
+        boolean zip64 = entries.size() >= ZIP64_MAGIC_COUNT
+            || centralDirectoryOffset >= ZIP64_MAGIC
+            || centralDirectorySize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = position;
+            header.clear();
+            header.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY);
+            header.putLong(44);
+            header.putShort((short) VERSION_ZIP64);
+            header.putShort((short) VERSION_ZIP64);
+            header.putInt(0);
+            header.putInt(0);
+            header.putLong(entries.size());
+            header.putLong(entries.size());
+            header.putLong(centralDirectorySize);
+            header.putLong(centralDirectoryOffset);
+            header.putInt(ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR);
+            header.putInt(0);
+            header.putLong(zip64EndOffset);
+            header.putInt(1);
+            header.flip();
+            writeFully(header);
+        }
+        int count = Math.min(entries.size(), ZIP64_MAGIC_COUNT);
+        header.clear();
+        header.putInt(END_OF_CENTRAL_DIRECTORY);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) count);
+        header.putShort((short) count);
+        header.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+        header.putInt((int) Math.min(centralDirectoryOffset, ZIP64_MAGIC));
+        header.putShort((short) 0);
+        header.flip();
+        writeFully(header);
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        boolean sizeOverflow = entry.size >= ZIP64_MAGIC;
+        boolean compressedSizeOverflow = entry.compressedSize >= ZIP64_MAGIC;
+        boolean offsetOverflow = entry.offset >= ZIP64_MAGIC;
+        int extraLength = (sizeOverflow ? 8 : 0) + (compressedSizeOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+        header.clear();
+        header.putInt(CENTRAL_FILE_HEADER);
+        header.putShort((short) VERSION_ZIP64);
+        header.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) entry.method);
+        header.putShort((short) dosTime);
+        header.putShort((short) dosDate);
+        header.putInt((int) entry.crc);
+        header.putInt((int) (compressedSizeOverflow ? ZIP64_MAGIC : entry.compressedSize));
+        header.putInt((int) (sizeOverflow ? ZIP64_MAGIC : entry.size));
+        header.putShort((short) entry.name.length);
+        header.putShort((short) (zip64 ? extraLength + 4 : 0));
+        // comment length, disk number, internal attributes, external attributes
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt((int) (offsetOverflow ? ZIP64_MAGIC : entry.offset));
+        header.flip();
+        writeFully(header);
+        writeFully(ByteBuffer.wrap(entry.name));
+        if (zip64) {
+            header.clear();
+            header.putShort((short) ZIP64_EXTRA_ID);
+            header.putShort((short) extraLength);
+            if (sizeOverflow) {
+                header.putLong(entry.size);
+            }
+            if (compressedSizeOverflow) {
+                header.putLong(entry.compressedSize);
+            }
+            if (offsetOverflow) {
+                header.putLong(entry.offset);
+            }
+            header.flip();
+            writeFully(header);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -16,26 +16,49 @@
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 /**
  * Simple {@link ZipOutputStream}-based {@link BackupTarget}.
+ *
+ * <p>
+ * This is the serial baseline that {@link ParallelZipBackupTarget} is benchmarked against, and isn't used for
+ * backups. It can't copy stored entries without the heap like the parallel target does, as a
+ * {@link ZipOutputStream} only accepts byte arrays, and counts every byte it is given.
+ * </p>
  */
 public class ZipBackupTarget implements BackupTarget {
     private final String description;
     private final ZipOutputStream zip;
+    private final CompressionPolicy compressionPolicy;
 
     /**
-     * Create a new {@link ZipBackupTarget}.
+     * Create a new {@link ZipBackupTarget}, using the {@linkplain CompressionPolicy#DEFAULT default compression
+     * policy}.
      *
      * @param description the description of the backup target
      * @param zip the zip output stream to write to
      */
     public ZipBackupTarget(String description, ZipOutputStream zip) {
+        this(description, zip, CompressionPolicy.DEFAULT);
+    }
+
+    /**
+     * Create a new {@link ZipBackupTarget}.
+     *
+     * @param description the description of the backup target
+     * @param zip the zip output stream to write to
+     * @param compressionPolicy the policy for files saved with {@link #saveFile(Path, Path)}
+     */
+    public ZipBackupTarget(String description, ZipOutputStream zip, CompressionPolicy compressionPolicy) {
         this.description = description;
         this.zip = zip;
+        this.compressionPolicy = compressionPolicy;
     }
 
     @Override
@@ -46,11 +69,37 @@ public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOExcept
         zip.closeEntry();
     }
 
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        if (compressionPolicy.choose(path, source) == CompressionPolicy.Method.DEFLATE) {
+            saveFile(path, stream -> Files.copy(source, stream));
+            return;
+        }
+        Preconditions.checkArgument(!path.isAbsolute(), "Path must be relative");
+        // Stored entries must know their size and CRC up front
+        var entry = new ZipEntry(path.toString());
+        entry.setMethod(ZipEntry.STORED);
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = channel.size();
+            entry.setSize(size);
+            entry.setCompressedSize(size);
+            entry.setCrc(CompressionPolicy.mappedCrc32(channel, size));
+        }
+        zip.putNextEntry(entry);
+        Files.copy(source, zip);
+        zip.closeEntry();
+    }
+
     @Override
     public void commit() throws IOException {
         zip.close();
     }
 
+    @Override
+    public void close() throws IOException {
+        zip.close();
+    }
+
     @Override
     public String toString() {
         return "ZipBackupTarget[" + description + "]";
@@ -0,0 +1,120 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The entries of a partial zip archive that are on disk, and the files they were saved from. The archive can be
+ * truncated to {@link #length()} and continued from there.
+ *
+ * @param length the length of the archive that the entries are in
+ * @param files the entries and their files
+ */
+record ZipCheckpoint(long length, List<SavedFile> files) {
+    private static final Logger LOGGER = LogManager.getLogger();
+    private static final int MAGIC = 0x5453425a; // TSBZ
+    private static final int VERSION = 1;
+
+    /**
+     * An entry in the archive, and the file it was saved from.
+     *
+     * @param entry the entry
+     * @param size the size of the file in the world, or {@code -1} if it isn't known
+     * @param lastModified when the file in the world was last modified, in milliseconds since the epoch
+     */
+    record SavedFile(ZipArchiveWriter.Entry entry, long size, long lastModified) {
+    }
+
+    /**
+     * Load a checkpoint.
+     *
+     * @param file the file to load from
+     * @return the checkpoint, or empty if it doesn't exist or can't be read
+     */
+    static Optional<ZipCheckpoint> load(Path file) {
+        try (var input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a supported zip checkpoint");
+            }
+            long length = input.readLong();
+            int count = input.readInt();
+            var files = new ArrayList<SavedFile>(count);
+            for (int i = 0; i < count; i++) {
+                var name = new byte[input.readUnsignedShort()];
+                input.readFully(name);
+                var entry = new ZipArchiveWriter.Entry(
+                    name, input.readUnsignedShort(), input.readInt() & 0xFFFFFFFFL,
+                    input.readLong(), input.readLong(), input.readLong()
+                );
+                files.add(new SavedFile(entry, input.readLong(), input.readLong()));
+            }
+            return Optional.of(new ZipCheckpoint(length, files));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to load zip checkpoint from {}, starting over", file, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Save this checkpoint, replacing the file atomically once it is on disk.
+     *
+     * @param file the file to save to
+     * @throws IOException if there is an error saving
+     */
+    void save(Path file) throws IOException {
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(
+            tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+        )) {
+            var output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(length);
+            output.writeInt(files.size());
+            for (var saved : files) {
+                var entry = saved.entry();
+                output.writeShort(entry.name().length);
+                output.write(entry.name());
+                output.writeShort(entry.method());
+                output.writeInt((int) entry.crc());
+                output.writeLong(entry.compressedSize());
+                output.writeLong(entry.size());
+                output.writeLong(entry.offset());
+                output.writeLong(saved.size());
+                output.writeLong(saved.lastModified());
+            }
+            output.flush();
+            channel.force(false);
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.verify;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import net.octyl.totallysafebackup.backup.BackupThrottle;
+import net.octyl.totallysafebackup.backup.store.ContentStore;
+import net.octyl.totallysafebackup.backup.target.DeltaArchiveReader;
+import net.octyl.totallysafebackup.backup.target.TarArchiveReader;
+import net.octyl.totallysafebackup.backup.target.TarCodec;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipFile;
+
+/**
+ * Re-reads backups and checks them against what was written.
+ *
+ * <p>
+ * Problems with the backup's content are reported in the result. Problems reaching the backup at all, like it being
+ * deleted or a permission error, are thrown as {@link FileSystemException}s, since they say nothing about whether
+ * the backup is intact.
+ * </p>
+ */
+public final class ArchiveVerifier {
+    private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * The most problems to report for one backup, the rest are only counted.
+     */
+    private static final int MAX_PROBLEMS = 20;
+
+    /**
+     * The result of verifying a backup.
+     *
+     * @param entriesChecked the number of entries or blobs read
+     * @param bytesChecked the number of bytes read from them
+     * @param problems what is wrong with the backup, empty if it is intact
+     */
+    public record Result(long entriesChecked, long bytesChecked, List<String> problems) {
+        /**
+         * Create a new result.
+         */
+        public Result {
+            problems = List.copyOf(problems);
+        }
+
+        /**
+         * {@return whether the backup is intact}
+         */
+        public boolean isIntact() {
+            return problems.isEmpty();
+        }
+    }
+
+    /**
+     * Verify a zip archive.
+     *
+     * @param archive the archive
+     * @param manifest the checksums written with it
+     * @param throttle the throttle to read entries through
+     * @return the result
+     * @throws FileSystemException if the archive can't be reached
+     */
+    public static Result verifyZip(Path archive, ChecksumManifest manifest, BackupThrottle throttle)
+        throws FileSystemException {
+        var checker = new ManifestChecker(manifest);
+        try (var zip = new ZipFile(archive.toFile())) {
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                try (var content = throttle.wrap(zip.getInputStream(entry))) {
+                    checker.check(entry.getName(), content);
+                }
+            }
+        } catch (FileSystemException e) {
+            throw e;
+        } catch (IOException e) {
+            checker.problem("Archive is unreadable: " + e);
+        }
+        return checker.finish();
+    }
+
+    /**
+     * Verify a compressed tar archive.
+     *
+     * @param archive the archive
+     * @param codec the codec it is compressed with
+     * @param manifest the checksums written with it
+     * @param throttle the throttle to read the archive through
+     * @return the result
+     * @throws FileSystemException if the archive can't be reached
+     */
+    public static Result verifyTar(Path archive, TarCodec codec, ChecksumManifest manifest, BackupThrottle throttle)
+        throws FileSystemException {
+        var checker = new ManifestChecker(manifest);
+        try (var tar = new TarArchiveReader(codec.unwrap(
+            new BufferedInputStream(throttle.wrap(Files.newInputStream(archive)), 64 * 1024)
+        ))) {
+            TarArchiveReader.Entry entry;
+            while ((entry = tar.next()) != null) {
+                checker.check(entry.name(), tar.content());
+            }
+        } catch (FileSystemException e) {
+            throw e;
+        } catch (IOException e) {
+            checker.problem("Archive is unreadable: " + e);
+        }
+        return checker.finish();
+    }
+
+    /**
+     * Verify a delta archive, by rebuilding every file in it and checking it against its hash. Files stored as deltas
+     * are rebuilt from the archives before it, so those are read as well.
+     *
+     * @param archive the archive
+     * @param throttle the throttle to read files through
+     * @return the result
+     * @throws FileSystemException if the archive can't be reached
+     */
+    public static Result verifyDelta(Path archive, BackupThrottle throttle) throws FileSystemException {
+        var problems = new ArrayList<String>();
+        long entries = 0;
+        long bytes = 0;
+        int problemCount = 0;
+        try (var reader = DeltaArchiveReader.open(archive)) {
+            for (var entry : reader.entries()) {
+                String problem = null;
+                try (var content = throttle.wrap(reader.open(entry.path()))) {
+                    long length = content.transferTo(OutputStream.nullOutputStream());
+                    entries++;
+                    bytes += length;
+                    if (length != entry.size()) {
+                        problem = "Entry " + entry.path() + " is the wrong size";
+                    }
+                } catch (FileSystemException e) {
+                    // An archive this one is based on is gone, which makes this one unrestorable
+                    problem = "Entry " + entry.path() + " is unreadable: " + e;
+                } catch (IOException e) {
+                    problem = "Entry " + entry.path() + " is corrupt: " + e.getMessage();
+                }
+                if (problem != null && problemCount++ < MAX_PROBLEMS) {
+                    problems.add(problem);
+                }
+            }
+        } catch (FileSystemException e) {
+            throw e;
+        } catch (IOException e) {
+            problems.add("Archive is unreadable: " + e);
+        }
+        if (problemCount > MAX_PROBLEMS) {
+            problems.add((problemCount - MAX_PROBLEMS) + " more problems");
+        }
+        return new Result(entries, bytes, problems);
+    }
+
+    /**
+     * Verify a snapshot in a content store, by checking every blob it references against its hash. Blobs that are
+     * missing or damaged are {@linkplain ContentStore#discardBlob(HashCode) discarded}, so the next snapshot stores
+     * them again rather than referencing them.
+     *
+     * @param store the store
+     * @param name the name of the snapshot
+     * @param throttle the throttle to read blobs through
+     * @return the result
+     * @throws FileSystemException if the manifest can't be reached
+     */
+    public static Result verifySnapshot(ContentStore store, String name, BackupThrottle throttle)
+        throws FileSystemException {
+        var problems = new ArrayList<String>();
+        var checked = new HashSet<HashCode>();
+        long bytes = 0;
+        int problemCount = 0;
+        try {
+            for (var file : store.readSnapshot(name).files()) {
+                for (var piece : file.pieces()) {
+                    if (!checked.add(piece.hash())) {
+                        continue;
+                    }
+                    String problem;
+                    boolean damaged;
+                    try (var blob = throttle.wrap(Files.newInputStream(store.blobPath(piece.hash())))) {
+                        var hashing = new HashingOutputStream(Hashing.sha256(), ByteStreams.nullOutputStream());
+                        long length = blob.transferTo(hashing);
+                        bytes += length;
+                        damaged = length != piece.length() || !hashing.hash().equals(piece.hash());
+                        problem = damaged
+                            ? "Blob " + piece.hash() + " of " + file.path() + " doesn't match its hash"
+                            : null;
+                    } catch (FileSystemException e) {
+                        damaged = true;
+                        problem = "Blob " + piece.hash() + " of " + file.path() + " is unreadable: " + e;
+                    }
+                    if (damaged) {
+                        try {
+                            store.discardBlob(piece.hash());
+                        } catch (IOException e) {
+                            LOGGER.warn("Failed to discard damaged blob {}", piece.hash(), e);
+                        }
+                    }
+                    if (problem != null && problemCount++ < MAX_PROBLEMS) {
+                        problems.add(problem);
+                    }
+                }
+            }
+        } catch (FileSystemException e) {
+            // Blobs are handled above, so the manifest itself can't be reached
+            throw e;
+        } catch (IOException e) {
+            problems.add("Snapshot is unreadable: " + e);
+        }
+        if (problemCount > MAX_PROBLEMS) {
+            problems.add((problemCount - MAX_PROBLEMS) + " more problems");
+        }
+        return new Result(checked.size(), bytes, problems);
+    }
+
+    /**
+     * Checks entries against a manifest as they are read.
+     */
+    private static final class ManifestChecker {
+        private final Map<String, ChecksumManifest.Entry> expected;
+        private final List<String> problems = new ArrayList<>();
+        private int problemCount;
+        private long entriesChecked;
+        private long bytesChecked;
+
+        private ManifestChecker(ChecksumManifest manifest) {
+            this.expected = new HashMap<>(manifest.entries());
+        }
+
+        void check(String name, InputStream content) throws IOException {
+            var crc = new CRC32C();
+            var buffer = new byte[64 * 1024];
+            long size = 0;
+            int read;
+            while ((read = content.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                size += read;
+            }
+            entriesChecked++;
+            bytesChecked += size;
+            var entry = expected.remove(name);
+            if (entry == null) {
+                problem("Entry " + name + " is not in the checksums");
+            } else if (entry.size() != size || entry.crc32c() != (int) crc.getValue()) {
+                problem("Entry " + name + " doesn't match its checksum");
+            }
+        }
+
+        void problem(String problem) {
+            if (problemCount++ < MAX_PROBLEMS) {
+                problems.add(problem);
+            }
+        }
+
+        Result finish() {
+            for (String name : expected.keySet()) {
+                problem("Entry " + name + " is missing");
+            }
+            if (problemCount > MAX_PROBLEMS) {
+                problems.add((problemCount - MAX_PROBLEMS) + " more problems");
+            }
+            return new Result(entriesChecked, bytesChecked, problems);
+        }
+    }
+
+    private ArchiveVerifier() {
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.verify;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The size and CRC-32C of every entry in an archive, stored as a text file next to it.
+ *
+ * <p>
+ * Each line is {@code <crc32c> <size> <name>}, with the CRC in hex. Lines starting with {@code #} are comments.
+ * </p>
+ *
+ * @param entries the entries, by entry name
+ */
+public record ChecksumManifest(Map<String, Entry> entries) {
+    private static final String EXTENSION = ".crc32c";
+    private static final String HEADER = "# totally-safe-backup checksums v1";
+
+    /**
+     * The checksum of one entry.
+     *
+     * @param size the size of the entry
+     * @param crc32c the CRC-32C of the entry's content
+     */
+    public record Entry(long size, int crc32c) {
+    }
+
+    /**
+     * Create a new manifest.
+     */
+    public ChecksumManifest {
+        entries = Map.copyOf(entries);
+    }
+
+    /**
+     * Get the path of the manifest for an archive.
+     *
+     * @param archive the archive
+     * @return the path of its manifest
+     */
+    public static Path pathFor(Path archive) {
+        return archive.resolveSibling(archive.getFileName() + EXTENSION);
+    }
+
+    /**
+     * Read a manifest.
+     *
+     * @param file the file to read
+     * @return the manifest
+     * @throws IOException if there is an error reading, or the manifest is invalid
+     */
+    public static ChecksumManifest read(Path file) throws IOException {
+        var entries = new TreeMap<String, Entry>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            var parts = line.split(" ", 3);
+            if (parts.length != 3) {
+                throw new IOException("Invalid checksum line '" + line + "'");
+            }
+            try {
+                entries.put(parts[2], new Entry(Long.parseLong(parts[1]), Integer.parseUnsignedInt(parts[0], 16)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid checksum line '" + line + "'", e);
+            }
+        }
+        return new ChecksumManifest(entries);
+    }
+
+    /**
+     * Write this manifest, replacing the file atomically.
+     *
+     * @param file the file to write
+     * @throws IOException if there is an error writing
+     */
+    public void write(Path file) throws IOException {
+        var text = new StringBuilder(HEADER).append('\n');
+        new TreeMap<>(entries).forEach((name, entry) -> text
+            .append(String.format(Locale.ROOT, "%08x", entry.crc32c()))
+            .append(' ').append(entry.size())
+            .append(' ').append(name)
+            .append('\n'));
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tempFile, text, StandardCharsets.UTF_8);
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.verify;
+
+import net.octyl.totallysafebackup.backup.target.BackupTarget;
+import net.octyl.totallysafebackup.backup.target.PartialFile;
+import org.apache.commons.io.function.IOConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Wraps a target to record a {@link ChecksumManifest} of everything saved to it. The manifest is written next to the
+ * archive when the target is committed.
+ *
+ * <p>
+ * Streamed files are checksummed as they pass through to the target, so they are never read twice. Files the target
+ * copies on its own are checksummed by mapping them, which reads them from the page cache rather than the disk when
+ * the target has just read them, or is about to.
+ * </p>
+ *
+ * <p>
+ * If the target {@linkplain BackupTarget#supportsResume() can resume}, the checksums so far are written to a
+ * {@linkplain PartialFile partial} manifest at each checkpoint, so files kept when resuming keep their checksums.
+ * </p>
+ */
+public final class ChecksummingBackupTarget implements BackupTarget {
+    private static final Logger LOGGER = LogManager.getLogger();
+    /**
+     * The largest window mapped at once.
+     */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private final BackupTarget delegate;
+    private final Path manifestFile;
+    private final Path partialManifestFile;
+    private final Map<String, ChecksumManifest.Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * The checksums from the last checkpoint of an interrupted attempt, by entry name.
+     */
+    private final Map<String, ChecksumManifest.Entry> resumed = new ConcurrentHashMap<>();
+    /**
+     * Set if the target kept a file that has no checksum, which leaves the manifest incomplete.
+     */
+    private boolean incomplete;
+
+    /**
+     * Create a new target.
+     *
+     * @param delegate the target to save to
+     * @param archive the archive {@code delegate} writes, which the manifest is written next to
+     */
+    public ChecksummingBackupTarget(BackupTarget delegate, Path archive) {
+        this.delegate = delegate;
+        this.manifestFile = ChecksumManifest.pathFor(archive);
+        this.partialManifestFile = PartialFile.pathFor(manifestFile);
+        if (delegate.supportsResume() && Files.exists(partialManifestFile)) {
+            try {
+                resumed.putAll(ChecksumManifest.read(partialManifestFile).entries());
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read checksums from {}", partialManifestFile, e);
+            }
+        }
+    }
+
+    private static String entryName(Path path) {
+        var name = new StringBuilder();
+        for (Path part : path) {
+            if (!name.isEmpty()) {
+                name.append('/');
+            }
+            name.append(part);
+        }
+        return name.toString();
+    }
+
+    @Override
+    public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+        var name = entryName(path);
+        delegate.saveFile(path, stream -> {
+            var checksumming = new ChecksummingOutputStream(stream);
+            writer.accept(checksumming);
+            entries.put(name, new ChecksumManifest.Entry(checksumming.size, (int) checksumming.crc.getValue()));
+        });
+    }
+
+    @Override
+    public void saveFile(Path path, long size, IOConsumer<WritableByteChannel> writer) throws IOException {
+        delegate.saveFile(path, size, checksumming(entryName(path), writer));
+    }
+
+    @Override
+    public void saveFile(Path path, Path source, long size, IOConsumer<WritableByteChannel> writer)
+        throws IOException {
+        delegate.saveFile(path, source, size, checksumming(entryName(path), writer));
+    }
+
+    private IOConsumer<WritableByteChannel> checksumming(String name, IOConsumer<WritableByteChannel> writer) {
+        return channel -> {
+            var checksumming = new ChecksummingChannel(channel);
+            writer.accept(checksumming);
+            entries.put(name, new ChecksumManifest.Entry(checksumming.size, (int) checksumming.crc.getValue()));
+        };
+    }
+
+    @Override
+    public void saveFile(Path path, Path source) throws IOException {
+        var crc = new CRC32C();
+        long size;
+        try (var channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            size = channel.size();
+            for (long position = 0; position < size; position += MAP_WINDOW) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+            }
+        }
+        entries.put(entryName(path), new ChecksumManifest.Entry(size, (int) crc.getValue()));
+        delegate.saveFile(path, source);
+    }
+
+    @Override
+    public boolean supportsResume() {
+        return delegate.supportsResume();
+    }
+
+    @Override
+    public boolean saveResumed(Path path, BasicFileAttributes attributes) throws IOException {
+        if (!delegate.saveResumed(path, attributes)) {
+            return false;
+        }
+        var name = entryName(path);
+        var entry = resumed.remove(name);
+        if (entry == null) {
+            incomplete = true;
+        } else {
+            entries.put(name, entry);
+        }
+        return true;
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        delegate.checkpoint();
+        if (delegate.supportsResume()) {
+            // Everything checkpointed has been saved, so this covers at least those files
+            new ChecksumManifest(entries).write(partialManifestFile);
+        }
+    }
+
+    @Override
+    public void commit() throws IOException {
+        delegate.commit();
+        Files.deleteIfExists(partialManifestFile);
+        if (incomplete) {
+            LOGGER.warn("Some files kept from an interrupted backup have no checksums, {} can't be verified", this);
+            return;
+        }
+        try {
+            new ChecksumManifest(entries).write(manifestFile);
+        } catch (IOException e) {
+            // The backup itself is fine, it just can't be verified later
+            LOGGER.warn("Failed to write checksums to {}", manifestFile, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+
+    private static final class ChecksummingOutputStream extends FilterOutputStream {
+        private final CRC32C crc = new CRC32C();
+        private long size;
+
+        private ChecksummingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            size += len;
+        }
+    }
+
+    private static final class ChecksummingChannel implements WritableByteChannel {
+        private final WritableByteChannel channel;
+        private final CRC32C crc = new CRC32C();
+        private long size;
+
+        private ChecksummingChannel(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int start = src.position();
+            int limit = src.limit();
+            int written = channel.write(src);
+            // Only count what was written, the rest will be passed in again
+            src.limit(start + written).position(start);
+            crc.update(src);
+            src.limit(limit);
+            size += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
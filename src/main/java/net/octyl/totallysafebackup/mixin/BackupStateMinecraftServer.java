@@ -11,13 +11,18 @@
 
 package net.octyl.totallysafebackup.mixin;
 
+import net.minecraft.resources.ResourceKey;
 import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.storage.LevelStorageSource;
 import net.octyl.totallysafebackup.backup.BackupState;
 import org.spongepowered.asm.mixin.Final;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Shadow;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 @Mixin(MinecraftServer.class)
 public abstract class BackupStateMinecraftServer implements BackupState {
     @Shadow
@@ -25,6 +30,7 @@ public abstract class BackupStateMinecraftServer implements BackupState {
     protected LevelStorageSource.LevelStorageAccess storageSource;
 
     private volatile boolean isBackingUp = false;
+    private final Set<ResourceKey<Level>> backingUpDimensions = ConcurrentHashMap.newKeySet();
 
     @Override
     public void setBackingUp(boolean backingUp) {
@@ -36,6 +42,20 @@ public boolean isBackingUp() {
         return this.isBackingUp;
     }
 
+    @Override
+    public void setBackingUp(ResourceKey<Level> dimension, boolean backingUp) {
+        if (backingUp) {
+            this.backingUpDimensions.add(dimension);
+        } else {
+            this.backingUpDimensions.remove(dimension);
+        }
+    }
+
+    @Override
+    public boolean isBackingUp(ResourceKey<Level> dimension) {
+        return this.backingUpDimensions.contains(dimension);
+    }
+
     @Override
     public LevelStorageSource.LevelStorageAccess getStorageAccess() {
         return this.storageSource;
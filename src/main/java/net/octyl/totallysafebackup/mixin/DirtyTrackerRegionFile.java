@@ -0,0 +1,63 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.mixin;
+
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.storage.RegionFile;
+import net.minecraft.world.level.chunk.storage.RegionFileVersion;
+import net.octyl.totallysafebackup.backup.region.DirtyRegionTracker;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+@Mixin(RegionFile.class)
+public abstract class DirtyTrackerRegionFile {
+    // The region file doesn't keep its own path, so remember it
+    @Unique
+    private Path totallySafeBackup$regionFile;
+
+    @Inject(
+        method = "<init>(Ljava/nio/file/Path;Ljava/nio/file/Path;Lnet/minecraft/world/level/chunk/storage/RegionFileVersion;Z)V",
+        at = @At("RETURN")
+    )
+    private void init(Path pRegionFile, Path pExternalFileDir, RegionFileVersion pVersion, boolean pSync,
+                      CallbackInfo ci) {
+        this.totallySafeBackup$regionFile = DirtyRegionTracker.key(pRegionFile);
+    }
+
+    // Mark before writing, so a write that fails halfway is still counted
+    @Inject(
+        method = "write",
+        at = @At("HEAD")
+    )
+    private void write(ChunkPos pChunkPos, ByteBuffer pChunkData, CallbackInfo ci) {
+        markWritten();
+    }
+
+    @Inject(
+        method = "clear",
+        at = @At("HEAD")
+    )
+    private void clear(ChunkPos pChunkPos, CallbackInfo ci) {
+        markWritten();
+    }
+
+    @Unique
+    private void markWritten() {
+        DirtyRegionTracker.get().markWritten(totallySafeBackup$regionFile);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.mixin;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongBidirectionalIterator;
+import net.minecraft.server.level.ChunkHolder;
+import net.minecraft.server.level.ChunkMap;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ImposterProtoChunk;
+import net.minecraft.world.level.chunk.LevelChunk;
+import net.octyl.totallysafebackup.backup.flush.IncrementalChunkSaver;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+import org.spongepowered.asm.mixin.Unique;
+
+@Mixin(ChunkMap.class)
+public abstract class IncrementalSaveChunkMap implements IncrementalChunkSaver {
+    @Shadow
+    private volatile Long2ObjectLinkedOpenHashMap<ChunkHolder> visibleChunkMap;
+
+    // Where the last slice stopped, so the next carries on from there rather than starting over and only ever
+    // reaching the chunks at the front of the map
+    @Unique
+    private long totallySafeBackup$cursor;
+    @Unique
+    private boolean totallySafeBackup$hasCursor;
+    // Chunks visited, and dirty chunks among them, since the walk last started from the front of the map
+    @Unique
+    private int totallySafeBackup$passVisited;
+    @Unique
+    private int totallySafeBackup$passDirty;
+
+    @Shadow
+    private boolean save(ChunkAccess pChunk) {
+        throw new AssertionError("Shadowed");
+    }
+
+    @Override
+    public int saveDirtyChunks(long deadlineNanos) {
+        var holders = visibleChunkMap;
+        LongBidirectionalIterator keys;
+        if (totallySafeBackup$hasCursor && holders.containsKey(totallySafeBackup$cursor)) {
+            keys = holders.keySet().iterator(totallySafeBackup$cursor);
+        } else {
+            // The chunk we stopped at was unloaded, so we can't tell where we were
+            keys = totallySafeBackup$startPass(holders);
+        }
+        // Going around more than once in a slice would only find the chunks this slice already saved
+        for (int visited = 0; visited < holders.size(); visited++) {
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                // Assume the rest of the map is as dirty as the part we've been through
+                int unvisited = Math.max(0, holders.size() - totallySafeBackup$passVisited);
+                return totallySafeBackup$passVisited == 0
+                    ? unvisited
+                    : (int) Math.ceil((double) totallySafeBackup$passDirty * unvisited / totallySafeBackup$passVisited);
+            }
+            if (!keys.hasNext()) {
+                keys = totallySafeBackup$startPass(holders);
+            }
+            long key = keys.nextLong();
+            totallySafeBackup$cursor = key;
+            totallySafeBackup$hasCursor = true;
+            totallySafeBackup$passVisited++;
+            // The same chunks a full save looks at, the rest are saved when they unload
+            var chunk = holders.get(key).getChunkToSave().getNow(null);
+            if (!(chunk instanceof ImposterProtoChunk || chunk instanceof LevelChunk) || !chunk.isUnsaved()) {
+                continue;
+            }
+            totallySafeBackup$passDirty++;
+            save(chunk);
+        }
+        // Every loaded chunk was looked at in this slice, so none are left
+        return 0;
+    }
+
+    @Unique
+    private LongBidirectionalIterator totallySafeBackup$startPass(Long2ObjectLinkedOpenHashMap<ChunkHolder> holders) {
+        totallySafeBackup$passVisited = 0;
+        totallySafeBackup$passDirty = 0;
+        return holders.keySet().iterator();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.mixin;
+
+import net.minecraft.world.level.chunk.storage.ChunkStorage;
+import net.minecraft.world.level.chunk.storage.IOWorker;
+import net.octyl.totallysafebackup.backup.flush.ChunkWriteQueue;
+import org.spongepowered.asm.mixin.Final;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Shadow;
+
+import java.util.concurrent.CompletableFuture;
+
+@Mixin(ChunkStorage.class)
+public abstract class IncrementalSaveChunkStorage implements ChunkWriteQueue {
+    @Shadow
+    @Final
+    private IOWorker worker;
+
+    @Override
+    public CompletableFuture<Void> awaitQueuedWrites() {
+        // Flushing syncs the region files, which the blocking save does anyway
+        return worker.synchronize(false);
+    }
+}
@@ -34,6 +34,7 @@ private void onSaveEverything(boolean p_195515_, boolean p_195516_, boolean p_19
         }
     }
 
+    // This writes level.dat after saving each dimension, which SaveBlockerServerLevel blocks on its own
     @Inject(
         method = "saveAllChunks",
         at = @At("HEAD"),
@@ -34,7 +34,8 @@ public abstract class SaveBlockerServerLevel {
         cancellable = true
     )
     private void save(ProgressListener pProgress, boolean pFlush, boolean pSkipSave, CallbackInfo ci) {
-        if (((BackupState) getServer()).isBackingUp()) {
+        // Only this dimension's own backup matters, the others may still be snapshotting
+        if (((BackupState) getServer()).isBackingUp(((ServerLevel) (Object) this).dimension())) {
             TotallySafeBackup.LOGGER.info("Blocked save attempt during backup!");
             ci.cancel();
         }
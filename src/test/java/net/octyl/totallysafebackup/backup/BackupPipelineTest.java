@@ -0,0 +1,112 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.region.RegionCompactor;
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import net.octyl.totallysafebackup.backup.target.CompressionPolicy;
+import net.octyl.totallysafebackup.backup.target.ParallelZipBackupTarget;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BackupPipelineTest {
+    @TempDir
+    Path dir;
+
+    private static byte[] random(int size) {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static BackupOptions options(BackupThrottle throttle, RegionCompactor.Mode regionCompaction) {
+        return new BackupOptions(
+            WorldSnapshot.Mode.OFF, null, throttle, 2, 0, regionCompaction, Duration.ZERO, Duration.ZERO, Duration.ZERO
+        );
+    }
+
+    private Path backUp(Path world, BackupOptions options) throws Exception {
+        var archive = dir.resolve("backup.zip");
+        try (
+            var channel = FileChannel.open(archive, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            var target = new ParallelZipBackupTarget("test", channel, 2, CompressionPolicy.DEFAULT)
+        ) {
+            new BackupPipeline(Files.createDirectories(dir.resolve("staging")))
+                .run(world, target, options, new BackupProgress(), null, () -> {
+                });
+        }
+        return archive;
+    }
+
+    @Test
+    void throttledZipBackupsFollowTheCompressionPolicy() throws Exception {
+        var world = Files.createDirectories(dir.resolve("world"));
+        var levelDat = "some very compressible level data ".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        Files.write(world.resolve("level.dat"), levelDat);
+        var region = random(300_000);
+        Files.write(Files.createDirectories(world.resolve("region")).resolve("r.0.0.mca"), region);
+
+        var archive = backUp(world, options(new BackupThrottle(1e12, 0, null), RegionCompactor.Mode.OFF));
+
+        try (var zip = new ZipFile(archive.toFile())) {
+            var regionEntry = zip.getEntry("region/r.0.0.mca");
+            assertEquals(ZipEntry.STORED, regionEntry.getMethod());
+            assertArrayEquals(region, zip.getInputStream(regionEntry).readAllBytes());
+            var levelEntry = zip.getEntry("level.dat");
+            assertEquals(ZipEntry.DEFLATED, levelEntry.getMethod());
+            assertArrayEquals(levelDat, zip.getInputStream(levelEntry).readAllBytes());
+        }
+    }
+
+    @Test
+    void compactedRegionsFollowTheCompressionPolicy() throws Exception {
+        var world = Files.createDirectories(dir.resolve("world"));
+        // One chunk in sector 2, followed by a sector the compactor drops
+        int sector = RegionFileHeader.SECTOR_SIZE;
+        var region = ByteBuffer.allocate(4 * sector);
+        var payload = random(sector - RegionFileHeader.CHUNK_PREFIX_SIZE);
+        region.putInt(0, 2 << 8 | 1);
+        region.putInt(sector, 1234);
+        region.position(2 * sector).putInt(payload.length + 1).put((byte) 2).put(payload);
+        var regionFile = Files.createDirectories(world.resolve("region")).resolve("r.0.0.mca");
+        Files.write(regionFile, region.array());
+
+        var archive = backUp(world, options(BackupThrottle.UNLIMITED, RegionCompactor.Mode.COMPACT));
+
+        try (var zip = new ZipFile(archive.toFile())) {
+            var regionEntry = zip.getEntry("region/r.0.0.mca");
+            assertEquals(ZipEntry.STORED, regionEntry.getMethod());
+            assertEquals(3 * sector, regionEntry.getSize());
+            var saved = zip.getInputStream(regionEntry).readAllBytes();
+            assertArrayEquals(
+                Arrays.copyOfRange(region.array(), 2 * sector, 3 * sector),
+                Arrays.copyOfRange(saved, 2 * sector, 3 * sector)
+            );
+        }
+    }
+}
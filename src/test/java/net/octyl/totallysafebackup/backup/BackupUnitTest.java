@@ -0,0 +1,205 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup;
+
+import net.octyl.totallysafebackup.backup.region.RegionCompactor;
+import net.octyl.totallysafebackup.backup.target.BackupTarget;
+import org.apache.commons.io.function.IOConsumer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupUnitTest {
+    @TempDir
+    Path dir;
+
+    private static BackupUnit unit(String name, String... directories) {
+        var paths = new ArrayList<Path>(directories.length);
+        for (var directory : directories) {
+            paths.add(Path.of(directory));
+        }
+        return new BackupUnit(name, paths, () -> {
+        });
+    }
+
+    private static WorldFile file(String path) {
+        return new WorldFile(Path.of(path), Path.of(path), null);
+    }
+
+    private static List<List<String>> paths(List<List<WorldFile>> partitions) {
+        return partitions.stream()
+            .map(files -> files.stream().map(f -> f.path().toString().replace('\\', '/')).toList())
+            .toList();
+    }
+
+    @Test
+    void filesGoToTheUnitWithTheLongestDirectory() {
+        var units = List.of(
+            unit("rest"),
+            unit("overworld", "region", "entities", "poi", "data"),
+            unit("nether", "DIM-1"),
+            unit("mod", "dimensions/mod"),
+            unit("mod sky", "dimensions/mod/sky")
+        );
+        var files = List.of(
+            file("region/r.0.0.mca"),
+            file("level.dat"),
+            file("DIM-1/region/r.0.0.mca"),
+            file("dimensions/mod/sky/region/r.0.0.mca"),
+            file("dimensions/mod/deep/region/r.0.0.mca"),
+            file("entities/r.0.0.mca"),
+            file("playerdata/player.dat"),
+            // Only whole names count, this isn't in the region directory
+            file("regions.txt"),
+            file("DIM-1/data/raids.dat")
+        );
+
+        var partitions = paths(BackupUnit.partition(files, units));
+
+        assertEquals(List.of(
+            List.of("level.dat", "playerdata/player.dat", "regions.txt"),
+            List.of("region/r.0.0.mca", "entities/r.0.0.mca"),
+            List.of("DIM-1/region/r.0.0.mca", "DIM-1/data/raids.dat"),
+            List.of("dimensions/mod/deep/region/r.0.0.mca"),
+            List.of("dimensions/mod/sky/region/r.0.0.mca")
+        ), partitions);
+    }
+
+    @Test
+    void unitsWithoutFilesGetEmptyPartitions() {
+        var partitions = BackupUnit.partition(
+            List.of(file("level.dat")), List.of(unit("nether", "DIM-1"), unit("rest"))
+        );
+
+        assertEquals(List.of(List.of(), List.of("level.dat")), paths(partitions));
+    }
+
+    @Test
+    void exactlyOneUnitMustTakeTheRest() {
+        var files = List.of(file("level.dat"));
+        assertThrows(
+            IllegalArgumentException.class, () -> BackupUnit.partition(files, List.of(unit("nether", "DIM-1")))
+        );
+        assertThrows(IllegalArgumentException.class, () -> BackupUnit.partition(files, List.of(unit("a"), unit("b"))));
+    }
+
+    @Test
+    void directoriesMustBeRelative() {
+        var absolute = dir.toAbsolutePath().toString();
+        assertThrows(IllegalArgumentException.class, () -> unit("absolute", absolute));
+    }
+
+    private Path world() throws IOException {
+        var world = Files.createDirectories(dir.resolve("world"));
+        Files.writeString(world.resolve("level.dat"), "level");
+        Files.writeString(Files.createDirectories(world.resolve("region")).resolve("r.0.0.mca"), "overworld");
+        Files.writeString(Files.createDirectories(world.resolve("DIM-1/region")).resolve("r.0.0.mca"), "nether");
+        return world;
+    }
+
+    private static BackupOptions options(WorldSnapshot.Mode mode) {
+        return new BackupOptions(
+            mode, null, BackupThrottle.UNLIMITED, 1, 0, RegionCompactor.Mode.OFF, Duration.ZERO, Duration.ZERO,
+            Duration.ZERO
+        );
+    }
+
+    /**
+     * Back up the world in units for the server files, the overworld, the nether and the end, which has no files.
+     *
+     * @return how many times each unit was released, as of the first file being saved
+     */
+    private Map<String, Integer> releasesBeforeSaving(WorldSnapshot.Mode mode) throws Exception {
+        var releases = new ConcurrentHashMap<String, AtomicInteger>();
+        var units = new ArrayList<BackupUnit>();
+        for (var entry : Map.of(
+            "rest", List.<Path>of(),
+            "overworld", List.of(Path.of("region")),
+            "nether", List.of(Path.of("DIM-1")),
+            "end", List.of(Path.of("DIM1"))
+        ).entrySet()) {
+            var name = entry.getKey();
+            releases.put(name, new AtomicInteger());
+            units.add(new BackupUnit(name, entry.getValue(), () -> releases.get(name).incrementAndGet()));
+        }
+        var target = new RecordingTarget(releases);
+        new BackupPipeline(dir.resolve("staging"))
+            .run(world(), target, options(mode), new BackupProgress(), null, units);
+        assertEquals(Set.of("level.dat", "region/r.0.0.mca", "DIM-1/region/r.0.0.mca"), target.saved);
+        return target.releasesAtFirstSave;
+    }
+
+    @Test
+    void stagedUnitsAreReleasedBeforeSaving() throws Exception {
+        var releases = releasesBeforeSaving(WorldSnapshot.Mode.COPY);
+
+        assertEquals(Map.of("rest", 1, "overworld", 1, "nether", 1, "end", 1), releases);
+    }
+
+    @Test
+    void unstagedUnitsAreNotReleased() throws Exception {
+        var releases = releasesBeforeSaving(WorldSnapshot.Mode.OFF);
+
+        // Only the end has nothing to protect
+        assertEquals(Map.of("rest", 0, "overworld", 0, "nether", 0, "end", 1), releases);
+    }
+
+    /**
+     * Keeps the paths saved to it, and the releases seen when the first file was saved.
+     */
+    private static final class RecordingTarget implements BackupTarget {
+        private final Map<String, AtomicInteger> releases;
+        private final Set<String> saved = ConcurrentHashMap.newKeySet();
+        private Map<String, Integer> releasesAtFirstSave;
+
+        private RecordingTarget(Map<String, AtomicInteger> releases) {
+            this.releases = releases;
+        }
+
+        @Override
+        public void saveFile(Path path, IOConsumer<OutputStream> writer) throws IOException {
+            synchronized (this) {
+                if (releasesAtFirstSave == null) {
+                    releasesAtFirstSave = new ConcurrentHashMap<>();
+                    releases.forEach((name, count) -> releasesAtFirstSave.put(name, count.get()));
+                }
+            }
+            saved.add(path.toString().replace('\\', '/'));
+            writer.accept(OutputStream.nullOutputStream());
+        }
+
+        @Override
+        public void commit() {
+            assertTrue(releasesAtFirstSave != null, "Nothing was saved");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
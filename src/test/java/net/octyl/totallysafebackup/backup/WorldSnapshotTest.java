@@ -0,0 +1,99 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WorldSnapshotTest {
+    @TempDir
+    Path dir;
+
+    private Path world() throws IOException {
+        var world = Files.createDirectories(dir.resolve("world"));
+        Files.writeString(world.resolve("level.dat"), "level");
+        Files.writeString(world.resolve("session.lock"), "lock");
+        Files.writeString(Files.createDirectories(world.resolve("region")).resolve("r.0.0.mca"), "region");
+        Files.writeString(Files.createDirectories(world.resolve("playerdata")).resolve("player.dat"), "player");
+        return world;
+    }
+
+    private static Map<String, String> read(WorldSnapshot snapshot) throws IOException {
+        var contents = new TreeMap<String, String>();
+        for (var file : snapshot.files()) {
+            contents.put(file.path().toString().replace('\\', '/'), Files.readString(file.source()));
+        }
+        return contents;
+    }
+
+    /**
+     * Change the world the way the game does: region files in place, the others by renaming a new file over them.
+     */
+    private static void save(Path world) throws IOException {
+        Files.writeString(world.resolve("region/r.0.0.mca"), "REGION", StandardOpenOption.TRUNCATE_EXISTING);
+        for (var file : new String[] {"level.dat", "playerdata/player.dat"}) {
+            var replacement = world.resolve(file + "_new");
+            Files.writeString(replacement, "changed");
+            Files.move(replacement, world.resolve(file), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Test
+    void stagedSnapshotsDontChangeWithTheWorld() throws IOException {
+        for (var mode : new WorldSnapshot.Mode[] {WorldSnapshot.Mode.AUTO, WorldSnapshot.Mode.COPY}) {
+            var world = world();
+            var files = WorldSnapshot.listWorld(world, 2);
+
+            try (var snapshot = WorldSnapshot.create(world, files, dir.resolve("staging"), mode)) {
+                // AUTO clones where it can, and copies otherwise, as a temporary directory has plenty of room
+                assertTrue(snapshot.isStaged(), mode + " didn't stage");
+                save(world);
+
+                assertEquals(
+                    Map.of("level.dat", "level", "region/r.0.0.mca", "region", "playerdata/player.dat", "player"),
+                    read(snapshot)
+                );
+            }
+            WorldSnapshot.deleteTree(world);
+        }
+    }
+
+    @Test
+    void unstagedSnapshotsReadTheWorld() throws IOException {
+        var world = world();
+        var files = WorldSnapshot.listWorld(world, 1);
+
+        try (var snapshot = WorldSnapshot.create(world, files, dir.resolve("staging"), WorldSnapshot.Mode.OFF)) {
+            assertFalse(snapshot.isStaged());
+            save(world);
+
+            assertEquals(
+                Map.of("level.dat", "changed", "region/r.0.0.mca", "REGION", "playerdata/player.dat", "changed"),
+                read(snapshot)
+            );
+        }
+        assertFalse(Files.exists(dir.resolve("staging")));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.history;
+
+import net.octyl.totallysafebackup.backup.region.RegionFileHeader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkHistoryTest {
+    private static final String REGION = "region/r.0.0.mca";
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Make a region file header with the given chunks, as pairs of chunk index and timestamp. Each chunk takes one
+     * sector, after the ones before it.
+     */
+    private static RegionFileHeader header(int... chunks) {
+        var data = ByteBuffer.allocate(RegionFileHeader.SIZE);
+        for (int i = 0; i < chunks.length; i += 2) {
+            int index = chunks[i];
+            data.putInt(index * 4, (2 + i / 2) << 8 | 1);
+            data.putInt(RegionFileHeader.SECTOR_SIZE + index * 4, chunks[i + 1]);
+        }
+        return RegionFileHeader.read(data);
+    }
+
+    private ChunkHistory history() {
+        return ChunkHistory.load(dir.resolve("history"));
+    }
+
+    @Test
+    void regionPaths() {
+        assertEquals("region/r.0.0.mca", ChunkHistory.regionPath("", 0, 31));
+        assertEquals("region/r.1.-1.mca", ChunkHistory.regionPath("", 32, -1));
+        assertEquals("DIM-1/region/r.-2.3.mca", ChunkHistory.regionPath("DIM-1/", -33, 96));
+        assertEquals(31 * 32, RegionFileHeader.chunkIndex(0, 31));
+    }
+
+    @Test
+    void recordsOnlyChangedChunks() {
+        var history = history();
+        history.record("1", Map.of(REGION, header(0, 100, 5, 100)));
+        history.record("2", Map.of(REGION, header(0, 100, 5, 200)));
+        history.record("3", Map.of(REGION, header(0, 100, 5, 200)));
+        history.record("4", Map.of(REGION, header(0, 300, 5, 200)));
+        assertEquals(List.of(
+            new ChunkHistory.Version("1", 100, 2, 1),
+            new ChunkHistory.Version("4", 300, 2, 1)
+        ), history.history(REGION, 0));
+        assertEquals(List.of(
+            new ChunkHistory.Version("1", 100, 3, 1),
+            new ChunkHistory.Version("2", 200, 3, 1)
+        ), history.history(REGION, 5));
+        assertEquals(List.of(), history.history(REGION, 1));
+        assertEquals(List.of(), history.history("region/r.1.0.mca", 0));
+    }
+
+    @Test
+    void regionsThatAreNotGivenAreUnchanged() {
+        var history = history();
+        history.record("1", Map.of(REGION, header(0, 100)));
+        history.record("2", Map.of());
+        history.record("3", Map.of(REGION, header(0, 100)));
+        assertEquals(List.of(new ChunkHistory.Version("1", 100, 2, 1)), history.history(REGION, 0));
+    }
+
+    @Test
+    void recordsWhenChunksAreDeleted() {
+        var history = history();
+        history.record("1", Map.of(REGION, header()));
+        history.record("2", Map.of(REGION, header(0, 100)));
+        history.record("3", Map.of(REGION, header()));
+        history.record("4", Map.of(REGION, header()));
+        history.record("5", Map.of(REGION, header(0, 100)));
+        var versions = history.history(REGION, 0);
+        assertEquals(List.of(
+            new ChunkHistory.Version("2", 100, 2, 1),
+            new ChunkHistory.Version("3", 0, 0, 0),
+            new ChunkHistory.Version("5", 100, 2, 1)
+        ), versions);
+        assertTrue(versions.get(0).exists());
+        assertFalse(versions.get(1).exists());
+    }
+
+    @Test
+    void onlyTerrainRegionsAreIndexed() {
+        var history = history();
+        history.record("1", Map.of(
+            "entities/r.0.0.mca", header(0, 100),
+            "poi/r.0.0.mca", header(0, 100),
+            "DIM-1/region/r.0.0.mca", header(0, 100)
+        ));
+        assertEquals(List.of(), history.history("entities/r.0.0.mca", 0));
+        assertEquals(List.of(), history.history("poi/r.0.0.mca", 0));
+        assertEquals(1, history.history("DIM-1/region/r.0.0.mca", 0).size());
+    }
+
+    @Test
+    void rejectsRecordingABackupTwice() {
+        var history = history();
+        history.record("1", Map.of(REGION, header(0, 100)));
+        assertThrows(IllegalArgumentException.class, () -> history.record("1", Map.of()));
+    }
+
+    @Test
+    void pruneMovesVersionsToTheNextKeptBackup() {
+        var history = history();
+        history.record("1", Map.of(REGION, header(0, 100, 1, 100)));
+        history.record("2", Map.of(REGION, header(0, 100)));
+        history.record("3", Map.of(REGION, header(0, 300)));
+        history.prune(Set.of("2", "3"));
+        var versions = history.history(REGION, 0);
+        assertEquals(List.of(
+            new ChunkHistory.Version("2", 100, -1, 1),
+            new ChunkHistory.Version("3", 300, 2, 1)
+        ), versions);
+        // Compaction may have moved it in the backup it moved to
+        assertFalse(versions.get(0).isLocated());
+        assertTrue(versions.get(1).isLocated());
+        assertEquals(List.of(new ChunkHistory.Version("2", 0, 0, 0)), history.history(REGION, 1));
+    }
+
+    @Test
+    void pruneDropsVersionsThatChangedBeforeTheNextKeptBackup() {
+        var history = history();
+        history.record("1", Map.of(REGION, header(0, 100)));
+        history.record("2", Map.of(REGION, header(0, 200)));
+        history.record("3", Map.of(REGION, header(0, 300)));
+        history.record("4", Map.of(REGION, header(0, 300)));
+        history.prune(Set.of("1", "4"));
+        assertEquals(List.of(
+            new ChunkHistory.Version("1", 100, 2, 1),
+            new ChunkHistory.Version("4", 300, -1, 1)
+        ), history.history(REGION, 0));
+        history.prune(Set.of());
+        assertEquals(List.of(), history.history(REGION, 0));
+        // Backups are forgotten, so names can be recorded again
+        history.record("4", Map.of(REGION, header(0, 400)));
+        assertEquals(List.of(new ChunkHistory.Version("4", 400, 2, 1)), history.history(REGION, 0));
+    }
+
+    @Test
+    void savesAndLoads() throws IOException {
+        var history = history();
+        history.record("1", Map.of(REGION, header(0, 100, 1023, 100), "DIM1/region/r.-1.0.mca", header(7, 50)));
+        history.record("2", Map.of(REGION, header(0, 200)));
+        history.prune(Set.of("2"));
+        history.save();
+        var loaded = history();
+        assertEquals(history.history(REGION, 0), loaded.history(REGION, 0));
+        assertEquals(history.history(REGION, 1023), loaded.history(REGION, 1023));
+        assertEquals(history.history("DIM1/region/r.-1.0.mca", 7), loaded.history("DIM1/region/r.-1.0.mca", 7));
+        assertEquals(List.of(new ChunkHistory.Version("2", 50, -1, 1)), loaded.history("DIM1/region/r.-1.0.mca", 7));
+        // Loaded backups are still recorded
+        assertThrows(IllegalArgumentException.class, () -> loaded.record("2", Map.of()));
+    }
+
+    @Test
+    void unreadableIndexStartsOver() throws IOException {
+        Files.writeString(dir.resolve("history"), "not an index");
+        var history = history();
+        assertEquals(List.of(), history.history(REGION, 0));
+        history.record("1", Map.of(REGION, header(0, 100)));
+        assertEquals(1, history.history(REGION, 0).size());
+    }
+}
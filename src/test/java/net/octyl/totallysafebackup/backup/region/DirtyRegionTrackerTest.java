@@ -0,0 +1,92 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup.region;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DirtyRegionTrackerTest {
+    private static final Path REGION = Path.of("world", "region", "r.0.0.mca").toAbsolutePath();
+    private static final Path OTHER_REGION = Path.of("world", "region", "r.1.0.mca").toAbsolutePath();
+
+    private final DirtyRegionTracker tracker = DirtyRegionTracker.get();
+
+    @BeforeEach
+    void reset() {
+        tracker.reset();
+        tracker.checkpoint().commit();
+    }
+
+    @Test
+    void checkpointsTakeTheWrittenRegions() {
+        long writes = tracker.getWriteCount();
+        tracker.markWritten(REGION);
+        tracker.markWritten(REGION);
+
+        var checkpoint = tracker.checkpoint();
+
+        assertTrue(checkpoint.isDirty(REGION));
+        assertFalse(checkpoint.isDirty(OTHER_REGION));
+        assertEquals(1, checkpoint.getDirtyRegionCount());
+        assertEquals(writes + 2, checkpoint.getWriteCount());
+        assertEquals(tracker.getSession(), checkpoint.getSession());
+        // Writes after the checkpoint are for the next one
+        tracker.markWritten(OTHER_REGION);
+        assertFalse(checkpoint.isDirty(OTHER_REGION));
+        checkpoint.commit();
+        assertThrows(IllegalStateException.class, checkpoint::abort);
+    }
+
+    @Test
+    void committedWritesAreForgotten() {
+        tracker.markWritten(REGION);
+        tracker.checkpoint().commit();
+
+        assertEquals(0, tracker.checkpoint().getDirtyRegionCount());
+    }
+
+    @Test
+    void abortedWritesAreKept() {
+        tracker.markWritten(REGION);
+        var aborted = tracker.checkpoint();
+        tracker.markWritten(OTHER_REGION);
+        aborted.abort();
+
+        var next = tracker.checkpoint();
+
+        assertTrue(next.isDirty(REGION));
+        assertTrue(next.isDirty(OTHER_REGION));
+    }
+
+    @Test
+    void abortedWritesFromAnOldSessionAreDropped() {
+        tracker.markWritten(REGION);
+        var aborted = tracker.checkpoint();
+        var oldSession = aborted.getSession();
+        tracker.reset();
+        aborted.abort();
+
+        var next = tracker.checkpoint();
+
+        assertNotEquals(oldSession, next.getSession());
+        assertFalse(next.isDirty(REGION));
+    }
+}
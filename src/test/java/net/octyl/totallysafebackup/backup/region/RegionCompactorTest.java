@@ -0,0 +1,227 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.region;
+
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class RegionCompactorTest {
+    private static final int SECTOR = RegionFileHeader.SECTOR_SIZE;
+
+    /**
+     * A region file under construction, with chunks placed at chosen sectors.
+     */
+    private static final class Region {
+        private final ByteBuffer data;
+
+        Region(int sectors) {
+            data = ByteBuffer.allocate(sectors * SECTOR).order(ByteOrder.BIG_ENDIAN);
+            // Leftovers of chunks that moved, which compaction must not carry over
+            var random = new Random(sectors);
+            for (int i = RegionFileHeader.SIZE; i < data.limit(); i++) {
+                data.put(i, (byte) random.nextInt());
+            }
+        }
+
+        /**
+         * Place a chunk, whose {@code sectors} may be more than it needs.
+         */
+        Region chunk(int index, int sector, int sectors, byte[] chunk, int timestamp) {
+            data.putInt(index * 4, sector << 8 | sectors);
+            data.putInt(SECTOR + index * 4, timestamp);
+            data.put(sector * SECTOR, chunk);
+            return this;
+        }
+
+        ByteBuffer build() {
+            return data.duplicate();
+        }
+    }
+
+    /**
+     * Encode a chunk with its length prefix, holding the tags compaction looks at and some filler.
+     */
+    private static byte[] chunk(String status, long inhabitedTime, int fillerSize) {
+        var nbt = new ByteArrayOutputStream();
+        try (var output = new DataOutputStream(new DeflaterOutputStream(nbt))) {
+            output.writeByte(10);
+            output.writeUTF("");
+            // Before the tags we want, so they have to be found past it
+            output.writeByte(7);
+            output.writeUTF("Filler");
+            var filler = new byte[fillerSize];
+            new Random(fillerSize).nextBytes(filler);
+            output.writeInt(filler.length);
+            output.write(filler);
+            output.writeByte(8);
+            output.writeUTF("Status");
+            output.writeUTF(status);
+            output.writeByte(4);
+            output.writeUTF("InhabitedTime");
+            output.writeLong(inhabitedTime);
+            output.writeByte(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return withPrefix((byte) 2, nbt.toByteArray());
+    }
+
+    private static byte[] withPrefix(byte compression, byte[] payload) {
+        return ByteBuffer.allocate(RegionFileHeader.CHUNK_PREFIX_SIZE + payload.length)
+            .putInt(payload.length + 1)
+            .put(compression)
+            .put(payload)
+            .array();
+    }
+
+    private static byte[] write(RegionCompactor.Result result) throws IOException {
+        var output = new ByteArrayOutputStream();
+        result.write(buffer -> {
+            var bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            output.writeBytes(bytes);
+        });
+        var bytes = output.toByteArray();
+        assertEquals(result.size(), bytes.length);
+        return bytes;
+    }
+
+    @Nullable
+    private static byte[] chunkAt(ByteBuffer file, int index) {
+        var header = RegionFileHeader.read(file);
+        int length = header.chunkLength(index, file);
+        if (length == -1) {
+            return null;
+        }
+        var chunk = new byte[length];
+        file.get(header.sectorOffset(index) * SECTOR, chunk);
+        return chunk;
+    }
+
+    @Test
+    void compactKeepsEveryChunk() throws IOException {
+        var small = chunk("minecraft:full", 100, 10);
+        var large = chunk("minecraft:full", 0, 3 * SECTOR);
+        var exact = withPrefix((byte) 3, new byte[SECTOR - RegionFileHeader.CHUNK_PREFIX_SIZE]);
+        var original = new Region(40)
+            .chunk(0, 30, 2, small, 11)
+            .chunk(5, 3, 8, large, 22)
+            .chunk(1023, 20, 1, exact, 33)
+            .build();
+
+        var result = RegionCompactor.compact(original, false);
+        assertEquals(3, result.chunkCount());
+        assertEquals(0, result.strippedCount());
+        var compacted = ByteBuffer.wrap(write(result));
+        // The header, then each chunk in as few sectors as it needs
+        assertEquals((2 + 1 + RegionFileHeader.sectorsFor(large.length) + 1) * SECTOR, compacted.limit());
+
+        var header = RegionFileHeader.read(compacted);
+        for (int index = 0; index < RegionFileHeader.CHUNK_COUNT; index++) {
+            assertArrayEquals(chunkAt(original, index), chunkAt(compacted, index), "chunk " + index);
+            assertEquals(RegionFileHeader.read(original).timestamp(index), header.timestamp(index), "chunk " + index);
+        }
+        // In chunk order, right after each other
+        assertEquals(2, header.sectorOffset(0));
+        assertEquals(3, header.sectorOffset(5));
+        assertEquals(3 + header.sectorCount(5), header.sectorOffset(1023));
+        assertEquals(1, header.sectorCount(1023));
+        // The garbage after each chunk is zeroed
+        int padding = header.sectorOffset(0) * SECTOR + small.length;
+        assertArrayEquals(
+            new byte[SECTOR - small.length],
+            Arrays.copyOfRange(compacted.array(), padding, header.sectorOffset(5) * SECTOR)
+        );
+
+        // The result can be written again, e.g. by a retried write, and compacting is then a no-op
+        assertArrayEquals(compacted.array(), write(result));
+        assertArrayEquals(compacted.array(), write(RegionCompactor.compact(compacted, false)));
+    }
+
+    @Test
+    void stripDropsOnlyUnvisitedPartialChunks() throws IOException {
+        var visited = chunk("minecraft:noise", 1, 100);
+        var unvisited = chunk("minecraft:features", 0, 100);
+        var generated = chunk("minecraft:full", 0, 100);
+        var legacy = chunk("full", 0, 100);
+        var unknown = withPrefix((byte) 99, new byte[20]);
+        var original = new Region(12)
+            .chunk(0, 2, 1, visited, 1)
+            .chunk(1, 4, 1, unvisited, 2)
+            .chunk(2, 6, 1, generated, 3)
+            .chunk(3, 8, 1, legacy, 4)
+            .chunk(4, 10, 1, unknown, 5)
+            .build();
+
+        var result = RegionCompactor.compact(original, true);
+        assertEquals(4, result.chunkCount());
+        assertEquals(1, result.strippedCount());
+        var compacted = ByteBuffer.wrap(write(result));
+        var header = RegionFileHeader.read(compacted);
+        assertArrayEquals(visited, chunkAt(compacted, 0));
+        assertFalse(header.hasChunk(1));
+        assertEquals(0, header.timestamp(1));
+        assertArrayEquals(generated, chunkAt(compacted, 2));
+        assertArrayEquals(legacy, chunkAt(compacted, 3));
+        // Chunks that can't be read are kept, as we can't tell if they're safe to drop
+        assertArrayEquals(unknown, chunkAt(compacted, 4));
+        assertEquals(6 * SECTOR, compacted.limit());
+
+        // Without stripping, the unvisited chunk stays
+        assertEquals(5, RegionCompactor.compact(original, false).chunkCount());
+    }
+
+    @Test
+    void dropsChunksWithInvalidLocations() throws IOException {
+        var kept = chunk("minecraft:full", 1, 10);
+        var original = new Region(4)
+            .chunk(0, 2, 1, kept, 1)
+            .build();
+        // Inside the header, past the end of the file, and longer than its sectors
+        original.putInt(4, 1 << 8 | 1);
+        original.putInt(8, 50 << 8 | 1);
+        original.putInt(12, 3 << 8 | 1);
+        original.putInt(3 * SECTOR, 2 * SECTOR);
+
+        var result = RegionCompactor.compact(original, false);
+        assertEquals(1, result.chunkCount());
+        var compacted = ByteBuffer.wrap(write(result));
+        assertArrayEquals(kept, chunkAt(compacted, 0));
+        for (int index = 1; index < RegionFileHeader.CHUNK_COUNT; index++) {
+            assertFalse(RegionFileHeader.read(compacted).hasChunk(index), "chunk " + index);
+        }
+    }
+
+    @Test
+    void copiesTruncatedFileAsIs() throws IOException {
+        var truncated = new byte[100];
+        new Random(1).nextBytes(truncated);
+        var result = RegionCompactor.compact(ByteBuffer.wrap(truncated), true);
+        assertEquals(0, result.chunkCount());
+        assertArrayEquals(truncated, write(result));
+        assertArrayEquals(new byte[0], write(RegionCompactor.compact(ByteBuffer.allocate(0), true)));
+    }
+}
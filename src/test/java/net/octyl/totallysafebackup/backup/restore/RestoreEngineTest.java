@@ -0,0 +1,217 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup.restore;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RestoreEngineTest {
+    private static final UUID PLAYER = UUID.fromString("4c5e3f1a-8d2b-4b8e-9a57-0f1c2d3e4f50");
+
+    @TempDir
+    Path dir;
+
+    private static byte[] content(String path) {
+        return ("content of " + path + "\n").repeat(path.length() * 100).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private Path zip(List<String> paths) throws IOException {
+        var archive = dir.resolve("backup.zip");
+        try (var zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            for (var path : paths) {
+                zip.putNextEntry(new ZipEntry(path));
+                zip.write(content(path));
+                zip.closeEntry();
+            }
+        }
+        return archive;
+    }
+
+    private Path world() throws IOException {
+        return zip(List.of(
+            "level.dat",
+            "region/r.0.0.mca",
+            "region/r.-1.0.mca",
+            "DIM-1/region/r.0.0.mca",
+            "DIM1/region/r.0.0.mca",
+            "playerdata/" + PLAYER + ".dat",
+            "stats/" + PLAYER + ".json",
+            "playerdata/" + UUID.randomUUID() + ".dat"
+        ));
+    }
+
+    private static Set<String> files(Path root) throws IOException {
+        var files = new TreeSet<String>();
+        try (Stream<Path> stream = Files.walk(root)) {
+            stream.filter(Files::isRegularFile)
+                .forEach(f -> files.add(root.relativize(f).toString().replace('\\', '/')));
+        }
+        return files;
+    }
+
+    private static RestoreEngine.Report restore(Path archive, RestoreSelection selection, Path destination, int threads)
+        throws IOException {
+        try (var source = RestoreSource.zip(archive)) {
+            return new RestoreEngine(threads).restore(source, selection, destination, null);
+        }
+    }
+
+    @Test
+    void restoresOnlyTheSelectedFiles() throws IOException {
+        var archive = world();
+
+        var nether = dir.resolve("nether");
+        var report = restore(archive, RestoreSelection.dimension("minecraft:the_nether"), nether, 2);
+        assertEquals(Set.of("DIM-1/region/r.0.0.mca"), files(nether));
+        assertEquals(1, report.fileCount());
+        assertArrayEquals(
+            content("DIM-1/region/r.0.0.mca"), Files.readAllBytes(nether.resolve("DIM-1/region/r.0.0.mca"))
+        );
+
+        var overworld = dir.resolve("overworld");
+        restore(archive, RestoreSelection.dimension("minecraft:overworld"), overworld, 2);
+        assertEquals(Set.of("region/r.-1.0.mca", "region/r.0.0.mca"), files(overworld));
+
+        var player = dir.resolve("player");
+        restore(archive, RestoreSelection.players(List.of(PLAYER)), player, 2);
+        assertEquals(Set.of("playerdata/" + PLAYER + ".dat", "stats/" + PLAYER + ".json"), files(player));
+
+        var levelDat = dir.resolve("level");
+        report = restore(archive, RestoreSelection.file("level.dat"), levelDat, 2);
+        assertEquals(Set.of("level.dat"), files(levelDat));
+        assertEquals(content("level.dat").length, report.byteCount());
+    }
+
+    @Test
+    void replacesExistingFilesAndLeavesNoTemporaryFiles() throws IOException {
+        var archive = world();
+        var destination = Files.createDirectories(dir.resolve("restored"));
+        Files.writeString(destination.resolve("level.dat"), "stale");
+
+        restore(archive, RestoreSelection.all(), destination, 2);
+
+        assertArrayEquals(content("level.dat"), Files.readAllBytes(destination.resolve("level.dat")));
+        assertEquals(8, files(destination).size());
+        assertTrue(files(destination).stream().noneMatch(f -> f.endsWith(".restoring")));
+    }
+
+    @Test
+    void extractsInParallel() throws IOException {
+        var paths = new ArrayList<String>();
+        for (int i = 0; i < 32; i++) {
+            paths.add("region/r." + i + ".0.mca");
+        }
+        var archive = zip(paths);
+        var destination = dir.resolve("restored");
+        var source = new ObservedSource(RestoreSource.zip(archive), 2);
+
+        RestoreEngine.Report report;
+        try (source) {
+            report = new RestoreEngine(4).restore(source, RestoreSelection.all(), destination, null);
+        }
+
+        assertTrue(source.maxConcurrent.get() >= 2, "Files were extracted one at a time");
+        assertTrue(source.threads.size() >= 2);
+        assertEquals(paths.size(), report.fileCount());
+        for (var path : paths) {
+            assertArrayEquals(content(path), Files.readAllBytes(destination.resolve(path)));
+        }
+    }
+
+    @Test
+    void rejectsPathsOutsideOfTheDestination() throws IOException {
+        for (var escape : List.of("../escaped.dat", "region/../../escaped.dat")) {
+            var archive = zip(List.of(escape));
+            var destination = dir.resolve("restored");
+
+            var error = assertThrows(IOException.class, () -> restore(archive, RestoreSelection.all(), destination, 2));
+
+            assertTrue(error.getMessage().contains("outside of"), error.getMessage());
+            assertFalse(Files.exists(dir.resolve("escaped.dat")));
+            Files.delete(archive);
+        }
+    }
+
+    /**
+     * Passes reads through, and records how many run at once. The first reads wait for each other, so reads that
+     * could run in parallel are seen to.
+     */
+    private static final class ObservedSource implements RestoreSource {
+        private final RestoreSource delegate;
+        private final CountDownLatch overlap;
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+        private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        private ObservedSource(RestoreSource delegate, int overlap) {
+            this.delegate = delegate;
+            this.overlap = new CountDownLatch(overlap);
+        }
+
+        @Override
+        public Optional<Map<String, Long>> index() throws IOException {
+            return delegate.index();
+        }
+
+        @Override
+        public void read(Predicate<String> wanted, EntryConsumer consumer, Executor executor) throws IOException {
+            delegate.read(wanted, (path, size, content) -> {
+                int now = running.incrementAndGet();
+                maxConcurrent.accumulateAndGet(now, Math::max);
+                threads.add(Thread.currentThread().getName());
+                try {
+                    overlap.countDown();
+                    overlap.await(10, TimeUnit.SECONDS);
+                    consumer.accept(path, size, content);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }, executor);
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.retention;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static net.octyl.totallysafebackup.backup.retention.RetentionPolicyTest.entry;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupCatalogTest {
+    private static final RetentionPolicy KEEP_NEWEST = new RetentionPolicy(1, 0, 0, 0, 0, 0, ZoneOffset.UTC);
+
+    @TempDir
+    Path dir;
+
+    // Backups are named so they sort by time, as the real ones do
+    private BackupCatalog catalog(BackupCatalog.Entry... entries) throws IOException {
+        var catalog = new BackupCatalog(dir.resolve("catalog.dat"));
+        for (var entry : entries) {
+            Files.writeString(dir.resolve(entry.path()), entry.name());
+            catalog.add(entry);
+        }
+        return catalog;
+    }
+
+    private static List<String> names(List<BackupCatalog.Entry> entries) {
+        return entries.stream().map(BackupCatalog.Entry::name).toList();
+    }
+
+    @Test
+    void prunesWhatThePolicyExpires() throws IOException {
+        var catalog = catalog(
+            entry("1-a", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("2-b", "2024-05-02T00:00:00Z", 100, false, null)
+        );
+        assertEquals(List.of("1-a"), names(catalog.prune(KEEP_NEWEST)));
+        assertEquals(List.of("2-b"), names(catalog.entries()));
+        assertFalse(Files.exists(dir.resolve("1-a.zip")));
+        assertTrue(Files.exists(dir.resolve("2-b.zip")));
+    }
+
+    @Test
+    void keepsTheWholeChainOfAKeptBackup() throws IOException {
+        var catalog = catalog(
+            entry("1-old", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("2-full", "2024-05-02T00:00:00Z", 100, false, null),
+            entry("3-delta1", "2024-05-03T00:00:00Z", 10, false, "2-full"),
+            entry("4-delta2", "2024-05-04T00:00:00Z", 10, false, "3-delta1")
+        );
+        assertEquals(List.of("1-old"), names(catalog.prune(KEEP_NEWEST)));
+        assertEquals(List.of("2-full", "3-delta1", "4-delta2"), names(catalog.entries()));
+        for (var name : List.of("2-full", "3-delta1", "4-delta2")) {
+            assertTrue(Files.exists(dir.resolve(name + ".zip")), name);
+        }
+    }
+
+    @Test
+    void prunesChainsWithNothingKeptOnThem() throws IOException {
+        var catalog = catalog(
+            entry("1-full", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("2-delta", "2024-05-02T00:00:00Z", 10, false, "1-full"),
+            entry("3-full", "2024-05-03T00:00:00Z", 100, false, null)
+        );
+        assertEquals(List.of("1-full", "2-delta"), names(catalog.prune(KEEP_NEWEST)));
+        assertEquals(List.of("3-full"), names(catalog.entries()));
+    }
+
+    @Test
+    void corruptDeltaDoesNotHoldItsChain() throws IOException {
+        // The corrupt newest delta isn't kept, so the intact delta before it is, along with its base
+        var catalog = catalog(
+            entry("1-old", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("2-full", "2024-05-02T00:00:00Z", 100, false, null),
+            entry("3-delta1", "2024-05-03T00:00:00Z", 10, false, "2-full"),
+            entry("4-delta2", "2024-05-04T00:00:00Z", 10, true, "3-delta1")
+        );
+        assertEquals(List.of("1-old", "4-delta2"), names(catalog.prune(KEEP_NEWEST)));
+        assertEquals(List.of("2-full", "3-delta1"), names(catalog.entries()));
+    }
+
+    @Test
+    void corruptBaseIsKeptWhileNeeded() throws IOException {
+        // Deleting it wouldn't make the delta any more restorable, and verification may be wrong
+        var catalog = catalog(
+            entry("2-full", "2024-05-02T00:00:00Z", 100, true, null),
+            entry("3-delta", "2024-05-03T00:00:00Z", 10, false, "2-full")
+        );
+        assertEquals(List.of(), names(catalog.prune(KEEP_NEWEST)));
+        assertEquals(List.of("2-full", "3-delta"), names(catalog.entries()));
+    }
+
+    @Test
+    void missingBaseEndsTheChain() throws IOException {
+        var catalog = catalog(
+            entry("1-old", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("3-delta", "2024-05-03T00:00:00Z", 10, false, "gone")
+        );
+        assertEquals(List.of("1-old"), names(catalog.prune(KEEP_NEWEST)));
+    }
+
+    @Test
+    void savesAndLoads() throws IOException {
+        var catalog = catalog(
+            entry("2-full", "2024-05-02T00:00:00Z", 100, true, null),
+            entry("3-delta", "2024-05-03T00:00:00Z", 10, false, "2-full")
+        );
+        catalog.save();
+        var loaded = BackupCatalog.load(dir.resolve("catalog.dat")).orElseThrow();
+        assertEquals(catalog.entries(), loaded.entries());
+    }
+}
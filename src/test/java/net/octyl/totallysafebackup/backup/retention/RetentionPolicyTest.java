@@ -0,0 +1,174 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.retention;
+
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RetentionPolicyTest {
+    static BackupCatalog.Entry entry(
+        String name, String createdAt, long sizeBytes, boolean corrupt, @Nullable String base
+    ) {
+        return new BackupCatalog.Entry(
+            name, "zip", Instant.parse(createdAt), sizeBytes, name + ".zip", false, null, corrupt, base
+        );
+    }
+
+    private static BackupCatalog.Entry entry(String name, String createdAt) {
+        return entry(name, createdAt, 100, false, null);
+    }
+
+    private static BackupCatalog.Entry corrupt(String name, String createdAt) {
+        return entry(name, createdAt, 100, true, null);
+    }
+
+    private static RetentionPolicy policy(int keepLast, int hourly, int daily, int weekly, int monthly, long quota) {
+        return new RetentionPolicy(keepLast, hourly, daily, weekly, monthly, quota, ZoneOffset.UTC);
+    }
+
+    private static List<String> expired(RetentionPolicy policy, BackupCatalog.Entry... backups) {
+        return policy.selectExpired(List.of(backups)).stream().map(BackupCatalog.Entry::name).toList();
+    }
+
+    @Test
+    void keepsTheNewest() {
+        assertEquals(List.of("a", "b"), expired(
+            policy(3, 0, 0, 0, 0, 0),
+            entry("a", "2024-05-01T00:00:00Z"),
+            entry("b", "2024-05-02T00:00:00Z"),
+            entry("c", "2024-05-03T00:00:00Z"),
+            entry("d", "2024-05-04T00:00:00Z"),
+            entry("e", "2024-05-05T00:00:00Z")
+        ));
+        assertEquals(List.of(), expired(policy(3, 0, 0, 0, 0, 0), entry("a", "2024-05-01T00:00:00Z")));
+        assertEquals(List.of(), expired(policy(1, 0, 0, 0, 0, 0)));
+    }
+
+    @Test
+    void neverKeepsCorruptBackups() {
+        // The newest is corrupt, so it neither counts as the newest nor is kept
+        assertEquals(List.of("c"), expired(
+            policy(2, 0, 0, 0, 0, 0),
+            entry("a", "2024-05-01T00:00:00Z"),
+            entry("b", "2024-05-02T00:00:00Z"),
+            corrupt("c", "2024-05-03T00:00:00Z")
+        ));
+        // Even if there's nothing else to keep
+        assertEquals(List.of("a"), expired(policy(1, 1, 1, 1, 1, 0), corrupt("a", "2024-05-01T00:00:00Z")));
+    }
+
+    @Test
+    void keepsTheNewestOfEachDay() {
+        assertEquals(List.of("a", "b", "d", "e"), expired(
+            policy(1, 0, 2, 0, 0, 0),
+            entry("a", "2024-05-01T23:00:00Z"),
+            entry("b", "2024-05-02T01:00:00Z"),
+            entry("c", "2024-05-02T23:59:00Z"),
+            entry("d", "2024-05-03T01:00:00Z"),
+            entry("e", "2024-05-03T02:00:00Z"),
+            entry("f", "2024-05-03T03:00:00Z")
+        ));
+    }
+
+    @Test
+    void periodWithCorruptNewestKeepsAnOlderBackup() {
+        assertEquals(List.of("a", "c", "d"), expired(
+            policy(1, 0, 2, 0, 0, 0),
+            entry("a", "2024-05-02T01:00:00Z"),
+            entry("b", "2024-05-02T02:00:00Z"),
+            corrupt("c", "2024-05-02T03:00:00Z"),
+            entry("d", "2024-05-03T01:00:00Z"),
+            entry("e", "2024-05-03T02:00:00Z")
+        ));
+    }
+
+    @Test
+    void periodsFollowTheZone() {
+        // Both are on the 2nd in UTC, but on different days ten hours ahead
+        var backups = List.of(entry("a", "2024-05-02T10:00:00Z"), entry("b", "2024-05-02T20:00:00Z"));
+        assertEquals(List.of(backups.get(0)), policy(1, 0, 2, 0, 0, 0).selectExpired(backups));
+        var ahead = new RetentionPolicy(1, 0, 2, 0, 0, 0, ZoneOffset.ofHours(10));
+        assertEquals(List.of(), ahead.selectExpired(backups));
+    }
+
+    @Test
+    void weeksSpanTheYearBoundary() {
+        // 2024-12-30 is in the first ISO week of 2025, along with the newest
+        assertEquals(List.of("a", "b", "d"), expired(
+            policy(1, 0, 0, 2, 0, 0),
+            entry("a", "2024-12-22T00:00:00Z"),
+            entry("b", "2024-12-28T00:00:00Z"),
+            entry("c", "2024-12-29T00:00:00Z"),
+            entry("d", "2024-12-30T00:00:00Z"),
+            entry("e", "2025-01-02T00:00:00Z")
+        ));
+    }
+
+    @Test
+    void monthsAndHours() {
+        assertEquals(List.of("a", "c"), expired(
+            policy(1, 0, 0, 0, 2, 0),
+            entry("a", "2024-03-31T00:00:00Z"),
+            entry("b", "2024-04-30T00:00:00Z"),
+            entry("c", "2024-05-01T00:00:00Z"),
+            entry("d", "2024-05-31T00:00:00Z")
+        ));
+        assertEquals(List.of("a"), expired(
+            policy(1, 2, 0, 0, 0, 0),
+            entry("a", "2024-05-01T10:10:00Z"),
+            entry("b", "2024-05-01T10:50:00Z"),
+            entry("c", "2024-05-01T11:10:00Z")
+        ));
+    }
+
+    @Test
+    void quotaDropsTheOldest() {
+        assertEquals(List.of("a", "b"), expired(
+            policy(4, 0, 0, 0, 0, 250),
+            entry("a", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("b", "2024-05-02T00:00:00Z", 100, false, null),
+            entry("c", "2024-05-03T00:00:00Z", 100, false, null),
+            entry("d", "2024-05-04T00:00:00Z", 100, false, null)
+        ));
+        // Shared space counts as nothing
+        assertEquals(List.of("a"), expired(
+            policy(4, 0, 0, 0, 0, 250),
+            entry("a", "2024-05-01T00:00:00Z", 100, false, null),
+            entry("b", "2024-05-02T00:00:00Z", 0, false, null),
+            entry("c", "2024-05-03T00:00:00Z", 100, false, null),
+            entry("d", "2024-05-04T00:00:00Z", 100, false, null)
+        ));
+    }
+
+    @Test
+    void quotaKeepsTheNewestEvenIfItIsTooLarge() {
+        assertEquals(List.of("a"), expired(
+            policy(2, 0, 0, 0, 0, 50),
+            entry("a", "2024-05-01T00:00:00Z", 10, false, null),
+            entry("b", "2024-05-02T00:00:00Z", 100, false, null)
+        ));
+    }
+
+    @Test
+    void rejectsInvalidPolicies() {
+        assertThrows(IllegalArgumentException.class, () -> policy(0, 0, 0, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> policy(1, -1, 0, 0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> policy(1, 0, 0, 0, 0, -1));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory stand-in for an object store, which can be told to fail or hold up part uploads.
+ */
+final class FakeS3Client extends S3Client {
+    private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUploadId = new AtomicInteger();
+    private final AtomicInteger partUploads = new AtomicInteger();
+    /**
+     * Part uploads that should fail with a retryable error before any succeed.
+     */
+    final AtomicInteger failingPartUploads = new AtomicInteger();
+    /**
+     * Part numbers that fail every time.
+     */
+    final Set<Integer> brokenParts = ConcurrentHashMap.newKeySet();
+    /**
+     * Taken by every part upload before it is stored, so tests can hold uploads up.
+     */
+    final Semaphore partGate = new Semaphore(Integer.MAX_VALUE);
+
+    FakeS3Client() {
+        super(new S3Endpoint(URI.create("http://localhost"), "us-east-1", "bucket", true, "access", "secret"));
+    }
+
+    /**
+     * {@return the number of part uploads that were attempted}
+     */
+    int partUploads() {
+        return partUploads.get();
+    }
+
+    /**
+     * {@return the completed object stored at a key, or {@code null} if there is none}
+     */
+    byte[] object(String key) {
+        return objects.get(key);
+    }
+
+    /**
+     * {@return whether any multipart upload was started and not yet completed or aborted}
+     */
+    boolean hasOpenUploads() {
+        return !uploads.isEmpty();
+    }
+
+    @Override
+    public String createMultipartUpload(String key) {
+        var uploadId = key + "#" + nextUploadId.incrementAndGet();
+        uploads.put(uploadId, new ConcurrentHashMap<>());
+        return uploadId;
+    }
+
+    @Override
+    public Part uploadPart(String key, String uploadId, int number, byte[] data, int length, HashCode sha256)
+        throws IOException {
+        partUploads.incrementAndGet();
+        partGate.acquireUninterruptibly();
+        try {
+            if (brokenParts.contains(number) || failingPartUploads.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                throw new S3Exception("Failed to upload part " + number + " of " + key, 503, "SlowDown");
+            }
+            var parts = uploads.get(uploadId);
+            if (parts == null) {
+                throw new S3Exception("Failed to upload part " + number + " of " + key, 404, "NoSuchUpload");
+            }
+            var copy = Arrays.copyOf(data, length);
+            parts.put(number, copy);
+            return new Part(number, etag(copy), length);
+        } finally {
+            partGate.release();
+        }
+    }
+
+    @Override
+    public List<Part> listParts(String key, String uploadId) throws IOException {
+        var parts = uploads.get(uploadId);
+        if (parts == null) {
+            throw new S3Exception("Failed to list parts of " + key, 404, "NoSuchUpload");
+        }
+        var listed = new ArrayList<Part>();
+        new TreeMap<>(parts).forEach((number, data) -> listed.add(new Part(number, etag(data), data.length)));
+        return listed;
+    }
+
+    @Override
+    public void completeMultipartUpload(String key, String uploadId, List<Part> parts) throws IOException {
+        var stored = uploads.remove(uploadId);
+        if (stored == null) {
+            throw new S3Exception("Failed to complete upload of " + key, 404, "NoSuchUpload");
+        }
+        var object = new ByteArrayOutputStream();
+        for (int i = 0; i < parts.size(); i++) {
+            var part = parts.get(i);
+            var data = stored.get(part.number());
+            if (part.number() != i + 1 || data == null || !etag(data).equals(part.etag())) {
+                throw new S3Exception("Failed to complete upload of " + key, 400, "InvalidPart");
+            }
+            object.writeBytes(data);
+        }
+        objects.put(key, object.toByteArray());
+    }
+
+    @Override
+    public void abortMultipartUpload(String key, String uploadId) {
+        uploads.remove(uploadId);
+    }
+
+    @Override
+    public void deleteObject(String key) {
+        objects.remove(key);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String etag(byte[] data) {
+        return '"' + Hashing.md5().hashBytes(data).toString() + '"';
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.s3;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class S3UploaderTest {
+    private static final int PART_SIZE = S3Uploader.MIN_PART_SIZE;
+    private static final String KEY = "world/backup.zip";
+
+    @TempDir
+    Path dir;
+
+    private final FakeS3Client client = new FakeS3Client();
+
+    private S3Uploader newUploader(int memoryParts, int threads, int maxAttempts) {
+        return new S3Uploader(client, dir.resolve("uploads.dat"), PART_SIZE, memoryParts, threads, maxAttempts);
+    }
+
+    private static byte[] archive(int size) {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static void upload(S3Uploader uploader, byte[] data, Path source) throws IOException {
+        try (var sink = uploader.openSink(KEY, source)) {
+            // Uneven writes, so parts are filled across several of them
+            for (int offset = 0; offset < data.length; offset += 1_000_003) {
+                sink.write(ByteBuffer.wrap(data, offset, Math.min(1_000_003, data.length - offset)));
+            }
+            sink.commit();
+        }
+    }
+
+    @Test
+    void uploadsInParts() throws IOException {
+        var data = archive(PART_SIZE * 5 / 2);
+        try (var uploader = newUploader(3, 2, 1)) {
+            upload(uploader, data, null);
+        }
+        assertArrayEquals(data, client.object(KEY));
+        assertEquals(3, client.partUploads());
+        assertFalse(client.hasOpenUploads());
+    }
+
+    @Test
+    void uploadsEmptyArchive() throws IOException {
+        try (var uploader = newUploader(2, 1, 1)) {
+            upload(uploader, new byte[0], null);
+        }
+        assertArrayEquals(new byte[0], client.object(KEY));
+    }
+
+    @Test
+    void retriesFailedParts() throws IOException {
+        var data = archive(PART_SIZE * 2);
+        client.failingPartUploads.set(2);
+        try (var uploader = newUploader(3, 1, 3)) {
+            upload(uploader, data, null);
+        }
+        assertArrayEquals(data, client.object(KEY));
+        assertEquals(4, client.partUploads());
+    }
+
+    @Test
+    void abortsWhenRetriesRunOut() {
+        var data = archive(PART_SIZE * 2);
+        client.brokenParts.add(2);
+        try (var uploader = newUploader(3, 2, 2)) {
+            assertThrows(IOException.class, () -> upload(uploader, data, null));
+        }
+        assertNull(client.object(KEY));
+        // Without a local copy there's nothing to resume from, so the parts shouldn't be kept around
+        assertFalse(client.hasOpenUploads());
+    }
+
+    @Test
+    void resumesWithStoredParts() throws IOException {
+        var data = archive(PART_SIZE * 5 / 2);
+        var source = Files.write(dir.resolve("backup.zip"), data);
+        client.brokenParts.add(3);
+        try (var uploader = newUploader(3, 2, 1)) {
+            assertThrows(IOException.class, () -> upload(uploader, data, source));
+        }
+        assertNull(client.object(KEY));
+        int uploaded = client.partUploads();
+
+        client.brokenParts.clear();
+        // A new uploader, as after a restart, picks the upload up from the journal
+        try (var uploader = newUploader(3, 2, 1)) {
+            uploader.resumePending();
+        }
+        assertArrayEquals(data, client.object(KEY));
+        assertEquals(1, client.partUploads() - uploaded, "Only the failed part should be uploaded again");
+        assertFalse(client.hasOpenUploads());
+
+        // Nothing is left to resume
+        try (var uploader = newUploader(3, 2, 1)) {
+            uploader.resumePending();
+        }
+        assertEquals(uploaded + 1, client.partUploads());
+    }
+
+    @Test
+    void resumeUploadsChangedParts() throws IOException {
+        var data = archive(PART_SIZE * 3);
+        var source = Files.write(dir.resolve("backup.zip"), data);
+        client.brokenParts.add(3);
+        try (var uploader = newUploader(3, 2, 1)) {
+            assertThrows(IOException.class, () -> upload(uploader, data, source));
+        }
+        int uploaded = client.partUploads();
+
+        client.brokenParts.clear();
+        // The local copy was rewritten since, so the stored second part is stale
+        data[PART_SIZE + 7] ^= 1;
+        Files.write(source, data);
+        try (var uploader = newUploader(3, 2, 1)) {
+            uploader.resumePending();
+        }
+        assertArrayEquals(data, client.object(KEY));
+        assertEquals(2, client.partUploads() - uploaded);
+    }
+
+    @Test
+    void abortsResumeWithoutLocalCopy() throws IOException {
+        var data = archive(PART_SIZE * 2);
+        var source = Files.write(dir.resolve("backup.zip"), data);
+        client.brokenParts.add(2);
+        try (var uploader = newUploader(3, 2, 1)) {
+            assertThrows(IOException.class, () -> upload(uploader, data, source));
+        }
+        // Kept to resume from the local copy
+        assertTrue(client.hasOpenUploads());
+
+        Files.delete(source);
+        try (var uploader = newUploader(3, 2, 1)) {
+            uploader.resumePending();
+        }
+        assertNull(client.object(KEY));
+        assertFalse(client.hasOpenUploads());
+    }
+
+    @Test
+    void writerWaitsForMemoryBudget() throws Exception {
+        var data = archive(PART_SIZE * 4);
+        client.partGate.drainPermits();
+        try (var uploader = newUploader(2, 1, 1)) {
+            var writtenParts = new AtomicInteger();
+            var failure = new AtomicReference<Throwable>();
+            var writer = new Thread(() -> {
+                try (var sink = uploader.openSink(KEY, null)) {
+                    for (int offset = 0; offset < data.length; offset += PART_SIZE) {
+                        sink.write(ByteBuffer.wrap(data, offset, PART_SIZE));
+                        writtenParts.incrementAndGet();
+                    }
+                    sink.commit();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }, "test-writer");
+            writer.start();
+
+            // Two parts fit in memory, so the third write waits for the held-up uploads
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                while (writer.getState() != Thread.State.WAITING) {
+                    Thread.sleep(10);
+                }
+            });
+            Thread.sleep(100);
+            assertEquals(2, writtenParts.get());
+            assertEquals(Thread.State.WAITING, writer.getState());
+
+            client.partGate.release(Integer.MAX_VALUE);
+            writer.join(Duration.ofSeconds(10).toMillis());
+            assertFalse(writer.isAlive());
+            assertNull(failure.get());
+            assertEquals(4, writtenParts.get());
+        }
+        assertArrayEquals(data, client.object(KEY));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+
+package net.octyl.totallysafebackup.backup.schedule;
+
+import net.octyl.totallysafebackup.backup.BackupReport;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BackupSchedulerTest {
+    private static final BackupReport REPORT = new BackupReport(1, 1, Duration.ZERO, Duration.ZERO);
+
+    @Test
+    void requestsBeforeTheBackupStartsJoinIt() throws Exception {
+        var runs = new AtomicInteger();
+        // Hold the first backup back long enough for the second request to arrive
+        var delayed = new AtomicBoolean();
+        var scheduler = new BackupScheduler(
+            BackupSchedule.every(Duration.ofDays(1)),
+            () -> BackupResult.completed("backup-" + runs.incrementAndGet(), REPORT),
+            () -> false,
+            () -> delayed.getAndSet(true) ? Duration.ZERO : Duration.ofMillis(200)
+        );
+        try {
+            var first = scheduler.submitRequest();
+            var second = scheduler.submitRequest();
+
+            assertFalse(first.joined());
+            assertTrue(second.joined());
+            var result = first.result().get(10, TimeUnit.SECONDS);
+            assertEquals(BackupResult.Outcome.COMPLETED, result.outcome());
+            assertEquals("backup-1", result.name());
+            assertEquals(result, second.result().get(10, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+
+            // Requested backups run even if nothing changed, and don't join one that is already done
+            var third = scheduler.submitRequest();
+            assertFalse(third.joined());
+            assertEquals("backup-2", third.result().get(10, TimeUnit.SECONDS).name());
+        } finally {
+            scheduler.shutdown(Duration.ofSeconds(10));
+        }
+    }
+
+    @Test
+    void requestsAfterShutdownFail() throws Exception {
+        var scheduler = new BackupScheduler(
+            BackupSchedule.every(Duration.ofDays(1)),
+            () -> BackupResult.completed("backup", REPORT),
+            () -> true,
+            () -> Duration.ZERO
+        );
+        assertTrue(scheduler.shutdown(Duration.ofSeconds(10)));
+
+        var request = scheduler.submitRequest();
+
+        assertFalse(request.joined());
+        var error = assertThrows(ExecutionException.class, () -> request.result().get(10, TimeUnit.SECONDS));
+        assertInstanceOf(RejectedExecutionException.class, error.getCause());
+    }
+}
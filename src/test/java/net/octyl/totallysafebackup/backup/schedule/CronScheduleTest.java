@@ -0,0 +1,124 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.schedule;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CronScheduleTest {
+    private static ZonedDateTime at(String time) {
+        return LocalDateTime.parse(time).atZone(ZoneOffset.UTC);
+    }
+
+    private static void assertNext(String expression, String previous, String expected) {
+        var next = BackupSchedule.cron(expression).next(at(previous));
+        assertEquals(at(expected), next, expression + " after " + previous);
+    }
+
+    @Test
+    void everyMinute() {
+        assertNext("* * * * *", "2024-05-10T10:07:00", "2024-05-10T10:08");
+        // Seconds are dropped, and the next run is always after the previous one
+        assertNext("* * * * *", "2024-05-10T10:07:59.999", "2024-05-10T10:08");
+    }
+
+    @Test
+    void steps() {
+        assertNext("*/15 * * * *", "2024-05-10T10:07", "2024-05-10T10:15");
+        assertNext("*/15 * * * *", "2024-05-10T10:15", "2024-05-10T10:30");
+        assertNext("*/15 * * * *", "2024-05-10T10:45", "2024-05-10T11:00");
+        // A start with a step runs from the start to the end of the range
+        assertNext("5/20 * * * *", "2024-05-10T10:06", "2024-05-10T10:25");
+        assertNext("5/20 * * * *", "2024-05-10T10:45", "2024-05-10T11:05");
+        assertNext("0 8-18/4 * * *", "2024-05-10T12:00", "2024-05-10T16:00");
+        assertNext("0 8-18/4 * * *", "2024-05-10T16:00", "2024-05-11T08:00");
+    }
+
+    @Test
+    void lists() {
+        assertNext("0,30 6,18 * * *", "2024-05-10T06:30", "2024-05-10T18:00");
+        assertNext("0,30 6,18 * * *", "2024-05-10T18:30", "2024-05-11T06:00");
+    }
+
+    @Test
+    void dailyRollsOverMonthsAndYears() {
+        assertNext("0 3 * * *", "2024-05-10T03:00", "2024-05-11T03:00");
+        assertNext("0 3 * * *", "2024-05-31T04:00", "2024-06-01T03:00");
+        assertNext("0 3 * * *", "2024-12-31T03:00", "2025-01-01T03:00");
+        assertNext("30 2 1 * *", "2024-01-31T12:00", "2024-02-01T02:30");
+    }
+
+    @Test
+    void monthsWithoutTheDay() {
+        // Only months with a 31st
+        assertNext("0 0 31 * *", "2024-04-01T00:00", "2024-05-31T00:00");
+        // Only leap years
+        assertNext("0 0 29 2 *", "2025-03-01T00:00", "2028-02-29T00:00");
+    }
+
+    @Test
+    void daysOfWeek() {
+        // 2024-05-10 is a Friday
+        assertNext("0 9 * * 1-5", "2024-05-10T10:00", "2024-05-13T09:00");
+        assertNext("0 9 * * 1-5", "2024-05-13T08:00", "2024-05-13T09:00");
+        // Sunday is both 0 and 7
+        assertNext("0 0 * * 0", "2024-05-10T00:00", "2024-05-12T00:00");
+        assertNext("0 0 * * 7", "2024-05-10T00:00", "2024-05-12T00:00");
+    }
+
+    @Test
+    void restrictedDayFieldsMatchEither() {
+        // The 13th, or any Friday
+        assertNext("0 0 13 * 5", "2024-05-10T00:00", "2024-05-13T00:00");
+        assertNext("0 0 13 * 5", "2024-05-13T00:00", "2024-05-17T00:00");
+        // With either field unrestricted, both have to match
+        assertNext("0 0 13 * *", "2024-05-10T00:00", "2024-05-13T00:00");
+        assertNext("0 0 * 9 5", "2024-05-10T00:00", "2024-09-06T00:00");
+    }
+
+    @Test
+    void keepsTheZone() {
+        var zone = ZoneId.of("Europe/Berlin");
+        var previous = LocalDateTime.parse("2024-05-10T10:07").atZone(zone);
+        assertEquals(
+            LocalDateTime.parse("2024-05-11T03:00").atZone(zone), BackupSchedule.cron("0 3 * * *").next(previous)
+        );
+    }
+
+    @Test
+    void rejectsInvalidExpressions() {
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("* * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("* * * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("60 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("* 24 * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("* * 0 * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("* * * 13 *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("* * * * 8"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("30-10 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("*/0 * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("mon * * * *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("1,,2 * * * *"));
+    }
+
+    @Test
+    void rejectsExpressionsThatNeverMatch() {
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("0 0 31 2 *"));
+        assertThrows(IllegalArgumentException.class, () -> BackupSchedule.cron("0 0 30 2 *"));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CompressionPolicyTest {
+    @TempDir
+    Path dir;
+
+    private Path write(String name, byte[] data) throws IOException {
+        return Files.write(dir.resolve(name), data);
+    }
+
+    private static byte[] random(int size) {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] text(int size) {
+        var text = new StringBuilder();
+        for (int i = 0; text.length() < size; i++) {
+            text.append("line ").append(i).append(" of some very repetitive text\n");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void knownExtensionsAreNotSampled() throws IOException {
+        // The source doesn't exist, so reading it would fail
+        var missing = dir.resolve("missing");
+        var policy = CompressionPolicy.DEFAULT;
+        assertEquals(CompressionPolicy.Method.STORE, policy.choose(Path.of("region", "r.0.0.mca"), missing));
+        assertEquals(CompressionPolicy.Method.STORE, policy.choose(Path.of("icon.PNG"), missing));
+        assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("level.dat"), missing));
+        assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("level.dat_old"), missing));
+        assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("stats", "player.json"), missing));
+    }
+
+    @Test
+    void defaultUsesTheDefaultLists() throws IOException {
+        var missing = dir.resolve("missing");
+        var policy = CompressionPolicy.DEFAULT;
+        for (var extension : CompressionPolicy.DEFAULT_STORED_EXTENSIONS) {
+            assertEquals(CompressionPolicy.Method.STORE, policy.choose(Path.of("file." + extension), missing));
+        }
+        for (var extension : CompressionPolicy.DEFAULT_DEFLATED_EXTENSIONS) {
+            assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("file." + extension), missing));
+        }
+    }
+
+    @Test
+    void unknownFilesAreSampled() throws IOException {
+        var policy = CompressionPolicy.DEFAULT;
+        var noise = write("noise.bin", random(200_000));
+        assertEquals(CompressionPolicy.Method.STORE, policy.choose(Path.of("noise.bin"), noise));
+        var text = write("notes", text(200_000));
+        assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("notes"), text));
+        // Too small to be worth sampling, even though it won't compress
+        var small = write("small.bin", random(1000));
+        assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("small.bin"), small));
+    }
+
+    @Test
+    void customLists() throws IOException {
+        var policy = new CompressionPolicy(Set.of("dat"), Set.of("mca"), 0.5);
+        var missing = dir.resolve("missing");
+        assertEquals(CompressionPolicy.Method.STORE, policy.choose(Path.of("level.dat"), missing));
+        assertEquals(CompressionPolicy.Method.DEFLATE, policy.choose(Path.of("r.0.0.mca"), missing));
+        assertThrows(IllegalArgumentException.class, () -> new CompressionPolicy(Set.of(), Set.of(), 0));
+    }
+
+    @Test
+    void mappedCrc32MatchesCrc32() throws IOException {
+        var data = random(100_000);
+        var file = write("data", data);
+        try (var channel = FileChannel.open(file)) {
+            var crc = new CRC32();
+            crc.update(data, 0, 60_000);
+            assertEquals(crc.getValue(), CompressionPolicy.mappedCrc32(channel, 60_000));
+            crc.reset();
+            crc.update(data);
+            assertEquals(crc.getValue(), CompressionPolicy.mappedCrc32(channel, data.length));
+        }
+    }
+}
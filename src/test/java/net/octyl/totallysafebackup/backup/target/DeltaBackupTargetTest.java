@@ -0,0 +1,215 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeltaBackupTargetTest {
+    private static final Path REGION = Path.of("region", "r.0.0.mca");
+    private static final String REGION_ENTRY = "region/r.0.0.mca";
+    private static final int SIZE = 64 * DeltaBackupTarget.BLOCK_SIZE;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Back up a version of the region file, and return the size of the archive.
+     */
+    private long backUp(String name, byte[] region) throws IOException {
+        try (var target = new DeltaBackupTarget(dir, name, dir.resolve("signatures"), 100)) {
+            target.saveFile(REGION, out -> out.write(region));
+            target.commit();
+        }
+        return Files.size(DeltaBackupTarget.pathFor(dir, name));
+    }
+
+    private byte[] read(String name) throws IOException {
+        try (var reader = DeltaArchiveReader.open(DeltaBackupTarget.pathFor(dir, name));
+             var input = reader.open(REGION_ENTRY)) {
+            return input.readAllBytes();
+        }
+    }
+
+    private void assertRoundTrips(String name, byte[] region) throws IOException {
+        assertArrayEquals(region, read(name));
+    }
+
+    private static byte[] random(int size, long seed) {
+        var data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] insert(byte[] data, int at, byte[] inserted) {
+        var result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(inserted, 0, result, at, inserted.length);
+        System.arraycopy(data, at, result, at + inserted.length, data.length - at);
+        return result;
+    }
+
+    private static byte[] delete(byte[] data, int at, int length) {
+        var result = new byte[data.length - length];
+        System.arraycopy(data, 0, result, 0, at);
+        System.arraycopy(data, at + length, result, at, data.length - at - length);
+        return result;
+    }
+
+    @Test
+    void keyframe() throws IOException {
+        var region = random(SIZE, 1);
+        backUp("1", region);
+        try (var reader = DeltaArchiveReader.open(DeltaBackupTarget.pathFor(dir, "1"))) {
+            assertNull(reader.getBase());
+        }
+        assertRoundTrips("1", region);
+    }
+
+    @Test
+    void unchangedFileIsNotStoredAgain() throws IOException {
+        var region = random(SIZE, 1);
+        long keyframe = backUp("1", region);
+        long unchanged = backUp("2", region);
+        assertTrue(unchanged < keyframe / 100, "unchanged file took " + unchanged + " bytes");
+        try (var reader = DeltaArchiveReader.open(DeltaBackupTarget.pathFor(dir, "2"))) {
+            assertEquals("1", reader.getBase());
+        }
+        assertRoundTrips("2", region);
+    }
+
+    @Test
+    void changedBlock() throws IOException {
+        var region = random(SIZE, 1);
+        long keyframe = backUp("1", region);
+        var changed = region.clone();
+        Arrays.fill(changed, 5 * DeltaBackupTarget.BLOCK_SIZE + 100, 5 * DeltaBackupTarget.BLOCK_SIZE + 200, (byte) 0);
+        long delta = backUp("2", changed);
+        assertTrue(delta < keyframe / 8, "delta took " + delta + " bytes");
+        assertRoundTrips("2", changed);
+    }
+
+    @Test
+    void insertionNotAlignedToBlocks() throws IOException {
+        var region = random(SIZE, 1);
+        long keyframe = backUp("1", region);
+        var inserted = insert(region, 5000, random(123, 2));
+        long delta = backUp("2", inserted);
+        // Everything after the insertion is found again by rolling over it
+        assertTrue(delta < keyframe / 8, "delta took " + delta + " bytes");
+        assertRoundTrips("2", inserted);
+    }
+
+    @Test
+    void deletionNotAlignedToBlocks() throws IOException {
+        var region = random(SIZE, 1);
+        long keyframe = backUp("1", region);
+        var deleted = delete(region, 10_001, 3);
+        long delta = backUp("2", deleted);
+        assertTrue(delta < keyframe / 8, "delta took " + delta + " bytes");
+        assertRoundTrips("2", deleted);
+    }
+
+    @Test
+    void appendedPartialBlock() throws IOException {
+        var region = random(SIZE, 1);
+        backUp("1", region);
+        var appended = insert(region, region.length, random(1000, 2));
+        backUp("2", appended);
+        assertRoundTrips("2", appended);
+        var truncated = Arrays.copyOf(region, region.length - 1000);
+        backUp("3", truncated);
+        assertRoundTrips("3", truncated);
+    }
+
+    @Test
+    void movedBlocks() throws IOException {
+        var region = random(SIZE, 1);
+        long keyframe = backUp("1", region);
+        var moved = region.clone();
+        int block = DeltaBackupTarget.BLOCK_SIZE;
+        System.arraycopy(region, 40 * block, moved, 2 * block, 3 * block);
+        System.arraycopy(region, 2 * block, moved, 40 * block, 3 * block);
+        long delta = backUp("2", moved);
+        assertTrue(delta < keyframe / 8, "delta took " + delta + " bytes");
+        assertRoundTrips("2", moved);
+    }
+
+    @Test
+    void repeatedBlocks() throws IOException {
+        var region = new byte[SIZE];
+        backUp("1", region);
+        var changed = region.clone();
+        changed[SIZE / 2] = 1;
+        backUp("2", changed);
+        assertRoundTrips("2", changed);
+    }
+
+    @Test
+    void newContentIsStoredWhole() throws IOException {
+        backUp("1", random(SIZE, 1));
+        var replaced = random(SIZE + 17, 2);
+        backUp("2", replaced);
+        assertRoundTrips("2", replaced);
+    }
+
+    @Test
+    void emptyAndTinyFiles() throws IOException {
+        backUp("1", new byte[0]);
+        assertRoundTrips("1", new byte[0]);
+        var region = random(SIZE, 1);
+        backUp("2", region);
+        assertRoundTrips("2", region);
+        var tiny = random(10, 2);
+        backUp("3", tiny);
+        assertRoundTrips("3", tiny);
+    }
+
+    @Test
+    void chainOfRandomEdits() throws IOException {
+        var random = new Random(42);
+        var region = random(SIZE, 1);
+        var versions = new byte[20][];
+        for (int i = 0; i < versions.length; i++) {
+            if (i > 0) {
+                int at = random.nextInt(region.length);
+                region = switch (random.nextInt(3)) {
+                    case 0 -> insert(region, at, random(1 + random.nextInt(3 * DeltaBackupTarget.BLOCK_SIZE), i));
+                    case 1 -> delete(region, at, Math.min(region.length - at, 1 + random.nextInt(5000)));
+                    default -> {
+                        var changed = region.clone();
+                        int end = Math.min(changed.length, at + 1 + random.nextInt(5000));
+                        Arrays.fill(changed, at, end, (byte) random.nextInt());
+                        yield changed;
+                    }
+                };
+            }
+            versions[i] = region;
+            backUp(String.format("%02d", i), region);
+        }
+        // Each version is rebuilt through every one before it
+        for (int i = 0; i < versions.length; i++) {
+            assertRoundTrips(String.format("%02d", i), versions[i]);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * This file is part of totally-safe-backup.
+ *
+ * Copyright (c) Octavia Togami <https://octyl.net>
+ * Copyright (c) contributors
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/.
+ */
+
+package net.octyl.totallysafebackup.backup.target;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link ZipArchiveWriter}'s archives read back with {@link ZipFile}, on both sides of each Zip64 limit.
+ */
+class ZipArchiveWriterTest {
+    private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final String UNICODE_NAME = "\u043d\u0430\u0437\u0432\u0430\u043d\u0438\u0435/\u00fcn\u00efcode.txt";
+
+    @TempDir
+    Path dir;
+
+    private static FileChannel create(Path archive) throws IOException {
+        return FileChannel.open(archive, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private static byte[] data(int size) {
+        var data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private static long crc(byte[] data) {
+        var crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static ByteBuffer[] deflate(byte[] data) {
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(data);
+        deflater.finish();
+        var deflated = deflateAll(deflater, Deflater.NO_FLUSH);
+        deflater.end();
+        return new ByteBuffer[] {ByteBuffer.wrap(deflated)};
+    }
+
+    private static byte[] deflateAll(Deflater deflater, int flush) {
+        var output = new ByteArrayOutputStream();
+        var buffer = new byte[8192];
+        int count;
+        do {
+            count = deflater.deflate(buffer, 0, buffer.length, flush);
+            output.write(buffer, 0, count);
+        } while (count == buffer.length || !deflater.needsInput() && !deflater.finished());
+        return output.toByteArray();
+    }
+
+    private static void assertEntry(ZipFile zip, String name, byte[] expected) throws IOException {
+        var entry = zip.getEntry(name);
+        assertNotNull(entry, name);
+        try (var input = zip.getInputStream(entry)) {
+            assertArrayEquals(expected, input.readAllBytes(), name);
+        }
+    }
+
+    /**
+     * Check that the archive only uses Zip64 if it has to, as older tools can't read it.
+     */
+    private static boolean hasZip64End(Path archive) throws IOException {
+        try (var channel = FileChannel.open(archive)) {
+            // The Zip64 end record and its locator come right before the 22 byte end record
+            var tail = ByteBuffer.allocate(22 + 20 + 56);
+            long start = Math.max(0, channel.size() - tail.capacity());
+            channel.read(tail, start);
+            tail.flip();
+            for (int i = 0; i + 4 <= tail.limit(); i++) {
+                if (tail.order(ByteOrder.LITTLE_ENDIAN).getInt(i) == 0x07064b50) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    @Test
+    void smallArchive() throws IOException {
+        var deflated = data(100_000);
+        var stored = data(70_000);
+        var storedSource = Files.write(dir.resolve("stored.bin"), stored);
+        var archive = dir.resolve("small.zip");
+        try (var writer = new ZipArchiveWriter(create(archive))) {
+            writer.writeEntry("region/r.0.0.mca", ZipEntry.DEFLATED, crc(deflated), deflated.length, deflate(deflated));
+            try (var source = FileChannel.open(storedSource)) {
+                writer.writeStoredEntry("data/stored.dat", crc(stored), stored.length, source);
+            }
+            writer.writeEntry("empty", ZipEntry.STORED, crc(new byte[0]), 0, new ByteBuffer[0]);
+            writer.writeEntry(UNICODE_NAME, ZipEntry.STORED, crc(stored), stored.length, new ByteBuffer[] {
+                ByteBuffer.wrap(stored)
+            });
+            writer.finish();
+            assertEquals(Files.size(archive), writer.position());
+        }
+        try (var zip = new ZipFile(archive.toFile())) {
+            assertEquals(4, zip.size());
+            assertEntry(zip, "region/r.0.0.mca", deflated);
+            assertEntry(zip, "data/stored.dat", stored);
+            assertEntry(zip, "empty", new byte[0]);
+            assertEntry(zip, UNICODE_NAME, stored);
+        }
+        assertFalse(hasZip64End(archive));
+    }
+
+    @Test
+    void moreEntriesThanZip32Allows() throws IOException {
+        int count = 0xFFFF + 10;
+        var archive = dir.resolve("many.zip");
+        try (var writer = new ZipArchiveWriter(create(archive))) {
+            for (int i = 0; i < count; i++) {
+                var data = Integer.toString(i).getBytes(StandardCharsets.UTF_8);
+                writer.writeEntry("e/" + i, ZipEntry.STORED, crc(data), data.length, new ByteBuffer[] {
+                    ByteBuffer.wrap(data)
+                });
+            }
+            writer.finish();
+        }
+        try (var zip = new ZipFile(archive.toFile())) {
+            assertEquals(count, zip.size());
+            assertEntry(zip, "e/0", "0".getBytes(StandardCharsets.UTF_8));
+            assertEntry(zip, "e/" + (count - 1), Integer.toString(count - 1).getBytes(StandardCharsets.UTF_8));
+        }
+        assertTrue(hasZip64End(archive));
+    }
+
+    @Test
+    void offsetsBeyondZip32() throws IOException {
+        var first = data(5000);
+        var second = data(7000);
+        var archive = dir.resolve("far.zip");
+        // Start the entries past the limit without writing gigabytes, the gap is left sparse
+        try (var channel = create(archive)) {
+            channel.position(ZIP64_LIMIT + 1);
+            try (var writer = new ZipArchiveWriter(channel)) {
+                writer.writeEntry("first", ZipEntry.DEFLATED, crc(first), first.length, deflate(first));
+                writer.writeEntry("second", ZipEntry.STORED, crc(second), second.length, new ByteBuffer[] {
+                    ByteBuffer.wrap(second)
+                });
+                writer.finish();
+            }
+        }
+        try (var zip = new ZipFile(archive.toFile())) {
+            assertEquals(2, zip.size());
+            assertEntry(zip, "first", first);
+            assertEntry(zip, "second", second);
+        }
+        assertTrue(hasZip64End(archive));
+    }
+
+    @Test
+    void entryLargerThanZip32() throws IOException {
+        long size = ZIP64_LIMIT + 4096;
+        // Zeros deflate to almost nothing, so the entry is large but the archive isn't. A fully flushed segment
+        // doesn't refer back to anything before it, so one segment can be repeated instead of deflating gigabytes.
+        var zeros = new byte[1024 * 1024];
+        var deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(zeros);
+        var segment = deflateAll(deflater, Deflater.FULL_FLUSH);
+        deflater.setInput(zeros, 0, (int) (size % zeros.length));
+        deflater.finish();
+        var end = deflateAll(deflater, Deflater.NO_FLUSH);
+        deflater.end();
+        var compressed = new ArrayList<ByteBuffer>();
+        var crc = new CRC32();
+        for (long i = 0; i < size / zeros.length; i++) {
+            compressed.add(ByteBuffer.wrap(segment));
+            crc.update(zeros);
+        }
+        compressed.add(ByteBuffer.wrap(end));
+        crc.update(zeros, 0, (int) (size % zeros.length));
+
+        var small = data(1000);
+        var archive = dir.resolve("large.zip");
+        try (var writer = new ZipArchiveWriter(create(archive))) {
+            writer.writeEntry("large", ZipEntry.DEFLATED, crc.getValue(), size, compressed.toArray(ByteBuffer[]::new));
+            writer.writeEntry("small", ZipEntry.STORED, crc(small), small.length, new ByteBuffer[] {
+                ByteBuffer.wrap(small)
+            });
+            writer.finish();
+        }
+        try (var zip = new ZipFile(archive.toFile())) {
+            var large = zip.getEntry("large");
+            assertEquals(size, large.getSize());
+            try (var input = zip.getInputStream(large)) {
+                assertArrayEquals(new byte[4096], input.readNBytes(4096));
+            }
+            assertEntry(zip, "small", small);
+        }
+    }
+}